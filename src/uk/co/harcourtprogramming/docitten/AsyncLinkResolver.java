@@ -0,0 +1,294 @@
+package uk.co.harcourtprogramming.docitten;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import javax.net.ssl.SSLHandshakeException;
+import uk.co.harcourtprogramming.internetrelaycats.RelayCat;
+import uk.co.harcourtprogramming.logging.LogDecorator;
+
+/**
+ * <p>Recursive URL retriever which does not block a thread whilst waiting on
+ * the network</p>
+ * <p>This follows the same rules as the {@link LinkResolver}: up to {@link
+ * LinkResolver#MAX_HOPS} redirects are followed, each hop must respond within
+ * {@link LinkResolver#TIMEOUT}ms, unknown hosts and hosts refused by the
+ * {@link HostGuard} are silently ignored, failures are kept in the {@link
+ * LinkCache#getFailures() failure cache}, and the result is cached and sent
+ * to every end point that asked for the link.
+ * Rather than a worker thread walking the redirects, each hop is an {@link
+ * AsyncRequest} which calls back into the resolver when done; the next hop is
+ * then submitted to the {@link WorkerPool} to have its host looked up.</p>
+ * <p>Every hop is a GET request, as with the <code>get</code> walk of the
+ * {@link LinkResolver}. This engine is used by the {@link LinkService} when
+ * the system property <code>LinkService.Engine</code> is set to
+ * <code>async</code>.</p>
+ *
+ * @author Benedict Harcourt / javajawa
+ */
+public class AsyncLinkResolver implements Runnable, AsyncRequest.Callback
+{
+	/**
+	 * <p>Logger shared with {@link LinkService} and with all other resolver
+	 * instances</p>
+	 */
+	private final static LogDecorator LOG = LogDecorator.getLogger("DoCitten.LinkServier");
+	/**
+	 * <p>Regex pattern to test whether a string has an http or https protocol
+	 * section</p>
+	 */
+	private final static Pattern PROTOCOL = Pattern.compile("^https?://.+");
+
+	/**
+	 * <p>The original URI that we are retrieving</p>
+	 */
+	private final URI baseURI;
+	/**
+	 * <p>The {@link LinkCache#key(java.net.URI) normalised} form of the URI,
+	 * used for caching and {@link InFlight coalescing} lookups</p>
+	 */
+	private final String key;
+	/**
+	 * <p>IRC connection that the query came from</p>
+	 */
+	private final RelayCat mess;
+	/**
+	 * <p>IRC user/channel that the query came from</p>
+	 */
+	private final String target;
+	/**
+	 * <p>The URL of the current hop</p>
+	 */
+	private volatile URL curr;
+	/**
+	 * <p>The number of redirects followed so far</p>
+	 */
+	private volatile int hops = 0;
+
+	/**
+	 * <p>Creates a link resolver instance, targeted at a specified web address,
+	 * which will attempt to send information to a IRC end point via a RelayCat
+	 * instance</p>
+	 * <p>The resolver is started by submitting it to the {@link WorkerPool}</p>
+	 *
+	 * @param baseURI the link we're following
+	 * @param mess IRC connection that the query came from
+	 * @param target IRC user/channel that the query came from
+	 */
+	public AsyncLinkResolver(String baseURI, RelayCat mess, String target)
+	{
+		if (!PROTOCOL.matcher(baseURI).matches())
+		{
+			this.baseURI = URI.create("http://" + baseURI);
+		}
+		else
+		{
+			this.baseURI = URI.create(baseURI);
+		}
+
+		this.key = LinkCache.key(this.baseURI);
+		this.mess = mess;
+		this.target = target;
+	}
+
+	/**
+	 * <p>Gets the key used for caching and coalescing this lookup</p>
+	 *
+	 * @return the normalised URI
+	 */
+	public String getKey()
+	{
+		return key;
+	}
+
+	/**
+	 * <p>Starts this resolver</p>
+	 * <p>The link is answered from the cache if possible; otherwise, the
+	 * first hop is started, and this returns without waiting for it.</p>
+	 */
+	@Override
+	public void run()
+	{
+		final LinkCache.Entry cached = LinkCache.getShared().get(key);
+
+		if (cached != null)
+		{
+			LOG.fine("Cache hit for {0}", key);
+			complete(LinkResolver.describe(cached));
+			return;
+		}
+
+		final LinkCache.Failure failed = LinkCache.getFailures().get(key);
+
+		if (failed != null)
+		{
+			LOG.fine("Negative cache hit for {0}", key);
+			complete(failed.getReply());
+			return;
+		}
+
+		try
+		{
+			curr = baseURI.toURL();
+		}
+		catch (MalformedURLException | IllegalArgumentException ex)
+		{
+			complete(null);
+			throw new RuntimeException(ex);
+		}
+
+		if (acquire())
+		{
+			new AsyncRequest(curr, this).run();
+		}
+	}
+
+	@Override
+	public void redirected(String location)
+	{
+		HostGuard.getShared().success(curr.getHost());
+
+		try
+		{
+			curr = LinkResolver.resolveLocation(curr, location);
+		}
+		catch (RuntimeException ex)
+		{
+			failed(ex);
+			return;
+		}
+
+		if (++hops == LinkResolver.MAX_HOPS)
+		{
+			final String line = String.format(
+				"[%s] (Unresolved after %d hops)", curr.getHost(), LinkResolver.MAX_HOPS
+			);
+
+			LinkCache.getFailures().put(key, new LinkCache.Failure(line));
+			complete(line);
+			return;
+		}
+
+		if (!acquire())
+		{
+			return;
+		}
+
+		// The host lookup for the next hop blocks, so do it on a worker
+		if (!WorkerPool.submit(new AsyncRequest(curr, this)))
+		{
+			HostGuard.getShared().release(curr.getHost());
+			complete(null);
+		}
+	}
+
+	@Override
+	public void resolved(LinkCache.Entry entry)
+	{
+		HostGuard.getShared().success(curr.getHost());
+		LinkCache.getShared().put(key, entry);
+		complete(LinkResolver.describe(entry));
+	}
+
+	@Override
+	public void unresolved(int statusCode)
+	{
+		HostGuard.getShared().report(curr.getHost(), statusCode);
+
+		if (statusCode >= 400)
+		{
+			LinkCache.getFailures().put(key, LinkCache.Failure.SILENT);
+		}
+
+		LOG.fine("Status {0} from {1} [lookup of {2}]", statusCode, curr.getHost(), baseURI.toString());
+		complete(null);
+	}
+
+	@Override
+	public void unknownHost(String host)
+	{
+		HostGuard.getShared().failure(host);
+		LinkCache.getFailures().put(LinkCache.hostKey(host), LinkCache.Failure.SILENT);
+		LOG.fine("Host {0} not found [lookup of {1}]", host, baseURI.toString());
+		complete(null);
+	}
+
+	@Override
+	public void failed(Throwable cause)
+	{
+		HostGuard.getShared().failure(curr.getHost());
+
+		if (cause instanceof SSLHandshakeException)
+		{
+			final Throwable inner = cause.getCause();
+
+			if (inner instanceof java.security.cert.CertificateException)
+			{
+				LinkCache.getFailures().put(LinkCache.hostKey(curr.getHost()), LinkCache.Failure.SILENT);
+				LOG.fine("No cerficiate {0} not found [lookup of {1}]", curr.getHost(), baseURI.toString());
+				complete(null);
+				return;
+			}
+
+			if (inner instanceof java.io.EOFException)
+			{
+				LOG.fine("Error connecting to {0} [lookup of {1}] {2}", curr.getHost(), baseURI.toString(), inner.getMessage());
+				complete(null);
+				return;
+			}
+		}
+
+		LOG.warning(cause, "Error resolving {0} [lookup of {1}]", curr, baseURI.toString());
+		complete(null);
+	}
+
+	/**
+	 * <p>Checks that the current hop's host has not failed recently, and asks
+	 * the {@link HostGuard} for permission to request it, ending the lookup if
+	 * either says no</p>
+	 *
+	 * @return whether the hop may be requested
+	 */
+	private boolean acquire()
+	{
+		if (LinkCache.getFailures().get(LinkCache.hostKey(curr.getHost())) != null)
+		{
+			LOG.fine("Host {0} failed recently [lookup of {1}]", curr.getHost(), baseURI.toString());
+			complete(null);
+			return false;
+		}
+
+		if (HostGuard.getShared().acquire(curr.getHost()))
+		{
+			return true;
+		}
+
+		LOG.fine("Host {0} is rate limited or failing [lookup of {1}]", curr.getHost(), baseURI.toString());
+		complete(null);
+		return false;
+	}
+
+	/**
+	 * <p>Sends the result to the IRC end point that asked for it, and to any
+	 * that {@link InFlight#join(String, RelayCat, String) joined} the lookup
+	 * while it was running</p>
+	 *
+	 * @param line the message to send, or null if there is nothing to say
+	 */
+	private void complete(String line)
+	{
+		final List<String> replies = line == null
+			? Collections.<String>emptyList() : Collections.singletonList(line);
+
+		InFlight.complete(key, replies, mess, target);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "AsyncLinkResolver [" + baseURI + ']';
+	}
+}
@@ -0,0 +1,1148 @@
+package uk.co.harcourtprogramming.docitten;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLParameters;
+import uk.co.harcourtprogramming.docitten.utility.TitleScanner;
+import uk.co.harcourtprogramming.logging.LogDecorator;
+
+/**
+ * <p>A single HTTP(S) GET request, made without blocking a thread</p>
+ * <p>The request is made over an {@link AsynchronousSocketChannel} in a
+ * small shared channel group, so a handful of threads can have hundreds of
+ * requests waiting on the network at once. Each step (connect, TLS
+ * handshake, write, read) is a completion handler which starts the next, and
+ * the response is parsed as it arrives: redirects are reported as soon as the
+ * headers are read, and pages are pushed through a {@link TitleScanner} until
+ * the title has been found.</p>
+ * <p>Only the host name lookup blocks, as Java has no asynchronous resolver;
+ * it is done by {@link #run()}, which should be run on the {@link
+ * WorkerPool}.</p>
+ * <p>Each request uses its own connection, which is closed once the response
+ * has been dealt with. The number of threads in the channel group is set by
+ * the system property <code>LinkService.Async.Threads</code> (default 2).</p>
+ *
+ * @author Benedict Harcourt / javajawa
+ */
+final class AsyncRequest implements Runnable
+{
+	/**
+	 * <p>Logger shared with {@link LinkService} and the resolvers</p>
+	 */
+	private final static LogDecorator LOG = LogDecorator.getLogger("DoCitten.LinkServier");
+	/**
+	 * <p>Default number of threads in the channel group</p>
+	 */
+	private final static int DEFAULT_THREADS = 2;
+	/**
+	 * <p>Maximum size of the response headers</p>
+	 */
+	private final static int MAX_HEADERS = 16384;
+	/**
+	 * <p>Largest chunk size accepted (fifteen hex digits), so that reading
+	 * the size can not overflow</p>
+	 */
+	private final static long MAX_CHUNK_SIZE = 0xFFFFFFFFFFFFFFFL;
+	/**
+	 * <p>Size of the buffer for plain text data</p>
+	 */
+	private final static int BUFFER_SIZE = 8192;
+	/**
+	 * <p>Empty buffer, for TLS handshake messages</p>
+	 */
+	private final static ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	/**
+	 * <p>Reading the status line and headers</p>
+	 */
+	private final static int HEADERS = 0;
+	/**
+	 * <p>Reading a body of known (or unlimited) length</p>
+	 */
+	private final static int BODY = 1;
+	/**
+	 * <p>Reading the size line of a chunk</p>
+	 */
+	private final static int CHUNK_SIZE = 2;
+	/**
+	 * <p>Reading the data of a chunk</p>
+	 */
+	private final static int CHUNK_DATA = 3;
+	/**
+	 * <p>Reading the line break after the data of a chunk</p>
+	 */
+	private final static int CHUNK_END = 4;
+
+	/**
+	 * <p>Receiver for the outcome of a request</p>
+	 * <p>Exactly one method is called for each request, on whichever thread
+	 * the request finished on.</p>
+	 */
+	interface Callback
+	{
+		/**
+		 * <p>The response was a redirect</p>
+		 * @param location the value of the Location header
+		 */
+		void redirected(String location);
+
+		/**
+		 * <p>The response was successful</p>
+		 * @param entry the meta-data for the resource
+		 */
+		void resolved(LinkCache.Entry entry);
+
+		/**
+		 * <p>The response was neither successful nor a redirect that can be
+		 * followed</p>
+		 * @param statusCode the status of the response
+		 */
+		void unresolved(int statusCode);
+
+		/**
+		 * <p>The host could not be found</p>
+		 * @param host the host name
+		 */
+		void unknownHost(String host);
+
+		/**
+		 * <p>The request failed</p>
+		 * @param cause the error
+		 */
+		void failed(Throwable cause);
+	}
+
+	/**
+	 * <p>Lazy holder for the channel group and timer, so that they are only
+	 * created if the asynchronous engine is used</p>
+	 */
+	private final static class Holder
+	{
+		/**
+		 * <p>Group which runs the completion handlers</p>
+		 */
+		private final static AsynchronousChannelGroup GROUP = createGroup();
+		/**
+		 * <p>Timer for connection timeouts, which the channels do not
+		 * support themselves</p>
+		 */
+		private final static ScheduledExecutorService TIMER =
+			Executors.newSingleThreadScheduledExecutor(new DaemonFactory("AsyncHttp-Timer"));
+	}
+
+	/**
+	 * <p>Creates the channel group from the current system properties</p>
+	 *
+	 * @return the channel group, or null if it could not be created
+	 */
+	private static AsynchronousChannelGroup createGroup()
+	{
+		final int threads = Math.max(1, Integer.getInteger("LinkService.Async.Threads", DEFAULT_THREADS));
+
+		try
+		{
+			LOG.info("Starting asynchronous HTTP engine with {0} threads", threads);
+			return AsynchronousChannelGroup.withFixedThreadPool(threads, new DaemonFactory("AsyncHttp"));
+		}
+		catch (IOException ex)
+		{
+			LOG.severe(ex, "Unable to start asynchronous HTTP engine");
+			return null;
+		}
+	}
+
+	/**
+	 * <p>Thread factory for named daemon threads</p>
+	 */
+	private final static class DaemonFactory implements ThreadFactory
+	{
+		/**
+		 * <p>Prefix for the thread names</p>
+		 */
+		private final String name;
+		/**
+		 * <p>Counter for naming the threads</p>
+		 */
+		private final AtomicInteger count = new AtomicInteger();
+
+		/**
+		 * <p>Creates a new thread factory</p>
+		 *
+		 * @param name prefix for the thread names
+		 */
+		DaemonFactory(String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			final Thread t = new Thread(r, name + '-' + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	/**
+	 * <p>The URL being requested</p>
+	 */
+	private final URL url;
+	/**
+	 * <p>Receiver for the outcome</p>
+	 */
+	private final Callback callback;
+	/**
+	 * <p>Set once the callback has been called</p>
+	 */
+	private final AtomicBoolean finished = new AtomicBoolean();
+	/**
+	 * <p>Set once the connection has been made</p>
+	 */
+	private final AtomicBoolean connected = new AtomicBoolean();
+	/**
+	 * <p>The connection</p>
+	 */
+	private AsynchronousSocketChannel channel;
+	/**
+	 * <p>Timer that closes the connection if connecting takes too long</p>
+	 */
+	private ScheduledFuture<?> connectTimer;
+	/**
+	 * <p>TLS engine, for https requests</p>
+	 */
+	private SSLEngine engine;
+	/**
+	 * <p>Encrypted data read from the connection, waiting to be unwrapped</p>
+	 */
+	private ByteBuffer netIn;
+	/**
+	 * <p>Encrypted data waiting to be written to the connection</p>
+	 */
+	private ByteBuffer netOut;
+	/**
+	 * <p>Plain text data read from the connection, waiting to be parsed</p>
+	 */
+	private ByteBuffer appIn;
+	/**
+	 * <p>Whether the connection has been closed by the server</p>
+	 */
+	private boolean eof;
+
+	/**
+	 * <p>The current parsing state</p>
+	 */
+	private int state = HEADERS;
+	/**
+	 * <p>The response headers</p>
+	 */
+	private final byte[] headers = new byte[MAX_HEADERS];
+	/**
+	 * <p>The length of the response headers read so far</p>
+	 */
+	private int headersLength;
+	/**
+	 * <p>The Content-Type of the response</p>
+	 */
+	private String contentType;
+	/**
+	 * <p>The Content-Length of the response, or -1</p>
+	 */
+	private long contentLength = -1;
+	/**
+	 * <p>The number of bytes left in the body or current chunk</p>
+	 */
+	private long bodyRemaining;
+	/**
+	 * <p>The size of the current chunk, as read so far</p>
+	 */
+	private long chunkSize;
+	/**
+	 * <p>Whether the rest of the chunk size line is an extension</p>
+	 */
+	private boolean chunkExtension;
+	/**
+	 * <p>Scanner for the title of the page</p>
+	 */
+	private TitleScanner scanner;
+
+	/**
+	 * <p>Creates a new request</p>
+	 *
+	 * @param url the URL to GET
+	 * @param callback receiver for the outcome
+	 */
+	AsyncRequest(URL url, Callback callback)
+	{
+		this.url = url;
+		this.callback = callback;
+	}
+
+	/**
+	 * <p>Looks up the host, and starts the request</p>
+	 * <p>This returns as soon as the connection has been started; the
+	 * callback is called later, from the channel group.</p>
+	 */
+	@Override
+	public void run()
+	{
+		final String host = url.getHost();
+		final int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		final InetSocketAddress address;
+
+		try
+		{
+			address = new InetSocketAddress(InetAddress.getByName(host), port);
+		}
+		catch (UnknownHostException ex)
+		{
+			if (finished.compareAndSet(false, true))
+			{
+				callback.unknownHost(host);
+			}
+			return;
+		}
+
+		if (Holder.GROUP == null)
+		{
+			fail(new IOException("Asynchronous HTTP engine is not available"));
+			return;
+		}
+
+		try
+		{
+			if ("https".equalsIgnoreCase(url.getProtocol()))
+			{
+				engine = SSLContext.getDefault().createSSLEngine(host, port);
+				engine.setUseClientMode(true);
+
+				final SSLParameters params = engine.getSSLParameters();
+				params.setEndpointIdentificationAlgorithm("HTTPS");
+				engine.setSSLParameters(params);
+
+				netIn  = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+				netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+				appIn  = ByteBuffer.allocate(Math.max(BUFFER_SIZE, engine.getSession().getApplicationBufferSize()));
+			}
+			else
+			{
+				appIn = ByteBuffer.allocate(BUFFER_SIZE);
+			}
+
+			channel = AsynchronousSocketChannel.open(Holder.GROUP);
+		}
+		catch (IOException | NoSuchAlgorithmException ex)
+		{
+			fail(ex);
+			return;
+		}
+
+		connectTimer = Holder.TIMER.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (!connected.get())
+				{
+					fail(new SocketTimeoutException("connect timed out"));
+				}
+			}
+		}, LinkResolver.TIMEOUT, TimeUnit.MILLISECONDS);
+
+		channel.connect(address, null, new CompletionHandler<Void, Void>()
+		{
+			@Override
+			public void completed(Void result, Void attachment)
+			{
+				connected.set(true);
+				connectTimer.cancel(false);
+
+				try
+				{
+					if (engine == null)
+					{
+						sendRequest();
+						return;
+					}
+
+					engine.beginHandshake();
+					handshake();
+				}
+				catch (IOException | RuntimeException ex)
+				{
+					// Whatever goes wrong, the callback must hear about it
+					fail(ex);
+				}
+			}
+
+			@Override
+			public void failed(Throwable exc, Void attachment)
+			{
+				fail(exc);
+			}
+		});
+	}
+
+	@Override
+	public String toString()
+	{
+		return "AsyncRequest [" + url + ']';
+	}
+
+	/**
+	 * <p>Closes the connection, and reports an error (unless the request has
+	 * already finished)</p>
+	 *
+	 * @param cause the error
+	 */
+	private void fail(Throwable cause)
+	{
+		close();
+
+		if (!finished.compareAndSet(false, true))
+		{
+			return;
+		}
+
+		if (cause instanceof InterruptedByTimeoutException)
+		{
+			cause = new SocketTimeoutException("Read timed out");
+		}
+
+		callback.failed(cause);
+	}
+
+	/**
+	 * <p>Closes the connection</p>
+	 */
+	private void close()
+	{
+		if (connectTimer != null)
+		{
+			connectTimer.cancel(false);
+		}
+
+		if (channel == null)
+		{
+			return;
+		}
+
+		try
+		{
+			channel.close();
+		}
+		catch (IOException ex)
+		{
+			// Nothing more can be done with it either way
+		}
+	}
+
+	/**
+	 * <p>Writes all of a buffer to the connection, and then runs the next
+	 * step</p>
+	 *
+	 * @param buffer the data to write
+	 * @param then the next step
+	 */
+	private void writeAll(final ByteBuffer buffer, final Runnable then)
+	{
+		channel.write(buffer, LinkResolver.TIMEOUT, TimeUnit.MILLISECONDS, null,
+			new CompletionHandler<Integer, Void>()
+			{
+				@Override
+				public void completed(Integer result, Void attachment)
+				{
+					try
+					{
+						if (buffer.hasRemaining())
+						{
+							channel.write(buffer, LinkResolver.TIMEOUT, TimeUnit.MILLISECONDS, null, this);
+							return;
+						}
+
+						then.run();
+					}
+					catch (RuntimeException ex)
+					{
+						fail(ex);
+					}
+				}
+
+				@Override
+				public void failed(Throwable exc, Void attachment)
+				{
+					fail(exc);
+				}
+			}
+		);
+	}
+
+	/**
+	 * <p>Reads from the connection into a buffer, and then runs the next
+	 * step</p>
+	 * <p>If the server has closed the connection, {@link #eof} is set.</p>
+	 *
+	 * @param buffer the buffer to read into
+	 * @param then the next step
+	 */
+	private void readInto(ByteBuffer buffer, final Runnable then)
+	{
+		channel.read(buffer, LinkResolver.TIMEOUT, TimeUnit.MILLISECONDS, null,
+			new CompletionHandler<Integer, Void>()
+			{
+				@Override
+				public void completed(Integer result, Void attachment)
+				{
+					if (result == -1)
+					{
+						eof = true;
+					}
+
+					try
+					{
+						then.run();
+					}
+					catch (RuntimeException ex)
+					{
+						fail(ex);
+					}
+				}
+
+				@Override
+				public void failed(Throwable exc, Void attachment)
+				{
+					fail(exc);
+				}
+			}
+		);
+	}
+
+	/**
+	 * <p>Runs the tasks that the TLS engine needs run</p>
+	 */
+	private void runDelegatedTasks()
+	{
+		Runnable task;
+
+		while ((task = engine.getDelegatedTask()) != null)
+		{
+			task.run();
+		}
+	}
+
+	/**
+	 * <p>Advances the TLS handshake as far as possible without waiting on the
+	 * network, then waits for the network, or sends the request once the
+	 * handshake is complete</p>
+	 */
+	private void handshake()
+	{
+		final Runnable next = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				handshake();
+			}
+		};
+
+		try
+		{
+			while (true)
+			{
+				final SSLEngineResult result;
+
+				switch (engine.getHandshakeStatus())
+				{
+					case NEED_TASK:
+						runDelegatedTasks();
+						break;
+
+					case NEED_WRAP:
+						netOut.clear();
+						result = engine.wrap(EMPTY, netOut);
+						netOut.flip();
+
+						if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+						{
+							fail(new EOFException("TLS connection closed during handshake"));
+							return;
+						}
+
+						writeAll(netOut, next);
+						return;
+
+					case NEED_UNWRAP:
+						netIn.flip();
+						result = engine.unwrap(netIn, appIn);
+						netIn.compact();
+
+						if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW)
+						{
+							if (eof)
+							{
+								fail(new EOFException("TLS connection closed during handshake"));
+								return;
+							}
+
+							readInto(netIn, next);
+							return;
+						}
+
+						if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+						{
+							fail(new EOFException("TLS connection closed during handshake"));
+							return;
+						}
+						break;
+
+					default:
+						sendRequest();
+						return;
+				}
+			}
+		}
+		catch (IOException ex)
+		{
+			fail(ex);
+		}
+	}
+
+	/**
+	 * <p>Sends the GET request</p>
+	 */
+	private void sendRequest()
+	{
+		final String file = url.getFile().isEmpty() ? "/" : url.getFile();
+		final String host = url.getPort() == -1 ? url.getHost() : url.getHost() + ':' + url.getPort();
+		final ByteBuffer request = ByteBuffer.wrap((
+			"GET " + file + " HTTP/1.1\r\n" +
+			"Host: " + host + "\r\n" +
+			"User-Agent: Java/" + System.getProperty("java.version") + "\r\n" +
+			"Accept: */*\r\n" +
+			"Connection: close\r\n\r\n"
+		).getBytes(StandardCharsets.US_ASCII));
+
+		final Runnable then = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				readResponse();
+			}
+		};
+
+		if (engine == null)
+		{
+			writeAll(request, then);
+			return;
+		}
+
+		try
+		{
+			netOut.clear();
+
+			while (request.hasRemaining())
+			{
+				final SSLEngineResult result = engine.wrap(request, netOut);
+
+				if (result.getStatus() != SSLEngineResult.Status.OK)
+				{
+					fail(new IOException("Unable to encrypt request: " + result.getStatus()));
+					return;
+				}
+			}
+
+			netOut.flip();
+		}
+		catch (IOException ex)
+		{
+			fail(ex);
+			return;
+		}
+
+		writeAll(netOut, then);
+	}
+
+	/**
+	 * <p>Reads more of the response, and parses it</p>
+	 */
+	private void readResponse()
+	{
+		final Runnable then = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				parse();
+			}
+		};
+
+		if (engine == null)
+		{
+			readInto(appIn, then);
+		}
+		else
+		{
+			unwrap(then);
+		}
+	}
+
+	/**
+	 * <p>Decrypts data from the connection into {@link #appIn}, reading more
+	 * from the connection as needed, and then runs the next step</p>
+	 *
+	 * @param then the next step
+	 */
+	@SuppressWarnings("fallthrough")
+	private void unwrap(final Runnable then)
+	{
+		try
+		{
+			while (true)
+			{
+				netIn.flip();
+				final SSLEngineResult result = engine.unwrap(netIn, appIn);
+				netIn.compact();
+
+				if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK)
+				{
+					runDelegatedTasks();
+				}
+
+				switch (result.getStatus())
+				{
+					case OK:
+						if (result.bytesProduced() > 0)
+						{
+							then.run();
+							return;
+						}
+						if (result.bytesConsumed() > 0)
+						{
+							// A record with no data, such as a session ticket
+							continue;
+						}
+						// Fall through: nothing could be done with what we have
+
+					case BUFFER_UNDERFLOW:
+						if (eof)
+						{
+							then.run();
+							return;
+						}
+
+						readInto(netIn, new Runnable()
+						{
+							@Override
+							public void run()
+							{
+								unwrap(then);
+							}
+						});
+						return;
+
+					case BUFFER_OVERFLOW:
+						final ByteBuffer larger = ByteBuffer.allocate(appIn.capacity() * 2);
+						appIn.flip();
+						larger.put(appIn);
+						appIn = larger;
+						break;
+
+					case CLOSED:
+						eof = true;
+						then.run();
+						return;
+				}
+			}
+		}
+		catch (IOException ex)
+		{
+			fail(ex);
+		}
+	}
+
+	/**
+	 * <p>Parses the data in {@link #appIn}, and reads more of the response if
+	 * it is needed</p>
+	 */
+	private void parse()
+	{
+		if (finished.get())
+		{
+			return;
+		}
+
+		appIn.flip();
+
+		final boolean more;
+
+		try
+		{
+			more = consume(appIn);
+		}
+		catch (IOException ex)
+		{
+			fail(ex);
+			return;
+		}
+
+		appIn.compact();
+
+		if (!more)
+		{
+			return;
+		}
+
+		if (eof)
+		{
+			if (state == HEADERS)
+			{
+				fail(new EOFException("Unexpected end of file from server"));
+			}
+			else
+			{
+				page();
+			}
+			return;
+		}
+
+		readResponse();
+	}
+
+	/**
+	 * <p>Parses the next part of the response</p>
+	 *
+	 * @param data the data to parse
+	 * @return whether more data is needed
+	 * @throws IOException if the response is malformed
+	 */
+	private boolean consume(ByteBuffer data) throws IOException
+	{
+		while (data.hasRemaining())
+		{
+			switch (state)
+			{
+				case HEADERS:
+					if (headersLength == MAX_HEADERS)
+					{
+						throw new IOException("Response headers too large");
+					}
+
+					headers[headersLength++] = data.get();
+
+					if (headersLength >= 4
+						&& headers[headersLength - 4] == '\r' && headers[headersLength - 3] == '\n'
+						&& headers[headersLength - 2] == '\r' && headers[headersLength - 1] == '\n')
+					{
+						if (!headersComplete())
+						{
+							return false;
+						}
+					}
+					break;
+
+				case BODY:
+					if (body(data, data.remaining()))
+					{
+						return false;
+					}
+					break;
+
+				case CHUNK_SIZE:
+					chunkSize(data.get());
+
+					if (state == CHUNK_DATA && bodyRemaining == 0)
+					{
+						// The last chunk
+						page();
+						return false;
+					}
+					break;
+
+				case CHUNK_DATA:
+					if (body(data, (int)Math.min(bodyRemaining, data.remaining())))
+					{
+						return false;
+					}
+					break;
+
+				case CHUNK_END:
+					if (data.get() == '\n')
+					{
+						state = CHUNK_SIZE;
+						chunkSize = 0;
+						chunkExtension = false;
+					}
+					break;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * <p>Handles the end of the headers</p>
+	 *
+	 * @return whether the body is needed
+	 * @throws IOException if the headers are malformed
+	 */
+	private boolean headersComplete() throws IOException
+	{
+		final String[] lines = new String(headers, 0, headersLength - 4, StandardCharsets.ISO_8859_1).split("\r\n");
+		final String[] status = lines[0].split(" ", 3);
+		String location = null;
+		boolean chunked = false;
+
+		if (status.length < 2 || !status[0].startsWith("HTTP/"))
+		{
+			throw new IOException("Invalid status line: " + lines[0]);
+		}
+
+		final int statusCode;
+
+		try
+		{
+			statusCode = Integer.parseInt(status[1]);
+		}
+		catch (NumberFormatException ex)
+		{
+			throw new IOException("Invalid status line: " + lines[0]);
+		}
+
+		for (int i = 1; i < lines.length; ++i)
+		{
+			final int colon = lines[i].indexOf(':');
+
+			if (colon == -1)
+			{
+				continue;
+			}
+
+			final String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+			final String value = lines[i].substring(colon + 1).trim();
+
+			switch (name)
+			{
+				case "location":
+					location = value;
+					break;
+
+				case "content-type":
+					contentType = value;
+					break;
+
+				case "content-length":
+					try
+					{
+						contentLength = Long.parseLong(value);
+					}
+					catch (NumberFormatException ex)
+					{
+						contentLength = -1;
+						break;
+					}
+
+					if (contentLength < 0)
+					{
+						throw new IOException("Invalid Content-Length: " + value);
+					}
+					break;
+
+				case "transfer-encoding":
+					chunked = value.toLowerCase(Locale.ENGLISH).contains("chunked");
+					break;
+			}
+		}
+
+		switch (statusCode)
+		{
+			case 202: // Accepted
+			case 201: // Created
+			case 200: // OK
+			case 206: // Partial
+			case 205: // Reset
+				break;
+
+			case 204: // No Content
+			case 304: // Not Modified
+				contentLength = 0;
+				break;
+
+			case 301: // Moved Permanently
+			case 302: // Moved Temporarily
+			case 300: // Multiple Choices
+			case 303: // See Other
+				close();
+
+				if (finished.compareAndSet(false, true))
+				{
+					if (location == null)
+					{
+						callback.unresolved(statusCode);
+					}
+					else
+					{
+						callback.redirected(location);
+					}
+				}
+				return false;
+
+			default:
+				close();
+
+				if (finished.compareAndSet(false, true))
+				{
+					callback.unresolved(statusCode);
+				}
+				return false;
+		}
+
+		if (chunked)
+		{
+			contentLength = -1;
+		}
+
+		if (!LinkResolver.isPage(contentType) || contentLength == 0)
+		{
+			page();
+			return false;
+		}
+
+		scanner = new TitleScanner(LinkResolver.titleBudget());
+		scanner.reset();
+
+		if (chunked)
+		{
+			state = CHUNK_SIZE;
+		}
+		else
+		{
+			state = BODY;
+			bodyRemaining = contentLength == -1 ? Long.MAX_VALUE : contentLength;
+		}
+
+		return true;
+	}
+
+	/**
+	 * <p>Handles a byte of a chunk size line</p>
+	 *
+	 * @param b the byte
+	 * @throws IOException if the chunk size is invalid
+	 */
+	private void chunkSize(byte b) throws IOException
+	{
+		if (b == '\n')
+		{
+			state = CHUNK_DATA;
+			bodyRemaining = chunkSize;
+			return;
+		}
+
+		if (chunkExtension || b == '\r')
+		{
+			return;
+		}
+
+		final int digit = Character.digit(b, 16);
+
+		if (digit == -1)
+		{
+			if (b == ';' || b == ' ' || b == '\t')
+			{
+				chunkExtension = true;
+				return;
+			}
+
+			throw new IOException("Invalid chunk size");
+		}
+
+		if (chunkSize > (MAX_CHUNK_SIZE - digit) / 16)
+		{
+			throw new IOException("Chunk size too large");
+		}
+
+		chunkSize = chunkSize * 16 + digit;
+	}
+
+	/**
+	 * <p>Feeds part of the body to the title scanner</p>
+	 *
+	 * @param data the response data
+	 * @param length the number of bytes of the body in the data
+	 * @return true if the page has been dealt with
+	 */
+	private boolean body(ByteBuffer data, int length)
+	{
+		final int offset = data.arrayOffset() + data.position();
+		final int n = (int)Math.max(0, Math.min(length, bodyRemaining));
+		final boolean done = scanner.feed(data.array(), offset, n);
+
+		data.position(data.position() + n);
+		bodyRemaining -= n;
+
+		if (done || (state == BODY && bodyRemaining == 0))
+		{
+			page();
+			return true;
+		}
+
+		if (state == CHUNK_DATA && bodyRemaining == 0)
+		{
+			state = CHUNK_END;
+		}
+
+		return false;
+	}
+
+	/**
+	 * <p>Reports the resource, once as much as needed has been read</p>
+	 */
+	private void page()
+	{
+		close();
+
+		if (!finished.compareAndSet(false, true))
+		{
+			return;
+		}
+
+		String title = null;
+
+		if (LinkResolver.isPage(contentType))
+		{
+			title = scanner == null ? null : scanner.finish(TitleScanner.charsetOf(contentType));
+
+			if (title == null)
+			{
+				title = "[No Title Set]";
+			}
+		}
+
+		callback.resolved(LinkResolver.entry(url, contentType, contentLength, title));
+	}
+}
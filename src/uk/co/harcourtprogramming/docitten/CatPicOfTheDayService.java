@@ -7,51 +7,42 @@ import java.net.URI;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.Deque;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import uk.co.harcourtprogramming.docitten.utility.LinkExtractor;
 import uk.co.harcourtprogramming.internetrelaycats.ExternalService;
 import uk.co.harcourtprogramming.internetrelaycats.InternetRelayCat;
 import uk.co.harcourtprogramming.internetrelaycats.Message;
 import uk.co.harcourtprogramming.internetrelaycats.MessageService;
 import uk.co.harcourtprogramming.internetrelaycats.RelayCat;
-import uk.co.harcourtprogramming.mewler.MessageTokeniser;
 
 /**
  * <p>Service for create todo list and reminders</p>
  *
  * @author Benedict Harcourt / javajawa
  */
-public class CatPicOfTheDayService extends ExternalService implements MessageService
+public class CatPicOfTheDayService extends ExternalService implements MessageService, CommandService
 {
-	/**
-	 * <p>Links are detected using this regex</p>
-	 * <p>The regex works from detecting a limited subset of the top-level and
-	 * selected other domains as a focal point; by looking for subdomains and
-	 * protocol before, and path, query and location after, the full uris is
-	 * matched.</p>
-	 */
-	private final static Pattern uriPattern =
-		Pattern.compile("(?:^|\\s)\\(?\\[?((?:https?://)?(?:\\w+\\.)*(?:(?:\\w+\\.(com|net|uk|edu))|(?:www|is.gd|bit.ly|t.co))(?::[0-9]+)?(?:/[^\\s\\])]*)?)", Pattern.CASE_INSENSITIVE);
-	/**
-	 * <p>Links will also be matched if they begin with the http or https
-	 * protocols.</p>
-	 * <p>This regex is also used in the {@link LinkResolver} to determine is a
-	 * protocol is present (otherwise http:// will be prefixed)</p>
-	 */
-	private final static Pattern protocolPattern =
-		Pattern.compile("https?://[^\\s\\])\"]+", Pattern.CASE_INSENSITIVE);
-
 	/**
 	 * <p>Name of the service, for analysing commands</p>
 	 */
 	private final static String SERVICE_NAME = "catpic";
+	/**
+	 * <p>Commands handled by the service; links given to the plain command are
+	 * added to the queue</p>
+	 */
+	private final static String[] COMMANDS = {
+		SERVICE_NAME,
+		SERVICE_NAME + " next",
+		SERVICE_NAME + " suggest",
+		SERVICE_NAME + " queue",
+		SERVICE_NAME + " remove"
+	};
 
 	private final static String API_KEY = "NTI2MTU";
 
@@ -63,7 +54,27 @@ public class CatPicOfTheDayService extends ExternalService implements MessageSer
 	private final Deque<String> queue = new LinkedList<>();
 
 	private final TimeZone tz;
-	private final Calendar lastUpdated;
+
+	/**
+	 * <p>The job which changes the pic at midnight</p>
+	 */
+	private volatile Scheduler.Job daily = null;
+	/**
+	 * <p>The job which tries again to change the pic, after no pic could be
+	 * found, if there is one</p>
+	 */
+	private volatile Scheduler.Job retry = null;
+
+	/**
+	 * <p>Whether commands are being passed to this service by a {@link
+	 * MessageRouter}</p>
+	 */
+	private volatile boolean routed = false;
+	/**
+	 * <p>Router for matching commands when there is no shared router; it
+	 * calls this service directly, never through a mailbox</p>
+	 */
+	private final MessageRouter local = new MessageRouter(false);
 
 	/**
 	 * <p>Creates a new ReminderService instance</p>
@@ -85,13 +96,16 @@ public class CatPicOfTheDayService extends ExternalService implements MessageSer
 		super(inst);
 
 		this.tz = tz;
-		lastUpdated = Calendar.getInstance( tz );
-		lastUpdated.setTime( new Date() );
 	}
 
 	@Override
 	protected void startup(RelayCat r)
 	{
+		routed = MessageRouter.register(r, this, COMMANDS);
+
+		if (!routed)
+			local.register(this, COMMANDS);
+
 		List<HelpService> helpServices = r.getServicesByClass(HelpService.class);
 
 		if (!helpServices.isEmpty())
@@ -114,147 +128,205 @@ public class CatPicOfTheDayService extends ExternalService implements MessageSer
 	@Override
 	public void shutdown()
 	{
+		if ( daily != null )
+		{
+			daily.cancel();
+		}
+
+		if ( retry != null )
+		{
+			retry.cancel();
+		}
 	}
 
+	/**
+	 * <p>Runs the service, by registering a job with the {@link Scheduler}
+	 * to change the pic at midnight</p>
+	 */
 	@Override
-	@SuppressWarnings("SleepWhileInLoop")
 	public void run()
 	{
-		final Calendar now = Calendar.getInstance( tz );
-		final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
-		Date nowDate;
-
-		df.setTimeZone( tz );
+		daily = Scheduler.daily( 0, 0, tz, new Update() );
+	}
 
-		try
+	/**
+	 * <p>Task which changes the pic to the next in the queue, or to one from
+	 * the Cat API if the queue is empty</p>
+	 * <p>The midnight job, <code>catpic next</code> and retries all run the
+	 * same update, one at a time, and each replaces any retry still
+	 * waiting, so there is only ever one chain of retries.</p>
+	 */
+	private final class Update implements Runnable
+	{
+		@Override
+		public void run()
 		{
-			while (true)
+			synchronized ( this )
 			{
-				nowDate = new Date();
-				now.setTime( nowDate );
-
-				if (
-					lastUpdated.get(Calendar.YEAR) != now.get(Calendar.YEAR) ||
-					lastUpdated.get(Calendar.DAY_OF_YEAR) != now.get(Calendar.DAY_OF_YEAR)
-				)
+				if ( retry != null )
 				{
-					String url;
-
-					synchronized( queue )
-					{
-						url = queue.pollFirst();
-					}
-
-					if ( url == null )
-					{
-						url = getApiCat();
-					}
-
-					if ( url != null )
-					{
-						getInstance().setTopic( CHANNEL, "Cat Pic of the Day (" + df.format( nowDate ) + "): " + url + " | GNU Sir Terry Pratchett, Sir Christopher Lee" );
-						lastUpdated.setTime( nowDate );
-					}
+					retry.cancel();
+					retry = null;
 				}
 
-				synchronized( this )
-				{
-					this.wait( 300_000 );
-				}
+				update();
 			}
 		}
-		catch (InterruptedException ex)
+
+		/**
+		 * <p>Changes the pic, or schedules a retry if none can be found</p>
+		 */
+		private void update()
 		{
-		}
-	}
+			final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
+			String url;
 
-	@Override
-	public void handle(Message m)
-	{
-		MessageTokeniser tokeniser = new MessageTokeniser(m.getMessage());
-		tokeniser.setConsumeWhitespace(true);
+			df.setTimeZone( tz );
 
-		if (!tokeniser.consume(m.getNick() + ':') && m.getChannel() != null)
-			return;
+			synchronized( queue )
+			{
+				url = queue.pollFirst();
+			}
 
-		if (!tokeniser.consume(SERVICE_NAME))
-			return;
+			if ( url == null )
+			{
+				url = getApiCat();
+			}
 
-		if ( tokeniser.startsWith( "next" ) )
-		{
-			log(Level.FINER, "Processing message - next");
-			lastUpdated.set( Calendar.YEAR, 1971 );
-			synchronized( this )
+			if ( url != null )
 			{
-				this.notifyAll();
+				getInstance().setTopic( CHANNEL, "Cat Pic of the Day (" + df.format( new Date() ) + "): " + url + " | GNU Sir Terry Pratchett, Sir Christopher Lee" );
+			}
+			else
+			{
+				// Try again in a while, rather than waiting until tomorrow
+				retry = Scheduler.schedule( 5, TimeUnit.MINUTES, this );
 			}
-			return;
 		}
 
-		if ( tokeniser.startsWith( "suggest" ) )
+		@Override
+		public String toString()
 		{
-			log(Level.FINER, "Processing message - suggest");
-			m.replyToAll( getApiCat() );
-			return;
+			return "CatPic of the Day [" + CHANNEL + ']';
 		}
+	}
 
-		if ( tokeniser.startsWith( "queue" ) )
-		{
-			log(Level.FINER, "Processing message - queue");
-			m.reply( "Current queue length: " + queue.size() );
-			for ( String s : queue )
-			{
-				m.reply( s );
-			}
-		}
+	@Override
+	public void handle(Message m)
+	{
+		if (!routed)
+			local.handle(m);
+	}
 
-		if ( tokeniser.startsWith( "remove" ) )
+	@Override
+	public void handle(Message m, Command c)
+	{
+		switch ( c.getPhrase() )
 		{
-			log(Level.FINER, "Processing message - remove");
-			tokeniser.consume( "remove" );
+			case SERVICE_NAME + " next":
+				log(Level.FINER, "Processing message - next");
+				if ( daily != null )
+				{
+					daily.runNow();
+				}
+				return;
 
-			synchronized (queue)
-			{
-				if (queue.remove(tokeniser.toString()))
+			case SERVICE_NAME + " suggest":
+				log(Level.FINER, "Processing message - suggest");
+				WorkerPool.submit( new Suggestion( m ) );
+				return;
+
+			case SERVICE_NAME + " queue":
+				log(Level.FINER, "Processing message - queue");
+				m.reply( "Current queue length: " + queue.size() );
+				for ( String s : queue )
 				{
-					log(Level.FINER, "removed {0}", tokeniser.toString());
-					m.reply( "java.util.List.remove returned true" );
+					m.reply( s );
 				}
-				else
+				return;
+
+			case SERVICE_NAME + " remove":
+				log(Level.FINER, "Processing message - remove");
+
+				synchronized (queue)
 				{
-					log(Level.FINER, "could not removed {0}", tokeniser.toString());
-					m.reply( "java.util.List.remove returned false" );
+					if (queue.remove(c.getArgs()))
+					{
+						log(Level.FINER, "removed {0}", c.getArgs());
+						m.reply( "java.util.List.remove returned true" );
+					}
+					else
+					{
+						log(Level.FINER, "could not removed {0}", c.getArgs());
+						m.reply( "java.util.List.remove returned false" );
+					}
 				}
-			}
+				return;
 
-			return;
+			default:
+				break;
 		}
 
-		final String message = tokeniser.toString();
-
-		Matcher u = uriPattern.matcher(message);
-		Matcher p = protocolPattern.matcher(message);
+		final LinkExtractor.Spans links = LinkExtractor.getShared().extract(c.getArgs());
 
 		synchronized( queue )
 		{
-			while (u.find())
+			for (int i = 0; i < links.size(); ++i)
 			{
-				if (!queue.contains(u.group(1)) && queue.add(u.group(1)))
+				if (links.kind(i) != LinkExtractor.Kind.WEB)
 				{
-					m.reply(u.group(1) + " added");
+					continue;
 				}
-			}
 
-			while (p.find())
-			{
-				if (!queue.contains(p.group(0)) && queue.add(p.group(0)))
+				final String url = links.get(i);
+
+				if (!queue.contains(url) && queue.add(url))
 				{
-					m.reply(p.group(0) + " added");
+					m.reply(url + " added");
 				}
 			}
 		}
 	}
 
+	/**
+	 * <p>Task for fetching a suggestion from the Cat API on the {@link
+	 * WorkerPool}, so that the IRC thread is not held up by the request</p>
+	 */
+	private final class Suggestion implements Runnable
+	{
+		/**
+		 * <p>The message which asked for the suggestion</p>
+		 */
+		private final Message m;
+
+		/**
+		 * <p>Creates a new suggestion task</p>
+		 *
+		 * @param m the message which asked for the suggestion
+		 */
+		Suggestion(Message m)
+		{
+			this.m = m;
+		}
+
+		@Override
+		public void run()
+		{
+			final String url = getApiCat();
+
+			if ( url != null )
+			{
+				m.replyToAll( url );
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return "CatPic Suggestion [" + m.getSender() + ']';
+		}
+	}
+
 	private String getApiCat()
 	{
 		final URI uri = URI.create( "http://thecatapi.com/api/images/get?format=src&api_key=" + API_KEY );
@@ -274,12 +346,7 @@ public class CatPicOfTheDayService extends ExternalService implements MessageSer
 
 		try
 		{
-			conn = (HttpURLConnection)url.openConnection();
-
-			conn.setInstanceFollowRedirects(false);
-			conn.setRequestMethod("HEAD");
-			conn.setConnectTimeout(3000);
-			conn.setReadTimeout(1000);
+			conn = HttpConnections.open(url, "HEAD", 3000, 1000);
 
 			conn.connect();
 			statusCode = conn.getResponseCode();
@@ -295,13 +362,16 @@ public class CatPicOfTheDayService extends ExternalService implements MessageSer
 			return null;
 		}
 
+		final String location = conn.getHeaderField("Location");
+		HttpConnections.release(conn);
+
 		switch ( statusCode )
 		{
 			case HttpURLConnection.HTTP_MOVED_PERM:
 			case HttpURLConnection.HTTP_MOVED_TEMP:
 			case HttpURLConnection.HTTP_MULT_CHOICE:
 			case HttpURLConnection.HTTP_SEE_OTHER:
-				return conn.getHeaderField("Location");
+				return location;
 		}
 
 		return null;
@@ -0,0 +1,255 @@
+package uk.co.harcourtprogramming.docitten;
+
+import uk.co.harcourtprogramming.docitten.utility.PhraseTrie;
+import uk.co.harcourtprogramming.docitten.utility.TriggerMatcher;
+import uk.co.harcourtprogramming.internetrelaycats.Message;
+
+/**
+ * <p>An inbound line, split into the parts that services check for</p>
+ * <p>A line is addressed to the bot if it was sent privately, or if it starts
+ * with the bot's nick (followed by <code>:</code>, <code>,</code> or a
+ * space). The text after the nick is split into a keyword (the leading run
+ * of letters, digits, <code>-</code> and <code>_</code>) and the arguments
+ * after it. For example, <code>DoCitten: reminder add 5m tea</code> has the
+ * keyword <code>reminder</code> and the arguments <code>add 5m tea</code>.
+ * Unaddressed lines are split the same way, from the start of the line.</p>
+ * <p>Lines are parsed once by the {@link MessageRouter}, and the result
+ * passed to every {@link CommandService} that wants it. When the router finds
+ * a registered phrase, such as <code>distro list</code>, the command passed to
+ * the services which registered it has that {@link #getPhrase() phrase}, and
+ * the arguments are the text after the phrase. The router also records which
+ * of the registered {@link #hasTrigger(String...) trigger words} are in the
+ * line.</p>
+ *
+ * @author Benedict Harcourt / javajawa
+ */
+public final class Command
+{
+	/**
+	 * <p>Whether the line was addressed to the bot</p>
+	 */
+	private final boolean addressed;
+	/**
+	 * <p>The line, without the bot's nick if it was addressed</p>
+	 */
+	private final String text;
+	/**
+	 * <p>The first word of the text</p>
+	 */
+	private final String keyword;
+	/**
+	 * <p>The registered phrase that the text starts with, or the keyword</p>
+	 */
+	private final String phrase;
+	/**
+	 * <p>The text after the phrase</p>
+	 */
+	private final String args;
+	/**
+	 * <p>The trigger words found in the line, if it has been scanned for
+	 * them</p>
+	 */
+	private final TriggerMatcher.Hits hits;
+
+	/**
+	 * <p>Creates a parsed command</p>
+	 *
+	 * @param addressed whether the line was addressed to the bot
+	 * @param text the line, without the bot's nick if it was addressed
+	 * @param keyword the first word of the text
+	 * @param phrase the registered phrase that the text starts with
+	 * @param args the text after the phrase
+	 * @param hits the trigger words found in the line
+	 */
+	private Command(boolean addressed, String text, String keyword, String phrase, String args,
+		TriggerMatcher.Hits hits)
+	{
+		this.addressed = addressed;
+		this.text = text;
+		this.keyword = keyword;
+		this.phrase = phrase;
+		this.args = args;
+		this.hits = hits;
+	}
+
+	/**
+	 * <p>Parses an inbound message</p>
+	 *
+	 * @param m the message
+	 * @return the parsed command
+	 */
+	public static Command parse(Message m)
+	{
+		return parse(m.getMessage(), m.getNick(), m.getChannel() == null);
+	}
+
+	/**
+	 * <p>Parses a line</p>
+	 *
+	 * @param line the text of the line
+	 * @param nick the bot's nick
+	 * @param direct whether the line was sent privately to the bot
+	 * @return the parsed command
+	 */
+	public static Command parse(String line, String nick, boolean direct)
+	{
+		final int length = line.length();
+		boolean addressed = direct;
+		int i = skipSpace(line, 0);
+
+		if (nick != null && line.startsWith(nick, i))
+		{
+			final int end = i + nick.length();
+
+			if (end == length || line.charAt(end) == ':' || line.charAt(end) == ','
+				|| Character.isWhitespace(line.charAt(end)))
+			{
+				addressed = true;
+				i = end;
+
+				if (i < length && (line.charAt(i) == ':' || line.charAt(i) == ','))
+				{
+					++i;
+				}
+
+				i = skipSpace(line, i);
+			}
+		}
+
+		final int start = i;
+
+		while (i < length && PhraseTrie.isWord(line.charAt(i)))
+		{
+			++i;
+		}
+
+		final String keyword = line.substring(start, i);
+
+		return new Command(addressed, line.substring(start), keyword, keyword,
+			line.substring(skipSpace(line, i)), null);
+	}
+
+	/**
+	 * <p>Creates a copy of this command for a phrase that its text starts
+	 * with</p>
+	 *
+	 * @param phrase the phrase
+	 * @param end the index in the text just after the phrase
+	 * @return the command with the given phrase, and the arguments after it
+	 */
+	Command withPhrase(String phrase, int end)
+	{
+		return new Command(addressed, text, keyword, phrase, text.substring(skipSpace(text, end)), hits);
+	}
+
+	/**
+	 * <p>Creates a copy of this command with the trigger words found in its
+	 * line</p>
+	 *
+	 * @param hits the trigger words found
+	 * @return the command with the given hits
+	 */
+	Command withHits(TriggerMatcher.Hits hits)
+	{
+		return new Command(addressed, text, keyword, phrase, args, hits);
+	}
+
+	/**
+	 * @param s the line
+	 * @param i the index to start from
+	 * @return the index of the first character at or after i which is not
+	 * white space
+	 */
+	private static int skipSpace(String s, int i)
+	{
+		while (i < s.length() && Character.isWhitespace(s.charAt(i)))
+		{
+			++i;
+		}
+
+		return i;
+	}
+
+	/**
+	 * @return whether the line was sent privately, or started with the bot's
+	 * nick
+	 */
+	public boolean isAddressed()
+	{
+		return addressed;
+	}
+
+	/**
+	 * @return the line, without the bot's nick if it was addressed
+	 */
+	public String getText()
+	{
+		return text;
+	}
+
+	/**
+	 * @return the first word of the text (may be empty)
+	 */
+	public String getKeyword()
+	{
+		return keyword;
+	}
+
+	/**
+	 * @return the registered phrase that the text starts with, if the command
+	 * was passed on by a {@link MessageRouter}; otherwise the keyword
+	 */
+	public String getPhrase()
+	{
+		return phrase;
+	}
+
+	/**
+	 * @return the text after the phrase, without leading white space
+	 */
+	public String getArgs()
+	{
+		return args;
+	}
+
+	/**
+	 * <p>Tests whether any of the given trigger words were found in the
+	 * line</p>
+	 * <p>Only words registered with the {@link MessageRouter} that passed on
+	 * the command are looked for, ignoring case.</p>
+	 *
+	 * @param words the trigger words
+	 * @return whether any of the words are in the line
+	 */
+	public boolean hasTrigger(String... words)
+	{
+		return hits != null && hits.contains(words);
+	}
+
+	/**
+	 * @param word a trigger word
+	 * @return the number of times the word is in the line, or 0 if the line
+	 * was not scanned for it
+	 */
+	public int countTrigger(String word)
+	{
+		return hits == null ? 0 : hits.count(word);
+	}
+
+	/**
+	 * <p>Tests whether this is an addressed command with a given keyword</p>
+	 *
+	 * @param keyword the keyword to test for
+	 * @return whether the line was addressed to the bot, and has the keyword
+	 */
+	public boolean is(String keyword)
+	{
+		return addressed && this.keyword.equals(keyword);
+	}
+
+	@Override
+	public String toString()
+	{
+		return (addressed ? "Command [" : "Line [") + phrase + "] " + args;
+	}
+}
@@ -0,0 +1,26 @@
+package uk.co.harcourtprogramming.docitten;
+
+import uk.co.harcourtprogramming.internetrelaycats.Message;
+
+/**
+ * <p>Service which handles lines {@link Command parsed} by the {@link
+ * MessageRouter}</p>
+ * <p>A command service should also be a <code>MessageService</code>, so that
+ * it still works without a router: in {@link
+ * uk.co.harcourtprogramming.internetrelaycats.Service#startup startup} it
+ * tries to {@link MessageRouter#register register} itself, and if that
+ * succeeds its <code>handle(Message)</code> does nothing; otherwise it parses
+ * the message itself and calls {@link #handle(Message, Command)}.</p>
+ *
+ * @author Benedict Harcourt / javajawa
+ */
+public interface CommandService
+{
+	/**
+	 * <p>Handles an inbound line</p>
+	 *
+	 * @param m the message
+	 * @param c the parsed form of the message
+	 */
+	void handle(Message m, Command c);
+}
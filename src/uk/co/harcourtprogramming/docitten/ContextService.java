@@ -1,30 +1,36 @@
 package uk.co.harcourtprogramming.docitten;
 
-import java.util.Calendar;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
-import uk.co.harcourtprogramming.docitten.utility.ArrayBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import uk.co.harcourtprogramming.docitten.utility.RingBuffer;
 import uk.co.harcourtprogramming.internetrelaycats.FilterService;
 import uk.co.harcourtprogramming.internetrelaycats.Message;
 import uk.co.harcourtprogramming.internetrelaycats.MessageService;
 import uk.co.harcourtprogramming.internetrelaycats.OutboundMessage;
 import uk.co.harcourtprogramming.internetrelaycats.RelayCat;
 import uk.co.harcourtprogramming.internetrelaycats.Service;
-import uk.co.harcourtprogramming.mewler.MessageTokeniser;
 
-import static java.lang.String.format;
 import static java.lang.System.currentTimeMillis;
 
 /**
  * <p>Service for supplying context to users for when they join a channel</p>
  * <p>Intended for use for ping timeouts, dodgy networks, etc. Longer term
  * context should be handled by an IRC bouncer.</p>
+ * <p>Lines are stored as they are seen, and only formatted when context is
+ * requested. The number of lines kept is set with the system properties,
+ * read when the service is loaded:</p>
+ * <ul>
+ *  <li><code>ContextService.Depth</code> - lines kept for each channel
+ * (default 10)</li>
+ *  <li><code>ContextService.Depth.&lt;channel&gt;</code> - lines kept for
+ * the given channel, instead of the default</li>
+ * </ul>
  *
  * @author Benedict Harcourt / javajawa
  */
-public class ContextService extends Service implements MessageService, FilterService
+public class ContextService extends Service implements MessageService, CommandService, FilterService
 {
 
 	/**
@@ -42,82 +48,163 @@ public class ContextService extends Service implements MessageService, FilterSer
 	 */
 	private final int OBJECTION_PERCENT = 10;
 
+	/**
+	 * <p>Default number of lines of history kept for each channel</p>
+	 */
+	private final static int DEFAULT_DEPTH = 10;
+
+	/**
+	 * <p>A line said in a channel</p>
+	 */
+	private final static class Line
+	{
+		/**
+		 * <p>Who said the line</p>
+		 */
+		private final String nick;
+		/**
+		 * <p>The text of the line</p>
+		 */
+		private final String text;
+
+		/**
+		 * <p>Creates a line</p>
+		 *
+		 * @param nick who said the line
+		 * @param text the text of the line
+		 */
+		Line(String nick, String text)
+		{
+			this.nick = nick;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * <p>Fixed length history of the lines in a channel</p>
+	 * <p>Inbound lines are added by the IRC thread, and outbound lines by the
+	 * thread sending them (the flood control thread, if it is loaded); the
+	 * {@link RingBuffer} lets both add lines, and context be read, without
+	 * locking. Lines are stamped with the time that they were seen, and only
+	 * formatted when context is requested.</p>
+	 */
+	private final static class History
+	{
+		/**
+		 * <p>The lines</p>
+		 */
+		private final RingBuffer<Line> lines;
+		/**
+		 * <p>Number of lines to show</p>
+		 */
+		private final int depth;
+
+		/**
+		 * <p>Creates an empty history</p>
+		 *
+		 * @param depth number of lines to keep
+		 */
+		History(int depth)
+		{
+			this.lines = new RingBuffer<>(depth);
+			this.depth = depth;
+		}
+
+		/**
+		 * <p>Adds a line, displacing the oldest</p>
+		 *
+		 * @param time when the line was seen
+		 * @param nick who said the line
+		 * @param text the text of the line
+		 */
+		void add(long time, String nick, String text)
+		{
+			lines.add(time, new Line(nick, text));
+		}
+
+		/**
+		 * @return the lines, oldest first, formatted one per line
+		 */
+		String format()
+		{
+			final long[] times = new long[depth];
+			final Line[] snapshot = new Line[depth];
+			final int count = lines.snapshot(times, snapshot);
+			final StringBuilder buffer = new StringBuilder(50 * count);
+
+			for (int i = 0; i < count; ++i)
+			{
+				buffer.append(String.format("[%tR %s] %s", times[i], snapshot[i].nick, snapshot[i].text));
+				buffer.append('\n');
+			}
+
+			return buffer.toString();
+		}
+	}
+
 	/**
 	 * <p>Storage for the history of attached channels</p>
 	 */
-	private final Map<String, ArrayBuffer<String>> channelHistories = new HashMap<>(10);
+	private final ConcurrentMap<String, History> channelHistories = new ConcurrentHashMap<>(10);
+	/**
+	 * <p>Number of lines of history kept for channels which do not have
+	 * their own depth set</p>
+	 */
+	private final int depth;
 	/**
-	 * <p>Instance of {@link Calendar} for generating timestamps on the stored
-	 * messages</p>
+	 * <p>Whether lines are being passed to this service by a {@link
+	 * MessageRouter}</p>
 	 */
-	private final Calendar c = Calendar.getInstance();
+	private volatile boolean routed = false;
 
 	/**
-	 * <p>Creates a new Content Service instance</p>
+	 * <p>Creates a context service, reading the default depth from the
+	 * <code>ContextService.Depth</code> system property</p>
 	 */
 	public ContextService()
 	{
-		// Nothing to see here. Move along, citizen!
+		this.depth = Math.max(1, Integer.getInteger("ContextService.Depth", DEFAULT_DEPTH));
 	}
 
 	@Override
 	public void handle(Message m)
 	{
-		MessageTokeniser t = new MessageTokeniser(m.getMessage());
-
-		t.setConsumeWhitespace(true);
+		if (!routed)
+		{
+			handle(m, Command.parse(m));
+		}
+	}
 
+	@Override
+	public void handle(Message m, Command command)
+	{
 		if (m.getChannel() == null)
 		{
 			return;
 		}
 
 		// Check that the bot is being asked for context in a channel
-		if (!t.consume(m.getNick() + ": context"))
+		if (!command.is("context"))
 		{
-			synchronized (channelHistories)
-			{
-				c.setTimeInMillis(currentTimeMillis());
-				String mess = format("[%tR %s] %s", c, m.getSender(), m.getMessage());
-
-				if (!channelHistories.containsKey(m.getChannel()))
-				{
-					ArrayBuffer<String> buf = new ArrayBuffer<>(10, "");
-					buf.add(mess);
-					channelHistories.put(m.getChannel(), buf);
-				}
-				else
-				{
-					channelHistories.get(m.getChannel()).add(mess);
-				}
-			}
+			record(m.getChannel(), m.getSender(), m.getMessage());
 		}
 		else
 		{
-			synchronized (channelHistories)
+			final History hist = channelHistories.get(m.getChannel());
+
+			if (hist != null)
+			{
+				m.reply(hist.format());
+			}
+			else
+			{
+				m.reply("No context available for this channel.");
+			}
+
+			// occasionally object (but only after answering the request)
+			if (r.nextInt(100) < OBJECTION_PERCENT)
 			{
-				if (channelHistories.containsKey(m.getChannel()))
-				{
-					ArrayBuffer<String> hist = channelHistories.get(m.getChannel());
-					StringBuilder buffer = new StringBuilder(50 * hist.getLength());
-
-					for (int i = 0; i < hist.getLength(); ++i)
-					{
-						buffer.append(hist.get(i)).append('\n');
-					}
-
-					m.reply(buffer.toString());
-				}
-				else
-				{
-					m.reply("No context available for this channel.");
-				}
-
-				// occasionally object (but only after answering the request)
-				if (r.nextInt(100) < OBJECTION_PERCENT)
-				{
-					m.replyToAll(CBD);
-				}
+				m.replyToAll(CBD);
 			}
 		}
 	}
@@ -127,29 +214,43 @@ public class ContextService extends Service implements MessageService, FilterSer
 	{
 		if (m.getTarget().startsWith("#") || m.getTarget().startsWith("&"))
 		{
-			synchronized (channelHistories)
+			record(m.getTarget(), m.getNick(), m.getMessage());
+		}
+		return m;
+	}
+
+	/**
+	 * <p>Adds a line to the history of a channel</p>
+	 *
+	 * @param channel the channel
+	 * @param nick who sent the line
+	 * @param message the text of the line
+	 */
+	private void record(String channel, String nick, String message)
+	{
+		History hist = channelHistories.get(channel);
+
+		if (hist == null)
+		{
+			final History created = new History(Math.max(1,
+				Integer.getInteger("ContextService.Depth." + channel, depth)));
+
+			hist = channelHistories.putIfAbsent(channel, created);
+
+			if (hist == null)
 			{
-				c.setTimeInMillis(System.currentTimeMillis());
-				String mess = String.format("[%tR %s] %s", c, m.getNick(), m.getMessage());
-
-				if (!channelHistories.containsKey(m.getTarget()))
-				{
-					ArrayBuffer<String> buf = new ArrayBuffer<>(10, "");
-					buf.add(mess);
-					channelHistories.put(m.getTarget(), buf);
-				}
-				else
-				{
-					channelHistories.get(m.getTarget()).add(mess);
-				}
+				hist = created;
 			}
 		}
-		return m;
+
+		hist.add(currentTimeMillis(), nick, message);
 	}
 
 	@Override
 	protected void startup(RelayCat r)
 	{
+		routed = MessageRouter.register(r, this);
+
 		List<HelpService> helpServices = r.getServicesByClass(HelpService.class);
 
 		if (!helpServices.isEmpty())
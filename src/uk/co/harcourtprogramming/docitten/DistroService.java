@@ -11,6 +11,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import org.eclipse.jgit.util.StringUtils;
 import uk.co.harcourtprogramming.docitten.utility.GitRepoTracker;
@@ -21,7 +22,7 @@ import uk.co.harcourtprogramming.internetrelaycats.MessageService;
 import uk.co.harcourtprogramming.internetrelaycats.RelayCat;
 import uk.co.harcourtprogramming.mewler.MessageTokeniser;
 
-public class DistroService extends ExternalService implements MessageService
+public class DistroService extends ExternalService implements MessageService, CommandService
 {
 
 	/**
@@ -45,6 +46,29 @@ public class DistroService extends ExternalService implements MessageService
 	 */
 	private String channel;
 
+	/**
+	 * Sub-commands of 'distro'
+	 */
+	private final static String[] COMMANDS = {
+		"distro list", "distro available", "distro latest", "distro start", "distro stop"
+	};
+
+	/**
+	 * Whether commands are being passed to this service by a MessageRouter
+	 */
+	private volatile boolean routed = false;
+
+	/**
+	 * Router for matching commands when there is no shared router; it calls
+	 * this service directly, never through a mailbox
+	 */
+	private final MessageRouter local = new MessageRouter(false);
+
+	/**
+	 * The job which checks the watched distros for updates
+	 */
+	private volatile Scheduler.Job check = null;
+
 	public DistroService(InternetRelayCat inst, File root, String channel)
 	{
 		super(inst);
@@ -69,48 +93,48 @@ public class DistroService extends ExternalService implements MessageService
 	}
 
 	@Override
-	@SuppressWarnings("SleepWhileInLoop")
 	public void run()
 	{
-		while (true)
+		check = Scheduler.repeat(5, 1, TimeUnit.MINUTES, new Runnable()
 		{
-			checkUpdates();
-			try
+			@Override
+			public void run()
 			{
-				Thread.sleep(300000);
+				checkUpdates();
 			}
-			catch (InterruptedException e)
+
+			@Override
+			public String toString()
 			{
+				return "Distro updates [" + root + ']';
 			}
-		}
+		});
 	}
 
 	@Override
 	public void handle(Message m)
 	{
-		MessageTokeniser t = new MessageTokeniser(m.getMessage());
-		t.setConsumeWhitespace(true);
-
-		// Check that the bot is actually being addressed in some way
-		if ( !t.consume(m.getNick() + ':') && m.getChannel() != null )
-		{
-			return;
-		}
-		// Check the command was 'distro'
-		if ( !t.consume("distro") )
+		if ( !routed )
 		{
-			return;
+			local.handle(m);
 		}
+	}
+
+	@Override
+	public void handle(Message m, Command c)
+	{
+		MessageTokeniser t = new MessageTokeniser(c.getArgs());
+		t.setConsumeWhitespace(true);
 
-		if ( t.consume("list") )
+		if ( "distro list".equals(c.getPhrase()) )
 		{
 			m.reply(StringUtils.join(this.tracking.keySet(), " "));
 		}
-		else if ( t.consume("available") )
+		else if ( "distro available".equals(c.getPhrase()) )
 		{
 			m.reply(this.distrosToString(this.distros, " "));
 		}
-		else if ( t.consume("latest") )
+		else if ( "distro latest".equals(c.getPhrase()) )
 		{
 			String distro = t.nextToken();
 
@@ -127,7 +151,7 @@ public class DistroService extends ExternalService implements MessageService
 				m.reply("Failed");
 			}
 		}
-		else if ( t.consume("start") )
+		else if ( "distro start".equals(c.getPhrase()) )
 		{
 			String distro = t.nextToken();
 
@@ -152,7 +176,7 @@ public class DistroService extends ExternalService implements MessageService
 				log(Level.INFO, "Distro failed to add " + distro, e);
 			}
 		}
-		else if ( t.consume("stop") )
+		else if ( "distro stop".equals(c.getPhrase()) )
 		{
 			String distro = t.nextToken();
 			try
@@ -299,11 +323,22 @@ public class DistroService extends ExternalService implements MessageService
 	@Override
 	protected void shutdown()
 	{
+		if ( check != null )
+		{
+			check.cancel();
+		}
 	}
 
 	@Override
 	protected void startup(RelayCat r)
 	{
+		routed = MessageRouter.register(r, this, COMMANDS);
+
+		if ( !routed )
+		{
+			local.register(this, COMMANDS);
+		}
+
 		List<HelpService> helpServices = r.getServicesByClass(HelpService.class);
 
 		if ( !helpServices.isEmpty() )
@@ -60,6 +60,9 @@ public class DoCitten
 			configPath = args[0];
 		}
 
+		// Read by the JVM on first use, so set before anything connects
+		HttpConnections.setDefaults();
+
 		DoCitten bot = new DoCitten();
 		bot.run(configPath);
 	}
@@ -214,6 +217,10 @@ public class DoCitten
 					case "load":
 						commandLoad( tokeniser );
 						break;
+
+					case "set":
+						commandSet( tokeniser );
+						break;
 				}
 			}
 			catch ( Exception ex )
@@ -270,6 +277,8 @@ public class DoCitten
 		LOG.info("Connect to {0}:{1} (SSL={2})", new Object[]{host, port, ssl});
 
 		inst = new InternetRelayCat( nick, host, channels );
+		// The router has to be there before services try to register with it
+		inst.addService( new MessageRouter() );
 		new Thread(inst, "IRC-Thread").start();
 	}
 
@@ -353,6 +362,29 @@ public class DoCitten
 		}
 	}
 
+	/**
+	 * <p>Sets a system property, which is used to configure services and
+	 * shared components such as the {@link WorkerPool}</p>
+	 * <p>Shared components read their properties when they are first used,
+	 * so these need to be set before the services that use them are
+	 * loaded.</p>
+	 */
+	private void commandSet( MessageTokeniser tokeniser )
+	{
+		final String key = tokeniser.nextToken();
+
+		if ( key == null || tokeniser.isEmpty() )
+		{
+			LOG.warning( "Usage: set <property> <value>" );
+			return;
+		}
+
+		final String value = tokeniser.toString();
+
+		LOG.info( "Setting {0} to {1}", key, value );
+		System.setProperty( key, value );
+	}
+
 	@SuppressWarnings( "unchecked" )
 	private void commandLoad( MessageTokeniser tokeniser )
 	{
@@ -0,0 +1,721 @@
+package uk.co.harcourtprogramming.docitten;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import uk.co.harcourtprogramming.internetrelaycats.ExternalService;
+import uk.co.harcourtprogramming.internetrelaycats.FilterService;
+import uk.co.harcourtprogramming.internetrelaycats.InternetRelayCat;
+import uk.co.harcourtprogramming.internetrelaycats.OutboundMessage;
+import uk.co.harcourtprogramming.internetrelaycats.RelayCat;
+
+/**
+ * <p>Paces outbound lines so that the bot is not kicked for flooding</p>
+ * <p>Every outbound line passes through the filter chain. This service
+ * takes each one off the chain and queues it, and its own thread sends them
+ * back out at a steady rate, so services that reply with many lines no longer
+ * send them all at once, or block in the socket writer whilst doing so.</p>
+ * <ul>
+ *  <li>Lines are paced by a token bucket for the connection as a whole, and
+ * one for each target, and targets take turns.</li>
+ *  <li>The first few lines sent to a target at once are interactive; any
+ * more (for example, a <code>reminder list</code> or catpic queue) are bulk,
+ * and wait whilst there are interactive lines for other targets.</li>
+ *  <li>Consecutive waiting lines for the same target are merged, up to the
+ * length of an IRC line, so a long dump uses fewer lines. Lengths are
+ * counted in UTF-8 bytes, and a merged line, with the
+ * <code>PRIVMSG</code> command and line break sent around it, is never
+ * longer than the 512 bytes IRC allows.</li>
+ *  <li>At most a fixed number of lines wait at once; beyond that, bulk lines
+ * are dropped, and counted.</li>
+ * </ul>
+ * <p>The service is configured with the system properties, read when it is
+ * loaded:</p>
+ * <ul>
+ *  <li><code>FloodControl.Interval</code> - milliseconds per line on the
+ * connection (default 2000)</li>
+ *  <li><code>FloodControl.Burst</code> - lines which may be sent at once on
+ * the connection (default 5)</li>
+ *  <li><code>FloodControl.Target.Interval</code> - milliseconds per line to
+ * each target (default 3000)</li>
+ *  <li><code>FloodControl.Target.Burst</code> - lines which may be sent at
+ * once to each target (default 4)</li>
+ *  <li><code>FloodControl.Interactive</code> - number of lines sent to a
+ * target at once which count as interactive (default 3)</li>
+ *  <li><code>FloodControl.Queue</code> - lines which may wait (default
+ * 256)</li>
+ *  <li><code>FloodControl.LineLength</code> - longest merged line, in
+ * bytes (default 400)</li>
+ * </ul>
+ * <p>This must be loaded before any other filter service, so that the
+ * others see each line once, as it is sent.</p>
+ *
+ * @author Benedict Harcourt / javajawa
+ */
+public class FloodControlService extends ExternalService implements FilterService
+{
+	/**
+	 * <p>Separator between merged lines</p>
+	 */
+	private final static String SEPARATOR = " | ";
+	/**
+	 * <p>Longest line, in bytes, that an IRC server accepts, including the
+	 * line break</p>
+	 */
+	private final static int IRC_LINE = 512;
+
+	/**
+	 * <p>Set on the sending thread whilst this service is sending a line, so
+	 * that the filter lets it through</p>
+	 */
+	private final static ThreadLocal<Boolean> RELEASING = new ThreadLocal<Boolean>()
+	{
+		@Override
+		protected Boolean initialValue()
+		{
+			return Boolean.FALSE;
+		}
+	};
+
+	/**
+	 * <p>Token bucket, counting lines</p>
+	 */
+	private final static class Bucket
+	{
+		/**
+		 * <p>Nanoseconds to earn one token</p>
+		 */
+		private final long interval;
+		/**
+		 * <p>Maximum number of tokens</p>
+		 */
+		private final int burst;
+		/**
+		 * <p>Tokens available</p>
+		 */
+		private double tokens;
+		/**
+		 * <p>When the tokens were last topped up, from {@link
+		 * System#nanoTime()}</p>
+		 */
+		private long last;
+
+		/**
+		 * <p>Creates a full bucket</p>
+		 *
+		 * @param interval milliseconds to earn one token
+		 * @param burst maximum number of tokens
+		 */
+		Bucket(long interval, int burst)
+		{
+			this.interval = TimeUnit.MILLISECONDS.toNanos(Math.max(1, interval));
+			this.burst = Math.max(1, burst);
+			this.tokens = this.burst;
+			this.last = System.nanoTime();
+		}
+
+		/**
+		 * @param now the current time, from {@link System#nanoTime()}
+		 * @return nanoseconds until a token is available (zero if there is
+		 * one now)
+		 */
+		long delay(long now)
+		{
+			tokens = Math.min(burst, tokens + (double)(now - last) / interval);
+			last = now;
+
+			return tokens >= 1 ? 0 : (long)((1 - tokens) * interval) + 1;
+		}
+
+		/**
+		 * <p>Uses a token; only valid after {@link #delay(long)} returned
+		 * zero</p>
+		 */
+		void take()
+		{
+			tokens -= 1;
+		}
+
+		/**
+		 * @return whether the bucket is full
+		 */
+		boolean isFull()
+		{
+			return tokens >= burst;
+		}
+	}
+
+	/**
+	 * <p>A line waiting to be sent</p>
+	 */
+	private final static class Line
+	{
+		/**
+		 * <p>The text of the line</p>
+		 */
+		private final String text;
+		/**
+		 * <p>Whether the line is an action</p>
+		 */
+		private final boolean action;
+
+		/**
+		 * <p>Creates a line</p>
+		 *
+		 * @param text the text of the line
+		 * @param action whether the line is an action
+		 */
+		Line(String text, boolean action)
+		{
+			this.text = text;
+			this.action = action;
+		}
+	}
+
+	/**
+	 * <p>The lines waiting for one target</p>
+	 */
+	private final static class Target
+	{
+		/**
+		 * <p>The channel or nick</p>
+		 */
+		private final String name;
+		/**
+		 * <p>Pacing for this target</p>
+		 */
+		private final Bucket bucket;
+		/**
+		 * <p>Interactive lines waiting</p>
+		 */
+		private final ArrayDeque<Line> interactive = new ArrayDeque<>();
+		/**
+		 * <p>Bulk lines waiting</p>
+		 */
+		private final ArrayDeque<Line> bulk = new ArrayDeque<>();
+		/**
+		 * <p>Lines queued since this target last had nothing waiting</p>
+		 */
+		private int burst = 0;
+
+		/**
+		 * <p>Creates a target</p>
+		 *
+		 * @param name the channel or nick
+		 * @param bucket pacing for this target
+		 */
+		Target(String name, Bucket bucket)
+		{
+			this.name = name;
+			this.bucket = bucket;
+		}
+
+		/**
+		 * @return whether no lines are waiting
+		 */
+		boolean isEmpty()
+		{
+			return interactive.isEmpty() && bulk.isEmpty();
+		}
+	}
+
+	/**
+	 * <p>A merged line, ready to send</p>
+	 */
+	private final static class Outbound
+	{
+		/**
+		 * <p>Where to send it</p>
+		 */
+		private final String target;
+		/**
+		 * <p>The line</p>
+		 */
+		private final Line line;
+
+		/**
+		 * <p>Creates a line ready to send</p>
+		 *
+		 * @param target where to send it
+		 * @param line the line
+		 */
+		Outbound(String target, Line line)
+		{
+			this.target = target;
+			this.line = line;
+		}
+	}
+
+	/**
+	 * <p>Pacing for the connection</p>
+	 */
+	private final Bucket connection;
+	/**
+	 * <p>Milliseconds per line to each target</p>
+	 */
+	private final long targetInterval;
+	/**
+	 * <p>Lines which may be sent at once to each target</p>
+	 */
+	private final int targetBurst;
+	/**
+	 * <p>Lines sent to a target at once which count as interactive</p>
+	 */
+	private final int interactiveLines;
+	/**
+	 * <p>Lines which may wait</p>
+	 */
+	private final int limit;
+	/**
+	 * <p>Longest merged line, in bytes</p>
+	 */
+	private final int lineLength;
+
+	/**
+	 * <p>Targets with lines waiting, in the order in which they take
+	 * turns</p>
+	 * <p>Guarded by its own lock, which the sending thread also waits
+	 * on</p>
+	 */
+	private final Map<String, Target> targets = new LinkedHashMap<>();
+	/**
+	 * <p>Number of lines waiting</p>
+	 */
+	private int queued = 0;
+
+	/**
+	 * <p>Number of lines sent (after merging)</p>
+	 */
+	private final AtomicLong sent = new AtomicLong();
+	/**
+	 * <p>Number of lines merged into the line before them</p>
+	 */
+	private final AtomicLong merged = new AtomicLong();
+	/**
+	 * <p>Number of blank spacer lines dropped whilst merging</p>
+	 */
+	private final AtomicLong spacers = new AtomicLong();
+	/**
+	 * <p>Number of lines dropped because too many were waiting</p>
+	 */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * <p>Creates a flood control service</p>
+	 *
+	 * @param inst the IRC interface to attach to
+	 */
+	public FloodControlService(InternetRelayCat inst)
+	{
+		super(inst);
+
+		this.connection = new Bucket(Long.getLong("FloodControl.Interval", 2000),
+			Integer.getInteger("FloodControl.Burst", 5));
+		this.targetInterval   = Long.getLong("FloodControl.Target.Interval", 3000);
+		this.targetBurst      = Integer.getInteger("FloodControl.Target.Burst", 4);
+		this.interactiveLines = Integer.getInteger("FloodControl.Interactive", 3);
+		this.limit            = Math.max(1, Integer.getInteger("FloodControl.Queue", 256));
+		this.lineLength       = Math.max(1, Integer.getInteger("FloodControl.LineLength", 400));
+	}
+
+	@Override
+	public OutboundMessage filter(OutboundMessage m)
+	{
+		if (RELEASING.get())
+		{
+			return m;
+		}
+
+		synchronized (targets)
+		{
+			Target target = targets.get(m.getTarget());
+
+			if (target == null)
+			{
+				target = new Target(m.getTarget(), new Bucket(targetInterval, targetBurst));
+				targets.put(m.getTarget(), target);
+			}
+			else if (target.isEmpty())
+			{
+				target.burst = 0;
+			}
+
+			for (String text : m.getMessage().split("\r?\n"))
+			{
+				if (!text.isEmpty())
+				{
+					enqueue(target, new Line(text, m.isAction()));
+				}
+			}
+
+			targets.notifyAll();
+		}
+
+		return null;
+	}
+
+	/**
+	 * <p>Queues a line for a target, making room if need be</p>
+	 * <p>Called whilst holding the lock on {@link #targets}</p>
+	 *
+	 * @param target the target
+	 * @param line the line
+	 */
+	private void enqueue(Target target, Line line)
+	{
+		final boolean interactive = target.burst++ < interactiveLines;
+
+		if (queued >= limit && !(interactive && dropBulk()))
+		{
+			final long count = dropped.incrementAndGet();
+
+			if (count == 1 || count % 100 == 0)
+			{
+				log(Level.WARNING, "Outbound queue full, dropped line to {0} ({1} dropped in total)",
+					new Object[] {target.name, count});
+			}
+
+			return;
+		}
+
+		(interactive ? target.interactive : target.bulk).add(line);
+		++queued;
+	}
+
+	/**
+	 * <p>Drops the newest bulk line of any target, to make room for an
+	 * interactive one</p>
+	 * <p>Called whilst holding the lock on {@link #targets}</p>
+	 *
+	 * @return whether a line was dropped
+	 */
+	private boolean dropBulk()
+	{
+		for (Target target : targets.values())
+		{
+			if (target.bulk.pollLast() != null)
+			{
+				--queued;
+				dropped.incrementAndGet();
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * <p>Waits until a line may be sent, and takes it (and any lines that it
+	 * can be merged with) off the queue</p>
+	 *
+	 * @return the line to send
+	 * @throws InterruptedException if the service is shut down whilst
+	 * waiting
+	 */
+	private Outbound next() throws InterruptedException
+	{
+		synchronized (targets)
+		{
+			while (true)
+			{
+				final long now = System.nanoTime();
+				long wait = Long.MAX_VALUE;
+				Target pick = null;
+				ArrayDeque<Line> from = null;
+
+				// Interactive lines for any target go before bulk lines
+				for (int pass = 0; pass < 2 && pick == null; ++pass)
+				{
+					for (Target target : targets.values())
+					{
+						final ArrayDeque<Line> lines = pass == 0 ? target.interactive : target.bulk;
+
+						if (lines.isEmpty())
+						{
+							continue;
+						}
+
+						final long delay = target.bucket.delay(now);
+
+						if (delay == 0)
+						{
+							pick = target;
+							from = lines;
+							break;
+						}
+
+						wait = Math.min(wait, delay);
+					}
+				}
+
+				if (pick != null)
+				{
+					final long delay = connection.delay(now);
+
+					if (delay == 0)
+					{
+						connection.take();
+						pick.bucket.take();
+						return take(pick, from);
+					}
+
+					wait = delay;
+				}
+
+				if (wait == Long.MAX_VALUE)
+				{
+					targets.wait();
+				}
+				else
+				{
+					TimeUnit.NANOSECONDS.timedWait(targets, wait);
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Takes the next line for a target, merged with any that follow it,
+	 * and sends the target to the back of the queue</p>
+	 * <p>Called whilst holding the lock on {@link #targets}</p>
+	 *
+	 * @param target the target
+	 * @param lines the target's queue to take from
+	 * @return the line to send
+	 */
+	private Outbound take(Target target, ArrayDeque<Line> lines)
+	{
+		final Line first = lines.poll();
+		--queued;
+
+		Line line = first;
+		ArrayDeque<Line> source = lines;
+
+		if (!first.action)
+		{
+			final StringBuilder text = new StringBuilder(first.text);
+			// What the server sees is "PRIVMSG <target> :<text>\r\n"
+			final int budget = Math.min(lineLength,
+				IRC_LINE - utf8Length("PRIVMSG " + target.name + " :") - 2);
+			int bytes = utf8Length(first.text);
+
+			// A target's interactive lines are all older than its bulk lines,
+			// so merging can carry on from one into the other
+			if (source.isEmpty())
+			{
+				source = target.bulk;
+			}
+
+			while (!source.isEmpty() && !source.peek().action)
+			{
+				final String next = source.peek().text;
+
+				// Blank spacer lines are dropped, rather than merged in
+				if (next.trim().isEmpty())
+				{
+					spacers.incrementAndGet();
+				}
+				else
+				{
+					final int length = SEPARATOR.length() + utf8Length(next);
+
+					if (bytes + length > budget)
+					{
+						break;
+					}
+
+					text.append(SEPARATOR).append(next);
+					bytes += length;
+					merged.incrementAndGet();
+				}
+
+				source.poll();
+				--queued;
+
+				if (source.isEmpty())
+				{
+					source = target.bulk;
+				}
+			}
+
+			if (text.length() != first.text.length())
+			{
+				line = new Line(text.toString(), false);
+			}
+		}
+
+		// Take turns: the target goes to the back, or is forgotten once it
+		// has nothing waiting and its bucket has refilled
+		targets.remove(target.name);
+
+		if (!target.isEmpty() || !target.bucket.isFull())
+		{
+			targets.put(target.name, target);
+		}
+
+		forgetIdle();
+
+		return new Outbound(target.name, line);
+	}
+
+	/**
+	 * @param text some text
+	 * @return the length of the text, in UTF-8 bytes
+	 */
+	static int utf8Length(CharSequence text)
+	{
+		int bytes = 0;
+
+		for (int i = 0; i < text.length(); ++i)
+		{
+			final char c = text.charAt(i);
+
+			if (c < 0x80)
+			{
+				bytes += 1;
+			}
+			else if (c < 0x800)
+			{
+				bytes += 2;
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+				&& Character.isLowSurrogate(text.charAt(i + 1)))
+			{
+				bytes += 4;
+				++i;
+			}
+			else
+			{
+				bytes += 3;
+			}
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * <p>Forgets targets with nothing waiting and a full bucket</p>
+	 * <p>Called whilst holding the lock on {@link #targets}</p>
+	 */
+	private void forgetIdle()
+	{
+		final long now = System.nanoTime();
+		final Iterator<Target> it = targets.values().iterator();
+
+		while (it.hasNext())
+		{
+			final Target target = it.next();
+
+			if (target.isEmpty())
+			{
+				target.bucket.delay(now);
+
+				if (target.bucket.isFull())
+				{
+					it.remove();
+				}
+			}
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			while (true)
+			{
+				final Outbound out = next();
+
+				RELEASING.set(Boolean.TRUE);
+				try
+				{
+					if (out.line.action)
+					{
+						getInstance().act(out.target, out.line.text);
+					}
+					else
+					{
+						getInstance().message(out.target, out.line.text);
+					}
+					sent.incrementAndGet();
+				}
+				catch (RuntimeException ex)
+				{
+					log(Level.WARNING, "Error sending line to " + out.target, ex);
+				}
+				finally
+				{
+					RELEASING.set(Boolean.FALSE);
+				}
+			}
+		}
+		catch (InterruptedException ex)
+		{
+			// Shut down
+		}
+	}
+
+	/**
+	 * @return the number of lines waiting to be sent
+	 */
+	public int getQueued()
+	{
+		synchronized (targets)
+		{
+			return queued;
+		}
+	}
+
+	/**
+	 * @return the number of lines sent, after merging
+	 */
+	public long getSent()
+	{
+		return sent.get();
+	}
+
+	/**
+	 * @return the number of lines merged into the line before them
+	 */
+	public long getMerged()
+	{
+		return merged.get();
+	}
+
+	/**
+	 * @return the number of blank spacer lines dropped whilst merging
+	 */
+	public long getSpacers()
+	{
+		return spacers.get();
+	}
+
+	/**
+	 * @return the number of lines dropped because too many were waiting
+	 */
+	public long getDropped()
+	{
+		return dropped.get();
+	}
+
+	@Override
+	protected void startup(RelayCat r)
+	{
+		// Nothing to see here. Move along, citizen!
+	}
+
+	@Override
+	protected void shutdown()
+	{
+		synchronized (targets)
+		{
+			targets.clear();
+			queued = 0;
+		}
+	}
+}
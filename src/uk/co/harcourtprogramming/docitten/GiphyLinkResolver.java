@@ -9,6 +9,8 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
@@ -20,19 +22,8 @@ import uk.co.harcourtprogramming.logging.LogDecorator;
  *
  * @author Benedict Harcourt / javajawa
  */
-public class GiphyLinkResolver extends Thread
+public class GiphyLinkResolver implements Runnable
 {
-	/**
-	 * <p>Thread group for running link resolvers in</p>
-	 */
-	private final static ThreadGroup THREAD_GROUP = new ThreadGroup("SpotifyResolvers")
-	{
-		@Override
-		public void uncaughtException(Thread t, Throwable e)
-		{
-			LOG.uncaught(t, e);
-		}
-	};
 	/**
 	 * <p>Logger shared with {@link LinkService} and with all other LinkResolver
 	 * instances</p>
@@ -45,6 +36,10 @@ public class GiphyLinkResolver extends Thread
 
 	private final static JSONParser PARSER = new JSONParser();
 
+	/**
+	 * <p>The search term for the gif</p>
+	 */
+	private final String search;
 	/**
 	 * <p>The original URI that we are retrieving</p>
 	 */
@@ -69,8 +64,6 @@ public class GiphyLinkResolver extends Thread
 	 */
 	public GiphyLinkResolver(String search, RelayCat mess, String target)
 	{
-		super(THREAD_GROUP, "LinkResolver [Giphy: " + search + ']');
-
 		final String encodedSearch;
 		try
 		{
@@ -81,52 +74,51 @@ public class GiphyLinkResolver extends Thread
 			throw new RuntimeException(ex);
 		}
 		
+		this.search = search;
 		this.baseURI = URI.create("http://api.giphy.com/v1/gifs/search?api_key=dc6zaTOxFJmzC&rating=pg-13&limit=1&q=" + encodedSearch);
 		this.mess = mess;
 		this.target = target;
-		setDaemon(true);
 	}
 
 	/**
 	 * <p>Runs this LinkResolver</p>
+	 * <p>The result is sent to the IRC end point that asked for it, and to any
+	 * that {@link InFlight#join(String, RelayCat, String) joined} the lookup
+	 * while it was running.</p>
 	 */
 	@Override
 	public void run()
 	{
-		URL curr;
+		final List<String> replies = new ArrayList<>(1);
+
 		try
 		{
-			curr = baseURI.toURL();
+			fetchData(baseURI.toURL(), replies);
 		}
 		catch (MalformedURLException ex)
 		{
 			throw new RuntimeException(ex);
 		}
-		fetchData(curr);
+		finally
+		{
+			InFlight.complete(getKey(), replies, mess, target);
+		}
 	}
 
 	/**
-	 * <p>Creates an HttpURLConnection to a URL</p>
-	 * <p>The connection is set up to:</p>
-	 * <ul>
-	 *	<li>Not follow redirects (prevents loops)</li>
-	 *  <li>Perform only a head request</li>
-	 *  <li>Timeout after {@link #TIMEOUT}ms on both connect and read</li>
-	 * </ul>
-	 * @param url the target URL
-	 * @return an ready, but unsent, connection to the URL
-	 * @throws IOException
+	 * <p>Gets the key used for {@link InFlight coalescing} this lookup</p>
+	 *
+	 * @return the search term, prefixed with "giphy:"
 	 */
-	private HttpURLConnection createConnection(URL url) throws IOException
+	public String getKey()
 	{
-		HttpURLConnection conn = (HttpURLConnection)url.openConnection();
-
-		conn.setInstanceFollowRedirects(false);
-		conn.setRequestMethod("HEAD");
-		conn.setConnectTimeout(TIMEOUT);
-		conn.setReadTimeout(TIMEOUT);
+		return "giphy:" + this.search;
+	}
 
-		return conn;
+	@Override
+	public String toString()
+	{
+		return "GiphyLinkResolver [" + search + ']';
 	}
 
 	/**
@@ -136,18 +128,41 @@ public class GiphyLinkResolver extends Thread
 	 * {@link #getTitle(java.io.InputStream) title element}. For other types,
 	 * the mime type and seize are sent in lieu of a title.</p>
 	 * @param url the resource to get meta-data for
-	 * @throws RuntimeException on any IO error (caught in {@link #THREAD_GROUP
-	 * the thread group})
+	 * @param replies list to add the messages to send to IRC to
+	 * @throws RuntimeException on any IO error (caught by the {@link
+	 * WorkerPool})
 	 */
-	private void fetchData(URL url)
+	private void fetchData(URL url, List<String> replies)
 	{
+		final HostGuard guard = HostGuard.getShared();
+
+		if (!guard.acquire(url.getHost()))
+		{
+			LOG.fine("Host {0} is rate limited or failing [lookup of {1}]", url.getHost(), baseURI);
+			return;
+		}
+
 		try
 		{
-			HttpURLConnection conn = (HttpURLConnection)url.openConnection();
-			conn.setRequestMethod("GET");
-			conn.setRequestProperty("Accept", "application/json");
-			conn.setInstanceFollowRedirects(false);
-			conn.connect();
+			final HttpURLConnection conn;
+
+			try
+			{
+				conn = HttpConnections.open(url, "GET", TIMEOUT, TIMEOUT);
+				conn.setRequestProperty("Accept", "application/json");
+				conn.connect();
+				guard.report(url.getHost(), conn.getResponseCode());
+			}
+			catch (IOException ex)
+			{
+				guard.failure(url.getHost());
+				throw ex;
+			}
+			catch (RuntimeException ex)
+			{
+				guard.release(url.getHost());
+				throw ex;
+			}
 
 			final Reader r = new InputStreamReader(conn.getInputStream());
 			final JSONObject giphy;
@@ -186,7 +201,7 @@ public class GiphyLinkResolver extends Thread
 
 				if ( ! gifUrl.isEmpty() )
 				{
-					mess.message(target, gifUrl);
+					replies.add(gifUrl);
 				}
 			}
 		}
@@ -1,13 +1,13 @@
 package uk.co.harcourtprogramming.docitten;
 
-import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import uk.co.harcourtprogramming.internetrelaycats.ExternalService;
 import uk.co.harcourtprogramming.internetrelaycats.InternetRelayCat;
 import uk.co.harcourtprogramming.internetrelaycats.RelayCat;
 
-import static java.lang.System.currentTimeMillis;
-
 /**
  * <p>Class that gives warnings for people to leave the laboratories before the
  * doors automatically lock</p>
@@ -20,9 +20,9 @@ public class GoHomeService extends ExternalService
 	 */
 	private final String channel;
 	/**
-	 * <p>Calendar instance for checking the time</p>
+	 * <p>The jobs which send the warnings</p>
 	 */
-	private final Calendar c = Calendar.getInstance();
+	private final List<Scheduler.Job> jobs = new CopyOnWriteArrayList<>();
 
 	/**
 	 * <p>Create a go home service</p>
@@ -37,49 +37,44 @@ public class GoHomeService extends ExternalService
 	}
 
 	/**
-	 * <p>Runs the Go Home Service</p>
+	 * <p>Runs the Go Home Service, by registering a job with the {@link
+	 * Scheduler} for each warning</p>
 	 */
 	@Override
-	@SuppressWarnings({"SleepWhileHoldingLock", "SleepWhileInLoop"})
-	public synchronized void run()
+	public void run()
 	{
 		log(Level.INFO, "'GoHomeService' started");
-		while (true)
+
+		warn(23, 30, "Attention denizens of #doc: DoC Labs will be closing in 30 minutes");
+		warn(23, 50, "Attention denizens of #doc: DoC Labs will be closing in 10 minutes\n" +
+		  "Please save, commit, and push your work; log off, and try not to get locked in!");
+		warn(23, 55, "Attention denizens of #doc: DoC Labs will be closing in 5 minutes. " +
+		  "Go home and sleep and stuff!");
+	}
+
+	/**
+	 * <p>Registers a warning to be sent every day</p>
+	 *
+	 * @param hour the hour to send it at
+	 * @param minute the minute to send it at
+	 * @param message the warning
+	 */
+	private void warn(int hour, int minute, final String message)
+	{
+		jobs.add(Scheduler.daily(hour, minute, TimeZone.getDefault(), new Runnable()
 		{
-			try
+			@Override
+			public void run()
 			{
-				c.setTimeInMillis(currentTimeMillis());
-
-				if (c.get(Calendar.HOUR_OF_DAY) == 23)
-				{
-					switch (c.get(Calendar.MINUTE))
-					{
-						case 30:
-							getInstance().message(channel,
-							  "Attention denizens of #doc: DoC Labs will be closing in 30 minutes");
-							Thread.sleep(60000); // Make sure we can't send this twice
-							break;
-						case 50:
-							getInstance().message(channel,
-							  "Attention denizens of #doc: DoC Labs will be closing in 10 minutes\n" +
-							  "Please save, commit, and push your work; log off, and try not to get locked in!");
-							Thread.sleep(60000); // Make sure we can't send this twice
-							break;
-						case 55:
-							getInstance().message(channel,
-							  "Attention denizens of #doc: DoC Labs will be closing in 5 minutes. " +
-							  "Go home and sleep and stuff!");
-							Thread.sleep(60000); // Make sure we can't send this twice
-							break;
-					}
-				}
-				Thread.sleep(30000);
+				getInstance().message(channel, message);
 			}
-			catch (InterruptedException ex)
+
+			@Override
+			public String toString()
 			{
-				return;
+				return "GoHome [" + channel + ']';
 			}
-		}
+		}));
 	}
 
 	@Override
@@ -91,6 +86,9 @@ public class GoHomeService extends ExternalService
 	@Override
 	public void shutdown()
 	{
-		// Nothing to see here. Move along, citizen.
+		for (Scheduler.Job job : jobs)
+		{
+			job.cancel();
+		}
 	}
 }
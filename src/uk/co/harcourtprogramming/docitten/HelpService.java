@@ -16,7 +16,7 @@ import uk.co.harcourtprogramming.mewler.MessageTokeniser;
  *
  * @author Benedict Harcourt / javajawa
  */
-public class HelpService extends Service implements MessageService
+public class HelpService extends Service implements MessageService, CommandService
 {
 
 	/**
@@ -177,6 +177,15 @@ public class HelpService extends Service implements MessageService
 	 * <p>The root help item in this service</p>
 	 */
 	private final HelpInfo root;
+	/**
+	 * <p>Whether commands are being passed to this service by a {@link
+	 * MessageRouter}</p>
+	 */
+	private volatile boolean routed = false;
+	/**
+	 * <p>The router that commands are registered with, if there is one</p>
+	 */
+	private volatile MessageRouter router = null;
 
 	/**
 	 * <p>Creates a new help service with the default root item</p>
@@ -233,6 +242,21 @@ public class HelpService extends Service implements MessageService
 		return root.addChild(key, info);
 	}
 
+	/**
+	 * <p>Handles the message, if it has not already been passed to {@link
+	 * #handle(Message, Command)} by a {@link MessageRouter}</p>
+	 *
+	 * @param m The message data
+	 */
+	@Override
+	public void handle(Message m)
+	{
+		if (!routed)
+		{
+			handle(m, Command.parse(m));
+		}
+	}
+
 	/**
 	 * <p>Handles the message</p>
 	 * <p>First, a check is performed to make sure that the bot was directly
@@ -241,29 +265,42 @@ public class HelpService extends Service implements MessageService
 	 * help is needed.</p>
 	 * <p>The rest of the message is then treated as a series of child nodes to
 	 * descend down to select the item.</p>
+	 * <p>The command <code>help commands</code> instead lists all the commands
+	 * registered with the {@link MessageRouter}.</p>
 	 * <p>If the item is found, it is outputted via {@link HelpInfo#toString()},
 	 * and sent directly back to the user.</p>
 	 *
 	 * @param m The message data
+	 * @param c The parsed form of the message
 	 */
 	@Override
-	public void handle(Message m)
+	public void handle(Message m, Command c)
 	{
-		MessageTokeniser t = new MessageTokeniser(m.getMessage());
-
-		t.setConsumeWhitespace(true);
-
-		// Check that the bot is actually being addressed in some way
-		if (!t.consume(m.getNick() + ':') && m.getChannel() != null)
+		// Check that the bot is actually being addressed for help
+		if (!c.is("help"))
 		{
 			return;
 		}
 
-		if (!t.consume("help"))
+		final MessageRouter commands = router;
+
+		if (commands != null && "help commands".equals(c.getPhrase()))
 		{
+			final StringBuilder s = new StringBuilder("Commands:");
+
+			for (String command : commands.getCommands())
+			{
+				s.append(EOL).append("  ").append(command);
+			}
+
+			m.reply(s.toString());
 			return;
 		}
 
+		MessageTokeniser t = new MessageTokeniser(c.getArgs());
+
+		t.setConsumeWhitespace(true);
+
 		HelpInfo currentNode = root;
 
 		while (!t.isEmpty())
@@ -291,7 +328,13 @@ public class HelpService extends Service implements MessageService
 	@Override
 	protected void startup(RelayCat r)
 	{
-		// Nothing to see here. Move along, citizen!
+		router = MessageRouter.find(r);
+
+		if (router != null)
+		{
+			router.register(this, "help", "help commands");
+			routed = true;
+		}
 	}
 
 	@Override
@@ -1,5 +1,8 @@
 package uk.co.harcourtprogramming.docitten;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -13,7 +16,7 @@ import uk.co.harcourtprogramming.internetrelaycats.Service;
  *
  * @author Benedict Harcourt / javajawa
  */
-public class HelpingService extends Service implements MessageService
+public class HelpingService extends Service implements MessageService, CommandService
 {
 
 	/**
@@ -21,6 +24,10 @@ public class HelpingService extends Service implements MessageService
 	 */
 	private final static Pattern HELP_PATTERN =
 	    Pattern.compile("(^|\\s)(ha+l+p|assist(ance|ence)?|aid)([^\\w]|$)", Pattern.CASE_INSENSITIVE);
+	/**
+	 * <p>Words that every match of {@link #HELP_PATTERN} contains</p>
+	 */
+	private final static String[] HELP_TRIGGERS = {"lp", "assist", "aid"};
 	/**
 	 * <p>What to say when help is asked for</p>
 	 */
@@ -35,6 +42,10 @@ public class HelpingService extends Service implements MessageService
 	 * <p>Pattern to match 'The Greater Good'</p>
 	 */
 	private final static Pattern GG_PATTERN = Pattern.compile("(^|[^\\w])the greater good([^\\w]|$)", Pattern.CASE_INSENSITIVE);
+	/**
+	 * <p>Words that every match of {@link #GG_PATTERN} contains</p>
+	 */
+	private final static String[] GG_TRIGGERS = {"the greater good"};
 
 	/**
 	 * <p>Fixed reply to strings containing 'the greater good'</p>
@@ -46,6 +57,17 @@ public class HelpingService extends Service implements MessageService
 	 */
 	private final Random rand;
 
+	/**
+	 * <p>Whether lines are being passed to this service by a {@link
+	 * MessageRouter}</p>
+	 */
+	private volatile boolean routed = false;
+	/**
+	 * <p>Router for finding trigger words when there is no shared router;
+	 * it calls this service directly, never through a mailbox</p>
+	 */
+	private final MessageRouter local = new MessageRouter(false);
+
 	/**
 	 * <p>Creates a Helping Service instance</p>
 	 */
@@ -59,17 +81,48 @@ public class HelpingService extends Service implements MessageService
 		this.rand = rand;
 	}
 
+	/**
+	 * @return all the trigger words of the service
+	 */
+	private static String[] triggers()
+	{
+		final List<String> words = new ArrayList<>();
+
+		words.addAll(Arrays.asList(HELP_TRIGGERS));
+		words.addAll(Arrays.asList(GG_TRIGGERS));
+		words.add(" ");
+
+		return words.toArray(new String[words.size()]);
+	}
+
 	@Override
 	public void handle(Message m)
 	{
-		if (HELP_PATTERN.matcher(m.getMessage()).find())
+		if (!routed)
+		{
+			local.handle(m);
+		}
+	}
+
+	@Override
+	public void handle(Message m, Command c)
+	{
+		if (c.hasTrigger(HELP_TRIGGERS) && HELP_PATTERN.matcher(m.getMessage()).find())
 		{
 			m.replyToAll(HELPING);
 		}
 
-		if (GG_PATTERN.matcher(m.getMessage()).find())
+		if (c.hasTrigger(GG_TRIGGERS) && GG_PATTERN.matcher(m.getMessage()).find())
 			m.replyToAll(GG);
 
+		// A portmanteau line is two words, with at most a joining word, a
+		// trailing space, and a smiley; anything else can not match
+		final int spaces = c.countTrigger(" ");
+		if (spaces == 0 || spaces > 4)
+		{
+			return;
+		}
+
 		Matcher ma = PORT_PATTERN.matcher(m.getMessage());
 		if (ma.matches() && rand.nextDouble() < 0.2)
 		{
@@ -87,7 +140,12 @@ public class HelpingService extends Service implements MessageService
 	@Override
 	protected void startup(RelayCat r)
 	{
-		// Nothing to see here. Move along, citizen!
+		routed = MessageRouter.registerTriggers(r, this, triggers());
+
+		if (!routed)
+		{
+			local.registerTriggers(this, triggers());
+		}
 	}
 
 	@Override
@@ -0,0 +1,472 @@
+package uk.co.harcourtprogramming.docitten;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Per-host rate limiter and circuit breaker for outbound lookups</p>
+ * <p>Before connecting to a host, a worker must {@link #acquire(String)
+ * acquire} permission to do so, and afterwards report whether the host
+ * {@link #success(String) responded} or {@link #failure(String) failed}.
+ * Permission is refused if:</p>
+ * <ul>
+ *  <li>the host's token bucket is empty, i.e. it has been asked for more
+ * than its rate (plus a burst allowance), or</li>
+ *  <li>the host has failed (or timed out) several times in a row, in which
+ * case its circuit is opened and it is left alone for a cool down period.
+ * After that, one request is let through to test the host; if it fails, the
+ * circuit is opened again.</li>
+ * </ul>
+ * <p>This stops a slow or dead host from tying up the workers every time a
+ * link to it is pasted.</p>
+ * <p>The state for each host is kept in a concurrent map, so looking a host
+ * up never waits on other hosts. Once more hosts than the limit are tracked,
+ * the least recently used are evicted, except for hosts whose circuit is
+ * open (or being tested): evicting those would let requests through to
+ * hosts that are known to be failing. Once a host's cool down has passed it
+ * may be evicted like any other. The {@link
+ * #getShared() shared guard} is configured with the system properties:</p>
+ * <ul>
+ *  <li><code>HostGuard.Rate</code> - requests per second allowed to each
+ * host (default 5)</li>
+ *  <li><code>HostGuard.Burst</code> - requests allowed to a host at once
+ * (default 20)</li>
+ *  <li><code>HostGuard.Failures</code> - consecutive failures which open the
+ * circuit (default 3)</li>
+ *  <li><code>HostGuard.Cooldown</code> - time the circuit stays open for, in
+ * seconds (default 60)</li>
+ *  <li><code>HostGuard.Size</code> - number of hosts tracked (default
+ * 512)</li>
+ * </ul>
+ *
+ * @author Benedict Harcourt / javajawa
+ */
+public class HostGuard
+{
+	/**
+	 * <p>Default requests per second allowed to each host</p>
+	 */
+	private final static int DEFAULT_RATE = 5;
+	/**
+	 * <p>Default requests allowed to a host at once</p>
+	 */
+	private final static int DEFAULT_BURST = 20;
+	/**
+	 * <p>Default number of consecutive failures which open the circuit</p>
+	 */
+	private final static int DEFAULT_FAILURES = 3;
+	/**
+	 * <p>Default time that the circuit stays open for, in seconds</p>
+	 */
+	private final static int DEFAULT_COOLDOWN = 60;
+	/**
+	 * <p>Default number of hosts tracked</p>
+	 */
+	private final static int DEFAULT_SIZE = 512;
+
+	/**
+	 * <p>Lazy holder for the shared guard, so that the system properties are
+	 * read when it is first used</p>
+	 */
+	private final static class Holder
+	{
+		/**
+		 * <p>The shared guard</p>
+		 */
+		private final static HostGuard SHARED = new HostGuard(
+			Math.max(1, Integer.getInteger("HostGuard.Size", DEFAULT_SIZE)),
+			Math.max(1, Integer.getInteger("HostGuard.Rate", DEFAULT_RATE)),
+			Math.max(1, Integer.getInteger("HostGuard.Burst", DEFAULT_BURST)),
+			Math.max(1, Integer.getInteger("HostGuard.Failures", DEFAULT_FAILURES)),
+			Math.max(0, Integer.getInteger("HostGuard.Cooldown", DEFAULT_COOLDOWN)) * 1000L
+		);
+	}
+
+	/**
+	 * <p>The state of a single host</p>
+	 * <p>All access is synchronised on the instance</p>
+	 */
+	private final static class Host
+	{
+		/**
+		 * <p>Tokens in the bucket</p>
+		 */
+		private double tokens;
+		/**
+		 * <p>When the bucket was last refilled, in nanoseconds</p>
+		 */
+		private long refilled;
+		/**
+		 * <p>Number of consecutive failures</p>
+		 */
+		private int failures;
+		/**
+		 * <p>When the circuit closes again, in milliseconds</p>
+		 */
+		private long openUntil;
+		/**
+		 * <p>Whether a request testing the host after a cool down is running</p>
+		 */
+		private boolean testing;
+		/**
+		 * <p>When the host was last used, as a count of uses of the guard</p>
+		 */
+		private volatile long used;
+
+		/**
+		 * <p>Creates the state for a host, with a full bucket</p>
+		 *
+		 * @param burst the size of the bucket
+		 */
+		Host(int burst)
+		{
+			this.tokens = burst;
+			this.refilled = System.nanoTime();
+		}
+	}
+
+	/**
+	 * <p>Gets the guard shared by all workers</p>
+	 *
+	 * @return the shared guard
+	 */
+	public static HostGuard getShared()
+	{
+		return Holder.SHARED;
+	}
+
+	/**
+	 * <p>The state of each host</p>
+	 */
+	private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<>();
+	/**
+	 * <p>The maximum number of hosts to track, unless their circuits are
+	 * open</p>
+	 */
+	private final int maxHosts;
+	/**
+	 * <p>Count of uses of the guard, for ordering hosts by when they were
+	 * last used</p>
+	 */
+	private final AtomicLong clock = new AtomicLong();
+	/**
+	 * <p>Whether a thread is evicting hosts</p>
+	 */
+	private final AtomicBoolean evicting = new AtomicBoolean();
+	/**
+	 * <p>Tokens added to each bucket per nanosecond</p>
+	 */
+	private final double rate;
+	/**
+	 * <p>The size of each bucket</p>
+	 */
+	private final int burst;
+	/**
+	 * <p>Number of consecutive failures which open the circuit</p>
+	 */
+	private final int threshold;
+	/**
+	 * <p>Time the circuit stays open for, in milliseconds</p>
+	 */
+	private final long cooldown;
+	/**
+	 * <p>Number of requests refused</p>
+	 */
+	private final AtomicLong refused = new AtomicLong();
+
+	/**
+	 * <p>Creates a new host guard</p>
+	 *
+	 * @param maxHosts the maximum number of hosts to track
+	 * @param rate requests per second allowed to each host
+	 * @param burst requests allowed to a host at once
+	 * @param failures consecutive failures which open the circuit
+	 * @param cooldown time the circuit stays open for, in milliseconds
+	 */
+	public HostGuard(final int maxHosts, double rate, int burst, int failures, long cooldown)
+	{
+		this.rate = rate / 1e9;
+		this.burst = burst;
+		this.threshold = failures;
+		this.cooldown = cooldown;
+		this.maxHosts = maxHosts;
+	}
+
+	/**
+	 * <p>Gets the state for a host, creating it if needed</p>
+	 *
+	 * @param host the host name
+	 * @return the state of the host
+	 */
+	private Host get(String host)
+	{
+		final String key = host.toLowerCase(Locale.ENGLISH);
+
+		Host h = hosts.get(key);
+
+		if (h == null)
+		{
+			final Host created = new Host(burst);
+
+			h = hosts.putIfAbsent(key, created);
+
+			if (h == null)
+			{
+				h = created;
+
+				if (hosts.size() > maxHosts)
+				{
+					evict(created);
+				}
+			}
+		}
+
+		h.used = clock.incrementAndGet();
+		return h;
+	}
+
+	/**
+	 * <p>Evicts the least recently used hosts whose circuits are closed,
+	 * until the map is a little below its limit</p>
+	 * <p>Only one thread evicts at a time; any others carry on without
+	 * evicting. The map stays over its limit if more hosts than that have
+	 * open circuits.</p>
+	 *
+	 * @param keep a host which has just been added, and must not be evicted
+	 */
+	private void evict(Host keep)
+	{
+		if (!evicting.compareAndSet(false, true))
+		{
+			return;
+		}
+
+		try
+		{
+			final List<Map.Entry<String, Host>> closed = new ArrayList<>(hosts.size());
+			final Map<Host, Long> used = new IdentityHashMap<>(hosts.size());
+			final long now = System.currentTimeMillis();
+
+			for (Map.Entry<String, Host> e : hosts.entrySet())
+			{
+				final Host h = e.getValue();
+
+				if (h == keep)
+				{
+					continue;
+				}
+
+				synchronized (h)
+				{
+					// Open circuits, including those being tested, are kept;
+					// forgetting a host whose cool down has passed only closes
+					// its circuit, which is safe
+					if (h.failures >= threshold && now < h.openUntil)
+					{
+						continue;
+					}
+				}
+
+				closed.add(e);
+				used.put(h, h.used);
+			}
+
+			// Ordered by a copy of the use counts, which may change whilst sorting
+			Collections.sort(closed, new Comparator<Map.Entry<String, Host>>()
+			{
+				@Override
+				public int compare(Map.Entry<String, Host> o1, Map.Entry<String, Host> o2)
+				{
+					return Long.compare(used.get(o1.getValue()), used.get(o2.getValue()));
+				}
+			});
+
+			// A little below the limit, so that the next few new hosts do not
+			// each need another scan
+			final int target = maxHosts - maxHosts / 8;
+
+			for (Map.Entry<String, Host> e : closed)
+			{
+				if (hosts.size() <= target)
+				{
+					break;
+				}
+
+				hosts.remove(e.getKey(), e.getValue());
+			}
+		}
+		finally
+		{
+			evicting.set(false);
+		}
+	}
+
+	/**
+	 * <p>Asks for permission to make a request to a host</p>
+	 * <p>If this returns true, the caller must later report the outcome with
+	 * {@link #success(String)} or {@link #failure(String)}, or, if no request
+	 * was made after all, {@link #release(String)}. A request testing a
+	 * failing host holds its circuit open for another cool down, so a test
+	 * which is never reported on only delays the next test, rather than
+	 * blocking the host for ever.</p>
+	 *
+	 * @param host the host name
+	 * @return whether the request may be made
+	 */
+	public boolean acquire(String host)
+	{
+		final Host h = get(host);
+
+		synchronized (h)
+		{
+			final long time = System.currentTimeMillis();
+			final boolean test = h.failures >= threshold;
+
+			// Circuit is open; after the cool down, let one request test it
+			if (test && time < h.openUntil)
+			{
+				refused.incrementAndGet();
+				return false;
+			}
+
+			final long now = System.nanoTime();
+
+			h.tokens = Math.min(burst, h.tokens + (now - h.refilled) * rate);
+			h.refilled = now;
+
+			if (h.tokens < 1)
+			{
+				refused.incrementAndGet();
+				return false;
+			}
+
+			h.tokens -= 1;
+
+			if (test)
+			{
+				h.testing = true;
+				h.openUntil = time + cooldown;
+			}
+
+			return true;
+		}
+	}
+
+	/**
+	 * <p>Reports that a request which was allowed was not made after all</p>
+	 * <p>If the request was testing the host, the next request may test it
+	 * straight away.</p>
+	 *
+	 * @param host the host name
+	 */
+	public void release(String host)
+	{
+		final Host h = get(host);
+
+		synchronized (h)
+		{
+			if (h.testing)
+			{
+				h.testing = false;
+				h.openUntil = 0;
+			}
+		}
+	}
+
+	/**
+	 * <p>Reports that a host responded</p>
+	 *
+	 * @param host the host name
+	 */
+	public void success(String host)
+	{
+		final Host h = get(host);
+
+		synchronized (h)
+		{
+			h.failures = 0;
+			h.testing = false;
+		}
+	}
+
+	/**
+	 * <p>Reports that a host failed to respond, or timed out</p>
+	 *
+	 * @param host the host name
+	 */
+	public void failure(String host)
+	{
+		final Host h = get(host);
+
+		synchronized (h)
+		{
+			h.testing = false;
+
+			if (++h.failures >= threshold)
+			{
+				h.openUntil = System.currentTimeMillis() + cooldown;
+			}
+		}
+	}
+
+	/**
+	 * <p>Reports the response from a host</p>
+	 * <p>Server errors (5xx) count as failures; any other response means the
+	 * host is up.</p>
+	 *
+	 * @param host the host name
+	 * @param statusCode the HTTP status of the response
+	 */
+	public void report(String host, int statusCode)
+	{
+		if (statusCode >= 500)
+		{
+			failure(host);
+		}
+		else
+		{
+			success(host);
+		}
+	}
+
+	/**
+	 * <p>Tests whether a host's circuit is open</p>
+	 *
+	 * @param host the host name
+	 * @return whether requests to the host are being refused due to failures
+	 */
+	public boolean isOpen(String host)
+	{
+		final Host h = get(host);
+
+		synchronized (h)
+		{
+			return h.failures >= threshold && System.currentTimeMillis() < h.openUntil;
+		}
+	}
+
+	/**
+	 * @return the number of requests that have been refused
+	 */
+	public long getRefused()
+	{
+		return refused.get();
+	}
+
+	/**
+	 * @return the number of hosts being tracked
+	 */
+	public int size()
+	{
+		return hosts.size();
+	}
+}
@@ -0,0 +1,195 @@
+package uk.co.harcourtprogramming.docitten;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import uk.co.harcourtprogramming.logging.LogDecorator;
+
+/**
+ * <p>Shared HTTP client layer for the resolvers</p>
+ * <p>All outgoing HTTP(S) requests should be opened with {@link #open(URL,
+ * String, int, int)} and handed back with {@link #release(HttpURLConnection)}
+ * once the response has been read. Releasing a connection closes its body
+ * rather than {@link HttpURLConnection#disconnect() disconnecting}, which
+ * returns the socket to the JVM's per-host keep-alive pool; the next request
+ * to the same host (such as the GET following a HEAD hop) then re-uses it
+ * instead of paying for a new TCP and TLS handshake. Any part of the body
+ * that is not read is drained by the JVM if small, or the socket is closed if
+ * not.</p>
+ * <p>HTTPS connections all share one socket factory, from a TLS context of
+ * their own, and so one TLS session cache; the keep-alive pool only re-uses
+ * an HTTPS connection for a request with the same factory. The JVM's default
+ * context, used by anything else in the process, is left alone.</p>
+ * <p>The layer is configured with the system properties:</p>
+ * <ul>
+ *  <li><code>http.maxConnections</code> - number of idle connections kept
+ * alive for each host (default 8, see {@link #setDefaults()})</li>
+ *  <li><code>HTTP.TLS.Sessions</code> - number of TLS sessions cached
+ * (default 256)</li>
+ *  <li><code>HTTP.TLS.SessionTimeout</code> - time a cached TLS session may
+ * be resumed for, in seconds (default 3600)</li>
+ * </ul>
+ * <p>The JVM reads <code>http.maxConnections</code> once, when the first
+ * HTTP connection in the process is made; the others are read when the
+ * first connection is opened here. All must be set from docittenrc before
+ * services are loaded.</p>
+ *
+ * @author Benedict Harcourt / javajawa
+ */
+public final class HttpConnections
+{
+	/**
+	 * <p>Logger for the HTTP layer</p>
+	 */
+	private final static LogDecorator LOG = LogDecorator.getLogger("DoCitten.HttpConnections");
+	/**
+	 * <p>Default number of idle connections kept alive for each host</p>
+	 */
+	private final static int DEFAULT_MAX_CONNECTIONS = 8;
+	/**
+	 * <p>Default number of cached TLS sessions</p>
+	 */
+	private final static int DEFAULT_TLS_SESSIONS = 256;
+	/**
+	 * <p>Default time a cached TLS session may be resumed for, in seconds</p>
+	 */
+	private final static int DEFAULT_TLS_TIMEOUT = 3600;
+
+	/**
+	 * <p>Lazy holder for the shared state, so that it is only created (and
+	 * the system properties read) when the first connection is opened</p>
+	 */
+	private final static class Holder
+	{
+		/**
+		 * <p>The socket factory shared by all HTTPS connections</p>
+		 */
+		private final static SSLSocketFactory SOCKETS = configure();
+	}
+
+	/**
+	 * <p>Private constructor for utility class</p>
+	 */
+	private HttpConnections()
+	{
+		// Nothing to see here. Move along, citizen!
+	}
+
+	/**
+	 * <p>Sets the JVM's keep-alive properties, unless they have been set
+	 * already</p>
+	 * <p>The JVM reads these once, when the first HTTP connection in the
+	 * process is made, so this is called when DoCitten starts, before the
+	 * configuration file is read (which may then override them).</p>
+	 */
+	public static void setDefaults()
+	{
+		if (System.getProperty("http.keepAlive") == null)
+		{
+			System.setProperty("http.keepAlive", "true");
+		}
+
+		if (System.getProperty("http.maxConnections") == null)
+		{
+			System.setProperty("http.maxConnections", String.valueOf(DEFAULT_MAX_CONNECTIONS));
+		}
+	}
+
+	/**
+	 * <p>Applies the configuration, and creates the shared socket factory</p>
+	 *
+	 * @return the socket factory for HTTPS connections
+	 */
+	private static SSLSocketFactory configure()
+	{
+		try
+		{
+			final SSLContext context = SSLContext.getInstance("TLS");
+			context.init(null, null, null);
+
+			final SSLSessionContext sessions = context.getClientSessionContext();
+
+			sessions.setSessionCacheSize(Math.max(0,
+				Integer.getInteger("HTTP.TLS.Sessions", DEFAULT_TLS_SESSIONS)));
+			sessions.setSessionTimeout(Math.max(0,
+				Integer.getInteger("HTTP.TLS.SessionTimeout", DEFAULT_TLS_TIMEOUT)));
+
+			LOG.info("HTTP layer keeping {0} connections per host, {1} TLS sessions",
+				System.getProperty("http.maxConnections"), sessions.getSessionCacheSize());
+
+			return context.getSocketFactory();
+		}
+		catch (NoSuchAlgorithmException | KeyManagementException ex)
+		{
+			LOG.warning(ex, "Unable to configure TLS session cache; using the defaults");
+			return HttpsURLConnection.getDefaultSSLSocketFactory();
+		}
+	}
+
+	/**
+	 * <p>Opens an HttpURLConnection to a URL</p>
+	 * <p>The connection is set up to:</p>
+	 * <ul>
+	 *	<li>Not follow redirects (prevents loops)</li>
+	 *  <li>Perform the given request method</li>
+	 *  <li>Timeout after the given times on connect and read</li>
+	 *  <li>Use the shared TLS session cache, for HTTPS</li>
+	 * </ul>
+	 * @param url the target URL
+	 * @param method the request method
+	 * @param connectTimeout max time to wait for a connection, in ms
+	 * @param readTimeout max time to wait for data, in ms
+	 * @return an ready, but unsent, connection to the URL
+	 * @throws IOException
+	 */
+	public static HttpURLConnection open(URL url, String method, int connectTimeout, int readTimeout) throws IOException
+	{
+		final SSLSocketFactory sockets = Holder.SOCKETS;
+		final HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+
+		if (conn instanceof HttpsURLConnection)
+		{
+			((HttpsURLConnection)conn).setSSLSocketFactory(sockets);
+		}
+
+		conn.setInstanceFollowRedirects(false);
+		conn.setRequestMethod(method);
+		conn.setConnectTimeout(connectTimeout);
+		conn.setReadTimeout(readTimeout);
+
+		return conn;
+	}
+
+	/**
+	 * <p>Hands a connection back once its response has been dealt with</p>
+	 * <p>The response body (or error body) is closed, so that the socket can
+	 * be kept alive for the next request to the host. If that fails, the
+	 * connection is disconnected instead.</p>
+	 *
+	 * @param conn the connection to release
+	 */
+	public static void release(HttpURLConnection conn)
+	{
+		try
+		{
+			final InputStream body = conn.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST
+				? conn.getErrorStream() : conn.getInputStream();
+
+			if (body != null)
+			{
+				body.close();
+			}
+		}
+		catch (IOException ex)
+		{
+			conn.disconnect();
+		}
+	}
+}
@@ -1,28 +1,37 @@
 package uk.co.harcourtprogramming.docitten;
 
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import uk.co.harcourtprogramming.internetrelaycats.FilterService;
 import uk.co.harcourtprogramming.internetrelaycats.Message;
 import uk.co.harcourtprogramming.internetrelaycats.MessageService;
 import uk.co.harcourtprogramming.internetrelaycats.OutboundMessage;
 import uk.co.harcourtprogramming.internetrelaycats.RelayCat;
 import uk.co.harcourtprogramming.internetrelaycats.Service;
-import uk.co.harcourtprogramming.mewler.MessageTokeniser;
 
 /**
  * <p>Rough and ready service for making the bots silent</p>
  *
  * @author Benedict Harcourt / javajawa
  */
-public class HushService extends Service implements MessageService, FilterService
+public class HushService extends Service implements MessageService, CommandService, FilterService
 {
 
 	/**
 	 * <p>A list of all channels and users in which DoCitten has been told to be
 	 * quiet</p>
+	 * <p>Every outbound line is checked against this, from whichever thread
+	 * sends it, so it is a concurrent set rather than one guarded by a
+	 * lock</p>
 	 */
-	private final Set<String> hushedTargets = new HashSet<>();
+	private final Set<String> hushedTargets =
+		Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	/**
+	 * <p>Whether commands are being passed to this service by a {@link
+	 * MessageRouter}</p>
+	 */
+	private volatile boolean routed = false;
 
 	/**
 	 * <p>Creates a new HushService instance</p>
@@ -35,7 +44,7 @@ public class HushService extends Service implements MessageService, FilterServic
 	@Override
 	protected void startup(RelayCat r)
 	{
-		// Nothing to see here. Move along, citizen!
+		routed = MessageRouter.register(r, this, "hush", "speak");
 	}
 
 	@Override
@@ -47,51 +56,38 @@ public class HushService extends Service implements MessageService, FilterServic
 	@Override
 	public void handle(Message m)
 	{
-		MessageTokeniser tokeniser = new MessageTokeniser(m.getMessage());
-		tokeniser.setConsumeWhitespace(true);
-		String sender;
-
-		if (m.getChannel() != null)
+		if (!routed)
 		{
-			if (!tokeniser.startsWith(m.getNick()))
-			{
-				return;
-			}
-
-			tokeniser.consume(m.getNick());
-			tokeniser.consume(":");
-			sender = m.getChannel();
+			handle(m, Command.parse(m));
 		}
-		else
+	}
+
+	@Override
+	public void handle(Message m, Command c)
+	{
+		if (!c.isAddressed())
 		{
-			sender = m.getNick();
+			return;
 		}
 
-		if (tokeniser.toString().matches("hush!*"))
+		final String sender = m.getChannel() != null ? m.getChannel() : m.getNick();
+
+		if (c.getText().matches("hush!*"))
 		{
-			synchronized (hushedTargets)
-			{
-				hushedTargets.add(sender);
-			}
+			hushedTargets.add(sender);
 		}
-		else if (tokeniser.toString().matches("speak!*"))
+		else if (c.getText().matches("speak!*"))
 		{
-			synchronized (hushedTargets)
-			{
-				hushedTargets.remove(sender);
-			}
+			hushedTargets.remove(sender);
 		}
 	}
 
 	@Override
 	public OutboundMessage filter(OutboundMessage m)
 	{
-		synchronized (hushedTargets)
+		if (hushedTargets.contains(m.getTarget()))
 		{
-			if (hushedTargets.contains(m.getTarget()))
-			{
-				return null;
-			}
+			return null;
 		}
 		return m;
 	}
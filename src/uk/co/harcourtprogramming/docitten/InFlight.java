@@ -0,0 +1,134 @@
+package uk.co.harcourtprogramming.docitten;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import uk.co.harcourtprogramming.internetrelaycats.RelayCat;
+
+/**
+ * <p>Coalesces concurrent lookups of the same resource</p>
+ * <p>When the same link is pasted into several channels at once, only the
+ * first paste starts a resolver. Later pastes {@link #join(String, RelayCat,
+ * String) join} the lookup that is already in flight, and are sent the same
+ * answer when the resolver {@link #complete(String, List, RelayCat, String)
+ * completes}.</p>
+ * <p>Keys are chosen by the resolvers; link resolvers use the {@link
+ * LinkCache#key(java.net.URI) normalised URI}, Spotify resolvers the spotify:
+ * URI, and Giphy resolvers the search term prefixed with "giphy:".</p>
+ *
+ * @author Benedict Harcourt / javajawa
+ */
+public final class InFlight
+{
+	/**
+	 * <p>The IRC end points waiting on a lookup, other than the one that
+	 * started it, indexed by the lookup's key</p>
+	 */
+	private final static Map<String, List<Waiter>> flights = new HashMap<>(16);
+
+	/**
+	 * <p>An IRC end point waiting for the result of a lookup</p>
+	 */
+	private final static class Waiter
+	{
+		/**
+		 * <p>IRC connection that the query came from</p>
+		 */
+		private final RelayCat mess;
+		/**
+		 * <p>IRC user/channel that the query came from</p>
+		 */
+		private final String target;
+
+		/**
+		 * <p>Creates a new waiter</p>
+		 *
+		 * @param mess IRC connection that the query came from
+		 * @param target IRC user/channel that the query came from
+		 */
+		Waiter(RelayCat mess, String target)
+		{
+			this.mess = mess;
+			this.target = target;
+		}
+	}
+
+	/**
+	 * <p>Private constructor for utility class</p>
+	 */
+	private InFlight()
+	{
+		// Nothing to see here. Move along, citizen!
+	}
+
+	/**
+	 * <p>Joins the lookup for a key, if there is one in flight</p>
+	 * <p>If there is no lookup in flight, one is started for the key, and the
+	 * caller is responsible for running a resolver which will {@link
+	 * #complete(String, List, RelayCat, String) complete} it.</p>
+	 *
+	 * @param key the key for the lookup
+	 * @param mess IRC connection that the query came from
+	 * @param target IRC user/channel that the query came from
+	 * @return true if an existing lookup was joined, false if the caller has
+	 * to start the lookup
+	 */
+	public static boolean join(String key, RelayCat mess, String target)
+	{
+		synchronized (flights)
+		{
+			final List<Waiter> waiters = flights.get(key);
+
+			if (waiters == null)
+			{
+				flights.put(key, new ArrayList<Waiter>(2));
+				return false;
+			}
+
+			waiters.add(new Waiter(mess, target));
+			return true;
+		}
+	}
+
+	/**
+	 * <p>Completes the lookup for a key, sending the result to the end point
+	 * that started it, and to every end point that joined it</p>
+	 * <p>This must be called whether or not the lookup succeeded (with no
+	 * lines if it failed), so that later queries for the key start a new
+	 * lookup. It is safe to call for a key with no lookup in flight, in which
+	 * case only the given end point is sent the result.</p>
+	 *
+	 * @param key the key for the lookup
+	 * @param lines the result of the lookup
+	 * @param mess IRC connection that started the lookup
+	 * @param target IRC user/channel that started the lookup
+	 */
+	public static void complete(String key, List<String> lines, RelayCat mess, String target)
+	{
+		final List<Waiter> waiters;
+
+		synchronized (flights)
+		{
+			waiters = flights.remove(key);
+		}
+
+		for (String line : lines)
+		{
+			mess.message(target, line);
+		}
+
+		if (waiters == null)
+		{
+			return;
+		}
+
+		for (Waiter w : waiters)
+		{
+			for (String line : lines)
+			{
+				w.mess.message(w.target, line);
+			}
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package uk.co.harcourtprogramming.docitten;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.regex.Matcher;
@@ -16,7 +18,7 @@ import uk.co.harcourtprogramming.mewler.MessageTokeniser;
  *
  * @author Benedict Harcourt / javajawa
  */
-public class KittenService extends Service implements MessageService
+public class KittenService extends Service implements MessageService, CommandService
 {
 
 	/**
@@ -44,10 +46,42 @@ public class KittenService extends Service implements MessageService
 			Pattern.CASE_INSENSITIVE
 		);
 
+	/**
+	 * <p>Words that every match of {@link #kitten} contains</p>
+	 */
+	private static final String[] KITTEN_TRIGGERS = {"kitt", "cat", "tiger", "tigger"};
+	/**
+	 * <p>Pairs of letters that every match of {@link #mewls} contains: the
+	 * first 'w' of a mewl always follows an 'e', 'i', 'r', 'o' or 'a'</p>
+	 */
+	private static final String[] MEWL_TRIGGERS = {"ew", "iw", "rw", "ow", "aw", "ny"};
+	/**
+	 * <p>Words that every match of {@link #attention} contains</p>
+	 */
+	private static final String[] ATTENTION_TRIGGERS = {
+		"scritch", "skritch", "strokes", "pets", "cud", "paws", "hugs",
+		"feeds", "greets", "nuz", "dangles", "gives"
+	};
+	/**
+	 * <p>All the words that the service needs to see lines for, including
+	 * the 'play' command</p>
+	 */
+	private static final String[] TRIGGERS = triggers("play");
+
 	/**
 	 * <p>Entropy source for randomised responses</p>
 	 */
 	private final Random r;
+	/**
+	 * <p>Whether lines are being passed to this service by a {@link
+	 * MessageRouter}</p>
+	 */
+	private volatile boolean routed = false;
+	/**
+	 * <p>Router for finding trigger words when there is no shared router;
+	 * it calls this service directly, never through a mailbox</p>
+	 */
+	private final MessageRouter local = new MessageRouter(false);
 
 	/**
 	 * <p>Creates an instance the kitten service</p>
@@ -68,20 +102,42 @@ public class KittenService extends Service implements MessageService
 		this.r = r;
 	}
 
+	/**
+	 * @param extra extra words to include
+	 * @return all the trigger words of the service
+	 */
+	private static String[] triggers(String... extra)
+	{
+		final List<String> words = new ArrayList<>();
+
+		words.addAll(Arrays.asList(KITTEN_TRIGGERS));
+		words.addAll(Arrays.asList(MEWL_TRIGGERS));
+		words.addAll(Arrays.asList(ATTENTION_TRIGGERS));
+		words.addAll(Arrays.asList(extra));
+
+		return words.toArray(new String[words.size()]);
+	}
+
 	@Override
 	public void handle(Message m)
+	{
+		if (!routed)
+		{
+			local.handle(m);
+		}
+	}
+
+	@Override
+	public void handle(Message m, Command c)
 	{
 		final String mess = m.getMessage();
 
-		if (m.getChannel() == null || m.getMessage().startsWith(m.getNick()))
+		if (c.is("play"))
 		{
-			MessageTokeniser token = new MessageTokeniser(m.getMessage());
+			MessageTokeniser token = new MessageTokeniser(c.getArgs());
 			token.setConsumeWhitespace(true);
 
-			token.consume(m.getNick());
-			token.consume(":");
-
-			if (token.consume("play with"))
+			if (token.consume("with"))
 			{
 				String nick = token.nextToken(' ');
 				String chan = m.getChannel();
@@ -109,7 +165,8 @@ public class KittenService extends Service implements MessageService
 			}
 		}
 
-		if (m.isAction() && mess.toLowerCase().contains(m.getNick().toLowerCase()))
+		if (m.isAction() && c.hasTrigger(ATTENTION_TRIGGERS)
+			&& mess.toLowerCase().contains(m.getNick().toLowerCase()))
 		{
 			Matcher attentionMatcher = attention.matcher(mess);
 			if (attentionMatcher.find())
@@ -127,16 +184,22 @@ public class KittenService extends Service implements MessageService
 		StringBuilder reply = new StringBuilder(100);
 
 		// Find things we need to mewl at
-		Matcher kittenMatcher = kitten.matcher(mess);
-		while (kittenMatcher.find())
+		if (c.hasTrigger(KITTEN_TRIGGERS))
 		{
-			reply.append(mewl()).append(' ');
+			Matcher kittenMatcher = kitten.matcher(mess);
+			while (kittenMatcher.find())
+			{
+				reply.append(mewl()).append(' ');
+			}
 		}
 
-		Matcher mewlsMatcher = mewls.matcher(mess);
-		while (mewlsMatcher.find())
+		if (c.hasTrigger(MEWL_TRIGGERS))
 		{
-			reply.append(mewl()).append(' ');
+			Matcher mewlsMatcher = mewls.matcher(mess);
+			while (mewlsMatcher.find())
+			{
+				reply.append(mewl()).append(' ');
+			}
 		}
 
 		if (reply.length() != 0)
@@ -214,6 +277,13 @@ public class KittenService extends Service implements MessageService
 	@Override
 	protected void startup(RelayCat r)
 	{
+		routed = MessageRouter.registerTriggers(r, this, TRIGGERS);
+
+		if (!routed)
+		{
+			local.registerTriggers(this, TRIGGERS);
+		}
+
 		List<HelpService> helpServices = r.getServicesByClass(HelpService.class);
 
 		if (!helpServices.isEmpty())
@@ -0,0 +1,442 @@
+package uk.co.harcourtprogramming.docitten;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>In-process cache of link lookups</p>
+ * <p>The same links tend to get pasted over and over again; rather than
+ * walking the redirect chain and scraping the title every time, the result
+ * of a lookup is stored against the normalised form of the original link.
+ * Entries expire after a fixed time to live, and the least recently used
+ * entries are evicted once the cache is full.</p>
+ * <p>Two caches are shared by the link resolvers:</p>
+ * <ul>
+ *  <li>the {@link #getShared() resolved cache}, of {@link Entry meta-data}
+ * for links which worked, and</li>
+ *  <li>the {@link #getFailures() failure cache}, of {@link Failure failures}.
+ * A broken link which keeps getting pasted would otherwise cost a DNS lookup,
+ * TLS handshake, or redirect walk every time. Links which gave an error
+ * status or got stuck in a redirect loop are remembered, along with the
+ * message (if any) that was sent about them, as are {@link
+ * #hostKey(java.lang.String) hosts} which do not exist or do not have a valid
+ * certificate, for which no link on that host is looked up. These have a
+ * shorter time to live, so that a host which comes back (or a page which gets
+ * fixed) is noticed.</li>
+ * </ul>
+ * <p>These are configured with the system properties:</p>
+ * <ul>
+ *  <li><code>LinkCache.Size</code> - number of resolved links (default
+ * 256)</li>
+ *  <li><code>LinkCache.TTL</code> - time to live of a resolved link, in
+ * seconds (default 3600)</li>
+ *  <li><code>LinkCache.Failures.Size</code> - number of failed links and
+ * hosts (default 512)</li>
+ *  <li><code>LinkCache.Failures.TTL</code> - time to live of a failure, in
+ * seconds (default 300)</li>
+ * </ul>
+ *
+ * @param <V> the type of the cached values
+ * @author Benedict Harcourt / javajawa
+ */
+public class LinkCache<V>
+{
+	/**
+	 * <p>Default number of entries in the shared cache</p>
+	 */
+	private final static int DEFAULT_SIZE = 256;
+	/**
+	 * <p>Default time to live of an entry in the shared cache, in seconds</p>
+	 */
+	private final static int DEFAULT_TTL = 3600;
+	/**
+	 * <p>Default number of entries in the shared failure cache</p>
+	 */
+	private final static int DEFAULT_FAILURES_SIZE = 512;
+	/**
+	 * <p>Default time to live of an entry in the shared failure cache, in
+	 * seconds</p>
+	 */
+	private final static int DEFAULT_FAILURES_TTL = 300;
+
+	/**
+	 * <p>Lazy holder for the shared cache, so that the system properties are
+	 * read when it is first used</p>
+	 */
+	private final static class Holder
+	{
+		/**
+		 * <p>The shared cache</p>
+		 */
+		private final static LinkCache<Entry> SHARED = new LinkCache<>(
+			Math.max(1, Integer.getInteger("LinkCache.Size", DEFAULT_SIZE)),
+			Math.max(0, Integer.getInteger("LinkCache.TTL", DEFAULT_TTL)) * 1000L
+		);
+	}
+
+	/**
+	 * <p>Lazy holder for the shared failure cache</p>
+	 */
+	private final static class FailuresHolder
+	{
+		/**
+		 * <p>The shared failure cache</p>
+		 */
+		private final static LinkCache<Failure> SHARED = new LinkCache<>(
+			Math.max(1, Integer.getInteger("LinkCache.Failures.Size", DEFAULT_FAILURES_SIZE)),
+			Math.max(0, Integer.getInteger("LinkCache.Failures.TTL", DEFAULT_FAILURES_TTL)) * 1000L
+		);
+	}
+
+	/**
+	 * <p>Meta-data about a resolved link</p>
+	 */
+	public final static class Entry
+	{
+		/**
+		 * <p>The final URL, after redirects were followed</p>
+		 */
+		private final String url;
+		/**
+		 * <p>The host of the final URL</p>
+		 */
+		private final String host;
+		/**
+		 * <p>The mime type of the resource</p>
+		 */
+		private final String mime;
+		/**
+		 * <p>The size of the resource, or -1 if not known</p>
+		 */
+		private final long size;
+		/**
+		 * <p>The decoded title of the page, or null if the resource is not a
+		 * page</p>
+		 */
+		private final String title;
+
+		/**
+		 * <p>Creates a new cache entry</p>
+		 *
+		 * @param url the final URL, after redirects were followed
+		 * @param host the host of the final URL
+		 * @param mime the mime type of the resource
+		 * @param size the size of the resource, or -1 if not known
+		 * @param title the decoded title of the page, or null if the resource
+		 * is not a page
+		 */
+		public Entry(String url, String host, String mime, long size, String title)
+		{
+			this.url   = url;
+			this.host  = host;
+			this.mime  = mime;
+			this.size  = size;
+			this.title = title;
+		}
+
+		/**
+		 * @return the final URL, after redirects were followed
+		 */
+		public String getUrl()
+		{
+			return url;
+		}
+
+		/**
+		 * @return the host of the final URL
+		 */
+		public String getHost()
+		{
+			return host;
+		}
+
+		/**
+		 * @return the mime type of the resource
+		 */
+		public String getMime()
+		{
+			return mime;
+		}
+
+		/**
+		 * @return the size of the resource, or -1 if not known
+		 */
+		public long getSize()
+		{
+			return size;
+		}
+
+		/**
+		 * @return the decoded title of the page, or null if the resource is
+		 * not a page
+		 */
+		public String getTitle()
+		{
+			return title;
+		}
+	}
+
+	/**
+	 * <p>A remembered failure</p>
+	 */
+	public final static class Failure
+	{
+		/**
+		 * <p>A failure which nothing was said about</p>
+		 */
+		public final static Failure SILENT = new Failure(null);
+
+		/**
+		 * <p>The message sent about the failure, or null if nothing was
+		 * said</p>
+		 */
+		private final String reply;
+
+		/**
+		 * <p>Creates a new failure</p>
+		 *
+		 * @param reply the message sent about the failure, or null
+		 */
+		public Failure(String reply)
+		{
+			this.reply = reply;
+		}
+
+		/**
+		 * @return the message sent about the failure, or null if nothing was
+		 * said
+		 */
+		public String getReply()
+		{
+			return reply;
+		}
+	}
+
+	/**
+	 * <p>A cached value, and when it stops being valid</p>
+	 *
+	 * @param <V> the type of the value
+	 */
+	private final static class Slot<V>
+	{
+		/**
+		 * <p>The cached value</p>
+		 */
+		private final V value;
+		/**
+		 * <p>When this value stops being valid</p>
+		 */
+		private final long expires;
+
+		/**
+		 * <p>Creates a new slot</p>
+		 *
+		 * @param value the cached value
+		 * @param expires when the value stops being valid
+		 */
+		Slot(V value, long expires)
+		{
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * <p>Gets the cache of resolved links shared by all link resolvers</p>
+	 *
+	 * @return the shared cache
+	 */
+	public static LinkCache<Entry> getShared()
+	{
+		return Holder.SHARED;
+	}
+
+	/**
+	 * <p>Gets the cache of failed links and hosts shared by all link
+	 * resolvers</p>
+	 *
+	 * @return the shared failure cache
+	 */
+	public static LinkCache<Failure> getFailures()
+	{
+		return FailuresHolder.SHARED;
+	}
+
+	/**
+	 * <p>Creates the key for a host</p>
+	 * <p>Host keys have no scheme, so can never clash with the {@link
+	 * #key(java.net.URI) keys for links}.</p>
+	 *
+	 * @param host the host name
+	 * @return the key for the host
+	 */
+	public static String hostKey(String host)
+	{
+		return "//" + host.toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * <p>Normalises a URI into a cache key</p>
+	 * <p>The scheme and host are lower-cased, default ports and fragments are
+	 * removed, dot segments in the path are resolved, and an empty path
+	 * becomes '/'.</p>
+	 *
+	 * @param uri the URI to normalise
+	 * @return the cache key for the URI
+	 */
+	public static String key(URI uri)
+	{
+		final URI n = uri.normalize();
+
+		if (n.getHost() == null)
+		{
+			return n.toString();
+		}
+
+		final String scheme = n.getScheme() == null ? "http" : n.getScheme().toLowerCase(Locale.ENGLISH);
+		final String path = n.getRawPath();
+		int port = n.getPort();
+
+		if ((port == 80 && "http".equals(scheme)) || (port == 443 && "https".equals(scheme)))
+		{
+			port = -1;
+		}
+
+		final StringBuilder key = new StringBuilder(uri.toString().length() + 8);
+
+		key.append(scheme).append("://").append(n.getHost().toLowerCase(Locale.ENGLISH));
+
+		if (port != -1)
+		{
+			key.append(':').append(port);
+		}
+
+		key.append(path == null || path.isEmpty() ? "/" : path);
+
+		if (n.getRawQuery() != null)
+		{
+			key.append('?').append(n.getRawQuery());
+		}
+
+		return key.toString();
+	}
+
+	/**
+	 * <p>The cached entries, in least-recently-used order</p>
+	 */
+	private final LinkedHashMap<String, Slot<V>> entries;
+	/**
+	 * <p>Time to live for each entry, in milliseconds</p>
+	 */
+	private final long ttl;
+	/**
+	 * <p>Number of lookups that found a valid entry</p>
+	 */
+	private final AtomicLong hits = new AtomicLong();
+	/**
+	 * <p>Number of lookups that did not find a valid entry</p>
+	 */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * <p>Creates a new link cache</p>
+	 *
+	 * @param maxEntries the maximum number of entries
+	 * @param ttl the time to live of each entry, in milliseconds
+	 */
+	public LinkCache(final int maxEntries, long ttl)
+	{
+		this.ttl = ttl;
+		this.entries = new LinkedHashMap<String, Slot<V>>(Math.min(maxEntries, 64), 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Slot<V>> eldest)
+			{
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * <p>Gets the value for a key, if there is a valid one</p>
+	 *
+	 * @param key the {@link #key(java.net.URI) normalised} link, or {@link
+	 * #hostKey(java.lang.String) host}
+	 * @return the value, or null if there is no valid value
+	 */
+	public V get(String key)
+	{
+		final long now = System.currentTimeMillis();
+		Slot<V> e;
+
+		synchronized (entries)
+		{
+			e = entries.get(key);
+
+			if (e != null && e.expires <= now)
+			{
+				entries.remove(key);
+				e = null;
+			}
+		}
+
+		if (e == null)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+
+		hits.incrementAndGet();
+		return e.value;
+	}
+
+	/**
+	 * <p>Stores a value in the cache</p>
+	 *
+	 * @param key the {@link #key(java.net.URI) normalised} link, or {@link
+	 * #hostKey(java.lang.String) host}
+	 * @param value the value to store
+	 */
+	public void put(String key, V value)
+	{
+		final Slot<V> e = new Slot<>(value, System.currentTimeMillis() + ttl);
+
+		synchronized (entries)
+		{
+			entries.put(key, e);
+		}
+	}
+
+	/**
+	 * @return the number of lookups that found a valid entry
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of lookups that did not find a valid entry
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of entries in the cache (including any that have
+	 * expired but not yet been removed)
+	 */
+	public int size()
+	{
+		synchronized (entries)
+		{
+			return entries.size();
+		}
+	}
+}
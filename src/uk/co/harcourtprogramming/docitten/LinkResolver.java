@@ -1,39 +1,40 @@
 package uk.co.harcourtprogramming.docitten;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Pattern;
 import javax.net.ssl.SSLHandshakeException;
-import uk.co.harcourtprogramming.docitten.utility.HtmlEntities;
+import uk.co.harcourtprogramming.docitten.utility.TitleScanner;
 import uk.co.harcourtprogramming.internetrelaycats.RelayCat;
 import uk.co.harcourtprogramming.logging.LogDecorator;
 
 /**
  * <p>Recursive URL retriever</p>
+ * <p>By default, redirects are followed with HEAD requests, and the final URL
+ * is then fetched with a GET. If the system property
+ * <code>LinkService.Walk</code> is set to <code>get</code>, every hop is made
+ * with a GET instead, and the final hop's response is read directly, saving a
+ * round trip per lookup (at the cost of servers starting to send the bodies
+ * of redirects).</p>
+ * <p>Each request must be allowed by the {@link HostGuard}; links to hosts
+ * which are being flooded or are failing are silently dropped. Links and
+ * hosts which could not be resolved are remembered in the {@link
+ * LinkCache#getFailures() failure cache} for a while, so that pasting them
+ * again does not cause any network traffic.</p>
  *
  * @author Benedict Harcourt / javajawa
  */
-public class LinkResolver extends Thread
+public class LinkResolver implements Runnable
 {
 
-	/**
-	 * <p>Thread group for running link resolvers in</p>
-	 */
-	private final static ThreadGroup THREAD_GROUP = new ThreadGroup("LinkResolvers")
-	{
-		@Override
-		public void uncaughtException(Thread t, Throwable e)
-		{
-			LOG.uncaught(t, e);
-		}
-	};
 	/**
 	 * <p>Logger shared with {@link LinkService} and with all other LinkResolver
 	 * instances</p>
@@ -47,12 +48,14 @@ public class LinkResolver extends Thread
 	private final static Pattern PROTOCOL = Pattern.compile("^https?://.+");
 	/**
 	 * <p>Max time to wait for any one hop before giving up</p>
+	 * <p>Shared with the {@link AsyncLinkResolver}</p>
 	 */
-	private final static int TIMEOUT = 2000;
+	final static int TIMEOUT = 2000;
 	/**
 	 * <p>The maximum number of redirects to follow</p>
+	 * <p>Shared with the {@link AsyncLinkResolver}</p>
 	 */
-	private final static int MAX_HOPS = 5;
+	final static int MAX_HOPS = 5;
 	/**
 	 * <p>Letters for binary prefixes</p>
 	 * <p>kilo, mega, giga, terra, pera, exa, zetta, yotta, hella</p>
@@ -64,6 +67,36 @@ public class LinkResolver extends Thread
 	 * <p>ln(ratio between any two prefixes)</p>
 	 */
 	private final static double UNIT_SIZE = Math.log(1024);
+	/**
+	 * <p>Default number of bytes of a page to read whilst looking for the
+	 * title</p>
+	 */
+	private final static int DEFAULT_TITLE_BUDGET = 65536;
+	/**
+	 * <p>Title scanner for each worker thread, so that its buffers are reused
+	 * from page to page</p>
+	 * <p>The number of bytes read from each page is set by the system
+	 * property <code>LinkService.TitleBudget</code></p>
+	 */
+	private final static ThreadLocal<TitleScanner> SCANNER = new ThreadLocal<TitleScanner>()
+	{
+		@Override
+		protected TitleScanner initialValue()
+		{
+			return new TitleScanner(titleBudget());
+		}
+	};
+
+	/**
+	 * <p>Gets the number of bytes of a page to read whilst looking for its
+	 * title</p>
+	 *
+	 * @return the value of <code>LinkService.TitleBudget</code>
+	 */
+	static int titleBudget()
+	{
+		return Math.max(1024, Integer.getInteger("LinkService.TitleBudget", DEFAULT_TITLE_BUDGET));
+	}
 
 	/**
 	 * <p>Converts a byte count into a 1dp figure of &lt;kMG...&gt;iB
@@ -86,6 +119,11 @@ public class LinkResolver extends Thread
 	 * <p>The original URI that we are retrieving</p>
 	 */
 	private final URI baseURI;
+	/**
+	 * <p>The {@link LinkCache#key(java.net.URI) normalised} form of the URI,
+	 * used for caching and {@link InFlight coalescing} lookups</p>
+	 */
+	private final String key;
 	/**
 	 * <p>IRC connection that the query came from</p>
 	 */
@@ -99,6 +137,7 @@ public class LinkResolver extends Thread
 	 * <p>Creates a link resolver instance, targeted at a specified web address,
 	 * which will attempt to send information to a IRC end point via a RelayCat
 	 * instance</p>
+	 * <p>The resolver is run by submitting it to the {@link WorkerPool}</p>
 	 *
 	 * @param baseURI the link we're following
 	 * @param mess IRC connection that the query came from
@@ -106,7 +145,6 @@ public class LinkResolver extends Thread
 	 */
 	public LinkResolver(String baseURI, RelayCat mess, String target)
 	{
-		super(THREAD_GROUP, "LinkResolver [" + baseURI + ']');
 		if (!PROTOCOL.matcher(baseURI).matches())
 		{
 			this.baseURI = URI.create("http://" + baseURI);
@@ -116,17 +154,73 @@ public class LinkResolver extends Thread
 			this.baseURI = URI.create(baseURI);
 		}
 
+		this.key = LinkCache.key(this.baseURI);
 		this.mess = mess;
 		this.target = target;
-		setDaemon(true);
+	}
+
+	/**
+	 * <p>Gets the key used for caching and coalescing this lookup</p>
+	 *
+	 * @return the normalised URI
+	 */
+	public String getKey()
+	{
+		return key;
 	}
 
 	/**
 	 * <p>Runs this LinkResolver</p>
+	 * <p>The result is sent to the IRC end point that asked for it, and to any
+	 * that {@link InFlight#join(String, RelayCat, String) joined} the lookup
+	 * while it was running.</p>
 	 */
 	@Override
 	public void run()
 	{
+		final List<String> replies = new ArrayList<>(1);
+
+		try
+		{
+			resolve(replies);
+		}
+		finally
+		{
+			InFlight.complete(key, replies, mess, target);
+		}
+	}
+
+	/**
+	 * <p>Resolves the link, from the cache if possible</p>
+	 *
+	 * @param replies list to add the messages to send to IRC to
+	 */
+	private void resolve(List<String> replies)
+	{
+		final LinkCache<LinkCache.Entry> cache = LinkCache.getShared();
+		final LinkCache.Entry cached = cache.get(key);
+
+		if (cached != null)
+		{
+			LOG.fine("Cache hit for {0}", key);
+			replies.add(describe(cached));
+			return;
+		}
+
+		final LinkCache<LinkCache.Failure> failures = LinkCache.getFailures();
+		final LinkCache.Failure failed = failures.get(key);
+
+		if (failed != null)
+		{
+			LOG.fine("Negative cache hit for {0}", key);
+
+			if (failed.getReply() != null)
+			{
+				replies.add(failed.getReply());
+			}
+			return;
+		}
+
 		URL curr;
 		try
 		{
@@ -137,6 +231,11 @@ public class LinkResolver extends Thread
 			throw new RuntimeException(ex);
 		}
 
+		// In GET mode, the final hop's response is the page itself, and the
+		// separate fetch of its data is skipped
+		final boolean walkWithGet = "get".equalsIgnoreCase(System.getProperty("LinkService.Walk"));
+		final HostGuard guard = HostGuard.getShared();
+		LinkCache.Entry entry = null;
 		HttpURLConnection conn;
 		boolean resolved = false;
 		int hops = 0;
@@ -145,23 +244,39 @@ public class LinkResolver extends Thread
 		{
 			int statusCode;
 
+			if (failures.get(LinkCache.hostKey(curr.getHost())) != null)
+			{
+				LOG.fine("Host {0} failed recently [lookup of {1}]", curr.getHost(), baseURI.toString());
+				return;
+			}
+
+			if (!guard.acquire(curr.getHost()))
+			{
+				LOG.fine("Host {0} is rate limited or failing [lookup of {1}]", curr.getHost(), baseURI.toString());
+				return;
+			}
+
 			try
 			{
-				conn = createConnection(curr);
+				conn = HttpConnections.open(curr, walkWithGet ? "GET" : "HEAD", TIMEOUT, TIMEOUT);
 				conn.connect();
 				statusCode = conn.getResponseCode();
 			}
 			catch (UnknownHostException ex)
 			{
+				guard.failure(curr.getHost());
+				failures.put(LinkCache.hostKey(curr.getHost()), LinkCache.Failure.SILENT);
 				LOG.fine("Host {0} not found [lookup of {1}]", curr.getHost(), baseURI.toString());
 				return;
 			}
 			catch (SSLHandshakeException ex)
 			{
+				guard.failure(curr.getHost());
 				final Throwable inner = ex.getCause();
 
 				if (inner instanceof java.security.cert.CertificateException)
 				{
+					failures.put(LinkCache.hostKey(curr.getHost()), LinkCache.Failure.SILENT);
 					LOG.fine("No cerficiate {0} not found [lookup of {1}]", curr.getHost(), baseURI.toString());
 					return;
 				}
@@ -176,8 +291,18 @@ public class LinkResolver extends Thread
 			}
 			catch (IOException ex)
 			{
+				guard.failure(curr.getHost());
 				throw new RuntimeException(ex);
 			}
+			catch (RuntimeException ex)
+			{
+				// e.g. a redirect to something other than HTTP(S)
+				guard.release(curr.getHost());
+				throw ex;
+			}
+
+			guard.report(curr.getHost(), statusCode);
+			String location = null;
 
 			switch (statusCode)
 			{
@@ -195,21 +320,35 @@ public class LinkResolver extends Thread
 				case HttpURLConnection.HTTP_MOVED_TEMP:
 				case HttpURLConnection.HTTP_MULT_CHOICE:
 				case HttpURLConnection.HTTP_SEE_OTHER:
-					if (conn.getHeaderField("Location") == null)
-					{
-						return;
-					}
-
-					curr = resolveLocation(curr, conn.getHeaderField("Location"));
+					location = conn.getHeaderField("Location");
 					break;
+			}
 
-				default:
-					return;
+			if (resolved && walkWithGet)
+			{
+				entry = readData(curr, conn);
+				break;
 			}
 
-			conn.disconnect();
+			// Hand the connection back before following the redirect, so
+			// that the next hop (or the GET) can re-use it
+			HttpConnections.release(conn);
 
-			if (interrupted())
+			if (!resolved)
+			{
+				if (location == null)
+				{
+					if (statusCode >= HttpURLConnection.HTTP_BAD_REQUEST)
+					{
+						failures.put(key, LinkCache.Failure.SILENT);
+					}
+					return;
+				}
+
+				curr = resolveLocation(curr, location);
+			}
+
+			if (Thread.currentThread().isInterrupted())
 			{
 				return;
 			}
@@ -222,83 +361,98 @@ public class LinkResolver extends Thread
 
 		if (hops == MAX_HOPS)
 		{
-			mess.message(target, String.format(
+			final String line = String.format(
 				"[%s] (Unresolved after %d hops)", curr.getHost(), MAX_HOPS
-			));
+			);
+
+			failures.put(key, new LinkCache.Failure(line));
+			replies.add(line);
 			return;
 		}
 
-		fetchData(curr);
+		if (entry == null)
+		{
+			entry = fetchData(curr);
+
+			if (entry == null)
+			{
+				return;
+			}
+		}
+
+		cache.put(key, entry);
+		replies.add(describe(entry));
 	}
 
 	/**
-	 * <p>Creates an HttpURLConnection to a URL</p>
-	 * <p>The connection is set up to:</p>
-	 * <ul>
-	 *	<li>Not follow redirects (prevents loops)</li>
-	 *  <li>Perform only a head request</li>
-	 *  <li>Timeout after {@link #TIMEOUT}ms on both connect and read</li>
-	 * </ul>
-	 * @param url the target URL
-	 * @return an ready, but unsent, connection to the URL
-	 * @throws IOException
+	 * <p>Fetches some simple meta-data about a URL</p>
+	 * <p>The resource is accessed with a GET request, not following re-directs,
+	 * and the response {@link #readData(URL, HttpURLConnection) read}.</p>
+	 * @param url the resource to get meta-data for
+	 * @return the meta-data for the resource, or null if the {@link HostGuard}
+	 * refused the request
+	 * @throws RuntimeException on any IO error (caught by the {@link
+	 * WorkerPool})
 	 */
-	private HttpURLConnection createConnection(URL url) throws IOException
+	private LinkCache.Entry fetchData(URL url)
 	{
-		HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+		final HostGuard guard = HostGuard.getShared();
+		final HttpURLConnection conn;
 
-		conn.setInstanceFollowRedirects(false);
-		conn.setRequestMethod("HEAD");
-		conn.setConnectTimeout(TIMEOUT);
-		conn.setReadTimeout(TIMEOUT);
+		if (!guard.acquire(url.getHost()))
+		{
+			LOG.fine("Host {0} is rate limited or failing [lookup of {1}]", url.getHost(), baseURI.toString());
+			return null;
+		}
 
-		return conn;
+		try
+		{
+			conn = HttpConnections.open(url, "GET", TIMEOUT, TIMEOUT);
+			conn.connect();
+			guard.report(url.getHost(), conn.getResponseCode());
+		}
+		catch (IOException ex)
+		{
+			guard.failure(url.getHost());
+			throw new RuntimeException(ex);
+		}
+		catch (RuntimeException ex)
+		{
+			guard.release(url.getHost());
+			throw ex;
+		}
+
+		return readData(url, conn);
 	}
 
 	/**
-	 * <p>Fetches some simple meta-data about a URL</p>
-	 * <p>The resource is accessed with a GET request, not following re-directs.
-	 * The Content-type is examined; (x)html-like files are searched for a
-	 * {@link #getTitle(java.io.InputStream) title element}. For other types,
-	 * the mime type and seize are sent in lieu of a title.</p>
-	 * @param url the resource to get meta-data for
-	 * @throws RuntimeException on any IO error (caught in {@link #THREAD_GROUP
-	 * the thread group})
+	 * <p>Reads some simple meta-data from the response to a GET request</p>
+	 * <p>The Content-type is examined; (x)html-like files are searched for a
+	 * {@link #getTitle(java.io.InputStream, java.nio.charset.Charset) title
+	 * element}, and the rest of the page is not read. For other types, the
+	 * mime type and size are recorded in lieu of a title. The connection is
+	 * released once done with.</p>
+	 * @param url the resource the response is for
+	 * @param conn the connected GET request
+	 * @return the meta-data for the resource
+	 * @throws RuntimeException on any IO error (caught by the {@link
+	 * WorkerPool})
 	 */
-	private void fetchData(URL url)
+	private LinkCache.Entry readData(URL url, HttpURLConnection conn)
 	{
 		try
 		{
-			HttpURLConnection conn = (HttpURLConnection)url.openConnection();
-			conn.setRequestMethod("GET");
-			conn.setInstanceFollowRedirects(false);
-			conn.connect();
+			final String type = conn.getContentType();
+			String title = null;
 
-			String mime = conn.getContentType();
-			if (mime == null)
+			if (isPage(type))
 			{
-				mime = "";
+				title = getTitle(conn.getInputStream(), TitleScanner.charsetOf(type));
 			}
 
-			mime = mime.split(";")[0];
+			HttpConnections.release(conn);
 
-			if (conn.getContentType().matches("(text/.+|.+xhtml.+)"))
-			{
-				mess.message(target, String.format("[%s] %s", url.getHost(), getTitle(conn.getInputStream())));
-			}
-			else
-			{
-				if (conn.getContentLength() == -1)
-				{
-					mess.message(target,
-						String.format("[%s] %s (size unknown)", url.getHost(), mime));
-				}
-				else
-				{
-					mess.message(target, String.format("[%s] %s %s", url.getHost(), mime,
-						humanReadableByteCount(conn.getContentLength())));
-				}
-			}
+			return entry(url, type, conn.getContentLengthLong(), title);
 		}
 		catch (IOException ex)
 		{
@@ -307,190 +461,83 @@ public class LinkResolver extends Thread
 	}
 
 	/**
-	 * <p>Searches for a &lt;title&gt; element in a stream</p>
-	 * @param stream source data
-	 * @return the title, or "[No Title Set]" is none is found
-	 * @throws IOException
+	 * <p>Tests whether a resource is a page which should be searched for a
+	 * title</p>
+	 * @param type the Content-Type of the resource (may be null)
+	 * @return whether the resource is (x)html-like
 	 */
-	private String getTitle(InputStream stream) throws IOException
+	static boolean isPage(String type)
 	{
-		BufferedReader pageData =
-			new BufferedReader(new InputStreamReader(stream));
-
-		String line;
-
-		boolean reading = false;
-		int titleTagLength = "<title".length();
+		return type != null && type.matches("(text/.+|.+xhtml.+)");
+	}
 
-		String title = "[No Title Set]";
+	/**
+	 * <p>Creates the cache entry for a resource</p>
+	 * @param url the final URL of the resource
+	 * @param type the Content-Type of the resource (may be null)
+	 * @param size the size of the resource, or -1 if not known
+	 * @param title the title, if the resource {@link #isPage(String) is a
+	 * page}, otherwise null
+	 * @return the meta-data for the resource
+	 */
+	static LinkCache.Entry entry(URL url, String type, long size, String title)
+	{
+		final String mime = type == null ? "" : type.split(";")[0];
 
-		// Variables to be used in tag parsing.
-		// TODO: move tag parsing to own function
-		int nextQuotePosition;
-		int nextSingleQuotePosition;
-		int nextDoubleQuotePosition;
-		int nextCloseTagPosition;
-		int escapeCount;
-		String nextLine;
-		char quoteToMatch;
+		return new LinkCache.Entry(url.toExternalForm(), url.getHost(), mime, size, title);
+	}
 
-		endofdata:
-		while (true)
+	/**
+	 * <p>Formats the meta-data for a link into the message sent to IRC</p>
+	 * <p>Pages are shown as their host and title; other types of resource
+	 * get their host, mime type, and size.</p>
+	 * @param entry the meta-data for the link
+	 * @return the message to send
+	 */
+	static String describe(LinkCache.Entry entry)
+	{
+		if (entry.getTitle() != null)
 		{
-			line = pageData.readLine();
-			if (line == null)
-			{
-				break;
-			}
-
-			// If this line contains a title tag (but not both <title and <TITLE)
-			if (line.contains("<title") ^ line.contains("<TITLE"))
-			{
-				// Find where the title tag is. Math.max is used as the
-				// tag which does not exist will return -1.
-				nextCloseTagPosition = Math.max(
-					line.indexOf("<TITLE"),
-					line.indexOf("<title")
-				);
-
-				// Consume all data up to the start of the title tag
-				line = line.substring(nextCloseTagPosition + titleTagLength);
-
-				// Whilst we are in the tag itself, we keep processing until
-				// the end is found.
-				while (true)
-				{
-					// First, make sure we have any kind of end tag to match
-					while (line.indexOf(">") == -1)
-					{
-						nextLine = pageData.readLine();
-
-						// If at the end of stream, stop searching for data
-						if (nextLine == null)
-						{
-							break endofdata;
-						}
-
-						line = line + pageData.readLine();
-					}
-
-					// We look for quotes and end tag candidates
-					nextSingleQuotePosition = line.indexOf("\"");
-					nextDoubleQuotePosition = line.indexOf("\'");
-					nextCloseTagPosition = line.indexOf(">");
-
-					if (nextSingleQuotePosition == -1)
-					{
-						nextSingleQuotePosition = line.length() + 1;
-					}
-					if (nextDoubleQuotePosition == -1)
-					{
-						nextDoubleQuotePosition = line.length() + 1;
-					}
-
-					// If the closing tag is first, we're done -- the quote are
-					// from something else.
-					if (
-						nextCloseTagPosition < nextSingleQuotePosition &&
-						nextCloseTagPosition < nextDoubleQuotePosition
-					)
-					{
-						break;
-					}
-
-					// Reset the variables
-					nextQuotePosition = Math.min(nextSingleQuotePosition, nextDoubleQuotePosition);
-					escapeCount = 0;
-
-					// Count the number of escaping slashes
-					while ("\\".equals(line.substring(nextQuotePosition-escapeCount, 1)))
-					{
-						++escapeCount;
-					}
-
-					// Drop the (now processed) part of the string
-					line = line.substring(nextQuotePosition+1);
-
-					// If this quote is not escaped, then we need to find the
-					// matching closing quote
-					if ((escapeCount % 2 == 0))
-					{
-						quoteToMatch = nextSingleQuotePosition < nextDoubleQuotePosition ? '\'' : '"';
-
-						// Search until we find a match
-						while (true)
-						{
-							// Find the next candidate matching quote
-							while (line.indexOf(quoteToMatch) == -1)
-							{
-								nextLine = pageData.readLine();
-
-								// If at the end of stream, stop searching for data
-								if (nextLine == null)
-								{
-									break endofdata;
-								}
-
-								line = line + pageData.readLine();
-							}
-
-							nextQuotePosition = line.indexOf(quoteToMatch);
-							escapeCount = 0;
-
-							// Count the number of escaping slashes
-							while ("\\".equals(line.substring(nextQuotePosition-escapeCount, 1)))
-							{
-								++escapeCount;
-							}
-
-							// Drop the (now processed) data
-							line = line.substring(nextQuotePosition+1);
-
-							// If this is not an escaped quote, we found the
-							// closing quote, and can go back to searching
-							// for the end of the tag.
-							if ((escapeCount % 2) == 0)
-							{
-								break;
-							}
-						}
-					}
-				}
+			return String.format("[%s] %s", entry.getHost(), entry.getTitle());
+		}
 
-				if ( nextCloseTagPosition > -1 )
-				{
-					reading = true;
-					line = line.substring(nextCloseTagPosition + 1);
-					title = "";
-				}
-			}
+		if (entry.getSize() == -1)
+		{
+			return String.format("[%s] %s (size unknown)", entry.getHost(), entry.getMime());
+		}
 
-			if (reading && line.contains("</title>"))
-			{
-				title += line.substring(0, line.indexOf("</title>"));
-				break;
-			}
-			if (reading && line.contains("</TITLE>"))
-			{
-				title += line.substring(0, line.indexOf("</TITLE>"));
-				break;
-			}
+		return String.format("[%s] %s %s", entry.getHost(), entry.getMime(),
+			humanReadableByteCount(entry.getSize()));
+	}
 
-			if (line.contains("</head>") || line.contains("<body")
-			 || line.contains("</HEAD>") || line.contains("<BODY"))
-			{
-				break;
-			}
+	/**
+	 * <p>Searches for a &lt;title&gt; element in a stream</p>
+	 * <p>The stream is always closed once the title has been found (or the
+	 * head of the page has been passed), without reading the rest of the
+	 * page.</p>
+	 * @param stream source data
+	 * @param charset the charset from the Content-Type header, or null
+	 * @return the title, or "[No Title Set]" is none is found
+	 * @throws IOException
+	 */
+	private String getTitle(InputStream stream, Charset charset) throws IOException
+	{
+		try
+		{
+			final String title = SCANNER.get().scan(stream, charset);
 
-			if (reading)
-			{
-				title += line;
-			}
+			return title == null ? "[No Title Set]" : title;
 		}
+		finally
+		{
+			stream.close();
+		}
+	}
 
-		pageData.close();
-
-		return HtmlEntities.decode(title.trim().replaceAll("\\s\\s+", " "));
+	@Override
+	public String toString()
+	{
+		return "LinkResolver [" + baseURI + ']';
 	}
 
 	/**
@@ -501,7 +548,7 @@ public class LinkResolver extends Thread
 	 * @return the resolved URL
 	 * @throws RuntimeException if any URL is malformed
 	 */
-	private URL resolveLocation(URL curr, String location)
+	static URL resolveLocation(URL curr, String location)
 	{
 		try
 		{
@@ -1,10 +1,10 @@
 package uk.co.harcourtprogramming.docitten;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import uk.co.harcourtprogramming.docitten.utility.LinkExtractor;
 import uk.co.harcourtprogramming.internetrelaycats.Message;
 import uk.co.harcourtprogramming.internetrelaycats.MessageService;
 import uk.co.harcourtprogramming.internetrelaycats.RelayCat;
@@ -18,59 +18,45 @@ import uk.co.harcourtprogramming.internetrelaycats.Service;
 public class LinkService extends Service implements MessageService
 {
 	/**
-	 * <p>Links are detected using this regex</p>
-	 * <p>The regex works from detecting a limited subset of the top-level and
-	 * selected other domains as a focal point; by looking for subdomains and
-	 * protocol before, and path, query and location after, the full uris is
-	 * matched.</p>
-	 */
-	private final static Pattern uriPattern =
-		Pattern.compile("(?:^|\\s)\\(?\\[?((?:https?://)?(?:\\w+\\.)*(?:(?:\\w+\\.(com|net|uk|edu))|(?:www|is.gd|bit.ly|t.co))(?::[0-9]+)?(?:/[^\\s\\])]*)?)", Pattern.CASE_INSENSITIVE);
-	/**
-	 * <p>Links will also be matched if they begin with the http or https
-	 * protocols.</p>
-	 * <p>This regex is also used in the {@link LinkResolver} to determine is a
-	 * protocol is present (otherwise http:// will be prefixed)</p>
+	 * <p>Collects the links of one kind from the extracted spans</p>
+	 *
+	 * @param spans the links found in a message
+	 * @param kind the kind of link to collect
+	 * @return the links of that kind (may by empty, but not null)
 	 */
-	private final static Pattern protocolPattern =
-		Pattern.compile("https?://[^\\s\\])\"]+", Pattern.CASE_INSENSITIVE);
+	private static Set<String> collect(LinkExtractor.Spans spans, LinkExtractor.Kind kind)
+	{
+		Set<String> r = Collections.emptySet();
 
-	/**
-	 * <p>Pattern matcher for spotify: uris</p>
-	 */
-	private final static Pattern spotifyUriPattern =
-		Pattern.compile("spotify:[:a-z0-9]+", Pattern.CASE_INSENSITIVE);
+		for (int i = 0; i < spans.size(); ++i)
+		{
+			if (spans.kind(i) == kind)
+			{
+				if (r.isEmpty())
+				{
+					// TreeSet is strongly ordered
+					r = new TreeSet<>();
+				}
+
+				r.add(spans.get(i));
+			}
+		}
 
-	/**
-	 * <p>Pattern matcher for giphy search psuedo-uris</p>
-	 */
-	private final static Pattern giphyUriPattern =
-		Pattern.compile("(gif|giphy):([:a-zA-Z0-9]+|\"[^\"]+\")", Pattern.CASE_INSENSITIVE);
+		return r;
+	}
 
 	/**
 	 * <p>Finds and returns all matched URIs in a given string (message)</p>
+	 * <p>Links are detected by the shared {@link LinkExtractor}, which works
+	 * from detecting a set of top-level and selected other domains as a focal
+	 * point, or from a http or https protocol.</p>
 	 *
 	 * @param message the message to scan for links
 	 * @return the list of links that are found (may by empty, but not null)
 	 */
 	public static Set<String> uris(String message)
 	{
-		// TreeSet is strongly ordered
-		final Set<String> r = new TreeSet<>();
-
-		Matcher m = uriPattern.matcher(message);
-		while (m.find())
-		{
-			r.add(m.group(1));
-		}
-
-		m = protocolPattern.matcher(message);
-		while (m.find())
-		{
-			r.add(m.group());
-		}
-
-		return r;
+		return collect(LinkExtractor.getShared().extract(message), LinkExtractor.Kind.WEB);
 	}
 
 	/**
@@ -81,16 +67,7 @@ public class LinkService extends Service implements MessageService
 	 */
 	public static Set<String> spotifyUris(String message)
 	{
-		// TreeSet is strongly ordered
-		final Set<String> r = new TreeSet<>();
-
-		Matcher m = spotifyUriPattern.matcher(message);
-		while (m.find())
-		{
-			r.add(m.group());
-		}
-
-		return r;
+		return collect(LinkExtractor.getShared().extract(message), LinkExtractor.Kind.SPOTIFY);
 	}
 
 	/**
@@ -101,21 +78,7 @@ public class LinkService extends Service implements MessageService
 	 */
 	public static Set<String> giphyUris(String message)
 	{
-		// TreeSet is strongly ordered
-		final Set<String> r = new TreeSet<>();
-
-		Matcher m = giphyUriPattern.matcher(message);
-		String matched;
-
-		while (m.find())
-		{
-			matched = m.group( 2 );
-			matched = matched.replaceAll("^\"|\"$", "");
-
-			r.add(matched);
-		}
-
-		return r;
+		return collect(LinkExtractor.getShared().extract(message), LinkExtractor.Kind.GIPHY);
 	}
 
 	/**
@@ -129,17 +92,68 @@ public class LinkService extends Service implements MessageService
 	@Override
 	public void handle(Message m)
 	{
-		for (String uri : uris(m.getMessage()))
+		final String target = m.getReplyToAllTarget();
+
+		final LinkExtractor.Spans spans = LinkExtractor.getShared().extract(m.getMessage());
+
+		if (spans.isEmpty())
+		{
+			return;
+		}
+
+		// The spans are re-used by this thread's next extraction, so copy the
+		// links out before doing anything else
+		final Set<String> web = collect(spans, LinkExtractor.Kind.WEB);
+		final Set<String> spotify = collect(spans, LinkExtractor.Kind.SPOTIFY);
+		final Set<String> giphy = collect(spans, LinkExtractor.Kind.GIPHY);
+		final boolean async = "async".equalsIgnoreCase(System.getProperty("LinkService.Engine"));
+
+		for (String uri : web)
+		{
+			if (async)
+			{
+				final AsyncLinkResolver r = new AsyncLinkResolver(uri, m, target);
+				submit(r.getKey(), r, m, target);
+			}
+			else
+			{
+				final LinkResolver r = new LinkResolver(uri, m, target);
+				submit(r.getKey(), r, m, target);
+			}
+		}
+		for (String uri : spotify)
 		{
-			new LinkResolver(uri, m, m.getReplyToAllTarget()).start();
+			final SpotifyLinkResolver r = new SpotifyLinkResolver(uri, m, target);
+			submit(r.getKey(), r, m, target);
 		}
-		for (String uri : spotifyUris(m.getMessage()))
+		for (String uri : giphy)
+		{
+			final GiphyLinkResolver r = new GiphyLinkResolver(uri, m, target);
+			submit(r.getKey(), r, m, target);
+		}
+	}
+
+	/**
+	 * <p>Submits a resolver to the {@link WorkerPool}, unless an identical
+	 * lookup is already {@link InFlight in flight}, in which case the message
+	 * joins that lookup instead</p>
+	 *
+	 * @param key the key of the lookup
+	 * @param resolver the resolver to run if there is no lookup in flight
+	 * @param mess IRC connection that the query came from
+	 * @param target IRC user/channel that the query came from
+	 */
+	private static void submit(String key, Runnable resolver, RelayCat mess, String target)
+	{
+		if (InFlight.join(key, mess, target))
 		{
-			new SpotifyLinkResolver(uri, m, m.getReplyToAllTarget()).start();
+			return;
 		}
-		for (String uri : giphyUris(m.getMessage()))
+
+		if (!WorkerPool.submit(resolver))
 		{
-			new GiphyLinkResolver(uri, m, m.getReplyToAllTarget()).start();
+			// Nothing is going to complete the lookup, so clear it now
+			InFlight.complete(key, Collections.<String>emptyList(), mess, target);
 		}
 	}
 
@@ -1,11 +1,23 @@
 package uk.co.harcourtprogramming.docitten;
 
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormatSymbols;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import uk.co.harcourtprogramming.internetrelaycats.FilterService;
 import uk.co.harcourtprogramming.internetrelaycats.Message;
@@ -16,28 +28,332 @@ import uk.co.harcourtprogramming.internetrelaycats.Service;
 
 /**
  * <p>Service for logging DoCitten's interactions to the file system</p>
+ * <p>Inbound and outbound lines are only put on a queue by the thread that
+ * sees them; the service's own writer thread formats them, and collects
+ * them into a buffer for each log file. A buffer is written out when it
+ * fills, and all of them at a fixed interval, so a burst of lines costs a
+ * few large writes rather than one write and flush per line. The writer is
+ * set up with the system properties, read when the service is loaded:</p>
+ * <ul>
+ *  <li><code>LogService.Buffer</code> - bytes buffered for each log file
+ * (default 32768)</li>
+ *  <li><code>LogService.Flush</code> - milliseconds between writing out the
+ * buffers (default 1000)</li>
+ * </ul>
  *
  * @author Benedict Harcourt / javajawa
  */
-public class LogService extends Service implements MessageService, FilterService
+public class LogService extends Service implements MessageService, CommandService, FilterService
 {
+	/**
+	 * <p>Number of lines waiting which wakes the writer before the flush
+	 * interval is up</p>
+	 */
+	private final static int WAKE = 1024;
+
+	/**
+	 * <p>A line waiting to be written to a log</p>
+	 */
+	private final static class Record
+	{
+		/**
+		 * <p>When the line was seen</p>
+		 */
+		private final long time;
+		/**
+		 * <p>The name of the log to write the line to</p>
+		 */
+		private final String log;
+		/**
+		 * <p>Who sent the line</p>
+		 */
+		private final String nick;
+		/**
+		 * <p>The text of the line</p>
+		 */
+		private final String text;
+
+		/**
+		 * <p>Creates a record</p>
+		 *
+		 * @param time when the line was seen
+		 * @param log the name of the log to write the line to
+		 * @param nick who sent the line
+		 * @param text the text of the line
+		 */
+		Record(long time, String log, String nick, String text)
+		{
+			this.time = time;
+			this.log = log;
+			this.nick = nick;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * <p>An open log file, and the bytes waiting to be written to it</p>
+	 */
+	private final static class Sink
+	{
+		/**
+		 * <p>The log file</p>
+		 */
+		private final FileChannel channel;
+		/**
+		 * <p>The bytes waiting to be written</p>
+		 */
+		private final ByteBuffer buffer;
+
+		/**
+		 * <p>Opens a log file for appending</p>
+		 *
+		 * @param file the log file
+		 * @param size the number of bytes to buffer
+		 * @throws IOException if the file can not be opened
+		 */
+		Sink(File file, int size) throws IOException
+		{
+			this.channel = new FileOutputStream(file, true).getChannel();
+			this.buffer = ByteBuffer.allocate(size);
+		}
+	}
+
+	/**
+	 * <p>Formats queued lines, and writes them out in batches</p>
+	 * <p>All of the state here is only touched by the writer thread.</p>
+	 */
+	private final class Writer implements Runnable
+	{
+		/**
+		 * <p>Open log files, by name</p>
+		 */
+		private final Map<String, Sink> sinks = new HashMap<>(8);
+		/**
+		 * <p>The line being formatted</p>
+		 */
+		private final StringBuilder line = new StringBuilder(256);
+		/**
+		 * <p>Encoder from the formatted line into a buffer</p>
+		 */
+		private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		/**
+		 * <p>Calendar for working out the time of lines</p>
+		 */
+		private final Calendar c = Calendar.getInstance();
+		/**
+		 * <p>Short names of the days of the week</p>
+		 */
+		private final String[] days = DateFormatSymbols.getInstance().getShortWeekdays();
+		/**
+		 * <p>The minute that {@link #stamp} is for</p>
+		 */
+		private long minute = -1;
+		/**
+		 * <p>The formatted time of lines in the current minute</p>
+		 */
+		private String stamp = null;
+
+		@Override
+		public void run()
+		{
+			long deadline = System.nanoTime() + flushInterval;
+
+			try
+			{
+				while (true)
+				{
+					final boolean stopping = !running;
+					Record r;
+
+					pending.set(0);
+					while ((r = queue.poll()) != null)
+					{
+						append(r);
+					}
+
+					if (stopping || System.nanoTime() - deadline >= 0)
+					{
+						flushAll();
+						deadline = System.nanoTime() + flushInterval;
+					}
+
+					if (stopping)
+					{
+						break;
+					}
+
+					if (queue.isEmpty())
+					{
+						LockSupport.parkNanos(this, deadline - System.nanoTime());
+					}
+				}
+			}
+			finally
+			{
+				closeAll();
+			}
+		}
+
+		/**
+		 * <p>Formats a line into the buffer for its log</p>
+		 *
+		 * @param r the line
+		 */
+		private void append(Record r)
+		{
+			Sink sink = sinks.get(r.log);
+
+			if (sink == null)
+			{
+				try
+				{
+					sink = new Sink(new File(dir, r.log), bufferSize);
+				}
+				catch (IOException ex)
+				{
+					log(Level.WARNING, ex);
+					return;
+				}
+
+				sinks.put(r.log, sink);
+			}
+
+			line.setLength(0);
+			line.append('[').append(stamp(r.time)).append(' ').append(r.nick).append("] ")
+				.append(r.text).append('\n');
+
+			final CharBuffer chars = CharBuffer.wrap(line);
+
+			encoder.reset();
+			while (encoder.encode(chars, sink.buffer, true) == CoderResult.OVERFLOW)
+			{
+				flush(sink);
+			}
+		}
+
+		/**
+		 * <p>Formats the time of a line, as <code>[%ta %td %tR]</code>
+		 * would</p>
+		 *
+		 * @param time the time
+		 * @return the formatted time
+		 */
+		private String stamp(long time)
+		{
+			if (time / 60000 != minute)
+			{
+				minute = time / 60000;
+				c.setTimeInMillis(time);
+
+				stamp = String.format("%s %02d %02d:%02d", days[c.get(Calendar.DAY_OF_WEEK)],
+					c.get(Calendar.DAY_OF_MONTH), c.get(Calendar.HOUR_OF_DAY), c.get(Calendar.MINUTE));
+			}
+
+			return stamp;
+		}
+
+		/**
+		 * <p>Writes out the bytes waiting for a log</p>
+		 *
+		 * @param sink the log
+		 */
+		private void flush(Sink sink)
+		{
+			sink.buffer.flip();
+
+			try
+			{
+				while (sink.buffer.hasRemaining())
+				{
+					sink.channel.write(sink.buffer);
+				}
+			}
+			catch (IOException ex)
+			{
+				log(Level.WARNING, ex);
+			}
+
+			sink.buffer.clear();
+		}
+
+		/**
+		 * <p>Writes out the bytes waiting for every log</p>
+		 */
+		private void flushAll()
+		{
+			for (Sink sink : sinks.values())
+			{
+				if (sink.buffer.position() != 0)
+				{
+					flush(sink);
+				}
+			}
+		}
+
+		/**
+		 * <p>Writes out and closes every log</p>
+		 */
+		private void closeAll()
+		{
+			flushAll();
+
+			for (Sink sink : sinks.values())
+			{
+				try
+				{
+					sink.channel.close();
+				}
+				catch (IOException ex)
+				{
+					log(Level.WARNING, ex);
+				}
+			}
+
+			sinks.clear();
+		}
+	}
 
 	/**
 	 * <p>Base directory for logs</p>
 	 */
 	private final File dir;
 	/**
-	 * <p>Map of output files of the current logs</p>
+	 * <p>Bytes buffered for each log file</p>
+	 */
+	private final int bufferSize;
+	/**
+	 * <p>Nanoseconds between writing out the buffers</p>
 	 */
-	private final Map<String, FileWriter> logs = new HashMap<>(8);
+	private final long flushInterval;
 	/**
-	 * <p>
+	 * <p>Lines waiting for the writer</p>
 	 */
-	private final Calendar c = Calendar.getInstance();
+	private final ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<>();
+	/**
+	 * <p>Approximate number of lines added since the writer last emptied the
+	 * queue</p>
+	 */
+	private final AtomicInteger pending = new AtomicInteger();
+	/**
+	 * <p>The writer thread</p>
+	 */
+	private final Thread writer;
+	/**
+	 * <p>Whether the writer should keep running</p>
+	 */
+	private volatile boolean running = true;
+	/**
+	 * <p>Whether lines are being passed to this service by a {@link
+	 * MessageRouter}</p>
+	 */
+	private volatile boolean routed = false;
 
 	/**
+	 * <p>Creates a log service, and starts its writer</p>
 	 *
-	 * @param dir
+	 * @param dir the directory to keep the logs in
 	 */
 	public LogService(File dir)
 	{
@@ -56,89 +372,104 @@ public class LogService extends Service implements MessageService, FilterService
 		{
 			throw new IllegalArgumentException("LogService requires a writeable directory");
 		}
-	}
 
-	public LogService(String dir)
-	{
-		this(new File(dir));
-	}
-	
-	@Override
-	public synchronized void handle(Message m)
-	{
-		final String log = (m.getChannel() == null ? m.getSender() : m.getChannel());
-		final FileWriter w;
+		this.bufferSize    = Math.max(1024, Integer.getInteger("LogService.Buffer", 32768));
+		this.flushInterval = TimeUnit.MILLISECONDS.toNanos(Math.max(1, Long.getLong("LogService.Flush", 1000)));
 
-		c.setTimeInMillis(System.currentTimeMillis());
-		try
+		this.writer = new Thread(new Writer(), "LogService Writer [" + dir.getName() + ']');
+		this.writer.setDaemon(true);
+		this.writer.start();
+
+		Scheduler.onShutdown(new Runnable()
 		{
-			if (!logs.containsKey(log))
+			@Override
+			public void run()
 			{
-				w = new FileWriter(new File(this.dir, log), true);
-				logs.put(log, w);
+				shutdown();
 			}
-			else
+
+			@Override
+			public String toString()
 			{
-				w = logs.get(log);
+				return "Close logs [" + LogService.this.dir + ']';
 			}
+		});
+	}
 
-			w.write(String.format("[%1$ta %1$td %1$tR %2$s] %3$s\n", c, m.getSender(), m.getMessage()));
-			w.flush();
-		}
-		catch (IOException ex)
+	public LogService(String dir)
+	{
+		this(new File(dir));
+	}
+
+	@Override
+	public void handle(Message m)
+	{
+		if (!routed)
 		{
-			log(Level.WARNING, ex);
+			write(m);
 		}
 	}
 
+	@Override
+	public void handle(Message m, Command command)
+	{
+		write(m);
+	}
+
+	/**
+	 * <p>Queues an inbound line for its log</p>
+	 *
+	 * @param m the message
+	 */
+	private void write(Message m)
+	{
+		enqueue(m.getChannel() == null ? m.getSender() : m.getChannel(), m.getSender(), m.getMessage());
+	}
+
 	@Override
 	public OutboundMessage filter(OutboundMessage m)
 	{
-		final String log = m.getTarget();
-		final FileWriter w;
+		enqueue(m.getTarget(), m.getNick(), m.getMessage());
+		return m;
+	}
 
-		c.setTimeInMillis(System.currentTimeMillis());
-		try
-		{
-			if (!logs.containsKey(log))
-			{
-				w = new FileWriter(new File(this.dir, log), true);
-				logs.put(log, w);
-			}
-			else
-			{
-				w = logs.get(log);
-			}
+	/**
+	 * <p>Queues a line for the writer, waking it if a lot of lines are
+	 * waiting</p>
+	 *
+	 * @param log the name of the log to write the line to
+	 * @param nick who sent the line
+	 * @param text the text of the line
+	 */
+	private void enqueue(String log, String nick, String text)
+	{
+		queue.offer(new Record(System.currentTimeMillis(), log, nick, text));
 
-			w.write(String.format("[%1$ta %1$td %1$tR %2$s] %3$s\n", c, m.getNick(), m.getMessage()));
-			w.flush();
-		}
-		catch (IOException ex)
+		if (pending.incrementAndGet() == WAKE)
 		{
-			log(Level.WARNING, ex);
+			LockSupport.unpark(writer);
 		}
-		return m;
 	}
 
 	@Override
 	protected void startup(RelayCat r)
 	{
+		routed = MessageRouter.register(r, this);
 	}
 
 	@Override
-	protected synchronized void shutdown()
+	protected void shutdown()
 	{
-		for (FileWriter w : logs.values())
+		running = false;
+		LockSupport.unpark(writer);
+
+		try
 		{
-			try
-			{
-				w.flush();
-				w.close();
-			}
-			catch (IOException ex)
-			{
-				log(Level.WARNING, ex);
-			}
+			writer.join(TimeUnit.NANOSECONDS.toMillis(flushInterval) + 5000);
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
 		}
 	}
 }
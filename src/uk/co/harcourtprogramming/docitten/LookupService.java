@@ -12,8 +12,24 @@ import uk.co.harcourtprogramming.mewler.MessageTokeniser;
  *
  * @author Benedict Harcourt / javajawa
  */
-public class LookupService extends Service implements MessageService
+public class LookupService extends Service implements MessageService, CommandService
 {
+	/**
+	 * <p>The phrases that start a question</p>
+	 */
+	private final static String[] COMMANDS = {"lookup", "what is", "what are", "how do i", "define"};
+
+	/**
+	 * <p>Whether commands are being passed to this service by a {@link
+	 * MessageRouter}</p>
+	 */
+	private volatile boolean routed = false;
+	/**
+	 * <p>Router for matching commands when there is no shared router; it
+	 * calls this service directly, never through a mailbox</p>
+	 */
+	private final MessageRouter local = new MessageRouter(false);
+
 	/**
 	 * <p>Create a look-up service instance</p>
 	 */
@@ -25,33 +41,34 @@ public class LookupService extends Service implements MessageService
 	@Override
 	public void handle(Message m)
 	{
-		MessageTokeniser t = new MessageTokeniser(m.getMessage());
-		t.setConsumeWhitespace(true);
-
-		// Check that the service is actually being addressed in some way
-		if (!t.consume(m.getNick() + ':') && m.getChannel() != null)
+		if (!routed)
 		{
-			return;
-		}
-
-		if (!t.startsWith("lookup") && !t.startsWith("what is") && !t.startsWith("what are") && !t.startsWith("how do i") && !t.startsWith("define"))
-		{
-			return;
+			local.handle(m);
 		}
+	}
 
-		t.consume("how do i");
-		t.consume("what is");
-		t.consume("what are");
-		t.consume("lookup");
+	@Override
+	public void handle(Message m, Command c)
+	{
+		// Definitions are looked up with the 'define' left in
+		MessageTokeniser t = new MessageTokeniser("define".equals(c.getPhrase()) ? c.getText() : c.getArgs());
+		t.setConsumeWhitespace(true);
 
 		final String question = t.nextToken('?');
 
-		new LookupWorker(question, m, m.getReplyToAllTarget()).start();
+		WorkerPool.submit(new LookupWorker(question, m, m.getReplyToAllTarget()));
 	}
 
 	@Override
 	protected void startup(RelayCat r)
 	{
+		routed = MessageRouter.register(r, this, COMMANDS);
+
+		if (!routed)
+		{
+			local.register(this, COMMANDS);
+		}
+
 		List<HelpService> helpServices = r.getServicesByClass(HelpService.class);
 
 		if (!helpServices.isEmpty())
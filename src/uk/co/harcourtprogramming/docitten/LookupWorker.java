@@ -16,20 +16,9 @@ import uk.co.harcourtprogramming.logging.LogDecorator;
  *
  * @author Benedict Harcourt / javajawa
  */
-public class LookupWorker extends Thread
+public class LookupWorker implements Runnable
 {
 
-	/**
-	 * <p>Thread group for running lookups in</p>
-	 */
-	private final static ThreadGroup THREAD_GROUP = new ThreadGroup("LookupWorkers")
-	{
-		@Override
-		public void uncaughtException(Thread t, Throwable e)
-		{
-			LOG.uncaught(t, e);
-		}
-	};
 	/**
 	 * <p>Logger shared with {@link LookupService} and with all other LookupWorker
 	 * instances</p>
@@ -40,6 +29,10 @@ public class LookupWorker extends Thread
 	 * <p>The Wolfram|Alpha API key to use with Wolfram|Alpha requests</p>
 	 */
 	private final static String WOLFRAM_KEY = System.getProperty("Lookup.WolframKey");
+	/**
+	 * <p>The host serving the Wolfram|Alpha API</p>
+	 */
+	private final static String WOLFRAM_HOST = "api.wolframalpha.com";
 
 	private final static DocumentBuilder domParser;
 
@@ -72,6 +65,7 @@ public class LookupWorker extends Thread
 	 * <p>Creates a link resolver instance, targeted at a specified web address,
 	 * which will attempt to send information to a IRC end point via a RelayCat
 	 * instance</p>
+	 * <p>The worker is run by submitting it to the {@link WorkerPool}</p>
 	 *
 	 * @param question The question that has been asked
 	 * @param mess IRC connection that the query came from
@@ -79,11 +73,9 @@ public class LookupWorker extends Thread
 	 */
 	public LookupWorker(String question, RelayCat mess, String target)
 	{
-		super(THREAD_GROUP, "LookupWorker [" + question + ']');
 		this.question = question;
 		this.mess = mess;
 		this.target = target;
-		setDaemon(true);
 	}
 
 	/**
@@ -101,7 +93,7 @@ public class LookupWorker extends Thread
 		try
 		{
 			uri = String.format(
-				"http://api.wolframalpha.com/v2/query?format=plaintext&appid=%s&reinterpret=true&input=%s",
+				"http://" + WOLFRAM_HOST + "/v2/query?format=plaintext&appid=%s&reinterpret=true&input=%s",
 				WOLFRAM_KEY,
 				URLEncoder.encode(question, "UTF-8")
 			);
@@ -112,16 +104,38 @@ public class LookupWorker extends Thread
 			return;
 		}
 
+		final HostGuard guard = HostGuard.getShared();
+
+		if (!guard.acquire(WOLFRAM_HOST))
+		{
+			LOG.fine("Host {0} is rate limited or failing [lookup of {1}]", WOLFRAM_HOST, question);
+			return;
+		}
+
 		final Document document;
 		try
 		{
 			document = domParser.parse(uri);
+			guard.success(WOLFRAM_HOST);
 		}
-		catch (IOException|org.xml.sax.SAXException ex)
+		catch (IOException ex)
 		{
+			guard.failure(WOLFRAM_HOST);
 			LOG.warning(ex, "Error requesting {0}", uri);
 			return;
 		}
+		catch (org.xml.sax.SAXException ex)
+		{
+			// The host answered, just not with anything useful
+			guard.success(WOLFRAM_HOST);
+			LOG.warning(ex, "Error requesting {0}", uri);
+			return;
+		}
+		catch (RuntimeException ex)
+		{
+			guard.release(WOLFRAM_HOST);
+			throw ex;
+		}
 
 		final NodeList answers = document.getElementsByTagName("plaintext");
 		StringBuilder result = new StringBuilder(1024);
@@ -134,5 +148,10 @@ public class LookupWorker extends Thread
 		result.append("Via Wolfram|Alpha http://wolframalpha.com");
 		mess.message(target, result.toString());
 	}
-}
 
+	@Override
+	public String toString()
+	{
+		return "LookupWorker [" + question + ']';
+	}
+}
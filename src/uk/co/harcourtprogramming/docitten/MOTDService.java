@@ -7,18 +7,18 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import uk.co.harcourtprogramming.internetrelaycats.ExternalService;
 import uk.co.harcourtprogramming.internetrelaycats.InternetRelayCat;
 import uk.co.harcourtprogramming.internetrelaycats.MessageService;
 import uk.co.harcourtprogramming.internetrelaycats.RelayCat;
-import uk.co.harcourtprogramming.mewler.MessageTokeniser;
 
 /**
  * <p>Service for processing the motd.dat files on DoC's file systems, and
  * posting new announcements to the IRC channel</p>
  */
-public class MOTDService extends ExternalService implements MessageService
+public class MOTDService extends ExternalService implements MessageService, CommandService
 {
 
 	/**
@@ -41,6 +41,15 @@ public class MOTDService extends ExternalService implements MessageService
 	 * <p>The last seen modification timestamp for the file</p>
 	 */
 	private long lastModified = 0;
+	/**
+	 * <p>Whether commands are being passed to this service by a {@link
+	 * MessageRouter}</p>
+	 */
+	private volatile boolean routed = false;
+	/**
+	 * <p>The job which checks the data file for changes</p>
+	 */
+	private volatile Scheduler.Job check = null;
 
 	/**
 	 * <p>Class that stores the attributes of messages as laid out in the
@@ -142,26 +151,29 @@ public class MOTDService extends ExternalService implements MessageService
 	}
 
 	/**
-	 * <p>Runs the MOTD Service</p>
+	 * <p>Runs the MOTD Service, by registering a job with the {@link
+	 * Scheduler} to check the data file every 5 minutes</p>
 	 */
 	@Override
-	@SuppressWarnings("SleepWhileInLoop")
 	public void run()
 	{
-		while (true)
+		check = Scheduler.repeat(5, 1, TimeUnit.MINUTES, new Runnable()
 		{
-			if (data_file.lastModified() > lastModified)
-			{
-				processFile(false);
-			}
-			try
+			@Override
+			public void run()
 			{
-				Thread.sleep(300000);
+				if (data_file.lastModified() > lastModified)
+				{
+					processFile(false);
+				}
 			}
-			catch (InterruptedException ex)
+
+			@Override
+			public String toString()
 			{
+				return "MOTD [" + data_file + ']';
 			}
-		}
+		});
 	}
 
 	/**
@@ -323,17 +335,17 @@ public class MOTDService extends ExternalService implements MessageService
 	@Override
 	public void handle(uk.co.harcourtprogramming.internetrelaycats.Message m)
 	{
-		MessageTokeniser t = new MessageTokeniser(m.getMessage());
-		t.setConsumeWhitespace(true);
-
-		// Check that the bot is actually being addressed in some way
-		if (!t.consume(m.getNick() + ':') && m.getChannel() != null)
+		if (!routed)
 		{
-			return;
+			handle(m, Command.parse(m));
 		}
+	}
 
+	@Override
+	public void handle(uk.co.harcourtprogramming.internetrelaycats.Message m, Command c)
+	{
 		// Check the command was 'motd' with no other parameters
-		if (!t.consume("motd") || !t.isEmpty())
+		if (!c.is("motd") || !c.getArgs().isEmpty())
 		{
 			return;
 		}
@@ -359,6 +371,8 @@ public class MOTDService extends ExternalService implements MessageService
 	@Override
 	protected void startup(RelayCat r)
 	{
+		routed = MessageRouter.register(r, this, "motd");
+
 		List<HelpService> helpServices = r.getServicesByClass(HelpService.class);
 
 		if (!helpServices.isEmpty())
@@ -376,6 +390,9 @@ public class MOTDService extends ExternalService implements MessageService
 	@Override
 	public void shutdown()
 	{
-		// Nothing to see here. Move along, citizen!
+		if (check != null)
+		{
+			check.cancel();
+		}
 	}
 }
@@ -0,0 +1,277 @@
+package uk.co.harcourtprogramming.docitten;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import uk.co.harcourtprogramming.internetrelaycats.Message;
+import uk.co.harcourtprogramming.logging.LogDecorator;
+
+/**
+ * <p>Queue of lines waiting to be handled by one {@link CommandService}</p>
+ * <p>When the {@link MessageRouter} is in mailbox mode, the IRC thread only
+ * posts each line to the mailboxes of the services that want it. A mailbox
+ * with lines in it is run as a task on the {@link WorkerPool}; only one
+ * task per mailbox is ever queued or running, so each service still sees
+ * lines one at a time, in the order that they arrived, whilst different
+ * services run in parallel.</p>
+ * <p>A mailbox holds at most a fixed number of lines; beyond that, lines
+ * are dropped (and counted) rather than letting a stuck service use up all
+ * the memory. If the worker pool is full, the mailbox is run on the thread
+ * that posted the line instead, so that no line is stranded.</p>
+ *
+ * @author Benedict Harcourt / javajawa
+ */
+public final class Mailbox implements Runnable
+{
+	/**
+	 * <p>Logger for the mailboxes</p>
+	 */
+	private final static LogDecorator LOG = LogDecorator.getLogger("DoCitten.MessageRouter");
+	/**
+	 * <p>Maximum number of lines handled in one task, so that a busy service
+	 * does not hold on to a worker</p>
+	 */
+	private final static int BATCH = 32;
+
+	/**
+	 * <p>A line waiting in the mailbox</p>
+	 */
+	private final static class Letter
+	{
+		/**
+		 * <p>The message</p>
+		 */
+		private final Message message;
+		/**
+		 * <p>The parsed form of the message</p>
+		 */
+		private final Command command;
+		/**
+		 * <p>When the line was posted, from {@link System#nanoTime()}</p>
+		 */
+		private final long posted;
+
+		/**
+		 * <p>Creates a letter</p>
+		 *
+		 * @param message the message
+		 * @param command the parsed form of the message
+		 * @param posted when the line was posted
+		 */
+		Letter(Message message, Command command, long posted)
+		{
+			this.message = message;
+			this.command = command;
+			this.posted = posted;
+		}
+	}
+
+	/**
+	 * <p>The service that the lines are for</p>
+	 */
+	private final CommandService service;
+	/**
+	 * <p>Maximum number of lines waiting</p>
+	 */
+	private final int limit;
+	/**
+	 * <p>The lines waiting</p>
+	 */
+	private final Queue<Letter> queue = new ConcurrentLinkedQueue<>();
+	/**
+	 * <p>Number of lines waiting (the queue's own size is not constant
+	 * time)</p>
+	 */
+	private final AtomicInteger depth = new AtomicInteger();
+	/**
+	 * <p>Whether a task is queued or running for this mailbox</p>
+	 */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	/**
+	 * <p>Number of lines handled</p>
+	 */
+	private final AtomicLong processed = new AtomicLong();
+	/**
+	 * <p>Number of lines dropped because the mailbox was full</p>
+	 */
+	private final AtomicLong dropped = new AtomicLong();
+	/**
+	 * <p>Total time, in nanoseconds, from lines being posted to the service
+	 * starting to handle them</p>
+	 */
+	private final AtomicLong totalLatency = new AtomicLong();
+	/**
+	 * <p>Longest time, in nanoseconds, from a line being posted to the
+	 * service starting to handle it</p>
+	 */
+	private final AtomicLong maxLatency = new AtomicLong();
+	/**
+	 * <p>Total time, in nanoseconds, spent in the service handling lines</p>
+	 */
+	private final AtomicLong totalHandling = new AtomicLong();
+
+	/**
+	 * <p>Creates a mailbox</p>
+	 *
+	 * @param service the service that the lines are for
+	 * @param limit maximum number of lines waiting
+	 */
+	Mailbox(CommandService service, int limit)
+	{
+		this.service = service;
+		this.limit = limit;
+	}
+
+	/**
+	 * <p>Posts a line to the mailbox</p>
+	 *
+	 * @param m the message
+	 * @param c the parsed form of the message
+	 * @return whether the line was accepted
+	 */
+	boolean post(Message m, Command c)
+	{
+		if (depth.incrementAndGet() > limit)
+		{
+			depth.decrementAndGet();
+			final long count = dropped.incrementAndGet();
+
+			if (count == 1 || count % 100 == 0)
+			{
+				LOG.warning("Mailbox for {0} full, dropped {1} ({2} dropped in total)", service, c, count);
+			}
+
+			return false;
+		}
+
+		queue.add(new Letter(m, c, System.nanoTime()));
+		schedule();
+		return true;
+	}
+
+	/**
+	 * <p>Makes sure that a task is queued or running to empty the
+	 * mailbox</p>
+	 */
+	private void schedule()
+	{
+		if (scheduled.compareAndSet(false, true) && !WorkerPool.submit(this))
+		{
+			// No room on the pool; handle the lines here rather than leave
+			// them until the next line arrives
+			run();
+		}
+	}
+
+	/**
+	 * <p>Handles the waiting lines, up to a batch</p>
+	 */
+	@Override
+	public void run()
+	{
+		Letter letter;
+		int count = 0;
+
+		while (count < BATCH && (letter = queue.poll()) != null)
+		{
+			depth.decrementAndGet();
+			++count;
+
+			final long start = System.nanoTime();
+			MessageRouter.deliver(service, letter.message, letter.command);
+			final long end = System.nanoTime();
+
+			// Time spent waiting in the queue; handling is counted separately
+			final long latency = start - letter.posted;
+			long max = maxLatency.get();
+
+			while (latency > max && !maxLatency.compareAndSet(max, latency))
+			{
+				max = maxLatency.get();
+			}
+
+			totalLatency.addAndGet(latency);
+			totalHandling.addAndGet(end - start);
+			processed.incrementAndGet();
+		}
+
+		scheduled.set(false);
+
+		// Lines may have been posted after the queue was found empty, but
+		// before the flag was cleared, or there may be more than one batch
+		if (!queue.isEmpty())
+		{
+			schedule();
+		}
+	}
+
+	/**
+	 * @return the service that the lines are for
+	 */
+	public CommandService getService()
+	{
+		return service;
+	}
+
+	/**
+	 * @return the number of lines waiting to be handled
+	 */
+	public int getDepth()
+	{
+		return depth.get();
+	}
+
+	/**
+	 * @return the number of lines handled
+	 */
+	public long getProcessed()
+	{
+		return processed.get();
+	}
+
+	/**
+	 * @return the number of lines dropped because the mailbox was full
+	 */
+	public long getDropped()
+	{
+		return dropped.get();
+	}
+
+	/**
+	 * @return the mean time from a line being posted to the service starting
+	 * to handle it, in microseconds
+	 */
+	public long getMeanLatency()
+	{
+		final long count = processed.get();
+		return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalLatency.get() / count);
+	}
+
+	/**
+	 * @return the longest time from a line being posted to the service
+	 * starting to handle it, in microseconds
+	 */
+	public long getMaxLatency()
+	{
+		return TimeUnit.NANOSECONDS.toMicros(maxLatency.get());
+	}
+
+	/**
+	 * @return the mean time spent in the service handling each line, in
+	 * microseconds
+	 */
+	public long getMeanHandling()
+	{
+		final long count = processed.get();
+		return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalHandling.get() / count);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Mailbox [" + service.getClass().getSimpleName() + "]";
+	}
+}
@@ -0,0 +1,449 @@
+package uk.co.harcourtprogramming.docitten;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import uk.co.harcourtprogramming.docitten.utility.PhraseTrie;
+import uk.co.harcourtprogramming.docitten.utility.TriggerMatcher;
+import uk.co.harcourtprogramming.internetrelaycats.Message;
+import uk.co.harcourtprogramming.internetrelaycats.MessageService;
+import uk.co.harcourtprogramming.internetrelaycats.RelayCat;
+import uk.co.harcourtprogramming.internetrelaycats.Service;
+import uk.co.harcourtprogramming.logging.LogDecorator;
+
+/**
+ * <p>Routes inbound lines to the services that want them</p>
+ * <p>Most services only respond to one or two commands, but every service
+ * sees every line, and each used to tokenise it to find out whether it was
+ * addressed to the bot and what the command was. The router {@link
+ * Command#parse(Message) parses} each line once, and passes it to the {@link
+ * CommandService}s which registered for all lines. If the line was addressed
+ * to the bot, the router then finds the longest registered phrase that it
+ * starts with, in one walk of a {@link PhraseTrie}, and passes it to the
+ * services which registered for that phrase. Phrases can be a single keyword
+ * (<code>help</code>) or several words (<code>distro list</code>), so that
+ * services do not have to match their sub-commands themselves.</p>
+ * <p>Passive services, which react to words anywhere in a line, can instead
+ * register {@link #registerTriggers(CommandService, String...) trigger
+ * words}. The words of all such services are built into one {@link
+ * TriggerMatcher}, which scans each line once; a service only gets the line
+ * if one of its own words was found, and can {@link Command#hasTrigger(String...)
+ * check which} before running any more expensive matching.</p>
+ * <p>By default, services are called one after another on the IRC thread.
+ * In mailbox mode, each service instead has a {@link Mailbox}, and the IRC
+ * thread only posts lines to them; services then run in parallel on the
+ * {@link WorkerPool}, each still seeing its lines in order. The mode is
+ * configured with the system properties:</p>
+ * <ul>
+ *  <li><code>MessageRouter.Mailboxes</code> - <code>true</code> to give
+ * each service a mailbox (default false)</li>
+ *  <li><code>MessageRouter.Mailbox.Limit</code> - number of lines which may
+ * wait in each mailbox before more are dropped (default 1024)</li>
+ * </ul>
+ * <p>These are read when the first line is routed, so can be set from
+ * docittenrc with the <code>set</code> command after connecting.</p>
+ * <p>DoCitten adds a router as soon as it connects, before any other service
+ * is loaded, so that they can find it when they start up.</p>
+ *
+ * @author Benedict Harcourt / javajawa
+ */
+public class MessageRouter extends Service implements MessageService
+{
+	/**
+	 * <p>Logger for the router</p>
+	 */
+	private final static LogDecorator LOG = LogDecorator.getLogger("DoCitten.MessageRouter");
+	/**
+	 * <p>Default number of lines which may wait in each mailbox</p>
+	 */
+	private final static int DEFAULT_MAILBOX_LIMIT = 1024;
+
+	/**
+	 * <p>Lazy holder for the mailbox settings, so that the system properties
+	 * are read when the first line is routed</p>
+	 */
+	private final static class Holder
+	{
+		/**
+		 * <p>Whether routers use mailboxes unless told otherwise</p>
+		 */
+		private final static boolean MAILBOXES = Boolean.getBoolean("MessageRouter.Mailboxes");
+		/**
+		 * <p>Number of lines which may wait in each mailbox</p>
+		 */
+		private final static int LIMIT = Math.max(1,
+			Integer.getInteger("MessageRouter.Mailbox.Limit", DEFAULT_MAILBOX_LIMIT));
+	}
+
+	/**
+	 * <p>Services registered for each phrase</p>
+	 */
+	private final PhraseTrie<List<CommandService>> routes = new PhraseTrie<>();
+	/**
+	 * <p>Services registered for all lines</p>
+	 */
+	private final List<CommandService> all = new CopyOnWriteArrayList<>();
+
+	/**
+	 * <p>Services registered for trigger words, along with the matcher for
+	 * their words</p>
+	 * <p>Rebuilt as a whole whenever a service registers, so that each line
+	 * sees a consistent set</p>
+	 */
+	private final static class Triggers
+	{
+		/**
+		 * <p>Matcher for the words of all the services</p>
+		 */
+		private final TriggerMatcher matcher;
+		/**
+		 * <p>The services</p>
+		 */
+		private final CommandService[] services;
+		/**
+		 * <p>The indices in the matcher of each service's words</p>
+		 */
+		private final int[][] indices;
+
+		/**
+		 * <p>Builds the matcher for a set of services</p>
+		 *
+		 * @param services the services
+		 * @param words the trigger words of each service
+		 */
+		private Triggers(List<CommandService> services, List<String[]> words)
+		{
+			final List<String> merged = new ArrayList<>();
+
+			for (String[] w : words)
+			{
+				merged.addAll(Arrays.asList(w));
+			}
+
+			this.matcher = new TriggerMatcher(merged);
+			this.services = services.toArray(new CommandService[services.size()]);
+			this.indices = new int[words.size()][];
+
+			for (int i = 0; i < indices.length; ++i)
+			{
+				final String[] w = words.get(i);
+				indices[i] = new int[w.length];
+
+				for (int j = 0; j < w.length; ++j)
+				{
+					indices[i][j] = matcher.indexOf(w[j]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Services registered for trigger words, in order of registration</p>
+	 */
+	private final List<CommandService> triggerServices = new ArrayList<>();
+	/**
+	 * <p>The trigger words of each service in {@link #triggerServices}</p>
+	 */
+	private final List<String[]> triggerWords = new ArrayList<>();
+	/**
+	 * <p>The current matcher for trigger words, or null if no service has
+	 * registered any</p>
+	 */
+	private volatile Triggers triggers = null;
+
+	/**
+	 * <p>Whether to use mailboxes, or null to follow the system
+	 * property</p>
+	 */
+	private final Boolean useMailboxes;
+	/**
+	 * <p>The mailbox of each service, in mailbox mode</p>
+	 */
+	private final ConcurrentMap<CommandService, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+	/**
+	 * <p>Finds the router on a RelayCat</p>
+	 *
+	 * @param r the RelayCat
+	 * @return the router, or null if there is not one
+	 */
+	public static MessageRouter find(RelayCat r)
+	{
+		final List<MessageRouter> routers = r.getServicesByClass(MessageRouter.class);
+
+		if (routers == null || routers.isEmpty())
+		{
+			return null;
+		}
+
+		return routers.get(0);
+	}
+
+	/**
+	 * <p>Registers a service with the router on a RelayCat, if there is
+	 * one</p>
+	 *
+	 * @param r the RelayCat that the service is being started on
+	 * @param service the service to register
+	 * @param phrases the phrases of the commands that the service handles;
+	 * if none are given, the service receives all lines
+	 * @return whether the service was registered; if not, it must handle
+	 * its own messages
+	 */
+	public static boolean register(RelayCat r, CommandService service, String... phrases)
+	{
+		final MessageRouter router = find(r);
+
+		if (router == null)
+		{
+			return false;
+		}
+
+		router.register(service, phrases);
+		return true;
+	}
+
+	/**
+	 * <p>Registers a service for trigger words with the router on a RelayCat,
+	 * if there is one</p>
+	 *
+	 * @param r the RelayCat that the service is being started on
+	 * @param service the service to register
+	 * @param words the words that the service reacts to
+	 * @return whether the service was registered; if not, it must handle
+	 * its own messages
+	 */
+	public static boolean registerTriggers(RelayCat r, CommandService service, String... words)
+	{
+		final MessageRouter router = find(r);
+
+		if (router == null)
+		{
+			return false;
+		}
+
+		router.registerTriggers(service, words);
+		return true;
+	}
+
+	/**
+	 * <p>Create a message router, which uses mailboxes if the
+	 * <code>MessageRouter.Mailboxes</code> system property is set</p>
+	 */
+	public MessageRouter()
+	{
+		this.useMailboxes = null;
+	}
+
+	/**
+	 * <p>Create a message router</p>
+	 *
+	 * @param mailboxes whether to give each service a mailbox, rather than
+	 * calling them on the thread that routes the line
+	 */
+	public MessageRouter(boolean mailboxes)
+	{
+		this.useMailboxes = mailboxes;
+	}
+
+	/**
+	 * <p>Registers a service</p>
+	 *
+	 * @param service the service to register
+	 * @param phrases the phrases of the commands that the service handles;
+	 * if none are given, the service receives all lines
+	 */
+	public void register(CommandService service, String... phrases)
+	{
+		if (phrases.length == 0)
+		{
+			all.add(service);
+			return;
+		}
+
+		for (String phrase : phrases)
+		{
+			List<CommandService> services;
+
+			synchronized (routes)
+			{
+				services = routes.get(phrase);
+
+				if (services == null)
+				{
+					services = new CopyOnWriteArrayList<>();
+					routes.put(phrase, services);
+				}
+			}
+
+			services.add(service);
+		}
+	}
+
+	/**
+	 * <p>Registers a service for trigger words</p>
+	 * <p>The service is passed every line which contains at least one of the
+	 * words, ignoring case. A service should register either for trigger
+	 * words or for phrases, but not both, or it may get a line twice.</p>
+	 *
+	 * @param service the service to register
+	 * @param words the words that the service reacts to
+	 * @throws IllegalArgumentException if no words are given, or any word
+	 * is empty or not ASCII
+	 */
+	public synchronized void registerTriggers(CommandService service, String... words)
+	{
+		if (words.length == 0)
+		{
+			throw new IllegalArgumentException("No trigger words given");
+		}
+
+		final List<CommandService> services = new ArrayList<>(triggerServices);
+		final List<String[]> serviceWords = new ArrayList<>(triggerWords);
+
+		services.add(service);
+		serviceWords.add(words.clone());
+
+		// Build first, so that bad words leave the router unchanged
+		triggers = new Triggers(services, serviceWords);
+
+		triggerServices.add(service);
+		triggerWords.add(words.clone());
+	}
+
+	/**
+	 * @return the phrases that services have registered, in order
+	 */
+	public List<String> getCommands()
+	{
+		return routes.getPhrases();
+	}
+
+	@Override
+	public void handle(Message m)
+	{
+		final Triggers t = triggers;
+		TriggerMatcher.Hits hits = null;
+		Command c = Command.parse(m);
+
+		if (t != null)
+		{
+			hits = t.matcher.scan(m.getMessage());
+			c = c.withHits(hits);
+		}
+
+		for (CommandService service : all)
+		{
+			dispatch(service, m, c);
+		}
+
+		if (hits != null && !hits.isEmpty())
+		{
+			for (int i = 0; i < t.services.length; ++i)
+			{
+				if (hits.containsAny(t.indices[i]))
+				{
+					dispatch(t.services[i], m, c);
+				}
+			}
+		}
+
+		if (!c.isAddressed())
+		{
+			return;
+		}
+
+		final PhraseTrie.Match<List<CommandService>> match = routes.match(c.getText(), 0);
+
+		if (match == null)
+		{
+			return;
+		}
+
+		final Command routed = c.withPhrase(match.getPhrase(), match.getEnd());
+
+		for (CommandService service : match.getValue())
+		{
+			dispatch(service, m, routed);
+		}
+	}
+
+	/**
+	 * <p>Passes a line to a service, either directly or through its
+	 * mailbox</p>
+	 *
+	 * @param service the service
+	 * @param m the message
+	 * @param c the parsed form of the message
+	 */
+	private void dispatch(CommandService service, Message m, Command c)
+	{
+		if (useMailboxes == null ? !Holder.MAILBOXES : !useMailboxes)
+		{
+			deliver(service, m, c);
+			return;
+		}
+
+		Mailbox mailbox = mailboxes.get(service);
+
+		if (mailbox == null)
+		{
+			final Mailbox created = new Mailbox(service, Holder.LIMIT);
+
+			mailbox = mailboxes.putIfAbsent(service, created);
+
+			if (mailbox == null)
+			{
+				mailbox = created;
+			}
+		}
+
+		mailbox.post(m, c);
+	}
+
+	/**
+	 * @return the mailboxes of the services that have been sent lines, in
+	 * mailbox mode
+	 */
+	public Collection<Mailbox> getMailboxes()
+	{
+		return Collections.unmodifiableCollection(mailboxes.values());
+	}
+
+	/**
+	 * <p>Passes a line to a service, so that an error in one service does not
+	 * stop the others getting the line</p>
+	 *
+	 * @param service the service
+	 * @param m the message
+	 * @param c the parsed form of the message
+	 */
+	static void deliver(CommandService service, Message m, Command c)
+	{
+		try
+		{
+			service.handle(m, c);
+		}
+		catch (RuntimeException ex)
+		{
+			LOG.warning(ex, "Error in {0} handling {1}", service, c);
+		}
+	}
+
+	@Override
+	protected void startup(RelayCat r)
+	{
+		// Nothing to see here. Move along, citizen!
+	}
+
+	@Override
+	public void shutdown()
+	{
+		// Nothing to see here. Move along, citizen!
+	}
+}
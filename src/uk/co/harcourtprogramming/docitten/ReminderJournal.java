@@ -0,0 +1,693 @@
+package uk.co.harcourtprogramming.docitten;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import uk.co.harcourtprogramming.logging.LogDecorator;
+
+/**
+ * <p>Crash safe, on disk, store of the notes and reminders of the {@link
+ * ReminderService}</p>
+ * <p>Every note or reminder added, and every one removed or sent, is
+ * appended to a journal file as a single line, so each change costs one
+ * buffered write. The journal is forced to disk in batches, at most a fixed
+ * time apart, so that a burst of commands does not wait for the disk once
+ * per line. Once the journal has grown by a given number of lines, the notes
+ * and reminders that are still live are written to a snapshot (through a
+ * temporary file which is moved into place), and the journal is started
+ * again.</p>
+ * <p>On start up, the snapshot is read, and then the journal replayed on top
+ * of it. Replaying is idempotent, so a crash between the snapshot being
+ * moved into place and the journal being emptied loses nothing; a line only
+ * part written when the bot crashed is ignored.</p>
+ * <p>The journal is written in UTF-8, with tab separated fields, and tabs,
+ * line breaks and back slashes in the text escaped:</p>
+ * <pre>
+ * N  id  created  nick  text       a note
+ * R  id  created  due  nick  text  a reminder
+ * D  id                            a note or reminder removed
+ * </pre>
+ *
+ * @author Benedict Harcourt / javajawa
+ */
+public final class ReminderJournal
+{
+	/**
+	 * <p>Logger for the journal</p>
+	 */
+	private final static LogDecorator LOG = LogDecorator.getLogger("DoCitten.ReminderJournal");
+
+	/**
+	 * <p>A note or reminder, as stored in the journal</p>
+	 */
+	public final static class Entry
+	{
+		/**
+		 * <p>The unique id of the note or reminder</p>
+		 */
+		private final long id;
+		/**
+		 * <p>When the note or reminder was created</p>
+		 */
+		private final long created;
+		/**
+		 * <p>When the reminder is due, or -1 for a note</p>
+		 */
+		private final long due;
+		/**
+		 * <p>The nick that created the note or reminder</p>
+		 */
+		private final String nick;
+		/**
+		 * <p>The text of the note or reminder</p>
+		 */
+		private final String text;
+
+		/**
+		 * <p>Creates an entry</p>
+		 *
+		 * @param id the unique id of the note or reminder
+		 * @param created when the note or reminder was created
+		 * @param due when the reminder is due, or -1 for a note
+		 * @param nick the nick that created the note or reminder
+		 * @param text the text of the note or reminder
+		 */
+		public Entry(long id, long created, long due, String nick, String text)
+		{
+			this.id = id;
+			this.created = created;
+			this.due = due;
+			this.nick = nick;
+			this.text = text;
+		}
+
+		/**
+		 * @return the unique id of the note or reminder
+		 */
+		public long getId()
+		{
+			return id;
+		}
+
+		/**
+		 * @return when the note or reminder was created
+		 */
+		public long getCreated()
+		{
+			return created;
+		}
+
+		/**
+		 * @return when the reminder is due, or -1 for a note
+		 */
+		public long getDue()
+		{
+			return due;
+		}
+
+		/**
+		 * @return whether this is a reminder, rather than a note
+		 */
+		public boolean isReminder()
+		{
+			return due != -1;
+		}
+
+		/**
+		 * @return the nick that created the note or reminder
+		 */
+		public String getNick()
+		{
+			return nick;
+		}
+
+		/**
+		 * @return the text of the note or reminder
+		 */
+		public String getText()
+		{
+			return text;
+		}
+	}
+
+	/**
+	 * <p>The journal file</p>
+	 */
+	private final File journalFile;
+	/**
+	 * <p>The snapshot file</p>
+	 */
+	private final File snapshotFile;
+	/**
+	 * <p>Milliseconds between forcing the journal to disk, or 0 to force it
+	 * after every line</p>
+	 */
+	private final long syncInterval;
+	/**
+	 * <p>Number of lines the journal may grow by before it is compacted into
+	 * the snapshot</p>
+	 */
+	private final int compactAfter;
+	/**
+	 * <p>The live notes and reminders, encoded as they are in the journal,
+	 * by id</p>
+	 */
+	private final Map<Long, String> live = new HashMap<>();
+	/**
+	 * <p>Stream to the journal file</p>
+	 */
+	private FileOutputStream out = null;
+	/**
+	 * <p>Buffered writer over {@link #out}</p>
+	 */
+	private Writer writer = null;
+	/**
+	 * <p>Number of lines in the journal</p>
+	 */
+	private int lines = 0;
+	/**
+	 * <p>Whether lines have been written since the journal was last forced
+	 * to disk</p>
+	 */
+	private boolean dirty = false;
+	/**
+	 * <p>The job which forces the journal to disk</p>
+	 */
+	private Scheduler.Job syncJob = null;
+
+	/**
+	 * <p>Creates a journal</p>
+	 *
+	 * @param directory the directory to keep the journal and snapshot in
+	 * @param syncInterval milliseconds between forcing the journal to disk,
+	 * or 0 to force it after every line
+	 * @param compactAfter number of lines the journal may grow by before it is
+	 * compacted into the snapshot
+	 */
+	public ReminderJournal(File directory, long syncInterval, int compactAfter)
+	{
+		this.journalFile  = new File(directory, "reminders.journal");
+		this.snapshotFile = new File(directory, "reminders.snapshot");
+		this.syncInterval = Math.max(0, syncInterval);
+		this.compactAfter = Math.max(1, compactAfter);
+	}
+
+	/**
+	 * <p>Reads the snapshot and journal, and opens the journal for
+	 * writing</p>
+	 *
+	 * @return the live notes and reminders, in order of id
+	 * @throws IOException if the files can not be read, or the journal can
+	 * not be opened
+	 */
+	public synchronized List<Entry> open() throws IOException
+	{
+		final File directory = journalFile.getParentFile();
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Unable to create " + directory);
+		}
+
+		replay(snapshotFile);
+		lines = replay(journalFile);
+
+		out = new FileOutputStream(journalFile, true);
+		writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+
+		if (syncInterval > 0)
+		{
+			syncJob = Scheduler.repeat(syncInterval, 0, TimeUnit.MILLISECONDS, new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					sync();
+				}
+
+				@Override
+				public String toString()
+				{
+					return "Sync [" + journalFile + ']';
+				}
+			});
+		}
+
+		Scheduler.onShutdown(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				close();
+			}
+
+			@Override
+			public String toString()
+			{
+				return "Close [" + journalFile + ']';
+			}
+		});
+
+		final List<Entry> entries = new ArrayList<>(live.size());
+
+		for (String line : live.values())
+		{
+			entries.add(decode(line.split("\t", -1)));
+		}
+
+		Collections.sort(entries, new Comparator<Entry>()
+		{
+			@Override
+			public int compare(Entry o1, Entry o2)
+			{
+				return Long.compare(o1.id, o2.id);
+			}
+		});
+
+		LOG.info("Recovered {0} notes and reminders from {1}", entries.size(), journalFile.getParent());
+
+		return entries;
+	}
+
+	/**
+	 * <p>Records a new note or reminder</p>
+	 *
+	 * @param entry the note or reminder
+	 */
+	public synchronized void add(Entry entry)
+	{
+		final String line = encode(entry);
+
+		live.put(entry.id, line);
+		append(line);
+	}
+
+	/**
+	 * <p>Records that a note or reminder has been removed, or sent</p>
+	 *
+	 * @param id the id of the note or reminder
+	 */
+	public synchronized void remove(long id)
+	{
+		if (live.remove(id) != null)
+		{
+			append("D\t" + id);
+		}
+	}
+
+	/**
+	 * <p>Forces the journal to disk, if it has changed, and compacts it if
+	 * it has grown enough</p>
+	 */
+	public void sync()
+	{
+		final FileChannel channel;
+
+		synchronized (this)
+		{
+			if (!dirty || writer == null)
+			{
+				return;
+			}
+
+			try
+			{
+				writer.flush();
+			}
+			catch (IOException ex)
+			{
+				LOG.warning(ex, "Unable to write to {0}", journalFile);
+				return;
+			}
+
+			dirty = false;
+			channel = out.getChannel();
+
+			if (lines >= compactAfter)
+			{
+				compact();
+				return;
+			}
+		}
+
+		// Outside the lock, so that new lines can be written whilst waiting
+		// for the disk
+		try
+		{
+			channel.force(false);
+		}
+		catch (IOException ex)
+		{
+			LOG.warning(ex, "Unable to sync {0}", journalFile);
+		}
+	}
+
+	/**
+	 * <p>Forces the journal to disk, and closes it</p>
+	 */
+	public synchronized void close()
+	{
+		if (writer == null)
+		{
+			return;
+		}
+
+		if (syncJob != null)
+		{
+			syncJob.cancel();
+		}
+
+		try
+		{
+			writer.flush();
+			out.getChannel().force(false);
+			writer.close();
+		}
+		catch (IOException ex)
+		{
+			LOG.warning(ex, "Unable to close {0}", journalFile);
+		}
+
+		writer = null;
+		out = null;
+	}
+
+	/**
+	 * @return the number of live notes and reminders
+	 */
+	public synchronized int size()
+	{
+		return live.size();
+	}
+
+	/**
+	 * <p>Writes a line to the journal</p>
+	 *
+	 * @param line the line, without a line break
+	 */
+	private void append(String line)
+	{
+		if (writer == null)
+		{
+			return;
+		}
+
+		try
+		{
+			writer.write(line);
+			writer.write('\n');
+			++lines;
+			dirty = true;
+		}
+		catch (IOException ex)
+		{
+			LOG.warning(ex, "Unable to write to {0}", journalFile);
+		}
+
+		if (syncInterval == 0)
+		{
+			// Still holding the lock, so the force happens before returning
+			syncNow();
+		}
+	}
+
+	/**
+	 * <p>Forces the journal to disk, whilst holding the lock</p>
+	 */
+	private void syncNow()
+	{
+		try
+		{
+			writer.flush();
+			out.getChannel().force(false);
+			dirty = false;
+		}
+		catch (IOException ex)
+		{
+			LOG.warning(ex, "Unable to sync {0}", journalFile);
+		}
+
+		if (lines >= compactAfter)
+		{
+			compact();
+		}
+	}
+
+	/**
+	 * <p>Writes the live notes and reminders to the snapshot, and starts the
+	 * journal again</p>
+	 * <p>Called whilst holding the lock.</p>
+	 */
+	private void compact()
+	{
+		final File temp = new File(snapshotFile.getPath() + ".tmp");
+
+		try
+		{
+			try (FileOutputStream snapshot = new FileOutputStream(temp))
+			{
+				final Writer w = new BufferedWriter(new OutputStreamWriter(snapshot, StandardCharsets.UTF_8));
+
+				for (String line : live.values())
+				{
+					w.write(line);
+					w.write('\n');
+				}
+
+				w.flush();
+				snapshot.getChannel().force(false);
+			}
+
+			Files.move(temp.toPath(), snapshotFile.toPath(),
+				StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+			// The move has to be on disk before the journal is emptied, or a
+			// power cut could leave the old snapshot and an empty journal
+			try (FileChannel directory = FileChannel.open(snapshotFile.getParentFile().toPath(),
+				StandardOpenOption.READ))
+			{
+				directory.force(true);
+			}
+
+			// Everything in the journal is now in the snapshot
+			writer.close();
+			out = new FileOutputStream(journalFile, false);
+			out.getChannel().force(true);
+			writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+			lines = 0;
+
+			LOG.fine("Compacted {0} into {1} entries", journalFile, live.size());
+		}
+		catch (IOException ex)
+		{
+			LOG.warning(ex, "Unable to compact {0}", journalFile);
+		}
+	}
+
+	/**
+	 * <p>Applies the lines of a file to the live notes and reminders</p>
+	 * <p>A last line without a line break was cut short by a crash, so is
+	 * ignored, and cut off the file, so that the next line appended to it is
+	 * not joined on to it.</p>
+	 *
+	 * @param file the snapshot or journal
+	 * @return the number of lines read
+	 * @throws IOException if the file exists, but can not be read
+	 */
+	private int replay(File file) throws IOException
+	{
+		if (!file.exists())
+		{
+			return 0;
+		}
+
+		final byte[] bytes = Files.readAllBytes(file.toPath());
+		int length = bytes.length;
+
+		// A line break byte is never part of a longer UTF-8 character
+		while (length > 0 && bytes[length - 1] != '\n')
+		{
+			--length;
+		}
+
+		if (length != bytes.length)
+		{
+			LOG.warning("Cutting off incomplete last line of {0}", file);
+
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE))
+			{
+				channel.truncate(length);
+				channel.force(false);
+			}
+		}
+
+		final String content = new String(bytes, 0, length, StandardCharsets.UTF_8);
+		int count = 0;
+		int start = 0;
+		int end;
+
+		while ((end = content.indexOf('\n', start)) != -1)
+		{
+			final String line = content.substring(start, end);
+			final String[] fields = line.split("\t", -1);
+
+			start = end + 1;
+			++count;
+
+			try
+			{
+				if ("D".equals(fields[0]) && fields.length == 2)
+				{
+					live.remove(Long.parseLong(fields[1]));
+				}
+				else
+				{
+					live.put(decode(fields).id, line);
+				}
+			}
+			catch (IllegalArgumentException ex)
+			{
+				LOG.warning("Ignoring bad line {0} in {1}", count, file);
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * @param entry a note or reminder
+	 * @return the line which records it
+	 */
+	private static String encode(Entry entry)
+	{
+		final StringBuilder s = new StringBuilder(entry.text.length() + 40);
+
+		if (entry.isReminder())
+		{
+			s.append("R\t").append(entry.id).append('\t').append(entry.created).append('\t').append(entry.due);
+		}
+		else
+		{
+			s.append("N\t").append(entry.id).append('\t').append(entry.created);
+		}
+
+		s.append('\t');
+		escape(entry.nick, s);
+		s.append('\t');
+		escape(entry.text, s);
+
+		return s.toString();
+	}
+
+	/**
+	 * @param fields the fields of a line which records a note or reminder
+	 * @return the note or reminder
+	 * @throws IllegalArgumentException if the line is not valid
+	 */
+	private static Entry decode(String[] fields)
+	{
+		if ("N".equals(fields[0]) && fields.length == 5)
+		{
+			return new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), -1,
+				unescape(fields[3]), unescape(fields[4]));
+		}
+		if ("R".equals(fields[0]) && fields.length == 6)
+		{
+			return new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+				unescape(fields[4]), unescape(fields[5]));
+		}
+
+		throw new IllegalArgumentException("Not a note or reminder");
+	}
+
+	/**
+	 * <p>Appends text to a line, escaping tabs, line breaks and back
+	 * slashes</p>
+	 *
+	 * @param text the text
+	 * @param s the line
+	 */
+	private static void escape(String text, StringBuilder s)
+	{
+		for (int i = 0; i < text.length(); ++i)
+		{
+			final char c = text.charAt(i);
+
+			switch (c)
+			{
+				case '\\':
+					s.append("\\\\");
+					break;
+				case '\t':
+					s.append("\\t");
+					break;
+				case '\n':
+					s.append("\\n");
+					break;
+				case '\r':
+					s.append("\\r");
+					break;
+				default:
+					s.append(c);
+			}
+		}
+	}
+
+	/**
+	 * @param text escaped text
+	 * @return the text, unescaped
+	 */
+	private static String unescape(String text)
+	{
+		if (text.indexOf('\\') == -1)
+		{
+			return text;
+		}
+
+		final StringBuilder s = new StringBuilder(text.length());
+
+		for (int i = 0; i < text.length(); ++i)
+		{
+			char c = text.charAt(i);
+
+			if (c == '\\' && i + 1 < text.length())
+			{
+				c = text.charAt(++i);
+
+				switch (c)
+				{
+					case 't':
+						c = '\t';
+						break;
+					case 'n':
+						c = '\n';
+						break;
+					case 'r':
+						c = '\r';
+						break;
+					default:
+						break;
+				}
+			}
+
+			s.append(c);
+		}
+
+		return s.toString();
+	}
+}
@@ -1,13 +1,19 @@
 package uk.co.harcourtprogramming.docitten;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.SortedSet;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import uk.co.harcourtprogramming.docitten.utility.OrderStatisticTree;
 import uk.co.harcourtprogramming.internetrelaycats.ExternalService;
 import uk.co.harcourtprogramming.internetrelaycats.InternetRelayCat;
 import uk.co.harcourtprogramming.internetrelaycats.Message;
@@ -17,16 +23,39 @@ import uk.co.harcourtprogramming.mewler.MessageTokeniser;
 
 /**
  * <p>Service for create todo list and reminders</p>
+ * <p>Timed reminders are one off jobs on the {@link Scheduler}, so they are
+ * sent exactly when they are due, rather than the service waking up
+ * periodically to look for them.</p>
+ * <p>Each user's notes and reminders are kept in their own {@link
+ * OrderStatisticTree}, which is also the lock for them, so that finding one
+ * by its index in the list does not walk the list, and one user's commands
+ * never wait on another's.</p>
+ * <p>Notes and reminders can be kept across restarts in a {@link
+ * ReminderJournal}, set up with the system properties, read when the
+ * service is loaded:</p>
+ * <ul>
+ *  <li><code>ReminderService.Directory</code> - directory to keep the
+ * journal in (if not set, notes and reminders are only kept in memory)</li>
+ *  <li><code>ReminderService.Sync</code> - milliseconds between forcing the
+ * journal to disk, or 0 to force it after every change (default 1000)</li>
+ *  <li><code>ReminderService.Compact</code> - changes written to the journal
+ * before it is compacted into a snapshot (default 1000)</li>
+ * </ul>
  *
  * @author Benedict Harcourt / javajawa
  */
-public class ReminderService extends ExternalService implements MessageService
+public class ReminderService extends ExternalService implements MessageService, CommandService
 {
 
 	/**
 	 * <p>Name of the service, for analysing commands</p>
 	 */
 	private final static String SERVICE_NAME = "reminder";
+	/**
+	 * <p>Whether commands are being passed to this service by a {@link
+	 * MessageRouter}</p>
+	 */
+	private volatile boolean routed = false;
 	/**
 	 * <p>List of the different valid commands</p>
 	 */
@@ -63,8 +92,8 @@ public class ReminderService extends ExternalService implements MessageService
 	 * <ul>
 	 *	<li>Notes sort to the bottom of the list</li>
 	 *  <li>Reminders are ordered according how far in the future they occur</li>
-	 *  <li>Remaining comparisons are done based on the creation time (oldest to
-	 * newest</li>
+	 *  <li>Remaining comparisons are done based on the id, which is assigned
+	 * in order of creation (oldest to newest)</li>
 	 * </ul>
 	 */
 	private final static Comparator<AbstractReminder> reminderOrderer =
@@ -83,7 +112,7 @@ public class ReminderService extends ExternalService implements MessageService
 				{
 					if (o2 instanceof Note)
 					{
-						return ((Long)o1.setTimestamp).compareTo(o2.setTimestamp);
+						return Long.compare(o1.id, o2.id);
 					}
 
 					return -1;
@@ -99,21 +128,38 @@ public class ReminderService extends ExternalService implements MessageService
 
 				if (r1.sendTimestamp == r2.sendTimestamp)
 				{
-					return ((Long)o1.setTimestamp).compareTo(o2.setTimestamp);
+					return Long.compare(o1.id, o2.id);
 				}
 
-				return ((Long)r1.sendTimestamp).compareTo(r2.sendTimestamp);
+				return Long.compare(r1.sendTimestamp, r2.sendTimestamp);
 			}
 		}
 	);
 	/**
-	 * <p>Notes and reminders, catalogued by user</p>
+	 * <p>Time of day, for reminders at a given time</p>
+	 */
+	private final static Pattern CLOCK = Pattern.compile("([01]?[0-9]|2[0-3]):([0-5][0-9])");
+	/**
+	 * <p>Delay, for reminders after a given time, such as <code>1h30m</code></p>
 	 */
-	private final Map<String, SortedSet<AbstractReminder>> userReminders = new TreeMap<>();
+	private final static Pattern DELAY = Pattern.compile(
+		"(?:([0-9]{1,4})d)?(?:([0-9]{1,5})h)?(?:([0-9]{1,6})m)?(?:([0-9]{1,7})s)?");
 	/**
-	 * <p>All the reminders, ordered by when they need to be sent out</p>
+	 * <p>Notes and reminders, catalogued by user; each user's are locked
+	 * by synchronising on their tree</p>
 	 */
-	private final SortedSet<Reminder> globalReminders = new TreeSet<>(reminderOrderer);
+	private final ConcurrentMap<String, OrderStatisticTree<AbstractReminder>> userReminders =
+		new ConcurrentHashMap<>();
+	/**
+	 * <p>Source of the ids of new notes and reminders, which are unique and
+	 * increase in order of creation</p>
+	 */
+	private final AtomicLong nextId = new AtomicLong(1);
+	/**
+	 * <p>Journal that notes and reminders are kept in, or null if they are
+	 * only kept in memory</p>
+	 */
+	private final ReminderJournal journal;
 
 	/**
 	 * <p>Base class for all reminders stored by the ReminderService</p>
@@ -121,6 +167,10 @@ public class ReminderService extends ExternalService implements MessageService
 	private static abstract class AbstractReminder
 	{
 
+		/**
+		 * <p>The unique id of the reminder</p>
+		 */
+		protected final long id;
 		/**
 		 * <p>The nick that created the reminder</p>
 		 */
@@ -136,15 +186,23 @@ public class ReminderService extends ExternalService implements MessageService
 
 		/**
 		 * <p>Creates a new instance of an AbstractReminder</p>
+		 * @param id the unique id of the reminder
+		 * @param setTimestamp when the reminder was created
 		 * @param nick the nick that created the reminder
 		 * @param data the text content of the reminder
 		 */
-		AbstractReminder(String nick, String data)
+		AbstractReminder(long id, long setTimestamp, String nick, String data)
 		{
+			this.id = id;
 			this.nick = nick;
 			this.data = data;
-			this.setTimestamp = System.currentTimeMillis();
+			this.setTimestamp = setTimestamp;
 		}
+
+		/**
+		 * @return the reminder, as it is stored in the journal
+		 */
+		abstract ReminderJournal.Entry toEntry();
 	}
 
 	/**
@@ -154,13 +212,21 @@ public class ReminderService extends ExternalService implements MessageService
 	{
 
 		/**
+		 * @param id the unique id of the reminder
+		 * @param setTimestamp when the reminder was created
 		 * @param nick the nick that created the reminder
 		 * @param data the text content of the reminder
 		 * @see AbstractReminder
 		 */
-		Note(String nick, String data)
+		Note(long id, long setTimestamp, String nick, String data)
 		{
-			super(nick, data);
+			super(id, setTimestamp, nick, data);
+		}
+
+		@Override
+		ReminderJournal.Entry toEntry()
+		{
+			return new ReminderJournal.Entry(id, setTimestamp, -1, nick, data);
 		}
 
 		@Override
@@ -180,28 +246,29 @@ public class ReminderService extends ExternalService implements MessageService
 		 * <p>When to send this reminder</p>
 		 */
 		final long sendTimestamp;
+		/**
+		 * <p>The job which sends this reminder</p>
+		 */
+		volatile Scheduler.Job job = null;
 
 		/**
 		 * <p>Creates a new reminder instance</p>
+		 * @param id the unique id of the reminder
+		 * @param setTimestamp when the reminder was created
 		 * @param sendTimestamp when to send this reminder
 		 * @param nick the nick that created the reminder
 		 * @param data the text content of the reminder
 		 */
-		protected Reminder(long sendTimestamp, String nick, String data)
+		protected Reminder(long id, long setTimestamp, long sendTimestamp, String nick, String data)
 		{
-			super(nick, data);
+			super(id, setTimestamp, nick, data);
 			this.sendTimestamp = sendTimestamp;
 		}
 
-		/**
-		 * <p>Creates a blank reminder object, which can be used to partition a
-		 * sorted tree into reminders that have occurred and those that have
-		 * not</p>
-		 */
-		protected Reminder()
+		@Override
+		ReminderJournal.Entry toEntry()
 		{
-			super(null, null);
-			sendTimestamp = System.currentTimeMillis();
+			return new ReminderJournal.Entry(id, setTimestamp, sendTimestamp, nick, data);
 		}
 
 		@Override
@@ -222,17 +289,71 @@ public class ReminderService extends ExternalService implements MessageService
 	public ReminderService(InternetRelayCat inst)
 	{
 		super(inst);
+
+		final String directory = System.getProperty("ReminderService.Directory");
+
+		if (directory == null || directory.isEmpty())
+		{
+			journal = null;
+			return;
+		}
+
+		journal = new ReminderJournal(new File(directory),
+			Long.getLong("ReminderService.Sync", 1000),
+			Integer.getInteger("ReminderService.Compact", 1000));
+
+		try
+		{
+			recover(journal.open());
+		}
+		catch (IOException ex)
+		{
+			log(Level.SEVERE, "Unable to read reminders from {0}", directory);
+			log(Level.SEVERE, ex);
+		}
+	}
+
+	/**
+	 * <p>Restores the notes and reminders read from the journal, scheduling
+	 * the reminders again (so any which fell due whilst the bot was not
+	 * running are sent straight away)</p>
+	 *
+	 * @param entries the notes and reminders
+	 */
+	private void recover(List<ReminderJournal.Entry> entries)
+	{
+		for (ReminderJournal.Entry e : entries)
+		{
+			if (e.isReminder())
+			{
+				final Reminder r = new Reminder(e.getId(), e.getCreated(), e.getDue(), e.getNick(), e.getText());
+				store(r);
+				schedule(r);
+			}
+			else
+			{
+				store(new Note(e.getId(), e.getCreated(), e.getNick(), e.getText()));
+			}
+
+			if (e.getId() >= nextId.get())
+			{
+				nextId.set(e.getId() + 1);
+			}
+		}
 	}
 
 	@Override
 	protected void startup(RelayCat r)
 	{
+		routed = MessageRouter.register(r, this, SERVICE_NAME);
+
 		List<HelpService> helpServices = r.getServicesByClass(HelpService.class);
 
 		if (!helpServices.isEmpty())
 		{
 			HelpService.HelpInfo help = new HelpService.HelpInfo("Reminder Service",
-				  "  add _time_ _message_    Not Yet Implemented\n"
+				  "  add _time_ _message_    Send you the message after a delay (such as 1h30m)\n"
+				+ "                          or at a time of day (such as 17:30)\n"
 				+ "  note _note text_        Add a static note with the given text\n"
 				+ "  list                    List all notes and alarms\n"
 				+ "  remove _index_          Remove a note or alarm, by the index in the list");
@@ -243,58 +364,87 @@ public class ReminderService extends ExternalService implements MessageService
 	@Override
 	public void shutdown()
 	{
-		synchronized (globalReminders)
+		for (OrderStatisticTree<AbstractReminder> reminders : userReminders.values())
 		{
-			globalReminders.clear();
+			final List<AbstractReminder> copy;
+
+			synchronized (reminders)
+			{
+				copy = reminders.toList();
+			}
+
+			for (AbstractReminder r : copy)
+			{
+				if (r instanceof Reminder && ((Reminder)r).job != null)
+				{
+					((Reminder)r).job.cancel();
+				}
+			}
+		}
+
+		if (journal != null)
+		{
+			journal.close();
 		}
 	}
 
 	@Override
-	@SuppressWarnings("SleepWhileInLoop")
 	public void run()
 	{
-		try
+		// Reminders are sent by the Scheduler
+	}
+
+	/**
+	 * <p>Sends a reminder which is due, unless it has been removed</p>
+	 *
+	 * @param r the reminder
+	 */
+	private void send(Reminder r)
+	{
+		final OrderStatisticTree<AbstractReminder> reminders = userReminders.get(r.nick);
+
+		if (reminders == null)
 		{
-			while (true)
-			{
-				synchronized (globalReminders)
-				{
-					// new Reminder() returns reminders reminder that is timestamped now
-					// Due to the ordering, the head set of this is all reminders
-					// that happened in the past
-					for (Reminder r : globalReminders.headSet(new Reminder()))
-					{
-						globalReminders.remove(r);
-						userReminders.get(r.nick).remove(r);
+			return;
+		}
 
-						this.getInstance().message(r.nick, r.data);
-					}
-				}
-				Thread.sleep(30000);
+		synchronized (reminders)
+		{
+			if (!reminders.remove(r))
+			{
+				return;
 			}
 		}
-		catch (InterruptedException ex)
+
+		if (journal != null)
 		{
+			journal.remove(r.id);
 		}
+
+		this.getInstance().message(r.nick, r.data);
 	}
 
 	@Override
-	@SuppressWarnings("fallthrough")
 	public void handle(Message m)
 	{
-		MessageTokeniser tokeniser = new MessageTokeniser(m.getMessage());
-		tokeniser.setConsumeWhitespace(true);
-
-		if (!tokeniser.consume(m.getNick() + ':') && m.getChannel() != null)
+		if (!routed)
 		{
-			return;
+			handle(m, Command.parse(m));
 		}
+	}
 
-		if (!tokeniser.consume(SERVICE_NAME))
+	@Override
+	@SuppressWarnings("fallthrough")
+	public void handle(Message m, Command command)
+	{
+		if (!command.is(SERVICE_NAME))
 		{
 			return;
 		}
 
+		MessageTokeniser tokeniser = new MessageTokeniser(command.getArgs());
+		tokeniser.setConsumeWhitespace(true);
+
 		Commands c;
 		try
 		{
@@ -334,37 +484,151 @@ public class ReminderService extends ExternalService implements MessageService
 	 */
 	private void add(Message m, String data)
 	{
-		m.reply("Not yet implemented (sorry!)");
+		MessageTokeniser tokeniser = new MessageTokeniser(data);
+		tokeniser.setConsumeWhitespace(true);
+
+		final long when = parseTime(tokeniser.nextToken(' '), System.currentTimeMillis());
+
+		if (when == -1 || tokeniser.isEmpty())
+		{
+			m.reply("The add function takes a time and a message, such as 'reminder add 1h30m tea'\r\n"
+				+ "See 'help reminder' for more information");
+			return;
+		}
+
+		final Reminder newReminder = new Reminder(nextId.getAndIncrement(), System.currentTimeMillis(),
+			when, m.getSender(), tokeniser.toString());
+		store(newReminder);
+		record(newReminder);
+		schedule(newReminder);
+
+		m.reply("Reminder set: " + newReminder);
 	}
 
 	/**
-	 * <p>Adds a new note</p>
-	 * @param m message that contained this command
-	 * @param data parameters to the command
+	 * <p>Schedules the job which sends a reminder</p>
+	 * @param r the reminder
 	 */
-	private void note(Message m, String data)
+	private void schedule(final Reminder r)
 	{
-		Note newNote = new Note(m.getSender(), data);
-		synchronized (globalReminders)
+		r.job = Scheduler.schedule(r.sendTimestamp, new Runnable()
 		{
-			if (!userReminders.containsKey(m.getSender()))
+			@Override
+			public void run()
 			{
-				TreeSet<AbstractReminder> newUserSet = new TreeSet<>(reminderOrderer);
-				newUserSet.add(newNote);
-				userReminders.put(m.getSender(), newUserSet);
+				send(r);
 			}
-			else
+
+			@Override
+			public String toString()
 			{
-				userReminders.get(m.getSender()).add(newNote);
+				return "Reminder [" + r.nick + ']';
 			}
+		});
+	}
+
+	/**
+	 * <p>Works out when a reminder is for</p>
+	 * @param time a delay, such as <code>1h30m</code>, or a time of day, such
+	 * as <code>17:30</code>, which is taken to be the next such time
+	 * @param now the current time
+	 * @return the time of the reminder, or -1 if the time is not valid
+	 */
+	static long parseTime(String time, long now)
+	{
+		if (time == null || time.isEmpty())
+		{
+			return -1;
 		}
-		try
+
+		final Matcher clock = CLOCK.matcher(time);
+
+		if (clock.matches())
+		{
+			Calendar c = Calendar.getInstance();
+			c.setTimeInMillis(now);
+			c.set(Calendar.HOUR_OF_DAY, Integer.parseInt(clock.group(1)));
+			c.set(Calendar.MINUTE, Integer.parseInt(clock.group(2)));
+			c.set(Calendar.SECOND, 0);
+			c.set(Calendar.MILLISECOND, 0);
+
+			if (c.getTimeInMillis() <= now)
+			{
+				c.add(Calendar.DAY_OF_MONTH, 1);
+			}
+
+			return c.getTimeInMillis();
+		}
+
+		final Matcher delay = DELAY.matcher(time);
+
+		if (!delay.matches())
 		{
-			Thread.sleep(2);
+			return -1;
+		}
+
+		final TimeUnit[] units = {TimeUnit.DAYS, TimeUnit.HOURS, TimeUnit.MINUTES, TimeUnit.SECONDS};
+		long millis = 0;
+
+		for (int i = 0; i < units.length; ++i)
+		{
+			if (delay.group(i + 1) != null)
+			{
+				millis += units[i].toMillis(Long.parseLong(delay.group(i + 1)));
+			}
 		}
-		catch (InterruptedException ex)
+
+		return millis == 0 ? -1 : now + millis;
+	}
+
+	/**
+	 * <p>Adds a note or reminder to its user's list</p>
+	 * @param r the note or reminder
+	 */
+	private void store(AbstractReminder r)
+	{
+		OrderStatisticTree<AbstractReminder> reminders = userReminders.get(r.nick);
+
+		if (reminders == null)
+		{
+			final OrderStatisticTree<AbstractReminder> created = new OrderStatisticTree<>(reminderOrderer);
+
+			reminders = userReminders.putIfAbsent(r.nick, created);
+
+			if (reminders == null)
+			{
+				reminders = created;
+			}
+		}
+
+		synchronized (reminders)
+		{
+			reminders.add(r);
+		}
+	}
+
+	/**
+	 * <p>Writes a new note or reminder to the journal, if there is one</p>
+	 * @param r the note or reminder
+	 */
+	private void record(AbstractReminder r)
+	{
+		if (journal != null)
 		{
+			journal.add(r.toEntry());
 		}
+	}
+
+	/**
+	 * <p>Adds a new note</p>
+	 * @param m message that contained this command
+	 * @param data parameters to the command
+	 */
+	private void note(Message m, String data)
+	{
+		Note newNote = new Note(nextId.getAndIncrement(), System.currentTimeMillis(), m.getSender(), data);
+		store(newNote);
+		record(newNote);
 		m.reply("Note Created");
 	}
 
@@ -374,30 +638,33 @@ public class ReminderService extends ExternalService implements MessageService
 	 */
 	private void list(Message m)
 	{
-		synchronized (globalReminders)
+		final OrderStatisticTree<AbstractReminder> reminders = userReminders.get(m.getSender());
+		final List<AbstractReminder> userList;
+
+		if (reminders == null)
 		{
-			SortedSet<AbstractReminder> userSet;
-			if (!userReminders.containsKey(m.getSender()))
-			{
-				userSet = new TreeSet<>();
-			}
-			else
+			userList = Collections.emptyList();
+		}
+		else
+		{
+			// Copied, so the lock is not held whilst replying
+			synchronized (reminders)
 			{
-				userSet = userReminders.get(m.getSender());
+				userList = reminders.toList();
 			}
+		}
 
-			if (userSet.isEmpty())
-			{
-				m.reply("You have no active reminders.");
-			}
-			else
+		if (userList.isEmpty())
+		{
+			m.reply("You have no active reminders.");
+		}
+		else
+		{
+			m.reply("Active Reminders for " + m.getSender() + " (" + userList.size() + "):");
+			int i = 0;
+			for (AbstractReminder r : userList)
 			{
-				m.reply("Active Reminders for " + m.getSender() + " (" + userSet.size() + "):");
-				int i = 0;
-				for (AbstractReminder r : userSet)
-				{
-					m.reply(String.format("%3d: %s", ++i, r));
-				}
+				m.reply(String.format("%3d: %s", ++i, r));
 			}
 		}
 	}
@@ -421,36 +688,42 @@ public class ReminderService extends ExternalService implements MessageService
 			return;
 		}
 
-		synchronized (globalReminders)
+		final OrderStatisticTree<AbstractReminder> reminders = userReminders.get(m.getSender());
+		final AbstractReminder toRemove;
+
+		if (reminders == null)
 		{
-			SortedSet<AbstractReminder> reminders = userReminders.get(m.getSender());
+			m.reply("You have no reminders to remove");
+			return;
+		}
 
-			if (reminders == null)
-			{
-				m.reply("You have no reminders to remove");
-				return;
-			}
+		synchronized (reminders)
+		{
 			if (index < 1 || index > reminders.size())
 			{
-				m.reply(String.format("Index %d out of range - see 'reminder list'", index));
-				return;
+				toRemove = null;
 			}
-
-			Iterator<AbstractReminder> it = reminders.iterator();
-			AbstractReminder toRemove = null;
-
-			while (--index >= 0)
+			else
 			{
-				toRemove = it.next();
+				toRemove = reminders.removeAt(index - 1);
 			}
+		}
 
-			reminders.remove(toRemove);
-			if (toRemove instanceof Reminder)
-			{
-				globalReminders.remove((Reminder)toRemove);
-			}
+		if (toRemove == null)
+		{
+			m.reply(String.format("Index %d out of range - see 'reminder list'", index));
+			return;
+		}
 
-			m.reply("Reminder removed.");
+		if (journal != null)
+		{
+			journal.remove(toRemove.id);
 		}
+		if (toRemove instanceof Reminder && ((Reminder)toRemove).job != null)
+		{
+			((Reminder)toRemove).job.cancel();
+		}
+
+		m.reply("Reminder removed.");
 	}
 }
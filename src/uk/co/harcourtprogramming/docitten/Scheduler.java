@@ -0,0 +1,583 @@
+package uk.co.harcourtprogramming.docitten;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import uk.co.harcourtprogramming.docitten.utility.TimingWheel;
+import uk.co.harcourtprogramming.logging.LogDecorator;
+
+/**
+ * <p>Shared scheduler for the periodic and timed jobs of the services</p>
+ * <p>Rather than each service keeping a thread of its own, which sleeps in a
+ * loop and wakes up now and again to see if there is anything to do, jobs
+ * are registered here. A single timer thread keeps them in a {@link
+ * TimingWheel} and sleeps until exactly when the next one is due; due jobs
+ * are then run on a small pool of threads, so that a slow job does not hold
+ * up the others.</p>
+ * <ul>
+ *  <li>{@link #schedule(long, Runnable) One off} jobs run once, at a given
+ * time or after a given delay.</li>
+ *  <li>{@link #repeat(long, long, TimeUnit, Runnable) Repeating} jobs run
+ * straight away, and then again a fixed delay after each run finishes, plus
+ * up to a given amount of random jitter, so that services started together
+ * do not all wake up together.</li>
+ *  <li>{@link #daily(int, int, TimeZone, Runnable) Daily} jobs run at a
+ * given time of day.</li>
+ * </ul>
+ * <p>A job is never run twice at once. Exceptions which escape a job are
+ * logged, and a repeating job carries on.</p>
+ * <p>When the bot exits, the scheduler stops, and the {@link
+ * #onShutdown(Runnable) shutdown hooks} registered with it are run, most
+ * recent first.</p>
+ * <p>The pool is configured with the system property
+ * <code>Scheduler.Threads</code> (default 2), which is read when the first
+ * job is registered.</p>
+ *
+ * @author Benedict Harcourt / javajawa
+ */
+public final class Scheduler
+{
+	/**
+	 * <p>Logger for the scheduler</p>
+	 */
+	private final static LogDecorator LOG = LogDecorator.getLogger("DoCitten.Scheduler");
+	/**
+	 * <p>Thread group for running jobs in</p>
+	 */
+	private final static ThreadGroup THREAD_GROUP = new ThreadGroup("Scheduler")
+	{
+		@Override
+		public void uncaughtException(Thread t, Throwable e)
+		{
+			LOG.uncaught(t, e);
+		}
+	};
+	/**
+	 * <p>Default number of threads for running jobs</p>
+	 */
+	private final static int DEFAULT_THREADS = 2;
+	/**
+	 * <p>Hooks to run when the scheduler is shut down, most recent first</p>
+	 */
+	private final static Deque<Runnable> hooks = new ConcurrentLinkedDeque<>();
+	/**
+	 * <p>Whether the timer has been started</p>
+	 */
+	private static volatile boolean started = false;
+
+	static
+	{
+		// Registered here, rather than when the timer starts, so that the
+		// shutdown hooks are run even if no job is ever scheduled
+		Runtime.getRuntime().addShutdownHook(new Thread("Scheduler-Shutdown")
+		{
+			@Override
+			public void run()
+			{
+				Scheduler.shutdown();
+			}
+		});
+	}
+
+	/**
+	 * <p>Lazy holder for the timer, so that it is only started (and the system
+	 * properties read) when the first job is registered</p>
+	 */
+	private final static class Holder
+	{
+		/**
+		 * <p>The shared timer</p>
+		 */
+		private final static Timer TIMER = Timer.start();
+	}
+
+	/**
+	 * <p>Private constructor for utility class</p>
+	 */
+	private Scheduler()
+	{
+		// Nothing to see here. Move along, citizen!
+	}
+
+	/**
+	 * <p>Works out when a job runs next</p>
+	 */
+	private interface Timing
+	{
+		/**
+		 * @param now the current time
+		 * @return when the job next runs, or -1 if it does not run again
+		 */
+		long next(long now);
+	}
+
+	/**
+	 * <p>A job registered with the scheduler</p>
+	 */
+	public final static class Job
+	{
+		/**
+		 * <p>What the job does</p>
+		 */
+		private final Runnable task;
+		/**
+		 * <p>When the job runs again after each run</p>
+		 */
+		private final Timing timing;
+		/**
+		 * <p>Runs the job on the pool</p>
+		 */
+		private final Runnable runner = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				execute();
+			}
+
+			@Override
+			public String toString()
+			{
+				return Job.this.toString();
+			}
+		};
+		/**
+		 * <p>Whether the job is running</p>
+		 */
+		private final AtomicBoolean running = new AtomicBoolean();
+		/**
+		 * <p>When the job is next due</p>
+		 */
+		private volatile long due;
+		/**
+		 * <p>Whether the job has been cancelled</p>
+		 */
+		private volatile boolean cancelled = false;
+		/**
+		 * <p>The job's place in the wheel; only used by the timer thread</p>
+		 */
+		private TimingWheel.Timeout<Job> timeout = null;
+
+		/**
+		 * <p>Creates a job</p>
+		 *
+		 * @param task what the job does
+		 * @param timing when the job runs again after each run
+		 * @param due when the job is first due
+		 */
+		private Job(Runnable task, Timing timing, long due)
+		{
+			this.task = task;
+			this.timing = timing;
+			this.due = due;
+		}
+
+		/**
+		 * <p>Runs the task, and schedules the next run</p>
+		 */
+		private void execute()
+		{
+			if (cancelled || !running.compareAndSet(false, true))
+			{
+				return;
+			}
+
+			try
+			{
+				task.run();
+			}
+			catch (RuntimeException ex)
+			{
+				LOG.warning(ex, "Scheduled job {0} failed", this);
+			}
+			finally
+			{
+				running.set(false);
+			}
+
+			final long next = timing.next(System.currentTimeMillis());
+
+			if (next != -1 && !cancelled)
+			{
+				due = next;
+				Holder.TIMER.post(this);
+			}
+		}
+
+		/**
+		 * <p>Stops the job from running again</p>
+		 * <p>If the job is running, that run finishes.</p>
+		 */
+		public void cancel()
+		{
+			cancelled = true;
+			Holder.TIMER.post(this);
+		}
+
+		/**
+		 * @return whether the job has been cancelled
+		 */
+		public boolean isCancelled()
+		{
+			return cancelled;
+		}
+
+		/**
+		 * <p>Runs the job as soon as possible, instead of when it is next
+		 * due</p>
+		 * <p>Nothing happens if the job is already running. A repeating or
+		 * daily job carries on from when this run finishes.</p>
+		 */
+		public void runNow()
+		{
+			if (!cancelled)
+			{
+				due = System.currentTimeMillis();
+				Holder.TIMER.post(this);
+			}
+		}
+
+		/**
+		 * @return when the job is next due, from {@link
+		 * System#currentTimeMillis()}
+		 */
+		public long getDue()
+		{
+			return due;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Job [" + task + ']';
+		}
+	}
+
+	/**
+	 * <p>Registers a job to run once, at a given time</p>
+	 *
+	 * @param time when to run the job, from {@link
+	 * System#currentTimeMillis()}
+	 * @param task what the job does
+	 * @return the job
+	 */
+	public static Job schedule(long time, Runnable task)
+	{
+		return register(new Job(task, ONCE, time));
+	}
+
+	/**
+	 * <p>Registers a job to run once, after a delay</p>
+	 *
+	 * @param delay how long to wait before running the job
+	 * @param unit the unit of the delay
+	 * @param task what the job does
+	 * @return the job
+	 */
+	public static Job schedule(long delay, TimeUnit unit, Runnable task)
+	{
+		return schedule(System.currentTimeMillis() + unit.toMillis(delay), task);
+	}
+
+	/**
+	 * <p>Registers a job to run straight away, and then repeatedly, with a
+	 * fixed delay after each run finishes</p>
+	 *
+	 * @param delay the delay between the end of one run and the start of the
+	 * next
+	 * @param jitter the largest random amount to add to each delay
+	 * @param unit the unit of the delay and jitter
+	 * @param task what the job does
+	 * @return the job
+	 */
+	public static Job repeat(long delay, long jitter, TimeUnit unit, Runnable task)
+	{
+		final long period = unit.toMillis(delay);
+		final long spread = unit.toMillis(jitter);
+
+		return register(new Job(task, new Timing()
+		{
+			@Override
+			public long next(long now)
+			{
+				return now + period + (spread > 0 ? ThreadLocalRandom.current().nextLong(spread + 1) : 0);
+			}
+		}, System.currentTimeMillis()));
+	}
+
+	/**
+	 * <p>Registers a job to run every day at a given time</p>
+	 *
+	 * @param hour the hour of the day (0 to 23)
+	 * @param minute the minute of the hour
+	 * @param tz the time zone that the time is in
+	 * @param task what the job does
+	 * @return the job
+	 */
+	public static Job daily(final int hour, final int minute, final TimeZone tz, Runnable task)
+	{
+		final Timing timing = new Timing()
+		{
+			@Override
+			public long next(long now)
+			{
+				return nextDaily(hour, minute, tz, now);
+			}
+		};
+
+		return register(new Job(task, timing, timing.next(System.currentTimeMillis())));
+	}
+
+	/**
+	 * <p>Works out the next time that a given time of day comes round</p>
+	 *
+	 * @param hour the hour of the day (0 to 23)
+	 * @param minute the minute of the hour
+	 * @param tz the time zone that the time is in
+	 * @param now the current time
+	 * @return the first such time after now
+	 */
+	static long nextDaily(int hour, int minute, TimeZone tz, long now)
+	{
+		final Calendar c = Calendar.getInstance(tz);
+
+		c.setTimeInMillis(now);
+		c.set(Calendar.HOUR_OF_DAY, hour);
+		c.set(Calendar.MINUTE, minute);
+		c.set(Calendar.SECOND, 0);
+		c.set(Calendar.MILLISECOND, 0);
+
+		if (c.getTimeInMillis() <= now)
+		{
+			c.add(Calendar.DAY_OF_MONTH, 1);
+		}
+
+		return c.getTimeInMillis();
+	}
+
+	/**
+	 * <p>Registers a hook to run when the scheduler is shut down</p>
+	 * <p>Hooks are run in the reverse order of registration, on the thread
+	 * which shuts the scheduler down; this is done when the JVM exits, whether
+	 * or not any jobs have been scheduled.</p>
+	 *
+	 * @param hook the hook
+	 */
+	public static void onShutdown(Runnable hook)
+	{
+		hooks.push(hook);
+	}
+
+	/**
+	 * <p>Stops the scheduler, and runs the shutdown hooks</p>
+	 * <p>This is done automatically when the JVM exits. Jobs which are
+	 * already running are left to finish; no more are started.</p>
+	 */
+	public static void shutdown()
+	{
+		// Touching the holder would start a timer just to stop it
+		if (started)
+		{
+			Holder.TIMER.stop();
+		}
+
+		Runnable hook;
+
+		while ((hook = hooks.poll()) != null)
+		{
+			try
+			{
+				hook.run();
+			}
+			catch (RuntimeException ex)
+			{
+				LOG.warning(ex, "Shutdown hook {0} failed", hook);
+			}
+		}
+	}
+
+	/**
+	 * @param job a new job
+	 * @return the job, having passed it to the timer
+	 */
+	private static Job register(Job job)
+	{
+		Holder.TIMER.post(job);
+		return job;
+	}
+
+	/**
+	 * <p>Timing of one off jobs</p>
+	 */
+	private final static Timing ONCE = new Timing()
+	{
+		@Override
+		public long next(long now)
+		{
+			return -1;
+		}
+	};
+
+	/**
+	 * <p>The timer thread, which owns the wheel</p>
+	 */
+	private final static class Timer implements Runnable
+	{
+		/**
+		 * <p>Jobs which have been registered, rescheduled or cancelled since
+		 * the timer last looked</p>
+		 */
+		private final Queue<Job> changes = new ConcurrentLinkedQueue<>();
+		/**
+		 * <p>The pool which runs the jobs</p>
+		 */
+		private final ThreadPoolExecutor pool;
+		/**
+		 * <p>The timer thread</p>
+		 */
+		private final Thread thread;
+		/**
+		 * <p>Whether the timer is running</p>
+		 */
+		private volatile boolean running = true;
+
+		/**
+		 * <p>Creates a timer</p>
+		 *
+		 * @param threads number of threads for running jobs
+		 */
+		private Timer(int threads)
+		{
+			this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new JobFactory());
+			this.thread = new Thread(THREAD_GROUP, this, "Scheduler-Timer");
+			this.thread.setDaemon(true);
+		}
+
+		/**
+		 * <p>Creates and starts the timer</p>
+		 *
+		 * @return the timer
+		 */
+		static Timer start()
+		{
+			final int threads = Math.max(1, Integer.getInteger("Scheduler.Threads", DEFAULT_THREADS));
+
+			LOG.info("Starting scheduler with {0} threads", threads);
+
+			final Timer timer = new Timer(threads);
+			timer.thread.start();
+			started = true;
+
+			return timer;
+		}
+
+		/**
+		 * <p>Passes a new, rescheduled or cancelled job to the timer
+		 * thread</p>
+		 *
+		 * @param job the job
+		 */
+		void post(Job job)
+		{
+			changes.add(job);
+			LockSupport.unpark(thread);
+		}
+
+		/**
+		 * <p>Stops the timer</p>
+		 */
+		void stop()
+		{
+			running = false;
+			LockSupport.unpark(thread);
+			pool.shutdown();
+		}
+
+		@Override
+		public void run()
+		{
+			final TimingWheel<Job> wheel = new TimingWheel<>(System.currentTimeMillis());
+			final List<Job> due = new ArrayList<>();
+
+			while (running)
+			{
+				Job job;
+
+				while ((job = changes.poll()) != null)
+				{
+					if (job.timeout != null)
+					{
+						wheel.cancel(job.timeout);
+						job.timeout = null;
+					}
+
+					if (!job.cancelled)
+					{
+						job.timeout = wheel.schedule(job.due, job);
+					}
+				}
+
+				wheel.advance(System.currentTimeMillis(), due);
+
+				for (Job d : due)
+				{
+					d.timeout = null;
+
+					if (!d.cancelled && running)
+					{
+						pool.execute(d.runner);
+					}
+				}
+				due.clear();
+
+				if (changes.isEmpty())
+				{
+					final long next = wheel.getNextEvent();
+
+					if (next == Long.MAX_VALUE)
+					{
+						LockSupport.park(this);
+					}
+					else
+					{
+						LockSupport.parkUntil(this, next);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Thread factory which creates daemon threads in the {@link
+	 * #THREAD_GROUP scheduler group}</p>
+	 */
+	private final static class JobFactory implements ThreadFactory
+	{
+		/**
+		 * <p>Counter for naming the threads</p>
+		 */
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			final Thread t = new Thread(THREAD_GROUP, r, "Scheduler-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
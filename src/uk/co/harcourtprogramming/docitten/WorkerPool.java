@@ -0,0 +1,404 @@
+package uk.co.harcourtprogramming.docitten;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import uk.co.harcourtprogramming.logging.LogDecorator;
+
+/**
+ * <p>Shared, bounded pool for the background network workers</p>
+ * <p>Rather than each resolver being a thread of its own, resolvers are
+ * submitted as tasks to a fixed number of worker threads with a bounded
+ * queue in front of them. If the queue is full, the task is dropped (and
+ * counted) rather than blocking the thread that submitted it, which is
+ * usually the IRC thread.</p>
+ * <p>The pool is configured with the system properties:</p>
+ * <ul>
+ *  <li><code>Workers.Mode</code> - <code>platform</code> (the default) for a
+ * fixed pool of threads, or <code>virtual</code> to run each task on its own
+ * virtual thread</li>
+ *  <li><code>Workers.Threads</code> - number of worker threads (default 8)</li>
+ *  <li><code>Workers.Queue</code> - number of tasks that may wait for a
+ * worker (default 64)</li>
+ *  <li><code>Workers.Virtual.Limit</code> - in virtual mode, the number of
+ * tasks which may be running at once (default 1024)</li>
+ * </ul>
+ * <p>Virtual threads need a Java 21 runtime; they are found reflectively, and
+ * the platform pool is used if they are not available.</p>
+ * <p>These are read when the first task is submitted, so can be set from
+ * docittenrc with the <code>set</code> command before services are loaded.</p>
+ *
+ * @author Benedict Harcourt / javajawa
+ */
+public final class WorkerPool
+{
+	/**
+	 * <p>Logger for the worker pool</p>
+	 */
+	private final static LogDecorator LOG = LogDecorator.getLogger("DoCitten.WorkerPool");
+	/**
+	 * <p>Thread group for running workers in</p>
+	 * <p>Exceptions which escape a task are handed to this group, so that they
+	 * are logged without killing the worker thread</p>
+	 */
+	private final static ThreadGroup THREAD_GROUP = new ThreadGroup("Workers")
+	{
+		@Override
+		public void uncaughtException(Thread t, Throwable e)
+		{
+			LOG.uncaught(t, e);
+		}
+	};
+	/**
+	 * <p>Default number of worker threads</p>
+	 */
+	private final static int DEFAULT_THREADS = 8;
+	/**
+	 * <p>Default number of tasks which may be queued waiting for a worker</p>
+	 */
+	private final static int DEFAULT_QUEUE = 64;
+	/**
+	 * <p>Default number of tasks that may be running at once in virtual
+	 * mode</p>
+	 */
+	private final static int DEFAULT_VIRTUAL_LIMIT = 1024;
+	/**
+	 * <p>Time that an idle worker thread is kept alive for</p>
+	 */
+	private final static long KEEP_ALIVE = 60;
+	/**
+	 * <p>Count of tasks that have been dropped as the queue was full</p>
+	 */
+	private final static AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * <p>Lazy holder for the executor, so that it is only created (and the
+	 * system properties read) when the first task is submitted</p>
+	 */
+	private final static class Holder
+	{
+		/**
+		 * <p>The shared executor</p>
+		 */
+		private final static Executor EXECUTOR = createExecutor();
+	}
+
+	/**
+	 * <p>Private constructor for utility class</p>
+	 */
+	private WorkerPool()
+	{
+		// Nothing to see here. Move along, citizen!
+	}
+
+	/**
+	 * <p>Creates the executor from the current system properties</p>
+	 *
+	 * @return the new executor
+	 */
+	private static Executor createExecutor()
+	{
+		if ("virtual".equalsIgnoreCase(System.getProperty("Workers.Mode")))
+		{
+			final ThreadFactory factory = createVirtualThreadFactory();
+
+			if (factory != null)
+			{
+				final int limit = Math.max(1, Integer.getInteger("Workers.Virtual.Limit", DEFAULT_VIRTUAL_LIMIT));
+
+				LOG.info("Starting virtual thread workers, limited to {0} tasks", limit);
+
+				return new VirtualExecutor(factory, limit);
+			}
+		}
+
+		final int threads = Math.max(1, Integer.getInteger("Workers.Threads", DEFAULT_THREADS));
+		final int queue   = Math.max(1, Integer.getInteger("Workers.Queue", DEFAULT_QUEUE));
+
+		LOG.info("Starting worker pool with {0} threads, queue of {1}", threads, queue);
+
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+			threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(queue),
+			new WorkerFactory()
+		);
+		executor.allowCoreThreadTimeOut(true);
+
+		return executor;
+	}
+
+	/**
+	 * <p>Creates a thread factory for virtual threads</p>
+	 * <p>This is the equivalent of
+	 * <code>Thread.ofVirtual().name("VirtualWorker-", 1).uncaughtExceptionHandler(THREAD_GROUP).factory()</code>,
+	 * looked up via reflection so that DoCitten still builds and runs on older
+	 * versions of Java.</p>
+	 *
+	 * @return the thread factory, or null if virtual threads are not
+	 * available
+	 */
+	private static ThreadFactory createVirtualThreadFactory()
+	{
+		try
+		{
+			final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+
+			builder = builderClass.getMethod("name", String.class, long.class)
+				.invoke(builder, "VirtualWorker-", 1L);
+			builder = builderClass.getMethod("uncaughtExceptionHandler", Thread.UncaughtExceptionHandler.class)
+				.invoke(builder, THREAD_GROUP);
+
+			return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+		}
+		catch (ReflectiveOperationException ex)
+		{
+			LOG.warning("Virtual threads are not available in this JVM, using platform threads");
+			return null;
+		}
+	}
+
+	/**
+	 * <p>Submits a task to be run on the worker pool</p>
+	 * <p>This never blocks; if the queue is full the task is dropped and the
+	 * {@link #getDropped() dropped count} is incremented.</p>
+	 *
+	 * @param task the task to run
+	 * @return whether the task was accepted
+	 */
+	public static boolean submit(Runnable task)
+	{
+		try
+		{
+			Holder.EXECUTOR.execute(new Task(task));
+			return true;
+		}
+		catch (RejectedExecutionException ex)
+		{
+			final long count = dropped.incrementAndGet();
+
+			// Only shout about the first drop, and then occasionally, so that
+			// a flood does not get echoed into the log as well
+			if (count == 1 || count % 100 == 0)
+			{
+				LOG.warning("Worker queue full, dropped {0} ({1} dropped in total)", task, count);
+			}
+			else
+			{
+				LOG.fine("Worker queue full, dropped {0}", task);
+			}
+
+			return false;
+		}
+	}
+
+	/**
+	 * <p>Gets the number of tasks that have been dropped because the queue
+	 * was full</p>
+	 *
+	 * @return the number of dropped tasks
+	 */
+	public static long getDropped()
+	{
+		return dropped.get();
+	}
+
+	/**
+	 * <p>Gets the number of tasks currently waiting for a worker</p>
+	 *
+	 * @return the length of the queue (always zero in virtual mode)
+	 */
+	public static int getQueued()
+	{
+		if (Holder.EXECUTOR instanceof ThreadPoolExecutor)
+		{
+			return ((ThreadPoolExecutor)Holder.EXECUTOR).getQueue().size();
+		}
+
+		return 0;
+	}
+
+	/**
+	 * <p>Gets the number of workers currently running a task</p>
+	 *
+	 * @return the number of active workers
+	 */
+	public static int getActive()
+	{
+		if (Holder.EXECUTOR instanceof ThreadPoolExecutor)
+		{
+			return ((ThreadPoolExecutor)Holder.EXECUTOR).getActiveCount();
+		}
+
+		return ((VirtualExecutor)Holder.EXECUTOR).getActive();
+	}
+
+	/**
+	 * <p>Thread factory which creates daemon threads in the {@link
+	 * #THREAD_GROUP workers group}</p>
+	 */
+	private final static class WorkerFactory implements ThreadFactory
+	{
+		/**
+		 * <p>Counter for naming the threads</p>
+		 */
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			final Thread t = new Thread(THREAD_GROUP, r, "Worker-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	/**
+	 * <p>Executor which starts a new virtual thread for every task</p>
+	 * <p>Virtual threads are cheap enough that there is no need to pool them,
+	 * but the number running at once is still capped so that a flood can not
+	 * open an unbounded number of connections. Tasks over the limit are
+	 * rejected, as with a full queue in the platform pool.</p>
+	 */
+	final static class VirtualExecutor implements Executor
+	{
+		/**
+		 * <p>Factory for the virtual threads</p>
+		 */
+		private final ThreadFactory factory;
+		/**
+		 * <p>Permits for running tasks</p>
+		 */
+		private final Semaphore permits;
+		/**
+		 * <p>The total number of permits</p>
+		 */
+		private final int limit;
+
+		/**
+		 * <p>Creates a new virtual thread executor</p>
+		 *
+		 * @param factory factory for the virtual threads
+		 * @param limit the maximum number of tasks to run at once
+		 */
+		VirtualExecutor(ThreadFactory factory, int limit)
+		{
+			this.factory = factory;
+			this.permits = new Semaphore(limit);
+			this.limit   = limit;
+		}
+
+		@Override
+		public void execute(final Runnable task)
+		{
+			if (!permits.tryAcquire())
+			{
+				throw new RejectedExecutionException();
+			}
+
+			final Runnable wrapped = new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						task.run();
+					}
+					finally
+					{
+						permits.release();
+					}
+				}
+			};
+
+			// If the thread never starts, the wrapper can not hand the
+			// permit back, so it is done here
+			try
+			{
+				final Thread t = factory.newThread(wrapped);
+
+				if (t == null)
+				{
+					throw new RejectedExecutionException("No thread for " + task);
+				}
+
+				t.start();
+			}
+			catch (RejectedExecutionException ex)
+			{
+				permits.release();
+				throw ex;
+			}
+			catch (RuntimeException | OutOfMemoryError ex)
+			{
+				// Thread creation reports running out of threads as OOM
+				permits.release();
+				throw new RejectedExecutionException(ex);
+			}
+		}
+
+		/**
+		 * <p>Gets the number of tasks that are running</p>
+		 *
+		 * @return the number of running tasks
+		 */
+		int getActive()
+		{
+			return limit - permits.availablePermits();
+		}
+	}
+
+	/**
+	 * <p>Wrapper for a submitted task</p>
+	 * <p>Whilst the task is running, the worker thread is named after it (so
+	 * log entries are as informative as when each resolver had its own
+	 * thread), and any exception is passed to the {@link #THREAD_GROUP thread
+	 * group} instead of killing the worker.</p>
+	 */
+	private final static class Task implements Runnable
+	{
+		/**
+		 * <p>The submitted task</p>
+		 */
+		private final Runnable task;
+
+		/**
+		 * <p>Wraps a task</p>
+		 *
+		 * @param task the submitted task
+		 */
+		Task(Runnable task)
+		{
+			this.task = task;
+		}
+
+		@Override
+		public void run()
+		{
+			final Thread self = Thread.currentThread();
+			final String name = self.getName();
+
+			self.setName(task.toString());
+
+			try
+			{
+				task.run();
+			}
+			catch (RuntimeException ex)
+			{
+				THREAD_GROUP.uncaughtException(self, ex);
+			}
+			finally
+			{
+				self.setName(name);
+			}
+		}
+	}
+}
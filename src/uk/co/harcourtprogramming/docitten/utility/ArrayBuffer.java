@@ -8,7 +8,10 @@ import java.lang.reflect.Array;
  *
  * @author Benedict Harcourt / javajawa
  * @param <T> content type of this buffer
+ * @deprecated every access takes the buffer's lock; use {@link RingBuffer},
+ * which does not, and can copy out all of its elements at once
  */
+@Deprecated
 public class ArrayBuffer<T>
 {
 
@@ -0,0 +1,743 @@
+package uk.co.harcourtprogramming.docitten.utility;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * <p>Single pass extractor for the links in a chat message</p>
+ * <p>Every channel message is checked for links, and nearly none of them have
+ * any. Rather than running a separate regular expression for each kind of
+ * link, the message is walked once from left to right, and at each character
+ * only the kinds of link which could start there are tried:</p>
+ * <ul>
+ *  <li>web links, at the start of a word (optionally wrapped in
+ * <code>(</code> and <code>[</code>), with or without a <code>http://</code>
+ * or <code>https://</code> protocol. The host must end in one of the
+ * configured top-level domains, or be one of a few well known short
+ * hosts.</li>
+ *  <li>any <code>http://</code> or <code>https://</code> link, wherever it
+ * is</li>
+ *  <li><code>spotify:</code> uris</li>
+ *  <li><code>gif:</code> and <code>giphy:</code> searches, either a single
+ * word or a "quoted phrase"</li>
+ * </ul>
+ * <p>The links are returned as {@link Spans spans} into the message, rather
+ * than as copies of the text. The spans are owned by the calling thread and
+ * re-used by its next call, so a message with no links causes no allocations
+ * at all. The extractor itself is immutable, and may be shared between
+ * threads.</p>
+ * <p>The {@link #getShared() shared extractor} takes its list of top-level
+ * domains from the system property <code>LinkExtractor.Domains</code>, a
+ * comma separated list (default
+ * <code>com,net,org,uk,edu,io</code>).</p>
+ *
+ * @author Benedict Harcourt / javajawa
+ */
+public final class LinkExtractor
+{
+	/**
+	 * <p>Default top-level domains that a web link may end in</p>
+	 */
+	private final static String DEFAULT_DOMAINS = "com,net,org,uk,edu,io";
+	/**
+	 * <p>Hosts that are matched as links on their own</p>
+	 */
+	private final static String[] HOSTS = {"www", "is.gd", "bit.ly", "t.co"};
+
+	/**
+	 * <p>Lazy holder for the shared extractor, so that the system properties
+	 * are read when it is first used</p>
+	 */
+	private final static class Holder
+	{
+		/**
+		 * <p>The shared extractor</p>
+		 */
+		private final static LinkExtractor SHARED = new LinkExtractor(
+			System.getProperty("LinkExtractor.Domains", DEFAULT_DOMAINS).split("\\s*,\\s*")
+		);
+	}
+
+	/**
+	 * <p>The kinds of link which are extracted</p>
+	 */
+	public enum Kind
+	{
+		/**
+		 * <p>A web link, with or without its protocol</p>
+		 */
+		WEB,
+		/**
+		 * <p>A <code>spotify:</code> uri</p>
+		 */
+		SPOTIFY,
+		/**
+		 * <p>The search term of a <code>gif:</code> or <code>giphy:</code>
+		 * search, without any quotes</p>
+		 */
+		GIPHY
+	}
+
+	/**
+	 * <p>The links found in a message, as the start and end index of each
+	 * link</p>
+	 * <p>Each thread has one instance, which is re-used every time that thread
+	 * {@link #extract(String) extracts} links, so the spans must be read (or
+	 * copied) before the next call.</p>
+	 */
+	public final static class Spans
+	{
+		/**
+		 * <p>Cached values of {@link Kind#values()}</p>
+		 */
+		private final static Kind[] KINDS = Kind.values();
+
+		/**
+		 * <p>The message that the spans point into</p>
+		 */
+		private String source;
+		/**
+		 * <p>The kind, start and end of each span, in that order</p>
+		 */
+		private int[] spans = new int[24];
+		/**
+		 * <p>The number of spans</p>
+		 */
+		private int size;
+
+		/**
+		 * <p>Clears the spans, ready for a new message</p>
+		 *
+		 * @param source the message that the spans will point into
+		 */
+		private void reset(String source)
+		{
+			this.source = source;
+			this.size = 0;
+		}
+
+		/**
+		 * <p>Adds a span, unless it is the same as the last one</p>
+		 * <p>A link with a protocol at the start of a word is found both as a
+		 * web link and as a protocol link.</p>
+		 *
+		 * @param kind the kind of link
+		 * @param start the index of the first character of the link
+		 * @param end the index after the last character of the link
+		 */
+		private void add(Kind kind, int start, int end)
+		{
+			final int last = (size - 1) * 3;
+
+			if (size != 0 && spans[last] == kind.ordinal() && spans[last + 1] == start && spans[last + 2] == end)
+			{
+				return;
+			}
+
+			if ((size + 1) * 3 > spans.length)
+			{
+				spans = Arrays.copyOf(spans, spans.length * 2);
+			}
+
+			spans[size * 3] = kind.ordinal();
+			spans[size * 3 + 1] = start;
+			spans[size * 3 + 2] = end;
+			++size;
+		}
+
+		/**
+		 * @return the message that the spans point into
+		 */
+		public String getSource()
+		{
+			return source;
+		}
+
+		/**
+		 * @return the number of spans
+		 */
+		public int size()
+		{
+			return size;
+		}
+
+		/**
+		 * @return whether no links were found
+		 */
+		public boolean isEmpty()
+		{
+			return size == 0;
+		}
+
+		/**
+		 * @param i the index of the span
+		 * @return the kind of link
+		 */
+		public Kind kind(int i)
+		{
+			return KINDS[spans[check(i) * 3]];
+		}
+
+		/**
+		 * @param i the index of the span
+		 * @return the index in the message of the first character of the link
+		 */
+		public int start(int i)
+		{
+			return spans[check(i) * 3 + 1];
+		}
+
+		/**
+		 * @param i the index of the span
+		 * @return the index in the message after the last character of the
+		 * link
+		 */
+		public int end(int i)
+		{
+			return spans[check(i) * 3 + 2];
+		}
+
+		/**
+		 * <p>Copies out the text of a link</p>
+		 *
+		 * @param i the index of the span
+		 * @return the link
+		 */
+		public String get(int i)
+		{
+			return source.substring(start(i), end(i));
+		}
+
+		/**
+		 * @param i the index of a span
+		 * @return i
+		 * @throws IndexOutOfBoundsException if there is no span i
+		 */
+		private int check(int i)
+		{
+			if (i < 0 || i >= size)
+			{
+				throw new IndexOutOfBoundsException("Span " + i + " of " + size);
+			}
+
+			return i;
+		}
+	}
+
+	/**
+	 * <p>The spans for each thread</p>
+	 */
+	private final static ThreadLocal<Spans> SPANS = new ThreadLocal<Spans>()
+	{
+		@Override
+		protected Spans initialValue()
+		{
+			return new Spans();
+		}
+	};
+
+	/**
+	 * <p>Gets the extractor shared by all services</p>
+	 *
+	 * @return the shared extractor
+	 */
+	public static LinkExtractor getShared()
+	{
+		return Holder.SHARED;
+	}
+
+	/**
+	 * <p>Top-level domains that a web link may end in, in lower case</p>
+	 */
+	private final String[] domains;
+
+	/**
+	 * <p>Creates a link extractor</p>
+	 *
+	 * @param domains the top-level domains (or other final labels, such as
+	 * <code>co.uk</code>) that a web link may end in
+	 */
+	public LinkExtractor(String... domains)
+	{
+		this.domains = new String[domains.length];
+
+		for (int i = 0; i < domains.length; ++i)
+		{
+			this.domains[i] = domains[i].toLowerCase(Locale.ENGLISH);
+		}
+	}
+
+	/**
+	 * <p>Finds all the links in a message</p>
+	 * <p>The spans returned belong to the calling thread, and are only valid
+	 * until it next calls this method.</p>
+	 *
+	 * @param message the message to scan for links
+	 * @return the links that were found, in the order they start
+	 */
+	public Spans extract(String message)
+	{
+		final Spans spans = SPANS.get();
+		final int length = message.length();
+
+		spans.reset(message);
+
+		// Matches of the same kind never overlap, so each kind can not
+		// start again until the end of its last match
+		int protocolEnd = 0;
+		int spotifyEnd = 0;
+		int giphyEnd = 0;
+
+		for (int i = 0; i < length; ++i)
+		{
+			final char c = message.charAt(i);
+			int end;
+
+			if (i == 0 || isSpace(message.charAt(i - 1)))
+			{
+				final int start = wordStart(message, i);
+
+				if ((end = matchWord(message, start)) != -1)
+				{
+					spans.add(Kind.WEB, start, end);
+				}
+			}
+
+			switch (c)
+			{
+				case 'h':
+				case 'H':
+					if (i >= protocolEnd && (end = matchProtocol(message, i)) != -1)
+					{
+						spans.add(Kind.WEB, i, end);
+						protocolEnd = end;
+					}
+					break;
+
+				case 's':
+				case 'S':
+					if (i >= spotifyEnd && (end = matchSpotify(message, i)) != -1)
+					{
+						spans.add(Kind.SPOTIFY, i, end);
+						spotifyEnd = end;
+					}
+					break;
+
+				case 'g':
+				case 'G':
+					if (i >= giphyEnd && (end = matchGiphy(message, i)) != -1)
+					{
+						final int term = message.indexOf(':', i) + 1;
+
+						if (message.charAt(term) == '"')
+						{
+							spans.add(Kind.GIPHY, term + 1, end - 1);
+						}
+						else
+						{
+							spans.add(Kind.GIPHY, term, end);
+						}
+						giphyEnd = end;
+					}
+					break;
+			}
+		}
+
+		return spans;
+	}
+
+	/**
+	 * <p>Skips the optional <code>(</code> and <code>[</code> that a web link
+	 * may be wrapped in</p>
+	 *
+	 * @param s the message
+	 * @param i the start of the word
+	 * @return the start of the link itself
+	 */
+	private static int wordStart(String s, int i)
+	{
+		if (i < s.length() && s.charAt(i) == '(')
+		{
+			++i;
+		}
+		if (i < s.length() && s.charAt(i) == '[')
+		{
+			++i;
+		}
+
+		return i;
+	}
+
+	/**
+	 * <p>Matches a web link at the start of a word</p>
+	 * <p>The link is made up of an optional protocol, a host, an optional
+	 * port, and an optional path. The host is a series of dot separated
+	 * labels, which either ends with one of the {@link #domains}, or is
+	 * followed by one of the {@link #HOSTS}. Longer hosts are preferred, so
+	 * <code>www.google.com</code> matches as a whole rather than as
+	 * <code>www</code>.</p>
+	 *
+	 * @param s the message
+	 * @param start the start of the link
+	 * @return the end of the link, or -1 if there is none
+	 */
+	private int matchWord(String s, int start)
+	{
+		final int protocol = protocol(s, start);
+		int end = -1;
+
+		if (protocol != -1)
+		{
+			end = matchHost(s, protocol);
+		}
+		if (end == -1)
+		{
+			end = matchHost(s, start);
+		}
+		if (end == -1)
+		{
+			return -1;
+		}
+
+		// Port
+		if (end + 1 < s.length() && s.charAt(end) == ':' && isDigit(s.charAt(end + 1)))
+		{
+			end += 2;
+
+			while (end < s.length() && isDigit(s.charAt(end)))
+			{
+				++end;
+			}
+		}
+
+		// Path
+		if (end < s.length() && s.charAt(end) == '/')
+		{
+			++end;
+
+			while (end < s.length())
+			{
+				final char c = s.charAt(end);
+
+				if (isSpace(c) || c == ']' || c == ')')
+				{
+					break;
+				}
+				++end;
+			}
+		}
+
+		return end;
+	}
+
+	/**
+	 * <p>Matches the host of a web link</p>
+	 *
+	 * @param s the message
+	 * @param start the start of the host
+	 * @return the end of the host, or -1 if there is no valid host
+	 */
+	private int matchHost(String s, int start)
+	{
+		// Count the labels (each a word followed by a dot)
+		int labels = 0;
+		int p = start;
+
+		while (true)
+		{
+			final int word = wordEnd(s, p);
+
+			if (word == p || word == s.length() || s.charAt(word) != '.')
+			{
+				break;
+			}
+
+			++labels;
+			p = word + 1;
+		}
+
+		// Try the longest run of labels first, so that the whole host is
+		// matched rather than just the start of it
+		for (int k = labels; k >= 0; --k)
+		{
+			p = start;
+
+			for (int j = 0; j < k; ++j)
+			{
+				p = wordEnd(s, p) + 1;
+			}
+
+			final int word = wordEnd(s, p);
+
+			if (word != p && word < s.length() && s.charAt(word) == '.')
+			{
+				for (String domain : domains)
+				{
+					if (isLabel(s, word + 1, domain))
+					{
+						return word + 1 + domain.length();
+					}
+				}
+			}
+
+			for (String host : HOSTS)
+			{
+				if (isLabel(s, p, host))
+				{
+					return p + host.length();
+				}
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * <p>Matches a <code>http://</code> or <code>https://</code> protocol</p>
+	 *
+	 * @param s the message
+	 * @param i the possible start of the protocol
+	 * @return the index after the protocol, or -1 if there is none
+	 */
+	private static int protocol(String s, int i)
+	{
+		if (!startsWith(s, i, "http"))
+		{
+			return -1;
+		}
+
+		i += 4;
+
+		if (i < s.length() && (s.charAt(i) == 's' || s.charAt(i) == 'S'))
+		{
+			++i;
+		}
+
+		return s.startsWith("://", i) ? i + 3 : -1;
+	}
+
+	/**
+	 * <p>Matches a link which starts with a protocol, wherever it is</p>
+	 * <p>The link runs until white space, <code>]</code>, <code>)</code> or
+	 * <code>"</code>.</p>
+	 *
+	 * @param s the message
+	 * @param i the possible start of the link
+	 * @return the end of the link, or -1 if there is none
+	 */
+	private static int matchProtocol(String s, int i)
+	{
+		final int start = protocol(s, i);
+
+		if (start == -1)
+		{
+			return -1;
+		}
+
+		int end = start;
+
+		while (end < s.length())
+		{
+			final char c = s.charAt(end);
+
+			if (isSpace(c) || c == ']' || c == ')' || c == '"')
+			{
+				break;
+			}
+			++end;
+		}
+
+		return end == start ? -1 : end;
+	}
+
+	/**
+	 * <p>Matches a <code>spotify:</code> uri</p>
+	 *
+	 * @param s the message
+	 * @param i the possible start of the uri
+	 * @return the end of the uri, or -1 if there is none
+	 */
+	private static int matchSpotify(String s, int i)
+	{
+		if (!startsWith(s, i, "spotify:"))
+		{
+			return -1;
+		}
+
+		final int start = i + 8;
+		final int end = termEnd(s, start);
+
+		return end == start ? -1 : end;
+	}
+
+	/**
+	 * <p>Matches a <code>gif:</code> or <code>giphy:</code> search</p>
+	 * <p>The search term is either a run of letters, digits and colons, or
+	 * a non-empty double quoted string.</p>
+	 *
+	 * @param s the message
+	 * @param i the possible start of the search
+	 * @return the end of the search (including any closing quote), or -1 if
+	 * there is none
+	 */
+	private static int matchGiphy(String s, int i)
+	{
+		int start;
+
+		if (startsWith(s, i, "gif:"))
+		{
+			start = i + 4;
+		}
+		else if (startsWith(s, i, "giphy:"))
+		{
+			start = i + 6;
+		}
+		else
+		{
+			return -1;
+		}
+
+		final int end = termEnd(s, start);
+
+		if (end != start)
+		{
+			return end;
+		}
+
+		if (start < s.length() && s.charAt(start) == '"')
+		{
+			final int close = s.indexOf('"', start + 1);
+
+			if (close > start + 1)
+			{
+				return close + 1;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * <p>Tests whether some text appears at a given point, ignoring the case
+	 * of ASCII letters only</p>
+	 *
+	 * @param s the message
+	 * @param i the index to look at
+	 * @param lower the text to look for, in lower case
+	 * @return whether the text is at i
+	 */
+	private static boolean startsWith(String s, int i, String lower)
+	{
+		if (i + lower.length() > s.length())
+		{
+			return false;
+		}
+
+		for (int j = 0; j < lower.length(); ++j)
+		{
+			char c = s.charAt(i + j);
+
+			if (c >= 'A' && c <= 'Z')
+			{
+				c += 'a' - 'A';
+			}
+			if (c != lower.charAt(j))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * <p>Tests whether a whole label (or labels) appears at a given point,
+	 * so that <code>com</code> does not match the start of
+	 * <code>community</code></p>
+	 *
+	 * @param s the message
+	 * @param i the index to look at
+	 * @param lower the label to look for, in lower case
+	 * @return whether the label is at i, and not followed by a word
+	 * character
+	 */
+	private static boolean isLabel(String s, int i, String lower)
+	{
+		final int end = i + lower.length();
+
+		return startsWith(s, i, lower) && (end == s.length() || !isWord(s.charAt(end)));
+	}
+
+	/**
+	 * @param s the message
+	 * @param i the start of the word
+	 * @return the end of the run of word characters which starts at i
+	 */
+	private static int wordEnd(String s, int i)
+	{
+		while (i < s.length() && isWord(s.charAt(i)))
+		{
+			++i;
+		}
+
+		return i;
+	}
+
+	/**
+	 * @param s the message
+	 * @param i the start of the term
+	 * @return the end of the run of letters, digits and colons which starts
+	 * at i
+	 */
+	private static int termEnd(String s, int i)
+	{
+		while (i < s.length())
+		{
+			final char c = s.charAt(i);
+
+			if (c != ':' && !isLetter(c) && !isDigit(c))
+			{
+				break;
+			}
+			++i;
+		}
+
+		return i;
+	}
+
+	/**
+	 * @param c the character to test
+	 * @return whether c is white space, in the sense of the regex \s
+	 */
+	private static boolean isSpace(char c)
+	{
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	/**
+	 * @param c the character to test
+	 * @return whether c is an ASCII letter
+	 */
+	private static boolean isLetter(char c)
+	{
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	/**
+	 * @param c the character to test
+	 * @return whether c is an ASCII digit
+	 */
+	private static boolean isDigit(char c)
+	{
+		return c >= '0' && c <= '9';
+	}
+
+	/**
+	 * @param c the character to test
+	 * @return whether c is a word character, in the sense of the regex \w
+	 */
+	private static boolean isWord(char c)
+	{
+		return isLetter(c) || isDigit(c) || c == '_';
+	}
+}
@@ -0,0 +1,426 @@
+package uk.co.harcourtprogramming.docitten.utility;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * <p>Sorted set which can also be indexed by position</p>
+ * <p>The values are kept in a balanced (AVL) binary tree, in which each node
+ * also records the number of values beneath it. This means that finding,
+ * adding, or removing a value, and finding or removing the value at a given
+ * position in the sorted order, all take time proportional to the log of
+ * the number of values.</p>
+ * <p>The set is not thread safe.</p>
+ *
+ * @author Benedict Harcourt / javajawa
+ * @param <T> type of value held in the set
+ */
+public class OrderStatisticTree<T>
+{
+	/**
+	 * <p>A node of the tree</p>
+	 *
+	 * @param <T> type of value held in the set
+	 */
+	private final static class Node<T>
+	{
+		/**
+		 * <p>The value</p>
+		 */
+		private final T value;
+		/**
+		 * <p>The subtree of lesser values</p>
+		 */
+		private Node<T> left = null;
+		/**
+		 * <p>The subtree of greater values</p>
+		 */
+		private Node<T> right = null;
+		/**
+		 * <p>Height of the subtree rooted at this node</p>
+		 */
+		private int height = 1;
+		/**
+		 * <p>Number of values in the subtree rooted at this node</p>
+		 */
+		private int size = 1;
+
+		/**
+		 * <p>Creates a leaf node</p>
+		 *
+		 * @param value the value
+		 */
+		Node(T value)
+		{
+			this.value = value;
+		}
+	}
+
+	/**
+	 * <p>The order of the values</p>
+	 */
+	private final Comparator<? super T> comparator;
+	/**
+	 * <p>The root of the tree</p>
+	 */
+	private Node<T> root = null;
+	/**
+	 * <p>Whether the last add or remove changed the tree</p>
+	 */
+	private boolean modified;
+
+	/**
+	 * <p>Creates an empty set</p>
+	 *
+	 * @param comparator the order of the values; values which compare as
+	 * equal are treated as the same value
+	 */
+	public OrderStatisticTree(Comparator<? super T> comparator)
+	{
+		this.comparator = comparator;
+	}
+
+	/**
+	 * <p>Adds a value to the set</p>
+	 *
+	 * @param value the value
+	 * @return false if the set already held an equal value, in which case it
+	 * is unchanged
+	 */
+	public boolean add(T value)
+	{
+		modified = false;
+		root = insert(root, value);
+		return modified;
+	}
+
+	/**
+	 * <p>Removes a value from the set</p>
+	 *
+	 * @param value the value
+	 * @return whether the set held the value
+	 */
+	public boolean remove(T value)
+	{
+		modified = false;
+		root = delete(root, value);
+		return modified;
+	}
+
+	/**
+	 * <p>Gets the value at a given position in the sorted order</p>
+	 *
+	 * @param index the position, from 0
+	 * @return the value
+	 * @throws IndexOutOfBoundsException if there is no such position
+	 */
+	public T get(int index)
+	{
+		if (index < 0 || index >= size())
+		{
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+		}
+
+		Node<T> n = root;
+
+		while (true)
+		{
+			final int before = size(n.left);
+
+			if (index < before)
+			{
+				n = n.left;
+			}
+			else if (index == before)
+			{
+				return n.value;
+			}
+			else
+			{
+				index -= before + 1;
+				n = n.right;
+			}
+		}
+	}
+
+	/**
+	 * <p>Removes the value at a given position in the sorted order</p>
+	 *
+	 * @param index the position, from 0
+	 * @return the value removed
+	 * @throws IndexOutOfBoundsException if there is no such position
+	 */
+	public T removeAt(int index)
+	{
+		final T value = get(index);
+		remove(value);
+		return value;
+	}
+
+	/**
+	 * <p>Gets the position of a value in the sorted order</p>
+	 *
+	 * @param value the value
+	 * @return the position, from 0, or -1 if the value is not in the set
+	 */
+	public int indexOf(T value)
+	{
+		Node<T> n = root;
+		int index = 0;
+
+		while (n != null)
+		{
+			final int c = comparator.compare(value, n.value);
+
+			if (c < 0)
+			{
+				n = n.left;
+			}
+			else if (c > 0)
+			{
+				index += size(n.left) + 1;
+				n = n.right;
+			}
+			else
+			{
+				return index + size(n.left);
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return the number of values in the set
+	 */
+	public int size()
+	{
+		return size(root);
+	}
+
+	/**
+	 * @return whether the set is empty
+	 */
+	public boolean isEmpty()
+	{
+		return root == null;
+	}
+
+	/**
+	 * @return a copy of the values, in sorted order
+	 */
+	public List<T> toList()
+	{
+		final List<T> list = new ArrayList<>(size());
+		collect(root, list);
+		return list;
+	}
+
+	/**
+	 * <p>Adds the values of a subtree to a list, in order</p>
+	 *
+	 * @param n the root of the subtree
+	 * @param list the list
+	 */
+	private static <T> void collect(Node<T> n, List<T> list)
+	{
+		while (n != null)
+		{
+			collect(n.left, list);
+			list.add(n.value);
+			n = n.right;
+		}
+	}
+
+	/**
+	 * @param n the root of a subtree
+	 * @param value a value to add to the subtree
+	 * @return the new root of the subtree
+	 */
+	private Node<T> insert(Node<T> n, T value)
+	{
+		if (n == null)
+		{
+			modified = true;
+			return new Node<>(value);
+		}
+
+		final int c = comparator.compare(value, n.value);
+
+		if (c < 0)
+		{
+			n.left = insert(n.left, value);
+		}
+		else if (c > 0)
+		{
+			n.right = insert(n.right, value);
+		}
+		else
+		{
+			return n;
+		}
+
+		return balance(n);
+	}
+
+	/**
+	 * @param n the root of a subtree
+	 * @param value a value to remove from the subtree
+	 * @return the new root of the subtree
+	 */
+	private Node<T> delete(Node<T> n, T value)
+	{
+		if (n == null)
+		{
+			return null;
+		}
+
+		final int c = comparator.compare(value, n.value);
+
+		if (c < 0)
+		{
+			n.left = delete(n.left, value);
+		}
+		else if (c > 0)
+		{
+			n.right = delete(n.right, value);
+		}
+		else
+		{
+			modified = true;
+
+			if (n.left == null)
+			{
+				return n.right;
+			}
+			if (n.right == null)
+			{
+				return n.left;
+			}
+
+			// Replace the node with the least value of its right subtree
+			Node<T> successor = n.right;
+
+			while (successor.left != null)
+			{
+				successor = successor.left;
+			}
+
+			successor.right = deleteFirst(n.right);
+			successor.left = n.left;
+			n = successor;
+		}
+
+		return balance(n);
+	}
+
+	/**
+	 * @param n the root of a subtree
+	 * @return the new root of the subtree, without its least value
+	 */
+	private Node<T> deleteFirst(Node<T> n)
+	{
+		if (n.left == null)
+		{
+			return n.right;
+		}
+
+		n.left = deleteFirst(n.left);
+		return balance(n);
+	}
+
+	/**
+	 * <p>Updates the height and size of a node, and rotates it if its
+	 * subtrees differ in height by more than one</p>
+	 *
+	 * @param n the root of a subtree
+	 * @return the new root of the subtree
+	 */
+	private static <T> Node<T> balance(Node<T> n)
+	{
+		update(n);
+
+		final int skew = height(n.left) - height(n.right);
+
+		if (skew > 1)
+		{
+			if (height(n.left.left) < height(n.left.right))
+			{
+				n.left = rotateLeft(n.left);
+			}
+			return rotateRight(n);
+		}
+		if (skew < -1)
+		{
+			if (height(n.right.right) < height(n.right.left))
+			{
+				n.right = rotateRight(n.right);
+			}
+			return rotateLeft(n);
+		}
+
+		return n;
+	}
+
+	/**
+	 * @param n the root of a subtree, which has a left child
+	 * @return the left child, now the root of the subtree
+	 */
+	private static <T> Node<T> rotateRight(Node<T> n)
+	{
+		final Node<T> l = n.left;
+
+		n.left = l.right;
+		l.right = n;
+		update(n);
+		update(l);
+
+		return l;
+	}
+
+	/**
+	 * @param n the root of a subtree, which has a right child
+	 * @return the right child, now the root of the subtree
+	 */
+	private static <T> Node<T> rotateLeft(Node<T> n)
+	{
+		final Node<T> r = n.right;
+
+		n.right = r.left;
+		r.left = n;
+		update(n);
+		update(r);
+
+		return r;
+	}
+
+	/**
+	 * <p>Recalculates the height and size of a node from its children</p>
+	 *
+	 * @param n the node
+	 */
+	private static <T> void update(Node<T> n)
+	{
+		n.height = Math.max(height(n.left), height(n.right)) + 1;
+		n.size = size(n.left) + size(n.right) + 1;
+	}
+
+	/**
+	 * @param n a node, or null
+	 * @return the height of the subtree rooted at the node
+	 */
+	private static <T> int height(Node<T> n)
+	{
+		return n == null ? 0 : n.height;
+	}
+
+	/**
+	 * @param n a node, or null
+	 * @return the number of values in the subtree rooted at the node
+	 */
+	private static <T> int size(Node<T> n)
+	{
+		return n == null ? 0 : n.size;
+	}
+}
@@ -0,0 +1,404 @@
+package uk.co.harcourtprogramming.docitten.utility;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Prefix tree of command phrases, such as <code>distro list</code> or
+ * <code>what is</code></p>
+ * <p>{@link #match(String, int) Matching} walks a line once, one character
+ * per step, and finds the longest phrase that the line starts with, no matter
+ * how many phrases are stored. A phrase only matches whole words: it must be
+ * followed by the end of the line or a character that can not be part of a
+ * word (<code>what is</code> does not match <code>what isn't</code>). A
+ * space in a phrase matches any run of white space in the line.</p>
+ * <p>Phrases can be added at any time; matching never blocks, and sees each
+ * phrase either fully added or not at all.</p>
+ *
+ * @author Benedict Harcourt / javajawa
+ * @param <V> type of the value stored against each phrase
+ */
+public class PhraseTrie<V>
+{
+	/**
+	 * <p>The result of {@link PhraseTrie#match(String, int) matching} a
+	 * line</p>
+	 *
+	 * @param <V> type of the value stored against each phrase
+	 */
+	public final static class Match<V>
+	{
+		/**
+		 * <p>The phrase that matched</p>
+		 */
+		private final String phrase;
+		/**
+		 * <p>The index in the line just after the phrase</p>
+		 */
+		private final int end;
+		/**
+		 * <p>The value stored against the phrase</p>
+		 */
+		private final V value;
+
+		/**
+		 * <p>Creates a match</p>
+		 *
+		 * @param phrase the phrase that matched
+		 * @param end the index in the line just after the phrase
+		 * @param value the value stored against the phrase
+		 */
+		private Match(String phrase, int end, V value)
+		{
+			this.phrase = phrase;
+			this.end = end;
+			this.value = value;
+		}
+
+		/**
+		 * @return the phrase that matched, as it was added to the trie
+		 */
+		public String getPhrase()
+		{
+			return phrase;
+		}
+
+		/**
+		 * @return the index in the line just after the phrase, where any
+		 * arguments start
+		 */
+		public int getEnd()
+		{
+			return end;
+		}
+
+		/**
+		 * @return the value stored against the phrase
+		 */
+		public V getValue()
+		{
+			return value;
+		}
+	}
+
+	/**
+	 * <p>Node in the trie</p>
+	 * <p>The children are kept sorted by their key, so that they can be
+	 * binary searched, and listed in order. The array is replaced, rather
+	 * than modified, when a child is added.</p>
+	 *
+	 * @param <V> type of the value stored against each phrase
+	 */
+	private final static class Node<V>
+	{
+		/**
+		 * <p>The character on the edge leading to this node</p>
+		 */
+		private final char key;
+		/**
+		 * <p>The children of this node, sorted by key</p>
+		 */
+		private volatile Node<V>[] children;
+		/**
+		 * <p>The phrase that ends at this node, if any</p>
+		 */
+		private volatile String phrase;
+		/**
+		 * <p>The value stored against the phrase, if any</p>
+		 */
+		private volatile V value;
+
+		/**
+		 * <p>Creates a node</p>
+		 *
+		 * @param key the character on the edge leading to this node
+		 */
+		@SuppressWarnings("unchecked")
+		private Node(char key)
+		{
+			this.key = key;
+			this.children = (Node<V>[]) new Node<?>[0];
+		}
+
+		/**
+		 * @param c the key to look for
+		 * @return the child with that key, or null if there is none
+		 */
+		private Node<V> get(char c)
+		{
+			final Node<V>[] nodes = children;
+			int low = 0;
+			int high = nodes.length - 1;
+
+			while (low <= high)
+			{
+				final int mid = (low + high) >>> 1;
+				final char k = nodes[mid].key;
+
+				if (k < c)
+				{
+					low = mid + 1;
+				}
+				else if (k > c)
+				{
+					high = mid - 1;
+				}
+				else
+				{
+					return nodes[mid];
+				}
+			}
+
+			return null;
+		}
+
+		/**
+		 * <p>Gets a child, creating it if it does not exist</p>
+		 * <p>Only called whilst holding the trie's lock</p>
+		 *
+		 * @param c the key to look for
+		 * @return the child with that key
+		 */
+		@SuppressWarnings("unchecked")
+		private Node<V> create(char c)
+		{
+			Node<V> child = get(c);
+
+			if (child != null)
+			{
+				return child;
+			}
+
+			child = new Node<>(c);
+
+			final Node<V>[] nodes = children;
+			final Node<V>[] grown = (Node<V>[]) new Node<?>[nodes.length + 1];
+			int i = 0;
+
+			while (i < nodes.length && nodes[i].key < c)
+			{
+				grown[i] = nodes[i];
+				++i;
+			}
+
+			grown[i] = child;
+			System.arraycopy(nodes, i, grown, i + 1, nodes.length - i);
+
+			children = grown;
+			return child;
+		}
+	}
+
+	/**
+	 * <p>The root of the trie, representing the empty phrase</p>
+	 */
+	private final Node<V> root = new Node<>('\0');
+	/**
+	 * <p>The number of phrases in the trie</p>
+	 */
+	private volatile int size = 0;
+
+	/**
+	 * <p>Create an empty trie</p>
+	 */
+	public PhraseTrie()
+	{
+		// Nothing to see here. Move along, citizen!
+	}
+
+	/**
+	 * <p>Tests whether a character can be part of a word in a phrase</p>
+	 *
+	 * @param c the character to test
+	 * @return whether c is a letter, digit, <code>-</code> or <code>_</code>
+	 */
+	public static boolean isWord(char c)
+	{
+		return Character.isLetterOrDigit(c) || c == '-' || c == '_';
+	}
+
+	/**
+	 * <p>Reduces a phrase to the form stored in the trie: with no leading or
+	 * trailing white space, and each run of white space replaced by a single
+	 * space</p>
+	 *
+	 * @param phrase the phrase
+	 * @return the normalised phrase
+	 */
+	private static String normalise(String phrase)
+	{
+		final StringBuilder s = new StringBuilder(phrase.length());
+
+		for (int i = 0; i < phrase.length(); ++i)
+		{
+			final char c = phrase.charAt(i);
+
+			if (!Character.isWhitespace(c))
+			{
+				s.append(c);
+			}
+			else if (s.length() != 0 && s.charAt(s.length() - 1) != ' ')
+			{
+				s.append(' ');
+			}
+		}
+
+		if (s.length() != 0 && s.charAt(s.length() - 1) == ' ')
+		{
+			s.setLength(s.length() - 1);
+		}
+
+		return s.toString();
+	}
+
+	/**
+	 * <p>Stores a value against a phrase</p>
+	 *
+	 * @param phrase the phrase
+	 * @param value the value
+	 * @return the value previously stored against the phrase, or null
+	 * @throws IllegalArgumentException if the phrase is empty, or the value
+	 * is null
+	 */
+	public synchronized V put(String phrase, V value)
+	{
+		final String key = normalise(phrase);
+
+		if (key.isEmpty())
+		{
+			throw new IllegalArgumentException("Phrase can not be empty");
+		}
+		if (value == null)
+		{
+			throw new IllegalArgumentException("Value can not be null");
+		}
+
+		Node<V> node = root;
+
+		for (int i = 0; i < key.length(); ++i)
+		{
+			node = node.create(key.charAt(i));
+		}
+
+		final V old = node.value;
+
+		// The value is written first, so that a match which sees the phrase
+		// also sees the value
+		node.value = value;
+		node.phrase = key;
+
+		if (old == null)
+		{
+			++size;
+		}
+
+		return old;
+	}
+
+	/**
+	 * <p>Gets the value stored against a phrase</p>
+	 *
+	 * @param phrase the phrase
+	 * @return the value, or null if the phrase is not in the trie
+	 */
+	public V get(String phrase)
+	{
+		final String key = normalise(phrase);
+		Node<V> node = root;
+
+		for (int i = 0; node != null && i < key.length(); ++i)
+		{
+			node = node.get(key.charAt(i));
+		}
+
+		return node == null || node.phrase == null ? null : node.value;
+	}
+
+	/**
+	 * <p>Finds the longest phrase that starts at a given point in a line</p>
+	 *
+	 * @param line the line to match against
+	 * @param start the index in the line to start from
+	 * @return the match, or null if no phrase matches
+	 */
+	public Match<V> match(String line, int start)
+	{
+		final int length = line.length();
+		Node<V> node = root;
+		Node<V> best = null;
+		int bestEnd = start;
+		int i = start;
+
+		while (true)
+		{
+			if (node.phrase != null && (i == length || !isWord(line.charAt(i))))
+			{
+				best = node;
+				bestEnd = i;
+			}
+
+			if (i == length)
+			{
+				break;
+			}
+
+			char c = line.charAt(i++);
+
+			if (Character.isWhitespace(c))
+			{
+				while (i < length && Character.isWhitespace(line.charAt(i)))
+				{
+					++i;
+				}
+
+				c = ' ';
+			}
+
+			node = node.get(c);
+
+			if (node == null)
+			{
+				break;
+			}
+		}
+
+		return best == null ? null : new Match<>(best.phrase, bestEnd, best.value);
+	}
+
+	/**
+	 * @return all the phrases in the trie, in order
+	 */
+	public List<String> getPhrases()
+	{
+		final List<String> phrases = new ArrayList<>(size);
+		collect(root, phrases);
+		return phrases;
+	}
+
+	/**
+	 * <p>Adds the phrases at and below a node to a list, in order</p>
+	 *
+	 * @param node the node
+	 * @param phrases the list to add to
+	 */
+	private static <V> void collect(Node<V> node, List<String> phrases)
+	{
+		if (node.phrase != null)
+		{
+			phrases.add(node.phrase);
+		}
+
+		for (Node<V> child : node.children)
+		{
+			collect(child, phrases);
+		}
+	}
+
+	/**
+	 * @return the number of phrases in the trie
+	 */
+	public int size()
+	{
+		return size;
+	}
+}
@@ -0,0 +1,204 @@
+package uk.co.harcourtprogramming.docitten.utility;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>Fixed length FIFO of the most recent values added, each stored with a
+ * <code>long</code> stamp (such as the time it was added)</p>
+ * <p>Adding a value displaces the oldest once the buffer is full. The length
+ * is rounded up to a power of two, so that a slot is found by masking rather
+ * than division. Neither adding nor reading takes a lock or allocates:</p>
+ * <ul>
+ *  <li>Adding claims the next position from a counter and marks its slot
+ * as being written, then writes the value and stamp, and finally tags the
+ * slot with the position to publish it. A single writer never waits;
+ * concurrent writers are also safe, and only wait if one has lapped the
+ * whole buffer whilst another is part way through writing the same
+ * slot.</li>
+ *  <li>{@link #snapshot(long[], Object[]) Snapshots} copy the values into
+ * an array in one pass. A slot is only copied if it is tagged with the
+ * expected position both before and after it is read, so a snapshot never
+ * contains a value that is half written or that was added after the
+ * snapshot began; such slots are skipped.</li>
+ * </ul>
+ *
+ * @author Benedict Harcourt / javajawa
+ * @param <T> content type of this buffer
+ */
+public class RingBuffer<T>
+{
+	/**
+	 * <p>Tag of a slot that is being written</p>
+	 */
+	private final static long WRITING = Long.MIN_VALUE;
+
+	/**
+	 * <p>The values, indexed by their position masked to the length</p>
+	 */
+	private final AtomicReferenceArray<T> values;
+	/**
+	 * <p>The stamps of the values</p>
+	 */
+	private final AtomicLongArray stamps;
+	/**
+	 * <p>The position of the value in each slot, or {@link #WRITING}</p>
+	 */
+	private final AtomicLongArray tags;
+	/**
+	 * <p>Mask from a position to its slot</p>
+	 */
+	private final int mask;
+	/**
+	 * <p>Position of the next value to be added</p>
+	 */
+	private final AtomicLong next = new AtomicLong();
+
+	/**
+	 * <p>Create a new, empty, RingBuffer</p>
+	 *
+	 * @param length the least number of values to keep; this is rounded up
+	 * to a power of two
+	 * @throws IllegalArgumentException if the length is less than one, or
+	 * more than 2<sup>30</sup>
+	 */
+	public RingBuffer(int length)
+	{
+		if (length < 1 || length > 1 << 30)
+		{
+			throw new IllegalArgumentException("Invalid ring buffer length: " + length);
+		}
+
+		final int size = length == 1 ? 1 : Integer.highestOneBit(length - 1) << 1;
+
+		this.values = new AtomicReferenceArray<>(size);
+		this.stamps = new AtomicLongArray(size);
+		this.tags = new AtomicLongArray(size);
+		this.mask = size - 1;
+
+		// Each slot looks as if it was last written a lap before the start,
+		// so that the first writer of each slot does not wait
+		for (int i = 0; i < size; ++i)
+		{
+			tags.set(i, i - size);
+		}
+	}
+
+	/**
+	 * <p>Puts a new value into the tail of the buffer, with a stamp of
+	 * zero</p>
+	 *
+	 * @param value the value to put into the tail
+	 */
+	public void add(T value)
+	{
+		add(0, value);
+	}
+
+	/**
+	 * <p>Puts a new value into the tail of the buffer</p>
+	 *
+	 * @param stamp the stamp to store with the value
+	 * @param value the value to put into the tail
+	 */
+	public void add(long stamp, T value)
+	{
+		final long position = next.getAndIncrement();
+		final int slot = (int)position & mask;
+		final long previous = position - values.length();
+
+		// Only if another writer has lapped the buffer whilst this slot's
+		// previous value is still being written
+		while (tags.get(slot) != previous)
+		{
+			Thread.yield();
+		}
+
+		// Ordered (rather than volatile) writes are enough: a reader that sees
+		// the new value or stamp will also see that the tag has changed
+		tags.lazySet(slot, WRITING);
+		values.lazySet(slot, value);
+		stamps.lazySet(slot, stamp);
+		tags.lazySet(slot, position);
+	}
+
+	/**
+	 * <p>Copies the most recent values into an array, oldest first</p>
+	 *
+	 * @param into the array to copy into; at most this many values are
+	 * copied, and any remaining elements are set to null
+	 * @return the number of values copied
+	 */
+	public int snapshot(T[] into)
+	{
+		return snapshot(null, into);
+	}
+
+	/**
+	 * <p>Copies the most recent values and their stamps into arrays, oldest
+	 * first</p>
+	 *
+	 * @param stampsInto the array to copy the stamps into, which must be at
+	 * least as long as <code>into</code>; or null to only copy the values
+	 * @param into the array to copy the values into; at most this many values
+	 * are copied, and any remaining elements are set to null
+	 * @return the number of values copied
+	 */
+	public int snapshot(long[] stampsInto, T[] into)
+	{
+		final long end = next.get();
+		final long start = Math.max(0, end - Math.min(into.length, values.length()));
+		int count = 0;
+
+		for (long position = start; position < end; ++position)
+		{
+			final int slot = (int)position & mask;
+
+			if (tags.get(slot) != position)
+			{
+				continue;
+			}
+
+			final T value = values.get(slot);
+			final long stamp = stamps.get(slot);
+
+			if (tags.get(slot) != position)
+			{
+				continue;
+			}
+
+			if (stampsInto != null)
+			{
+				stampsInto[count] = stamp;
+			}
+
+			into[count++] = value;
+		}
+
+		for (int i = count; i < into.length; ++i)
+		{
+			into[i] = null;
+		}
+
+		return count;
+	}
+
+	/**
+	 * <p>Gets the length of the buffer</p>
+	 *
+	 * @return the number of values kept, which is a power of two
+	 */
+	public int getLength()
+	{
+		return values.length();
+	}
+
+	/**
+	 * @return the number of values which have ever been added
+	 */
+	public long getCount()
+	{
+		return next.get();
+	}
+}
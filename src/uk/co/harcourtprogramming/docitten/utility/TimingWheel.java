@@ -0,0 +1,507 @@
+package uk.co.harcourtprogramming.docitten.utility;
+
+import java.util.Collection;
+
+/**
+ * <p>Hierarchical timing wheel, holding values until a given time</p>
+ * <p>The wheel has several levels of 64 slots. A slot in the lowest level
+ * holds the values due at one particular time; a slot in each level above
+ * covers 64 times the span of one in the level below. A value is put in the
+ * lowest level whose slots are still wide enough to reach its time, so
+ * adding or cancelling a value is a constant time operation, however many
+ * values are waiting. As time {@link #advance(long, Collection) advances}
+ * to the start of a higher slot, its values are moved down into the level
+ * below, and values are only returned once they reach the lowest level.</p>
+ * <p>The levels cover 2<sup>36</sup> time units (a little over two years
+ * of milliseconds); values beyond that are held to one side until the top
+ * level has turned over. The wheel always knows when next something will
+ * need to happen ({@link #getNextEvent()}), so the thread driving it can
+ * sleep until then rather than polling.</p>
+ * <p>The wheel is not thread safe: it should be owned by one thread, which
+ * other threads pass their changes to.</p>
+ *
+ * @author Benedict Harcourt / javajawa
+ * @param <T> type of value held in the wheel
+ */
+public class TimingWheel<T>
+{
+	/**
+	 * <p>Number of bits of the time that each level covers</p>
+	 */
+	private final static int BITS = 6;
+	/**
+	 * <p>Number of slots in each level</p>
+	 */
+	private final static int SLOTS = 1 << BITS;
+	/**
+	 * <p>Number of levels</p>
+	 */
+	private final static int LEVELS = 6;
+	/**
+	 * <p>Index in {@link #heads} of the values beyond the top level</p>
+	 */
+	private final static int OVERFLOW = LEVELS * SLOTS;
+	/**
+	 * <p>Index in {@link #heads} of the values which were already due when
+	 * they were added</p>
+	 */
+	private final static int DUE = OVERFLOW + 1;
+
+	/**
+	 * <p>A value waiting in the wheel</p>
+	 *
+	 * @param <T> type of value held in the wheel
+	 */
+	public final static class Timeout<T>
+	{
+		/**
+		 * <p>The time at which the value is due</p>
+		 */
+		private final long deadline;
+		/**
+		 * <p>The value</p>
+		 */
+		private final T value;
+		/**
+		 * <p>The index of the list in the wheel which holds this timeout, or
+		 * -1 if it is not in the wheel</p>
+		 */
+		private int list = -1;
+		/**
+		 * <p>The previous timeout in the same list</p>
+		 */
+		private Timeout<T> prev;
+		/**
+		 * <p>The next timeout in the same list</p>
+		 */
+		private Timeout<T> next;
+
+		/**
+		 * <p>Creates a timeout</p>
+		 *
+		 * @param deadline the time at which the value is due
+		 * @param value the value
+		 */
+		private Timeout(long deadline, T value)
+		{
+			this.deadline = deadline;
+			this.value = value;
+		}
+
+		/**
+		 * @return the time at which the value is due
+		 */
+		public long getDeadline()
+		{
+			return deadline;
+		}
+
+		/**
+		 * @return the value
+		 */
+		public T getValue()
+		{
+			return value;
+		}
+
+		/**
+		 * @return whether the value is still waiting in the wheel
+		 */
+		public boolean isPending()
+		{
+			return list != -1;
+		}
+	}
+
+	/**
+	 * <p>The first timeout in each slot of each level, followed by the
+	 * overflow and due lists</p>
+	 */
+	private final Timeout<T>[] heads;
+	/**
+	 * <p>For each level, a bit for each slot which has timeouts in it</p>
+	 */
+	private final long[] occupied = new long[LEVELS];
+	/**
+	 * <p>The current time; every value due at or before this has been
+	 * returned</p>
+	 */
+	private long now;
+	/**
+	 * <p>Number of values waiting</p>
+	 */
+	private int size = 0;
+
+	/**
+	 * <p>Creates an empty wheel</p>
+	 *
+	 * @param now the current time
+	 */
+	@SuppressWarnings("unchecked")
+	public TimingWheel(long now)
+	{
+		this.heads = (Timeout<T>[]) new Timeout<?>[DUE + 1];
+		this.now = now;
+	}
+
+	/**
+	 * <p>Adds a value to the wheel</p>
+	 *
+	 * @param deadline the time at which the value is due; if this has
+	 * passed, the value is returned by the next call to {@link
+	 * #advance(long, Collection)}
+	 * @param value the value
+	 * @return the timeout, which can be used to cancel it
+	 */
+	public Timeout<T> schedule(long deadline, T value)
+	{
+		final Timeout<T> timeout = new Timeout<>(deadline, value);
+
+		if (!place(timeout))
+		{
+			link(timeout, DUE);
+		}
+
+		++size;
+		return timeout;
+	}
+
+	/**
+	 * <p>Removes a value from the wheel</p>
+	 *
+	 * @param timeout the timeout returned when the value was added
+	 * @return whether the value was waiting; false if it has already been
+	 * returned or cancelled
+	 */
+	public boolean cancel(Timeout<T> timeout)
+	{
+		if (timeout.list == -1)
+		{
+			return false;
+		}
+
+		unlink(timeout);
+		--size;
+		return true;
+	}
+
+	/**
+	 * <p>Moves the wheel forward to a given time</p>
+	 *
+	 * @param time the new current time; if this is before the wheel's
+	 * current time, only values which were already due are returned
+	 * @param due collection to add the values which are now due to, in the
+	 * order in which they were due
+	 * @return the number of values added to the collection
+	 */
+	public int advance(long time, Collection<? super T> due)
+	{
+		int count = drain(DUE, due);
+
+		while (true)
+		{
+			final long event = nextTurn();
+
+			if (event > time)
+			{
+				break;
+			}
+
+			final boolean overflow = event == overflowTurn();
+
+			now = event;
+
+			if (overflow)
+			{
+				count += cascade(OVERFLOW, due);
+			}
+
+			// From the top down, so that values moved down a level are
+			// picked up if their new slot is also starting now
+			for (int level = LEVELS - 1; level >= 0; --level)
+			{
+				final int slot = digit(now, level);
+
+				if ((occupied[level] & (1L << slot)) != 0)
+				{
+					count += cascade(level * SLOTS + slot, due);
+				}
+			}
+		}
+
+		if (time > now)
+		{
+			now = time;
+		}
+
+		size -= count;
+		return count;
+	}
+
+	/**
+	 * <p>Gets the next time at which the wheel needs to be advanced</p>
+	 * <p>This is the time that the next value is due, or earlier, if a slot
+	 * of a higher level needs to be moved down first.</p>
+	 *
+	 * @return the time; the current time if values are already due; or
+	 * {@link Long#MAX_VALUE} if the wheel is empty
+	 */
+	public long getNextEvent()
+	{
+		return heads[DUE] != null ? now : nextTurn();
+	}
+
+	/**
+	 * @return the current time of the wheel
+	 */
+	public long getTime()
+	{
+		return now;
+	}
+
+	/**
+	 * @return the number of values waiting
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the earliest start of an occupied slot, or {@link
+	 * Long#MAX_VALUE} if there are none
+	 */
+	private long nextTurn()
+	{
+		long next = heads[OVERFLOW] == null ? Long.MAX_VALUE : overflowTurn();
+
+		for (int level = 0; level < LEVELS; ++level)
+		{
+			if (occupied[level] != 0)
+			{
+				// Every occupied slot is after the current one, so the lowest
+				// is the next to start
+				final int shift = level * BITS;
+				final long slot = Long.numberOfTrailingZeros(occupied[level]);
+				final long start = (now >>> (shift + BITS) << (shift + BITS)) | (slot << shift);
+
+				next = Math.min(next, start);
+			}
+		}
+
+		return next;
+	}
+
+	/**
+	 * @return the time at which the top level next turns over
+	 */
+	private long overflowTurn()
+	{
+		final int shift = LEVELS * BITS;
+		return ((now >>> shift) + 1) << shift;
+	}
+
+	/**
+	 * @param time a time
+	 * @param level a level
+	 * @return the slot of the level that the time falls in
+	 */
+	private static int digit(long time, int level)
+	{
+		return (int)(time >>> (level * BITS)) & (SLOTS - 1);
+	}
+
+	/**
+	 * <p>Puts a timeout into the slot for its deadline, relative to the
+	 * current time</p>
+	 *
+	 * @param timeout the timeout
+	 * @return false if the timeout is already due, in which case it has not
+	 * been placed
+	 */
+	private boolean place(Timeout<T> timeout)
+	{
+		if (timeout.deadline <= now)
+		{
+			return false;
+		}
+
+		// The highest bit at which the deadline differs from now decides the
+		// level: all the bits above it are the same, so the deadline is in
+		// the current span of that level, and in a later slot
+		final int level = (63 - Long.numberOfLeadingZeros(timeout.deadline ^ now)) / BITS;
+
+		if (level >= LEVELS)
+		{
+			link(timeout, OVERFLOW);
+		}
+		else
+		{
+			final int slot = digit(timeout.deadline, level);
+
+			link(timeout, level * SLOTS + slot);
+			occupied[level] |= 1L << slot;
+		}
+
+		return true;
+	}
+
+	/**
+	 * <p>Moves all the timeouts in a list to the slots for their deadlines,
+	 * relative to the current time</p>
+	 *
+	 * @param list the index of the list
+	 * @param due collection to add the values which are now due to
+	 * @return the number of values added to the collection
+	 */
+	private int cascade(int list, Collection<? super T> due)
+	{
+		Timeout<T> timeout = detach(list);
+		int count = 0;
+
+		while (timeout != null)
+		{
+			final Timeout<T> next = timeout.next;
+
+			timeout.prev = null;
+			timeout.next = null;
+
+			if (!place(timeout))
+			{
+				due.add(timeout.value);
+				++count;
+			}
+
+			timeout = next;
+		}
+
+		return count;
+	}
+
+	/**
+	 * <p>Returns all the values in a list</p>
+	 *
+	 * @param list the index of the list
+	 * @param due collection to add the values to
+	 * @return the number of values added to the collection
+	 */
+	private int drain(int list, Collection<? super T> due)
+	{
+		Timeout<T> timeout = detach(list);
+		int count = 0;
+
+		while (timeout != null)
+		{
+			final Timeout<T> next = timeout.next;
+
+			timeout.prev = null;
+			timeout.next = null;
+			due.add(timeout.value);
+			++count;
+
+			timeout = next;
+		}
+
+		return count;
+	}
+
+	/**
+	 * <p>Takes all the timeouts out of a list</p>
+	 *
+	 * @param list the index of the list
+	 * @return the first timeout of the list, which is still linked to the
+	 * rest
+	 */
+	private Timeout<T> detach(int list)
+	{
+		final Timeout<T> head = heads[list];
+
+		heads[list] = null;
+
+		if (list < OVERFLOW)
+		{
+			occupied[list / SLOTS] &= ~(1L << (list % SLOTS));
+		}
+
+		for (Timeout<T> t = head; t != null; t = t.next)
+		{
+			t.list = -1;
+		}
+
+		return head;
+	}
+
+	/**
+	 * <p>Adds a timeout to the end of a list</p>
+	 * <p>Lists are kept with the head's <code>prev</code> pointing at the
+	 * tail, so that adding to the end, and so keeping the order that
+	 * timeouts were added, is constant time.</p>
+	 *
+	 * @param timeout the timeout
+	 * @param list the index of the list
+	 */
+	private void link(Timeout<T> timeout, int list)
+	{
+		final Timeout<T> head = heads[list];
+
+		timeout.list = list;
+
+		if (head == null)
+		{
+			timeout.prev = timeout;
+			timeout.next = null;
+			heads[list] = timeout;
+		}
+		else
+		{
+			final Timeout<T> tail = head.prev;
+
+			tail.next = timeout;
+			timeout.prev = tail;
+			timeout.next = null;
+			head.prev = timeout;
+		}
+	}
+
+	/**
+	 * <p>Takes a timeout out of its list</p>
+	 *
+	 * @param timeout the timeout
+	 */
+	private void unlink(Timeout<T> timeout)
+	{
+		final int list = timeout.list;
+		final Timeout<T> head = heads[list];
+
+		if (timeout == head)
+		{
+			heads[list] = timeout.next;
+
+			if (timeout.next != null)
+			{
+				timeout.next.prev = timeout.prev;
+			}
+			else if (list < OVERFLOW)
+			{
+				occupied[list / SLOTS] &= ~(1L << (list % SLOTS));
+			}
+		}
+		else
+		{
+			timeout.prev.next = timeout.next;
+
+			if (timeout.next != null)
+			{
+				timeout.next.prev = timeout.prev;
+			}
+			else
+			{
+				head.prev = timeout.prev;
+			}
+		}
+
+		timeout.list = -1;
+		timeout.prev = null;
+		timeout.next = null;
+	}
+}
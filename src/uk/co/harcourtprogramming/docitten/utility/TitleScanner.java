@@ -0,0 +1,664 @@
+package uk.co.harcourtprogramming.docitten.utility;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+
+/**
+ * <p>Incremental scanner for the &lt;title&gt; of an HTML page</p>
+ * <p>The page is read through a fixed size byte buffer, one byte at a time
+ * through a small state machine, rather than being decoded and split into
+ * lines. Tags are matched without regard to case; comments, scripts, styles
+ * and quoted attribute values are skipped; and &lt;meta&gt; charset
+ * declarations are noted so that the title can be decoded correctly.</p>
+ * <p>Scanning stops as soon as the title has been read, at the end of the
+ * &lt;head&gt; (or start of the &lt;body&gt;), or once the byte budget has
+ * been used up, so a page with a huge head is never fully read.</p>
+ * <p>A page can either be pulled from a stream with {@link
+ * #scan(InputStream, Charset)}, or pushed through a piece at a time with
+ * {@link #feed(byte[], int, int)} as it arrives. The buffers are only
+ * allocated once, so an instance can be reused (but not shared between
+ * threads) to scan any number of pages.</p>
+ *
+ * @author Benedict Harcourt / javajawa
+ */
+public final class TitleScanner
+{
+	/**
+	 * <p>Charset used when neither the headers nor the page declare one</p>
+	 */
+	private final static Charset DEFAULT_CHARSET = StandardCharsets.UTF_8;
+
+	private final static byte[] TITLE  = ascii("title");
+	private final static byte[] META   = ascii("meta");
+	private final static byte[] SCRIPT = ascii("script");
+	private final static byte[] STYLE  = ascii("style");
+	private final static byte[] BODY   = ascii("body");
+	private final static byte[] HEAD_END = ascii("/head");
+	private final static byte[] COMMENT  = ascii("!--");
+	private final static byte[] CHARSET  = ascii("charset");
+	private final static byte[] TITLE_END  = ascii("</title");
+	private final static byte[] SCRIPT_END = ascii("</script");
+	private final static byte[] STYLE_END  = ascii("</style");
+
+	/**
+	 * <p>Reading text outside of any tag</p>
+	 */
+	private final static int TEXT = 0;
+	/**
+	 * <p>Reading the name of a tag</p>
+	 */
+	private final static int TAG_NAME = 1;
+	/**
+	 * <p>Skipping the attributes of a tag</p>
+	 */
+	private final static int ATTRIBUTES = 2;
+	/**
+	 * <p>Reading the attributes of a &lt;meta&gt; tag</p>
+	 */
+	private final static int META_ATTRIBUTES = 3;
+	/**
+	 * <p>Skipping a comment</p>
+	 */
+	private final static int IN_COMMENT = 4;
+	/**
+	 * <p>Skipping the content of a script or style element</p>
+	 */
+	private final static int RAW_TEXT = 5;
+	/**
+	 * <p>Reading the content of the title element</p>
+	 */
+	private final static int IN_TITLE = 6;
+	/**
+	 * <p>Finished scanning</p>
+	 */
+	private final static int DONE = 7;
+
+	/**
+	 * <p>Maximum number of bytes stored for a title</p>
+	 */
+	private final static int MAX_TITLE = 1024;
+	/**
+	 * <p>Maximum number of bytes stored for a tag name</p>
+	 */
+	private final static int MAX_NAME = 8;
+	/**
+	 * <p>Maximum number of bytes stored for the attributes of a meta tag</p>
+	 */
+	private final static int MAX_META = 256;
+
+	/**
+	 * <p>Converts an ASCII string into bytes</p>
+	 *
+	 * @param s the string
+	 * @return the bytes of the string
+	 */
+	private static byte[] ascii(String s)
+	{
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * <p>Lower-cases an ASCII byte</p>
+	 *
+	 * @param b the byte
+	 * @return the lower case byte
+	 */
+	private static int lower(int b)
+	{
+		return (b >= 'A' && b <= 'Z') ? b + ('a' - 'A') : b;
+	}
+
+	/**
+	 * <p>Tests whether a byte is ASCII whitespace</p>
+	 *
+	 * @param b the byte
+	 * @return whether it is whitespace
+	 */
+	private static boolean isSpace(int b)
+	{
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+	}
+
+	/**
+	 * <p>Finds the charset parameter in a Content-Type header</p>
+	 *
+	 * @param contentType the value of the Content-Type header (may be null)
+	 * @return the charset, or null if there is not a supported one
+	 */
+	public static Charset charsetOf(String contentType)
+	{
+		if (contentType == null)
+		{
+			return null;
+		}
+
+		final int i = contentType.toLowerCase().indexOf("charset=");
+
+		if (i == -1)
+		{
+			return null;
+		}
+
+		int end = contentType.indexOf(';', i);
+
+		if (end == -1)
+		{
+			end = contentType.length();
+		}
+
+		return lookup(contentType.substring(i + "charset=".length(), end).trim().replace("\"", ""));
+	}
+
+	/**
+	 * <p>Looks up a charset by name</p>
+	 *
+	 * @param name the name of the charset
+	 * @return the charset, or null if it is not supported
+	 */
+	private static Charset lookup(String name)
+	{
+		try
+		{
+			return Charset.forName(name);
+		}
+		catch (IllegalCharsetNameException | UnsupportedCharsetException ex)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * <p>Buffer for reading from a stream, allocated on the first {@link
+	 * #scan(InputStream, Charset) scan}</p>
+	 */
+	private byte[] buffer;
+	/**
+	 * <p>Buffer for the title</p>
+	 */
+	private final byte[] title = new byte[MAX_TITLE];
+	/**
+	 * <p>Buffer for the tag name</p>
+	 */
+	private final byte[] name = new byte[MAX_NAME];
+	/**
+	 * <p>Buffer for the attributes of a meta tag</p>
+	 */
+	private final byte[] meta = new byte[MAX_META];
+	/**
+	 * <p>Maximum number of bytes to read from any one page</p>
+	 */
+	private final int budget;
+
+	private int state;
+	/**
+	 * <p>Number of bytes of the current page that may still be read</p>
+	 */
+	private int remaining;
+	private int titleLength;
+	private int nameLength;
+	private int metaLength;
+	/**
+	 * <p>The quote character of the attribute value being skipped, or 0</p>
+	 */
+	private int quote;
+	/**
+	 * <p>The number of consecutive dashes seen in a comment</p>
+	 */
+	private int dashes;
+	/**
+	 * <p>How much of the closing tag has been matched in raw text or the
+	 * title</p>
+	 */
+	private int matched;
+	/**
+	 * <p>The closing tag that ends the current raw text element</p>
+	 */
+	private byte[] rawEnd;
+	/**
+	 * <p>The state to enter once the current tag has been skipped</p>
+	 */
+	private int afterTag;
+	/**
+	 * <p>Whether the last byte added to the title was whitespace</p>
+	 */
+	private boolean lastSpace;
+	/**
+	 * <p>Whether a title element has been found</p>
+	 */
+	private boolean found;
+	/**
+	 * <p>The charset declared by a meta tag in the page</p>
+	 */
+	private Charset declared;
+
+	/**
+	 * <p>Creates a new title scanner</p>
+	 *
+	 * @param budget the maximum number of bytes to read from any one page
+	 */
+	public TitleScanner(int budget)
+	{
+		this.budget = budget;
+	}
+
+	/**
+	 * <p>Scans a stream for the title of the page</p>
+	 * <p>The stream is not closed; the caller should close (or disconnect) it
+	 * as soon as this returns.</p>
+	 *
+	 * @param in the page data
+	 * @param headerCharset the charset from the HTTP headers, or null
+	 * @return the decoded title, with white space collapsed and entities
+	 * decoded, or null if no title was found
+	 * @throws IOException if the stream can not be read
+	 */
+	public String scan(InputStream in, Charset headerCharset) throws IOException
+	{
+		if (buffer == null)
+		{
+			buffer = new byte[4096];
+		}
+
+		reset();
+
+		while (true)
+		{
+			final int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+
+			if (read == -1 || feed(buffer, 0, read))
+			{
+				break;
+			}
+		}
+
+		return finish(headerCharset);
+	}
+
+	/**
+	 * <p>Prepares the scanner for a new page to be {@link #feed(byte[], int,
+	 * int) fed} to it</p>
+	 */
+	public void reset()
+	{
+		state = TEXT;
+		titleLength = 0;
+		found = false;
+		declared = null;
+		remaining = budget;
+	}
+
+	/**
+	 * <p>Scans the next part of a page</p>
+	 * <p>This allows a page to be pushed through the scanner as it arrives,
+	 * rather than pulled from a stream.</p>
+	 *
+	 * @param data buffer holding the data
+	 * @param offset the start of the data in the buffer
+	 * @param length the amount of data
+	 * @return true once no more data is needed, because the title or end of
+	 * the head has been found or the byte budget is used up
+	 */
+	public boolean feed(byte[] data, int offset, int length)
+	{
+		final int end = offset + Math.min(length, remaining);
+
+		remaining -= end - offset;
+
+		for (int i = offset; i < end && state != DONE; ++i)
+		{
+			consume(data[i] & 0xFF);
+		}
+
+		return state == DONE || remaining == 0;
+	}
+
+	/**
+	 * <p>Gets the title of the page that has been fed to the scanner</p>
+	 *
+	 * @param headerCharset the charset from the HTTP headers, or null
+	 * @return the decoded title, with white space collapsed and entities
+	 * decoded, or null if no title was found
+	 */
+	public String finish(Charset headerCharset)
+	{
+		// A title which was opened but not closed is still used
+		if (!found)
+		{
+			return null;
+		}
+
+		if (state == IN_TITLE)
+		{
+			flushMatched();
+		}
+
+		Charset charset = headerCharset;
+
+		if (charset == null)
+		{
+			charset = declared;
+		}
+		if (charset == null)
+		{
+			charset = DEFAULT_CHARSET;
+		}
+
+		final String result = new String(title, 0, titleLength, charset).trim();
+
+		if (result.indexOf('&') == -1)
+		{
+			return result;
+		}
+
+		return HtmlEntities.decode(result);
+	}
+
+	/**
+	 * <p>Advances the state machine by one byte</p>
+	 *
+	 * @param b the byte
+	 */
+	private void consume(int b)
+	{
+		switch (state)
+		{
+			case TEXT:
+				if (b == '<')
+				{
+					state = TAG_NAME;
+					nameLength = 0;
+				}
+				break;
+
+			case TAG_NAME:
+				tagName(b);
+				break;
+
+			case ATTRIBUTES:
+				if (quote != 0)
+				{
+					if (b == quote)
+					{
+						quote = 0;
+					}
+				}
+				else if (b == '"' || b == '\'')
+				{
+					quote = b;
+				}
+				else if (b == '>')
+				{
+					state = afterTag;
+				}
+				break;
+
+			case META_ATTRIBUTES:
+				if (quote != 0)
+				{
+					if (b == quote)
+					{
+						quote = 0;
+					}
+				}
+				else if (b == '"' || b == '\'')
+				{
+					quote = b;
+				}
+				else if (b == '>')
+				{
+					metaCharset();
+					state = TEXT;
+					break;
+				}
+
+				if (metaLength < MAX_META)
+				{
+					meta[metaLength++] = (byte)lower(b);
+				}
+				break;
+
+			case IN_COMMENT:
+				if (b == '>' && dashes >= 2)
+				{
+					state = TEXT;
+				}
+				dashes = (b == '-') ? dashes + 1 : 0;
+				break;
+
+			case RAW_TEXT:
+				if (lower(b) == rawEnd[matched])
+				{
+					if (++matched == rawEnd.length)
+					{
+						quote = 0;
+						afterTag = TEXT;
+						state = ATTRIBUTES;
+					}
+				}
+				else
+				{
+					matched = (b == '<') ? 1 : 0;
+				}
+				break;
+
+			case IN_TITLE:
+				if (lower(b) == TITLE_END[matched])
+				{
+					if (++matched == TITLE_END.length)
+					{
+						state = DONE;
+					}
+				}
+				else
+				{
+					flushMatched();
+					if (b == '<')
+					{
+						matched = 1;
+					}
+					else
+					{
+						appendTitle(b);
+					}
+				}
+				break;
+		}
+	}
+
+	/**
+	 * <p>Handles a byte of a tag name, and dispatches on the name once it is
+	 * complete</p>
+	 *
+	 * @param b the byte
+	 */
+	private void tagName(int b)
+	{
+		final int l = lower(b);
+
+		if ((l >= 'a' && l <= 'z') || (l >= '0' && l <= '9')
+			|| (nameLength == 0 && (l == '/' || l == '!'))
+			|| (nameLength > 0 && l == '-'))
+		{
+			if (nameLength < MAX_NAME)
+			{
+				name[nameLength++] = (byte)l;
+			}
+
+			if (nameIs(COMMENT))
+			{
+				state = IN_COMMENT;
+				dashes = 0;
+			}
+
+			return;
+		}
+
+		// Not a tag at all (e.g. "a < b")
+		if (nameLength == 0)
+		{
+			state = TEXT;
+			return;
+		}
+
+		quote = 0;
+
+		if (nameIs(TITLE))
+		{
+			startTag(b, IN_TITLE);
+			matched = 0;
+			lastSpace = true;
+			found = true;
+		}
+		else if (nameIs(META))
+		{
+			metaLength = 0;
+			state = META_ATTRIBUTES;
+			consume(b);
+		}
+		else if (nameIs(SCRIPT) || nameIs(STYLE))
+		{
+			rawEnd = nameIs(SCRIPT) ? SCRIPT_END : STYLE_END;
+			matched = 0;
+			startTag(b, RAW_TEXT);
+		}
+		else if (nameIs(BODY) || nameIs(HEAD_END))
+		{
+			state = DONE;
+		}
+		else
+		{
+			startTag(b, TEXT);
+		}
+	}
+
+	/**
+	 * <p>Moves to skipping the attributes of a tag, or straight to the
+	 * following state if the tag has ended</p>
+	 *
+	 * @param b the byte that ended the tag name
+	 * @param next the state to enter after the tag
+	 */
+	private void startTag(int b, int next)
+	{
+		afterTag = next;
+		state = (b == '>') ? next : ATTRIBUTES;
+	}
+
+	/**
+	 * <p>Tests the current tag name against a (lower case) name</p>
+	 *
+	 * @param expected the name to test for
+	 * @return whether the tag has that name
+	 */
+	private boolean nameIs(byte[] expected)
+	{
+		if (nameLength != expected.length)
+		{
+			return false;
+		}
+
+		for (int i = 0; i < nameLength; ++i)
+		{
+			if (name[i] != expected[i])
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * <p>Adds a byte to the title, collapsing runs of white space</p>
+	 *
+	 * @param b the byte
+	 */
+	private void appendTitle(int b)
+	{
+		if (isSpace(b))
+		{
+			if (lastSpace)
+			{
+				return;
+			}
+
+			b = ' ';
+			lastSpace = true;
+		}
+		else
+		{
+			lastSpace = false;
+		}
+
+		if (titleLength < MAX_TITLE)
+		{
+			title[titleLength++] = (byte)b;
+		}
+	}
+
+	/**
+	 * <p>Adds the partly matched bytes of a closing tag, which turned out not
+	 * to be one, to the title</p>
+	 */
+	private void flushMatched()
+	{
+		for (int i = 0; i < matched; ++i)
+		{
+			appendTitle(i == 0 ? '<' : TITLE_END[i]);
+		}
+
+		matched = 0;
+	}
+
+	/**
+	 * <p>Looks for a charset declaration in the attributes of a meta tag</p>
+	 * <p>Both <code>charset="..."</code> and
+	 * <code>content="text/html; charset=..."</code> are handled.</p>
+	 */
+	private void metaCharset()
+	{
+		if (declared != null)
+		{
+			return;
+		}
+
+		outer:
+		for (int i = 0; i + CHARSET.length < metaLength; ++i)
+		{
+			for (int j = 0; j < CHARSET.length; ++j)
+			{
+				if (meta[i + j] != CHARSET[j])
+				{
+					continue outer;
+				}
+			}
+
+			int start = i + CHARSET.length;
+
+			while (start < metaLength && (isSpace(meta[start]) || meta[start] == '='
+				|| meta[start] == '"' || meta[start] == '\''))
+			{
+				++start;
+			}
+
+			int end = start;
+
+			while (end < metaLength && !isSpace(meta[end]) && meta[end] != ';'
+				&& meta[end] != '"' && meta[end] != '\'' && meta[end] != '/' && meta[end] != '>')
+			{
+				++end;
+			}
+
+			if (end > start)
+			{
+				declared = lookup(new String(meta, start, end - start, StandardCharsets.US_ASCII));
+			}
+
+			return;
+		}
+	}
+}
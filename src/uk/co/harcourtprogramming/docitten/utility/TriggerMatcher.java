@@ -0,0 +1,338 @@
+package uk.co.harcourtprogramming.docitten.utility;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * <p>Finds every occurrence of a fixed set of trigger words in a line, in a
+ * single pass</p>
+ * <p>The passive services (such as {@link
+ * uk.co.harcourtprogramming.docitten.KittenService KittenService}) each run
+ * several case-insensitive regular expressions over every line. Most lines
+ * match none of them. The matcher is an Aho-Corasick automaton built from
+ * words that any match of those expressions must contain; scanning a line
+ * costs one table look up per character however many words there are, and
+ * the expressions only need to be run when one of their words is found.</p>
+ * <p>Matching is case-insensitive for ASCII letters. Trigger words must be
+ * ASCII; other characters in the line never match. The matcher is immutable
+ * once built, so can be shared between threads.</p>
+ *
+ * @author Benedict Harcourt / javajawa
+ */
+public final class TriggerMatcher
+{
+	/**
+	 * <p>The number of characters that the automaton has transitions
+	 * for</p>
+	 */
+	private final static int ALPHABET = 128;
+
+	/**
+	 * <p>The words found in a line, and how many times each was found</p>
+	 */
+	public final static class Hits
+	{
+		/**
+		 * <p>The matcher that produced these hits</p>
+		 */
+		private final TriggerMatcher matcher;
+		/**
+		 * <p>Number of times each word was found, by word index</p>
+		 */
+		private final int[] counts;
+		/**
+		 * <p>Whether any word was found</p>
+		 */
+		private boolean found = false;
+
+		/**
+		 * <p>Creates an empty set of hits</p>
+		 *
+		 * @param matcher the matcher that is producing these hits
+		 */
+		private Hits(TriggerMatcher matcher)
+		{
+			this.matcher = matcher;
+			this.counts = new int[matcher.words.size()];
+		}
+
+		/**
+		 * @return whether no words were found
+		 */
+		public boolean isEmpty()
+		{
+			return !found;
+		}
+
+		/**
+		 * @param word a trigger word
+		 * @return the number of times the word was found (including
+		 * overlapping occurrences), or 0 if it is not a trigger word of the
+		 * matcher
+		 */
+		public int count(String word)
+		{
+			final Integer index = matcher.index.get(word.toLowerCase());
+			return index == null ? 0 : counts[index];
+		}
+
+		/**
+		 * @param words trigger words
+		 * @return whether any of the words were found
+		 */
+		public boolean contains(String... words)
+		{
+			for (String word : words)
+			{
+				if (count(word) != 0)
+				{
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		/**
+		 * @param indices word indices, as returned by {@link
+		 * TriggerMatcher#indexOf(String)}
+		 * @return whether any of the words were found
+		 */
+		public boolean containsAny(int[] indices)
+		{
+			for (int i : indices)
+			{
+				if (counts[i] != 0)
+				{
+					return true;
+				}
+			}
+
+			return false;
+		}
+	}
+
+	/**
+	 * <p>The trigger words, lower case, in order of index</p>
+	 */
+	private final List<String> words;
+	/**
+	 * <p>Index of each trigger word</p>
+	 */
+	private final Map<String, Integer> index;
+	/**
+	 * <p>The transition table: the state after reading character c in state
+	 * s is <code>next[s * ALPHABET + c]</code></p>
+	 */
+	private final int[] next;
+	/**
+	 * <p>The indices of the words that end at each state</p>
+	 */
+	private final int[][] output;
+
+	/**
+	 * <p>Builds a matcher</p>
+	 *
+	 * @param triggers the trigger words; duplicates (ignoring case) are only
+	 * added once
+	 * @throws IllegalArgumentException if a word is empty, or contains a
+	 * character that is not ASCII
+	 */
+	public TriggerMatcher(Iterable<String> triggers)
+	{
+		final List<String> list = new ArrayList<>();
+		final Map<String, Integer> map = new HashMap<>();
+		int states = 1;
+
+		for (String trigger : triggers)
+		{
+			final String word = trigger.toLowerCase();
+
+			if (word.isEmpty())
+			{
+				throw new IllegalArgumentException("Trigger words can not be empty");
+			}
+
+			for (int i = 0; i < word.length(); ++i)
+			{
+				if (word.charAt(i) >= ALPHABET)
+				{
+					throw new IllegalArgumentException("Trigger words must be ASCII: " + trigger);
+				}
+			}
+
+			if (!map.containsKey(word))
+			{
+				map.put(word, list.size());
+				list.add(word);
+				states += word.length();
+			}
+		}
+
+		this.words = Collections.unmodifiableList(list);
+		this.index = map;
+
+		// Build the trie of the words; -1 is a missing transition
+		final int[] trie = new int[states * ALPHABET];
+		final List<int[]> ends = new ArrayList<>(states);
+		Arrays.fill(trie, -1);
+		ends.add(new int[0]);
+		int count = 1;
+
+		for (int w = 0; w < list.size(); ++w)
+		{
+			final String word = list.get(w);
+			int state = 0;
+
+			for (int i = 0; i < word.length(); ++i)
+			{
+				final int slot = state * ALPHABET + word.charAt(i);
+
+				if (trie[slot] == -1)
+				{
+					trie[slot] = count++;
+					ends.add(new int[0]);
+				}
+
+				state = trie[slot];
+			}
+
+			ends.set(state, append(ends.get(state), w));
+		}
+
+		// Turn the trie into an automaton, breadth first, so that each state's
+		// failure state is finished before the state itself
+		final int[] fail = new int[count];
+		final Queue<Integer> queue = new ArrayDeque<>();
+
+		for (int c = 0; c < ALPHABET; ++c)
+		{
+			if (trie[c] == -1)
+			{
+				trie[c] = 0;
+			}
+			else
+			{
+				fail[trie[c]] = 0;
+				queue.add(trie[c]);
+			}
+		}
+
+		while (!queue.isEmpty())
+		{
+			final int state = queue.remove();
+
+			ends.set(state, concat(ends.get(state), ends.get(fail[state])));
+
+			for (int c = 0; c < ALPHABET; ++c)
+			{
+				final int slot = state * ALPHABET + c;
+				final int fallback = trie[fail[state] * ALPHABET + c];
+
+				if (trie[slot] == -1)
+				{
+					trie[slot] = fallback;
+				}
+				else
+				{
+					fail[trie[slot]] = fallback;
+					queue.add(trie[slot]);
+				}
+			}
+		}
+
+		this.next = Arrays.copyOf(trie, count * ALPHABET);
+		this.output = ends.toArray(new int[count][]);
+	}
+
+	/**
+	 * @param array an array
+	 * @param value a value
+	 * @return a copy of the array with the value added to the end
+	 */
+	private static int[] append(int[] array, int value)
+	{
+		final int[] result = Arrays.copyOf(array, array.length + 1);
+		result[array.length] = value;
+		return result;
+	}
+
+	/**
+	 * @param a an array
+	 * @param b another array
+	 * @return an array of the values of a followed by those of b
+	 */
+	private static int[] concat(int[] a, int[] b)
+	{
+		if (b.length == 0)
+		{
+			return a;
+		}
+
+		final int[] result = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+
+	/**
+	 * <p>Finds the trigger words in a line</p>
+	 *
+	 * @param line the line
+	 * @return the words found
+	 */
+	public Hits scan(String line)
+	{
+		final Hits hits = new Hits(this);
+		int state = 0;
+
+		for (int i = 0; i < line.length(); ++i)
+		{
+			char c = line.charAt(i);
+
+			if (c >= ALPHABET)
+			{
+				state = 0;
+				continue;
+			}
+			if (c >= 'A' && c <= 'Z')
+			{
+				c += 'a' - 'A';
+			}
+
+			state = next[state * ALPHABET + c];
+
+			for (int w : output[state])
+			{
+				++hits.counts[w];
+				hits.found = true;
+			}
+		}
+
+		return hits;
+	}
+
+	/**
+	 * @param word a trigger word
+	 * @return the index of the word, or -1 if it is not a trigger word of
+	 * this matcher
+	 */
+	public int indexOf(String word)
+	{
+		final Integer i = index.get(word.toLowerCase());
+		return i == null ? -1 : i;
+	}
+
+	/**
+	 * @return the trigger words, in lower case
+	 */
+	public List<String> getWords()
+	{
+		return words;
+	}
+}
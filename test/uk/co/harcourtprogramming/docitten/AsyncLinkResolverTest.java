@@ -0,0 +1,244 @@
+package uk.co.harcourtprogramming.docitten;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.harcourtprogramming.internetrelaycats.RelayCat;
+import uk.co.harcourtprogramming.internetrelaycats.Service;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests the asynchronous resolver against a local HTTP server</p>
+ */
+public class AsyncLinkResolverTest
+{
+	private final static String PAGE = "<html><head><title>Async Page</title></head><body>Hello</body></html>";
+
+	private HttpServer server;
+	private String base;
+	private final AtomicInteger requests = new AtomicInteger();
+
+	private final CountDownLatch replied = new CountDownLatch(1);
+	private String target = null;
+	private String message = null;
+
+	private final RelayCat cat = new RelayCat() {
+		@Override
+		public void message(String target, String message)
+		{
+			AsyncLinkResolverTest.this.target  = target;
+			AsyncLinkResolverTest.this.message = message;
+			replied.countDown();
+		}
+
+		@Override
+		public void act(String target, String message)
+		{
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+
+		@Override
+		public void setTopic(String target, String topic)
+		{
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+
+		@Override
+		public void join(String channel)
+		{
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+
+		@Override
+		public void leave(String channel)
+		{
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+
+		@Override
+		public String getNick()
+		{
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+
+		@Override
+		public String[] names(String channel)
+		{
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+
+		@Override
+		public String[] channels()
+		{
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+
+		@Override
+		public boolean isConnected()
+		{
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+
+		@Override
+		public <Clazz extends Service> List<Clazz> getServicesByClass(Class<Clazz> clazz)
+		{
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+	};
+
+	private static void respond(HttpExchange e, int status, String type, byte[] body, boolean chunked) throws IOException
+	{
+		if (type != null)
+		{
+			e.getResponseHeaders().add("Content-Type", type);
+		}
+
+		e.sendResponseHeaders(status, body == null ? -1 : chunked ? 0 : body.length);
+
+		if (body != null)
+		{
+			final OutputStream out = e.getResponseBody();
+
+			// Send the body in small pieces, to split it over chunks
+			for (int i = 0; i < body.length; i += 7)
+			{
+				out.write(body, i, Math.min(7, body.length - i));
+				out.flush();
+			}
+		}
+
+		e.close();
+	}
+
+	@Before
+	public void startServer() throws IOException
+	{
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange e) throws IOException
+			{
+				final String path = e.getRequestURI().getPath();
+				requests.incrementAndGet();
+				final byte[] page = PAGE.getBytes(StandardCharsets.UTF_8);
+
+				switch (path)
+				{
+					case "/page":
+						respond(e, 200, "text/html; charset=utf-8", page, false);
+						return;
+
+					case "/chunked":
+						respond(e, 200, "text/html", page, true);
+						return;
+
+					case "/image":
+						respond(e, 200, "image/png", new byte[2048], false);
+						return;
+
+					case "/loop":
+						e.getResponseHeaders().add("Location", "/loop");
+						respond(e, 302, null, null, false);
+						return;
+
+					case "/missing":
+						respond(e, 404, "text/html", page, false);
+						return;
+				}
+
+				// /r/N redirects N times before reaching the page
+				final int n = Integer.parseInt(path.substring(3));
+				e.getResponseHeaders().add("Location", n > 1 ? "/r/" + (n - 1) : "/page");
+				respond(e, 301, null, null, false);
+			}
+		});
+		server.start();
+
+		base = "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	@After
+	public void stopServer()
+	{
+		server.stop(0);
+	}
+
+	private String resolve(String path, int seconds) throws InterruptedException
+	{
+		new AsyncLinkResolver(base + path, cat, "#test").run();
+		replied.await(seconds, TimeUnit.SECONDS);
+
+		return message;
+	}
+
+	private String resolve(String path) throws InterruptedException
+	{
+		return resolve(path, 5);
+	}
+
+	@Test
+	public void testTitle() throws InterruptedException
+	{
+		assertEquals("[127.0.0.1] Async Page", resolve("/page"));
+		assertEquals("#test", target);
+	}
+
+	@Test
+	public void testChunkedTitle() throws InterruptedException
+	{
+		assertEquals("[127.0.0.1] Async Page", resolve("/chunked"));
+	}
+
+	@Test
+	public void testRedirects() throws InterruptedException
+	{
+		assertEquals("[127.0.0.1] Async Page", resolve("/r/3"));
+	}
+
+	@Test
+	public void testNotPage() throws InterruptedException
+	{
+		assertEquals("[127.0.0.1] image/png 2.0 kiB", resolve("/image"));
+	}
+
+	@Test
+	public void testTooManyHops() throws InterruptedException
+	{
+		assertEquals("[127.0.0.1] (Unresolved after 5 hops)", resolve("/loop"));
+	}
+
+	@Test
+	public void testFailuresCached() throws InterruptedException
+	{
+		final String line = resolve("/loop");
+		final int sent = requests.get();
+
+		// The second lookup is answered from the negative cache
+		message = null;
+		new AsyncLinkResolver(base + "/loop", cat, "#test").run();
+
+		assertEquals(line, message);
+		assertEquals(sent, requests.get());
+	}
+
+	@Test
+	public void testErrorStatus() throws InterruptedException
+	{
+		// Nothing is said about pages which can not be found
+		assertNull(resolve("/missing", 1));
+	}
+}
@@ -0,0 +1,144 @@
+package uk.co.harcourtprogramming.docitten;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests that the asynchronous request always reports an outcome, even
+ * for malformed responses</p>
+ */
+public class AsyncRequestTest
+{
+	private ServerSocket server;
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	private volatile String outcome = null;
+
+	private final AsyncRequest.Callback callback = new AsyncRequest.Callback()
+	{
+		@Override
+		public void redirected(String location)
+		{
+			finish("redirected");
+		}
+
+		@Override
+		public void resolved(LinkCache.Entry entry)
+		{
+			finish("resolved");
+		}
+
+		@Override
+		public void unresolved(int statusCode)
+		{
+			finish("unresolved");
+		}
+
+		@Override
+		public void unknownHost(String host)
+		{
+			finish("unknownHost");
+		}
+
+		@Override
+		public void failed(Throwable cause)
+		{
+			finish("failed");
+		}
+	};
+
+	private void finish(String what)
+	{
+		outcome = what;
+		done.countDown();
+	}
+
+	/**
+	 * <p>Serves one fixed response, to the first connection</p>
+	 */
+	private URL serve(final String response) throws IOException
+	{
+		server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+
+		final Thread t = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try (Socket s = server.accept())
+				{
+					final InputStream in = s.getInputStream();
+					final byte[] request = new byte[4096];
+					in.read(request);
+
+					final OutputStream out = s.getOutputStream();
+					out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+					out.flush();
+
+					// Hold the connection open, so only the response can end it
+					Thread.sleep(3000);
+				}
+				catch (IOException | InterruptedException ex)
+				{
+					// Test is over
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+
+		return new URL("http://127.0.0.1:" + server.getLocalPort() + "/");
+	}
+
+	@After
+	public void stopServer() throws IOException
+	{
+		if (server != null)
+		{
+			server.close();
+		}
+	}
+
+	private String request(String response) throws IOException, InterruptedException
+	{
+		new AsyncRequest(serve(response), callback).run();
+		assertTrue("No outcome was reported", done.await(1500, TimeUnit.MILLISECONDS));
+		return outcome;
+	}
+
+	@Test
+	public void testNegativeContentLength() throws IOException, InterruptedException
+	{
+		assertEquals("failed", request(
+			"HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nContent-Length: -5\r\n\r\n<html><title>x"));
+	}
+
+	@Test
+	public void testOversizedChunkSize() throws IOException, InterruptedException
+	{
+		assertEquals("failed", request(
+			"HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nTransfer-Encoding: chunked\r\n\r\n"
+			// Seventeen digits, which would overflow to a size of 0x1d
+			+ "1000000000000001d\r\n<html><title>x</title></html>\r\n0\r\n\r\n"));
+	}
+
+	@Test
+	public void testTitle() throws IOException, InterruptedException
+	{
+		assertEquals("resolved", request(
+			"HTTP/1.1 200 OK\r\nContent-Type: text/html\r\nContent-Length: 28\r\n\r\n"
+			+ "<html><title>x</title></html>"));
+	}
+}
@@ -0,0 +1,72 @@
+package uk.co.harcourtprogramming.docitten;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests the addressing, keyword and argument parsing of commands</p>
+ */
+public class CommandTest
+{
+	private final static String NICK = "DoCitten";
+
+	@Test
+	public void testAddressedInChannel()
+	{
+		final Command c = Command.parse(NICK + ": reminder add 5m tea", NICK, false);
+
+		assertTrue(c.isAddressed());
+		assertEquals("reminder", c.getKeyword());
+		assertEquals("reminder", c.getPhrase());
+		assertEquals("add 5m tea", c.getArgs());
+		assertEquals("reminder add 5m tea", c.getText());
+		assertTrue(c.is("reminder"));
+		assertFalse(c.is("remind"));
+	}
+
+	@Test
+	public void testAddressSeparators()
+	{
+		assertTrue(Command.parse(NICK + ", help", NICK, false).is("help"));
+		assertTrue(Command.parse(NICK + " help", NICK, false).is("help"));
+		assertTrue(Command.parse("  " + NICK + ":help", NICK, false).is("help"));
+
+		// Nick only as the start of a longer word
+		assertFalse(Command.parse(NICK + "s help", NICK, false).isAddressed());
+	}
+
+	@Test
+	public void testPrivate()
+	{
+		final Command c = Command.parse("motd", NICK, true);
+
+		assertTrue(c.isAddressed());
+		assertTrue(c.is("motd"));
+		assertEquals("", c.getArgs());
+	}
+
+	@Test
+	public void testUnaddressed()
+	{
+		final Command c = Command.parse("help me, I'm falling", NICK, false);
+
+		assertFalse(c.isAddressed());
+		assertFalse(c.is("help"));
+		assertEquals("help", c.getKeyword());
+		assertEquals("me, I'm falling", c.getArgs());
+	}
+
+	@Test
+	public void testNoKeyword()
+	{
+		final Command c = Command.parse(NICK + ": !!", NICK, false);
+
+		assertTrue(c.isAddressed());
+		assertEquals("", c.getKeyword());
+		assertEquals("!!", c.getArgs());
+		assertEquals("!!", c.getText());
+
+		assertEquals("", Command.parse(NICK + ":", NICK, false).getText());
+	}
+}
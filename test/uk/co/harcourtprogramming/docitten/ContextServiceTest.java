@@ -0,0 +1,105 @@
+package uk.co.harcourtprogramming.docitten;
+
+import org.junit.AfterClass;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import uk.co.harcourtprogramming.internetrelaycats.Message;
+import uk.co.harcourtprogramming.internetrelaycats.TestingRelayCat;
+
+public class ContextServiceTest
+{
+
+	private final static TestingRelayCat cat = new TestingRelayCat();
+	private static ContextService srv;
+
+	@BeforeClass
+	public static void createTestRelayCat()
+	{
+		System.setProperty("ContextService.Depth", "4");
+		System.setProperty("ContextService.Depth.#short", "2");
+		srv = new ContextService();
+		cat.addService(srv);
+	}
+
+	@AfterClass
+	public static void destroyTestRelayCat()
+	{
+		System.clearProperty("ContextService.Depth");
+		System.clearProperty("ContextService.Depth.#short");
+		cat.shutdown();
+	}
+
+	private String[] context(String channel)
+	{
+		cat.inputMessage("bob", channel, TestingRelayCat.NAME + ": context");
+
+		Message reply = cat.getOutput();
+		assertNotNull("No context was sent", reply);
+		assertEquals("Context not sent to the requester", "bob", reply.getChannel());
+
+		// Drop the occasional objection
+		while (cat.getOutput() != null);
+
+		return reply.getMessage().split("\n");
+	}
+
+	@Test
+	public void testNoContext()
+	{
+		cat.inputMessage("bob", "#empty", TestingRelayCat.NAME + ": context");
+
+		Message reply = cat.getOutput();
+		assertNotNull("No reply was sent", reply);
+		assertEquals("No context available for this channel.", reply.getMessage());
+
+		while (cat.getOutput() != null);
+	}
+
+	@Test
+	public void testDefaultDepth()
+	{
+		for (int i = 0; i < 6; ++i)
+		{
+			cat.inputMessage("alice", "#long", "line " + i);
+		}
+
+		final String[] lines = context("#long");
+
+		assertEquals(4, lines.length);
+		for (int i = 0; i < 4; ++i)
+		{
+			assertTrue(lines[i], lines[i].matches("\\[\\d\\d:\\d\\d alice\\] line " + (i + 2)));
+		}
+	}
+
+	@Test
+	public void testChannelDepth()
+	{
+		cat.inputMessage("alice", "#short", "one");
+		cat.inputMessage("carol", "#short", "two");
+		cat.inputMessage("alice", "#short", "three");
+
+		final String[] lines = context("#short");
+
+		assertEquals(2, lines.length);
+		assertTrue(lines[0], lines[0].endsWith(" carol] two"));
+		assertTrue(lines[1], lines[1].endsWith(" alice] three"));
+	}
+
+	@Test
+	public void testOutboundLines()
+	{
+		cat.inputMessage("alice", "#out", "hello");
+		cat.message("#out", "hello, alice");
+
+		// The line sent to the channel
+		assertNotNull(cat.getOutput());
+
+		final String[] lines = context("#out");
+
+		assertEquals(2, lines.length);
+		assertTrue(lines[0], lines[0].endsWith(" alice] hello"));
+		assertTrue(lines[1], lines[1].endsWith("] hello, alice"));
+	}
+}
@@ -0,0 +1,149 @@
+package uk.co.harcourtprogramming.docitten;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import uk.co.harcourtprogramming.internetrelaycats.Message;
+import uk.co.harcourtprogramming.internetrelaycats.TestingRelayCat;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests the merging, priorities, and limits of the flood control
+ * service</p>
+ */
+public class FloodControlServiceTest
+{
+	private final static String[] PROPERTIES = {
+		"FloodControl.Interval", "FloodControl.Burst", "FloodControl.Target.Interval",
+		"FloodControl.Target.Burst", "FloodControl.Interactive", "FloodControl.Queue",
+		"FloodControl.LineLength"
+	};
+
+	@After
+	public void clearProperties()
+	{
+		for (String property : PROPERTIES)
+		{
+			System.clearProperty(property);
+		}
+	}
+
+	private static FloodControlService create(TestingRelayCat cat, long interval, int interactive,
+		int queue, int lineLength)
+	{
+		System.setProperty("FloodControl.Interval", Long.toString(interval));
+		System.setProperty("FloodControl.Burst", "1");
+		System.setProperty("FloodControl.Target.Interval", "1");
+		System.setProperty("FloodControl.Target.Burst", "10");
+		System.setProperty("FloodControl.Interactive", Integer.toString(interactive));
+		System.setProperty("FloodControl.Queue", Integer.toString(queue));
+		System.setProperty("FloodControl.LineLength", Integer.toString(lineLength));
+
+		final FloodControlService service = new FloodControlService(cat);
+		cat.addService(service);
+		return service;
+	}
+
+	private static List<String> read(TestingRelayCat cat, int count) throws InterruptedException
+	{
+		final List<String> lines = new ArrayList<>();
+		final long end = System.currentTimeMillis() + 10000;
+
+		while (lines.size() < count && System.currentTimeMillis() < end)
+		{
+			final Message m = cat.getOutput();
+
+			if (m == null)
+			{
+				Thread.sleep(5);
+			}
+			else
+			{
+				lines.add(m.getChannel() + " " + m.getMessage());
+			}
+		}
+
+		return lines;
+	}
+
+	@Test
+	public void testMerge() throws InterruptedException
+	{
+		final TestingRelayCat cat = new TestingRelayCat();
+		final FloodControlService service = create(cat, 10, 3, 256, 400);
+
+		cat.message("#doc", "one\ntwo\n \nthree");
+
+		assertEquals(Arrays.asList("#doc one | two | three"), read(cat, 1));
+		assertEquals(1, service.getSent());
+		assertEquals(2, service.getMerged());
+		assertEquals(1, service.getSpacers());
+		assertEquals(0, service.getQueued());
+	}
+
+	@Test
+	public void testMergeCountsBytes() throws InterruptedException
+	{
+		final TestingRelayCat cat = new TestingRelayCat();
+		final FloodControlService service = create(cat, 10, 3, 256, 20);
+
+		// Five characters, but ten bytes, each
+		cat.message("#doc", "\u00e9\u00e9\u00e9\u00e9\u00e9\n\u00e8\u00e8\u00e8\u00e8\u00e8");
+
+		assertEquals(Arrays.asList("#doc \u00e9\u00e9\u00e9\u00e9\u00e9", "#doc \u00e8\u00e8\u00e8\u00e8\u00e8"),
+			read(cat, 2));
+		assertEquals(0, service.getMerged());
+	}
+
+	@Test
+	public void testMergeFitsIrcLine() throws InterruptedException
+	{
+		final TestingRelayCat cat = new TestingRelayCat();
+		final FloodControlService service = create(cat, 10, 3, 256, 10000);
+		final StringBuilder line = new StringBuilder();
+
+		for (int i = 0; i < 200; ++i)
+		{
+			line.append('a');
+		}
+
+		cat.message("#doc", line + "\n" + line + "\n" + line);
+
+		final String merged = line + " | " + line;
+		assertEquals(Arrays.asList("#doc " + merged, "#doc " + line), read(cat, 2));
+		assertEquals(1, service.getMerged());
+		assertTrue(FloodControlService.utf8Length("PRIVMSG #doc :" + merged) + 2 <= 512);
+	}
+
+	@Test
+	public void testInteractiveBeforeBulk() throws InterruptedException
+	{
+		final TestingRelayCat cat = new TestingRelayCat();
+		create(cat, 100, 1, 256, 1);
+
+		cat.message("alice", "1\n2\n3");
+		cat.message("bob", "x");
+
+		assertEquals(Arrays.asList("alice 1", "bob x", "alice 2", "alice 3"), read(cat, 4));
+	}
+
+	@Test
+	public void testQueueLimit() throws InterruptedException
+	{
+		final TestingRelayCat cat = new TestingRelayCat();
+		final FloodControlService service = create(cat, 60000, 0, 2, 1);
+
+		cat.message("#doc", "a");
+		assertEquals(Arrays.asList("#doc a"), read(cat, 1));
+
+		// The connection now has no tokens for a minute
+		cat.message("#doc", "b\nc\nd");
+
+		assertEquals(2, service.getQueued());
+		assertEquals(1, service.getDropped());
+		assertNull(cat.getOutput());
+	}
+}
@@ -0,0 +1,187 @@
+package uk.co.harcourtprogramming.docitten;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests the rate limiting, circuit breaking, and eviction of the host
+ * guard</p>
+ */
+public class HostGuardTest
+{
+	@Test
+	public void testBurstThenRefused()
+	{
+		final HostGuard guard = new HostGuard(4, 1, 2, 3, 60000);
+
+		assertTrue(guard.acquire("example.com"));
+		assertTrue(guard.acquire("example.com"));
+		assertFalse(guard.acquire("example.com"));
+		assertEquals(1, guard.getRefused());
+
+		// Other hosts have their own buckets
+		assertTrue(guard.acquire("example.org"));
+	}
+
+	@Test
+	public void testRefill() throws InterruptedException
+	{
+		final HostGuard guard = new HostGuard(4, 100, 1, 3, 60000);
+
+		assertTrue(guard.acquire("example.com"));
+		assertFalse(guard.acquire("example.com"));
+		Thread.sleep(30);
+		assertTrue(guard.acquire("example.com"));
+	}
+
+	@Test
+	public void testHostsAreCaseInsensitive()
+	{
+		final HostGuard guard = new HostGuard(4, 1, 1, 3, 60000);
+
+		assertTrue(guard.acquire("Example.COM"));
+		assertFalse(guard.acquire("example.com"));
+	}
+
+	@Test
+	public void testCircuitOpens()
+	{
+		final HostGuard guard = new HostGuard(4, 1000, 10, 2, 60000);
+
+		assertTrue(guard.acquire("example.com"));
+		guard.failure("example.com");
+		assertFalse(guard.isOpen("example.com"));
+
+		assertTrue(guard.acquire("example.com"));
+		guard.report("example.com", 503);
+		assertTrue(guard.isOpen("example.com"));
+		assertFalse(guard.acquire("example.com"));
+	}
+
+	@Test
+	public void testSuccessResetsFailures()
+	{
+		final HostGuard guard = new HostGuard(4, 1000, 10, 2, 60000);
+
+		guard.failure("example.com");
+		guard.report("example.com", 404);
+		guard.failure("example.com");
+
+		assertFalse(guard.isOpen("example.com"));
+		assertTrue(guard.acquire("example.com"));
+	}
+
+	@Test
+	public void testHalfOpen() throws InterruptedException
+	{
+		final HostGuard guard = new HostGuard(4, 1000, 10, 1, 10);
+
+		guard.failure("example.com");
+		assertFalse(guard.acquire("example.com"));
+		Thread.sleep(20);
+
+		// One request is let through to test the host...
+		assertTrue(guard.acquire("example.com"));
+		assertFalse(guard.acquire("example.com"));
+
+		// ...and if it fails, the circuit opens again
+		guard.failure("example.com");
+		assertTrue(guard.isOpen("example.com"));
+		Thread.sleep(20);
+
+		assertTrue(guard.acquire("example.com"));
+		guard.success("example.com");
+		assertTrue(guard.acquire("example.com"));
+		assertTrue(guard.acquire("example.com"));
+	}
+
+	@Test
+	public void testUnreportedTestExpires() throws InterruptedException
+	{
+		final HostGuard guard = new HostGuard(4, 1000, 10, 1, 10);
+
+		guard.failure("example.com");
+		Thread.sleep(20);
+
+		// The test is never reported on...
+		assertTrue(guard.acquire("example.com"));
+		assertFalse(guard.acquire("example.com"));
+		Thread.sleep(20);
+
+		// ...so after another cool down, the host is tested again
+		assertTrue(guard.acquire("example.com"));
+	}
+
+	@Test
+	public void testRelease() throws InterruptedException
+	{
+		final HostGuard guard = new HostGuard(4, 1000, 10, 1, 10);
+
+		guard.failure("example.com");
+		Thread.sleep(20);
+		assertTrue(guard.acquire("example.com"));
+
+		// The test was not made, so the next request may make it
+		guard.release("example.com");
+		assertTrue(guard.acquire("example.com"));
+		assertFalse(guard.acquire("example.com"));
+
+		// Releasing a request to a healthy host changes nothing
+		assertTrue(guard.acquire("example.org"));
+		guard.release("example.org");
+		assertFalse(guard.isOpen("example.org"));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEviction()
+	{
+		final HostGuard guard = new HostGuard(2, 1, 1, 3, 60000);
+
+		assertTrue(guard.acquire("a"));
+		assertTrue(guard.acquire("b"));
+		assertTrue(guard.acquire("c"));
+		assertEquals(2, guard.size());
+
+		// 'a' was evicted, so it starts again with a full bucket
+		assertTrue(guard.acquire("a"));
+		assertFalse(guard.acquire("c"));
+	}
+
+	@Test
+	public void testOpenCircuitNotEvicted()
+	{
+		final HostGuard guard = new HostGuard(2, 1000, 10, 1, 60000);
+
+		assertTrue(guard.acquire("down"));
+		guard.failure("down");
+		assertTrue(guard.isOpen("down"));
+
+		assertTrue(guard.acquire("a"));
+		assertTrue(guard.acquire("b"));
+		assertTrue(guard.acquire("c"));
+		assertEquals(2, guard.size());
+
+		// The failing host is still blocked, though it was used least recently
+		assertFalse(guard.acquire("down"));
+		assertTrue(guard.isOpen("down"));
+	}
+
+	@Test
+	public void testExpiredCircuitEvicted() throws InterruptedException
+	{
+		final HostGuard guard = new HostGuard(2, 1, 1, 1, 10);
+
+		assertTrue(guard.acquire("down"));
+		guard.failure("down");
+		Thread.sleep(20);
+
+		assertTrue(guard.acquire("a"));
+		assertTrue(guard.acquire("b"));
+		assertEquals(2, guard.size());
+
+		// 'down' was evicted, so it starts again with a full bucket
+		assertTrue(guard.acquire("down"));
+		assertFalse(guard.acquire("b"));
+	}
+}
@@ -0,0 +1,101 @@
+package uk.co.harcourtprogramming.docitten;
+
+import java.net.URI;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests the expiry, eviction, and key normalisation of the link cache,
+ * and its use for failed links and hosts</p>
+ */
+public class LinkCacheTest
+{
+	private LinkCache.Entry entry(String title)
+	{
+		return new LinkCache.Entry("http://example.com/", "example.com", "text/html", -1, title);
+	}
+
+	@Test
+	public void testHitAndMiss()
+	{
+		final LinkCache<LinkCache.Entry> cache = new LinkCache<>(4, 60000);
+		final LinkCache.Entry e = entry("Example");
+
+		assertNull(cache.get("http://example.com/"));
+		cache.put("http://example.com/", e);
+		assertSame(e, cache.get("http://example.com/"));
+
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void testExpiry() throws InterruptedException
+	{
+		final LinkCache<LinkCache.Entry> cache = new LinkCache<>(4, 5);
+
+		cache.put("http://example.com/", entry("Example"));
+		Thread.sleep(20);
+
+		assertNull(cache.get("http://example.com/"));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEviction()
+	{
+		final LinkCache<LinkCache.Entry> cache = new LinkCache<>(2, 60000);
+
+		cache.put("a", entry("a"));
+		cache.put("b", entry("b"));
+		// Touch 'a', so that 'b' is the eldest
+		assertNotNull(cache.get("a"));
+		cache.put("c", entry("c"));
+
+		assertEquals(2, cache.size());
+		assertNotNull(cache.get("a"));
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("c"));
+	}
+
+	@Test
+	public void testFailures()
+	{
+		final LinkCache<LinkCache.Failure> cache = new LinkCache<>(4, 60000);
+
+		assertNull(cache.get("http://example.com/"));
+		cache.put("http://example.com/", new LinkCache.Failure("[example.com] (Unresolved after 5 hops)"));
+		cache.put("http://example.com/missing", LinkCache.Failure.SILENT);
+
+		assertEquals("[example.com] (Unresolved after 5 hops)", cache.get("http://example.com/").getReply());
+		assertNotNull(cache.get("http://example.com/missing"));
+		assertNull(cache.get("http://example.com/missing").getReply());
+		assertEquals(3, cache.getHits());
+	}
+
+	@Test
+	public void testHosts()
+	{
+		final LinkCache<LinkCache.Failure> cache = new LinkCache<>(4, 60000);
+
+		cache.put(LinkCache.hostKey("Nowhere.Example.COM"), LinkCache.Failure.SILENT);
+
+		assertNotNull(cache.get(LinkCache.hostKey("nowhere.example.com")));
+		assertNull(cache.get(LinkCache.hostKey("example.com")));
+		// Hosts and links do not clash
+		assertNull(cache.get("nowhere.example.com"));
+		assertNull(cache.get(LinkCache.key(URI.create("http://nowhere.example.com"))));
+	}
+
+	@Test
+	public void testKeyNormalisation()
+	{
+		final String expected = "http://example.com/";
+
+		assertEquals(expected, LinkCache.key(URI.create("http://example.com")));
+		assertEquals(expected, LinkCache.key(URI.create("HTTP://Example.COM:80/")));
+		assertEquals(expected, LinkCache.key(URI.create("http://example.com/a/../#top")));
+		assertEquals("https://example.com:8443/?q=Bob", LinkCache.key(URI.create("https://example.com:8443?q=Bob")));
+	}
+}
@@ -0,0 +1,191 @@
+package uk.co.harcourtprogramming.docitten;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import uk.co.harcourtprogramming.docitten.utility.LinkExtractor;
+
+/**
+ * <p>Compares the {@link LinkExtractor} with the regular expressions that
+ * {@link LinkService} used to find links with</p>
+ * <p>This is not a unit test; run it by hand with</p>
+ * <pre>java uk.co.harcourtprogramming.docitten.LinkExtractorBenchmark [corpus] [rounds]</pre>
+ * <p>The corpus is a text file with one chat message per line, such as an IRC
+ * log with the time stamps and nicks cut off. Without one, a corpus of
+ * made up chat (with a link in about one message in twenty) is used. Messages
+ * where the two disagree are counted; differences are expected where the
+ * regular expressions treat the dots in <code>is.gd</code>,
+ * <code>bit.ly</code> and <code>t.co</code> as any character, match the
+ * start of a label (<code>google.community</code>), or do not know a
+ * top-level domain (<code>.org</code>).</p>
+ */
+public class LinkExtractorBenchmark
+{
+	private final static Pattern uriPattern =
+		Pattern.compile("(?:^|\\s)\\(?\\[?((?:https?://)?(?:\\w+\\.)*(?:(?:\\w+\\.(com|net|uk|edu))|(?:www|is.gd|bit.ly|t.co))(?::[0-9]+)?(?:/[^\\s\\])]*)?)", Pattern.CASE_INSENSITIVE);
+	private final static Pattern protocolPattern =
+		Pattern.compile("https?://[^\\s\\])\"]+", Pattern.CASE_INSENSITIVE);
+	private final static Pattern spotifyUriPattern =
+		Pattern.compile("spotify:[:a-z0-9]+", Pattern.CASE_INSENSITIVE);
+	private final static Pattern giphyUriPattern =
+		Pattern.compile("(gif|giphy):([:a-zA-Z0-9]+|\"[^\"]+\")", Pattern.CASE_INSENSITIVE);
+
+	private final static String[] WORDS = {
+		"the", "a", "is", "it", "that", "build", "broke", "again", "lunch",
+		"anyone", "know", "why", "deadline", "tomorrow", "lol", "ok", "yes",
+		"no", "maybe", "merge", "conflict", "test", "failing", "on", "my",
+		"machine", "coffee", "meeting", "in", "5", "mins", ":)", "?", "!"
+	};
+
+	private final static String[] LINKS = {
+		"http://www.youtube.com/watch?v=2jzugX2NMnk", "github.com/javajawa",
+		"https://en.wikipedia.org/wiki/Cat", "www.google.com", "is.gd/abcdef",
+		"(https://example.com/a/b)", "spotify:track:6rqhFgbbKwnb9MLmUQDhG6",
+		"gif:cat", "giphy:\"happy dance\"", "bbc.co.uk/news"
+	};
+
+	private static List<String> corpus(String file) throws IOException
+	{
+		if (file != null)
+		{
+			return Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8);
+		}
+
+		final Random r = new Random(1);
+		final List<String> lines = new ArrayList<>(10000);
+
+		for (int i = 0; i < 10000; ++i)
+		{
+			final StringBuilder line = new StringBuilder(80);
+			final int words = 2 + r.nextInt(12);
+
+			for (int j = 0; j < words; ++j)
+			{
+				if (j != 0)
+				{
+					line.append(' ');
+				}
+
+				line.append(r.nextInt(250) == 0
+					? LINKS[r.nextInt(LINKS.length)] : WORDS[r.nextInt(WORDS.length)]);
+			}
+
+			lines.add(line.toString());
+		}
+
+		return lines;
+	}
+
+	private static Set<String> regexes(String message)
+	{
+		final Set<String> r = new TreeSet<>();
+
+		Matcher m = uriPattern.matcher(message);
+		while (m.find())
+		{
+			r.add(m.group(1));
+		}
+
+		m = protocolPattern.matcher(message);
+		while (m.find())
+		{
+			r.add(m.group());
+		}
+
+		m = spotifyUriPattern.matcher(message);
+		while (m.find())
+		{
+			r.add(m.group());
+		}
+
+		m = giphyUriPattern.matcher(message);
+		while (m.find())
+		{
+			r.add(m.group(2).replaceAll("^\"|\"$", ""));
+		}
+
+		return r;
+	}
+
+	private static Set<String> extractor(String message)
+	{
+		final LinkExtractor.Spans spans = LinkExtractor.getShared().extract(message);
+
+		if (spans.isEmpty())
+		{
+			return Collections.emptySet();
+		}
+
+		final Set<String> r = new TreeSet<>();
+
+		for (int i = 0; i < spans.size(); ++i)
+		{
+			r.add(spans.get(i));
+		}
+
+		return r;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		final List<String> lines = corpus(args.length > 0 ? args[0] : null);
+		final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+		int found = 0;
+		int differences = 0;
+
+		for (String line : lines)
+		{
+			final Set<String> expected = regexes(line);
+
+			found += expected.isEmpty() ? 0 : 1;
+
+			if (!expected.equals(extractor(line)))
+			{
+				++differences;
+			}
+		}
+
+		System.out.printf("%d messages, %d with links, %d differences%n", lines.size(), found, differences);
+
+		for (int pass = 0; pass < 3; ++pass)
+		{
+			long sink = 0;
+			long start = System.nanoTime();
+
+			for (int i = 0; i < rounds; ++i)
+			{
+				for (String line : lines)
+				{
+					sink += regexes(line).size();
+				}
+			}
+
+			final long regex = System.nanoTime() - start;
+			start = System.nanoTime();
+
+			for (int i = 0; i < rounds; ++i)
+			{
+				for (String line : lines)
+				{
+					sink += extractor(line).size();
+				}
+			}
+
+			final long scan = System.nanoTime() - start;
+			final double n = (double)rounds * lines.size();
+
+			System.out.printf("regex %8.1f ns/message   extractor %8.1f ns/message   (%.1fx)  [%d]%n",
+				regex / n, scan / n, (double)regex / scan, sink);
+		}
+	}
+}
@@ -80,7 +80,12 @@ public class LinkFinderTest
 			new Object[]{new LinkData("gif:google.com", "google")}, // This is a bit of a weird one...
 			new Object[]{new LinkData("google.com www", "google.com", "www")},
 			new Object[]{new LinkData("gif: cat")},
-			new Object[]{new LinkData("gif:cat giphy:dog", "cat", "dog")}
+			new Object[]{new LinkData("gif:cat giphy:dog", "cat", "dog")},
+			new Object[]{new LinkData("isagd")},
+			new Object[]{new LinkData("(http://example.com/a)", "http://example.com/a")},
+			new Object[]{new LinkData("see HTTP://Example.COM/a?b=c.", "HTTP://Example.COM/a?b=c.")},
+			new Object[]{new LinkData("spotify:track:6rqhFgbbKwnb9MLmUQDhG6", "spotify:track:6rqhFgbbKwnb9MLmUQDhG6")},
+			new Object[]{new LinkData("spotify: nothing")}
 		});
 	}
 	/**
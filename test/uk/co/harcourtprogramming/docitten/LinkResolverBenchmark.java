@@ -0,0 +1,291 @@
+package uk.co.harcourtprogramming.docitten;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import uk.co.harcourtprogramming.internetrelaycats.RelayCat;
+import uk.co.harcourtprogramming.internetrelaycats.Service;
+
+/**
+ * <p>Compares the HEAD and GET redirect walks of {@link LinkResolver}
+ * against a local HTTP server</p>
+ * <p>This is not a unit test; run it by hand with</p>
+ * <pre>java uk.co.harcourtprogramming.docitten.LinkResolverBenchmark [lookups] [latency ms]</pre>
+ * <p>The server is a minimal keep-alive HTTP/1.1 server which waits for the
+ * given latency (default 5ms) before answering each request, to stand in for
+ * the round trip to a real host. Each lookup is made to a new URL, so that
+ * the link cache does not answer it.</p>
+ */
+public class LinkResolverBenchmark
+{
+	private final static byte[] PAGE;
+
+	static
+	{
+		final StringBuilder page = new StringBuilder(300000);
+
+		page.append("<html><head><title>Benchmark Page</title></head><body>");
+
+		while (page.length() < 256 * 1024)
+		{
+			page.append("<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit.</p>\n");
+		}
+
+		page.append("</body></html>");
+
+		PAGE = page.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * <p>Minimal keep-alive HTTP server</p>
+	 * <p><code>/page</code> is an HTML page; <code>/r/N</code> redirects to
+	 * <code>/r/N-1</code>, and <code>/r/1</code> to the page.</p>
+	 */
+	private static class PageServer implements Runnable
+	{
+		private final ServerSocket socket;
+		private final long latency;
+		private final AtomicInteger requests = new AtomicInteger();
+		private final AtomicInteger connections = new AtomicInteger();
+
+		PageServer(long latency) throws IOException
+		{
+			this.socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			this.latency = latency;
+		}
+
+		int getPort()
+		{
+			return socket.getLocalPort();
+		}
+
+		@Override
+		public void run()
+		{
+			while (!socket.isClosed())
+			{
+				try
+				{
+					final Socket client = socket.accept();
+					connections.incrementAndGet();
+
+					final Thread t = new Thread(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							serve(client);
+						}
+					});
+					t.setDaemon(true);
+					t.start();
+				}
+				catch (IOException ex)
+				{
+					return;
+				}
+			}
+		}
+
+		private static String readLine(InputStream in) throws IOException
+		{
+			final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+			int b;
+
+			while ((b = in.read()) != '\n')
+			{
+				if (b == -1)
+				{
+					return null;
+				}
+				if (b != '\r')
+				{
+					line.write(b);
+				}
+			}
+
+			return line.toString("US-ASCII");
+		}
+
+		private void serve(Socket client)
+		{
+			try (Socket s = client)
+			{
+				final InputStream in = s.getInputStream();
+				final OutputStream out = s.getOutputStream();
+				String request;
+
+				while ((request = readLine(in)) != null)
+				{
+					String header;
+					do
+					{
+						header = readLine(in);
+					}
+					while (header != null && !header.isEmpty());
+
+					requests.incrementAndGet();
+					Thread.sleep(latency);
+
+					final String[] parts = request.split(" ");
+					final boolean head = "HEAD".equals(parts[0]);
+					final String path = parts[1].split("\\?")[0];
+
+					if (path.startsWith("/r/"))
+					{
+						final int n = Integer.parseInt(path.substring(3));
+						final String location = n > 1 ? "/r/" + (n - 1) : "/page";
+
+						out.write(("HTTP/1.1 302 Found\r\nLocation: " + location
+							+ "\r\nContent-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+					}
+					else
+					{
+						out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/html; charset=utf-8\r\nContent-Length: "
+							+ PAGE.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+
+						if (!head)
+						{
+							out.write(PAGE);
+						}
+					}
+
+					out.flush();
+				}
+			}
+			catch (IOException | InterruptedException ex)
+			{
+				// Client went away
+			}
+		}
+	}
+
+	/**
+	 * <p>RelayCat which only records the last message sent</p>
+	 */
+	private static class Sink implements RelayCat
+	{
+		private String last;
+
+		@Override
+		public void message(String target, String message)
+		{
+			last = message;
+		}
+
+		@Override
+		public void act(String target, String message)
+		{
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+
+		@Override
+		public void setTopic(String target, String topic)
+		{
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+
+		@Override
+		public void join(String channel)
+		{
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+
+		@Override
+		public void leave(String channel)
+		{
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+
+		@Override
+		public String getNick()
+		{
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+
+		@Override
+		public String[] names(String channel)
+		{
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+
+		@Override
+		public String[] channels()
+		{
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+
+		@Override
+		public boolean isConnected()
+		{
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+
+		@Override
+		public <Clazz extends Service> List<Clazz> getServicesByClass(Class<Clazz> clazz)
+		{
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+	}
+
+	private static int counter = 0;
+
+	@SuppressWarnings("CallToThreadRun")
+	private static void measure(PageServer server, String walk, String path, int lookups)
+	{
+		System.setProperty("LinkService.Walk", walk);
+
+		final Sink sink = new Sink();
+		final String base = "http://127.0.0.1:" + server.getPort() + path + "?n=";
+
+		// Warm up the JIT and the connection pool
+		for (int i = 0; i < 20; ++i)
+		{
+			new LinkResolver(base + (++counter), sink, "#bench").run();
+		}
+
+		final int requests = server.requests.get();
+		final int connections = server.connections.get();
+		final long start = System.nanoTime();
+
+		for (int i = 0; i < lookups; ++i)
+		{
+			new LinkResolver(base + (++counter), sink, "#bench").run();
+		}
+
+		final long elapsed = System.nanoTime() - start;
+
+		System.out.printf("%-4s %-6s %8.2f ms/lookup %5.2f requests/lookup %5d new connections  %s%n",
+			walk, path, elapsed / 1e6 / lookups,
+			(server.requests.get() - requests) / (double)lookups,
+			server.connections.get() - connections, sink.last);
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		final int lookups = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		final long latency = args.length > 1 ? Long.parseLong(args[1]) : 5;
+
+		// Every lookup is to the same host, so lift the per-host rate limit
+		System.setProperty("HostGuard.Rate", "1000000");
+		System.setProperty("HostGuard.Burst", "1000000");
+
+		final PageServer server = new PageServer(latency);
+		final Thread t = new Thread(server, "PageServer");
+		t.setDaemon(true);
+		t.start();
+
+		for (String path : new String[] {"/page", "/r/1", "/r/3"})
+		{
+			measure(server, "head", path, lookups);
+			measure(server, "get", path, lookups);
+		}
+	}
+}
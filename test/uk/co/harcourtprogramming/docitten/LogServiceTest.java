@@ -0,0 +1,110 @@
+package uk.co.harcourtprogramming.docitten;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.harcourtprogramming.internetrelaycats.TestingRelayCat;
+import static org.junit.Assert.*;
+
+public class LogServiceTest
+{
+	private File dir;
+	private TestingRelayCat cat;
+	private LogService srv;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("logs").toFile();
+		System.setProperty("LogService.Flush", "50");
+		System.setProperty("LogService.Buffer", "1024");
+		cat = new TestingRelayCat();
+		srv = new LogService(dir);
+		cat.addService(srv);
+	}
+
+	@After
+	public void tearDown()
+	{
+		System.clearProperty("LogService.Flush");
+		System.clearProperty("LogService.Buffer");
+		srv.shutdown();
+
+		for (File f : dir.listFiles())
+		{
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private List<String> read(String log) throws IOException
+	{
+		return Files.readAllLines(new File(dir, log).toPath(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testChannelAndPrivate() throws IOException
+	{
+		cat.inputMessage("bob", "#doc", "hello, channel");
+		cat.inputMessage("alice", null, "hello, bot");
+		srv.shutdown();
+
+		final List<String> channel = read("#doc");
+		assertEquals(1, channel.size());
+		assertTrue(channel.get(0), channel.get(0).matches("\\[\\S+ \\d\\d \\d\\d:\\d\\d bob\\] hello, channel"));
+
+		final List<String> query = read("alice");
+		assertEquals(1, query.size());
+		assertTrue(query.get(0), query.get(0).endsWith(" alice] hello, bot"));
+	}
+
+	@Test
+	public void testOutbound() throws IOException
+	{
+		cat.message("#doc", "hello, world");
+		srv.shutdown();
+
+		final List<String> channel = read("#doc");
+		assertEquals(1, channel.size());
+		assertTrue(channel.get(0), channel.get(0).endsWith("] hello, world"));
+	}
+
+	@Test
+	public void testTimedFlush() throws IOException, InterruptedException
+	{
+		final File log = new File(dir, "#doc");
+
+		cat.inputMessage("bob", "#doc", "hello");
+
+		for (int i = 0; i < 50 && log.length() == 0; ++i)
+		{
+			Thread.sleep(20);
+		}
+
+		assertEquals(1, read("#doc").size());
+	}
+
+	@Test
+	public void testBurst() throws IOException
+	{
+		final int lines = 5000;
+
+		for (int i = 0; i < lines; ++i)
+		{
+			cat.inputMessage("bob", "#doc", "line " + i + " \u00e9");
+		}
+		srv.shutdown();
+
+		final List<String> channel = read("#doc");
+		assertEquals(lines, channel.size());
+		for (int i = 0; i < lines; ++i)
+		{
+			assertTrue(channel.get(i), channel.get(i).endsWith("] line " + i + " \u00e9"));
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package uk.co.harcourtprogramming.docitten;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import uk.co.harcourtprogramming.internetrelaycats.Message;
+import uk.co.harcourtprogramming.internetrelaycats.TestingRelayCat;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests the ordering, isolation, and limits of service mailboxes</p>
+ */
+public class MailboxTest
+{
+	private static class Recorder implements CommandService
+	{
+		final List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+
+		@Override
+		public void handle(Message m, Command c)
+		{
+			seen.add(c.getArgs());
+		}
+	}
+
+	private static class Blocker extends Recorder
+	{
+		private final CountDownLatch entered = new CountDownLatch(1);
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		public void handle(Message m, Command c)
+		{
+			entered.countDown();
+
+			try
+			{
+				release.await(10, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+
+			super.handle(m, c);
+		}
+	}
+
+	private static void waitFor(Recorder r, int count) throws InterruptedException
+	{
+		final long end = System.currentTimeMillis() + 10000;
+
+		while (r.seen.size() < count && System.currentTimeMillis() < end)
+		{
+			Thread.sleep(5);
+		}
+
+		assertEquals(count, r.seen.size());
+	}
+
+	@Test
+	public void testOrderPreserved() throws InterruptedException
+	{
+		final MessageRouter router = new MessageRouter(true);
+		final Recorder recorder = new Recorder();
+		router.register(recorder, "count");
+
+		final TestingRelayCat cat = new TestingRelayCat();
+		cat.addService(router);
+
+		final List<String> expected = new ArrayList<>();
+
+		for (int i = 0; i < 200; ++i)
+		{
+			expected.add(Integer.toString(i));
+			cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ": count " + i);
+		}
+
+		waitFor(recorder, 200);
+		assertEquals(expected, recorder.seen);
+
+		final Mailbox mailbox = router.getMailboxes().iterator().next();
+		assertSame(recorder, mailbox.getService());
+		assertEquals(200, mailbox.getProcessed());
+		assertEquals(0, mailbox.getDepth());
+		assertTrue(mailbox.getMaxLatency() >= mailbox.getMeanLatency());
+	}
+
+	@Test
+	public void testSlowServiceDoesNotBlockOthers() throws InterruptedException
+	{
+		final MessageRouter router = new MessageRouter(true);
+		final Blocker slow = new Blocker();
+		final Recorder fast = new Recorder();
+		router.register(slow);
+		router.register(fast);
+
+		final TestingRelayCat cat = new TestingRelayCat();
+		cat.addService(router);
+
+		cat.inputMessage("bob", "#doc", "one");
+		assertTrue(slow.entered.await(10, TimeUnit.SECONDS));
+
+		cat.inputMessage("bob", "#doc", "two");
+		cat.inputMessage("bob", "#doc", "three");
+
+		waitFor(fast, 3);
+		assertTrue(slow.seen.isEmpty());
+
+		slow.release.countDown();
+		waitFor(slow, 3);
+	}
+
+	@Test
+	public void testLimit() throws InterruptedException
+	{
+		final Blocker slow = new Blocker();
+		final Mailbox mailbox = new Mailbox(slow, 2);
+
+		assertTrue(mailbox.post(null, Command.parse("a", TestingRelayCat.NAME, false)));
+		assertTrue(slow.entered.await(10, TimeUnit.SECONDS));
+
+		assertTrue(mailbox.post(null, Command.parse("b", TestingRelayCat.NAME, false)));
+		assertTrue(mailbox.post(null, Command.parse("c", TestingRelayCat.NAME, false)));
+		assertFalse(mailbox.post(null, Command.parse("d", TestingRelayCat.NAME, false)));
+
+		assertEquals(2, mailbox.getDepth());
+		assertEquals(1, mailbox.getDropped());
+
+		slow.release.countDown();
+		waitFor(slow, 3);
+		assertEquals(3, mailbox.getProcessed());
+	}
+}
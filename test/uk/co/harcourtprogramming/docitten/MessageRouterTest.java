@@ -0,0 +1,161 @@
+package uk.co.harcourtprogramming.docitten;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import uk.co.harcourtprogramming.internetrelaycats.Message;
+import uk.co.harcourtprogramming.internetrelaycats.TestingRelayCat;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests that the router passes each line to the services registered for
+ * it</p>
+ */
+public class MessageRouterTest
+{
+	private static class Recorder implements CommandService
+	{
+		private final List<Command> seen = new ArrayList<>();
+
+		@Override
+		public void handle(Message m, Command c)
+		{
+			seen.add(c);
+		}
+	}
+
+	@Test
+	public void testKeywordRouting()
+	{
+		final MessageRouter router = new MessageRouter();
+		final Recorder help = new Recorder();
+		final Recorder all = new Recorder();
+
+		router.register(help, "help", "halp");
+		router.register(all);
+
+		final TestingRelayCat cat = new TestingRelayCat();
+		cat.addService(router);
+
+		cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ": help reminder");
+		cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ": halp");
+		cat.inputMessage("bob", "#doc", "help reminder");
+		cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ": motd");
+
+		assertEquals(2, help.seen.size());
+		assertEquals("reminder", help.seen.get(0).getArgs());
+		assertEquals("halp", help.seen.get(1).getKeyword());
+
+		assertEquals(4, all.seen.size());
+		assertFalse(all.seen.get(2).isAddressed());
+	}
+
+	@Test
+	public void testPhraseRouting()
+	{
+		final MessageRouter router = new MessageRouter();
+		final Recorder distro = new Recorder();
+		final Recorder list = new Recorder();
+
+		router.register(distro, "distro");
+		router.register(list, "distro list");
+
+		final TestingRelayCat cat = new TestingRelayCat();
+		cat.addService(router);
+
+		cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ": distro  list all");
+		cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ": distro stop ubuntu");
+
+		assertEquals(1, list.seen.size());
+		assertEquals("distro list", list.seen.get(0).getPhrase());
+		assertEquals("all", list.seen.get(0).getArgs());
+
+		assertEquals(1, distro.seen.size());
+		assertEquals("stop ubuntu", distro.seen.get(0).getArgs());
+
+		assertEquals(Arrays.asList("distro", "distro list"), router.getCommands());
+	}
+
+	@Test
+	public void testHelpListsCommands()
+	{
+		final TestingRelayCat cat = new TestingRelayCat();
+		cat.addService(new MessageRouter());
+		cat.addService(new HelpService());
+		cat.addService(new ReminderService(cat));
+
+		cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ": help commands");
+
+		final Message m = cat.getOutput();
+		assertNotNull(m);
+		assertEquals("Commands:\n  help\n  help commands\n  reminder", m.getMessage());
+	}
+
+	@Test
+	public void testTriggerRouting()
+	{
+		final MessageRouter router = new MessageRouter();
+		final Recorder kitten = new Recorder();
+		final Recorder helping = new Recorder();
+
+		router.registerTriggers(kitten, "kitt", "cat");
+		router.registerTriggers(helping, "halp", "cat");
+
+		final TestingRelayCat cat = new TestingRelayCat();
+		cat.addService(router);
+
+		cat.inputMessage("bob", "#doc", "nothing to see here");
+		cat.inputMessage("bob", "#doc", "look at the KITTEN");
+		cat.inputMessage("bob", "#doc", "halp, a cat");
+
+		assertEquals(2, kitten.seen.size());
+		assertTrue(kitten.seen.get(0).hasTrigger("kitt"));
+		assertFalse(kitten.seen.get(0).hasTrigger("cat"));
+
+		assertEquals(1, helping.seen.size());
+		assertTrue(helping.seen.get(0).hasTrigger("halp"));
+		assertEquals(1, helping.seen.get(0).countTrigger("cat"));
+	}
+
+	@Test
+	public void testServiceErrorIsolated()
+	{
+		final MessageRouter router = new MessageRouter();
+		final Recorder after = new Recorder();
+
+		router.register(new CommandService()
+		{
+			@Override
+			public void handle(Message m, Command c)
+			{
+				throw new IllegalStateException("Broken service");
+			}
+		}, "motd");
+		router.register(after, "motd");
+
+		final TestingRelayCat cat = new TestingRelayCat();
+		cat.addService(router);
+
+		cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ": motd");
+
+		assertEquals(1, after.seen.size());
+	}
+
+	@Test
+	public void testServicesRegisterOnStartup()
+	{
+		final TestingRelayCat cat = new TestingRelayCat();
+		cat.addService(new MessageRouter());
+		cat.addService(new ReminderService(cat));
+
+		cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ", reminder list");
+
+		// Handled once, by the router, not again by the service itself
+		Message m = cat.getOutput();
+		assertNotNull(m);
+		assertEquals("You have no active reminders.", m.getMessage());
+		assertNull(cat.getOutput());
+	}
+}
@@ -0,0 +1,173 @@
+package uk.co.harcourtprogramming.docitten;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ReminderJournalTest
+{
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("journal").toFile();
+	}
+
+	@After
+	public void tearDown()
+	{
+		for (File f : dir.listFiles())
+		{
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testEmpty() throws IOException
+	{
+		final ReminderJournal journal = new ReminderJournal(dir, 0, 100);
+
+		assertTrue(journal.open().isEmpty());
+		journal.close();
+	}
+
+	@Test
+	public void testRecover() throws IOException
+	{
+		ReminderJournal journal = new ReminderJournal(dir, 0, 100);
+		journal.open();
+
+		journal.add(new ReminderJournal.Entry(1, 100, -1, "bob", "a note"));
+		journal.add(new ReminderJournal.Entry(2, 200, 5000, "alice", "a reminder"));
+		journal.add(new ReminderJournal.Entry(3, 300, -1, "bob", "another note"));
+		journal.remove(1);
+		journal.close();
+
+		journal = new ReminderJournal(dir, 0, 100);
+		final List<ReminderJournal.Entry> entries = journal.open();
+		journal.close();
+
+		assertEquals(2, entries.size());
+
+		assertEquals(2, entries.get(0).getId());
+		assertEquals(200, entries.get(0).getCreated());
+		assertEquals(5000, entries.get(0).getDue());
+		assertTrue(entries.get(0).isReminder());
+		assertEquals("alice", entries.get(0).getNick());
+		assertEquals("a reminder", entries.get(0).getText());
+
+		assertEquals(3, entries.get(1).getId());
+		assertFalse(entries.get(1).isReminder());
+		assertEquals("another note", entries.get(1).getText());
+	}
+
+	@Test
+	public void testEscaping() throws IOException
+	{
+		final String text = "tab\there\nnew line\\n back\\slash\r";
+
+		ReminderJournal journal = new ReminderJournal(dir, 0, 100);
+		journal.open();
+		journal.add(new ReminderJournal.Entry(1, 100, -1, "bob", text));
+		journal.close();
+
+		journal = new ReminderJournal(dir, 0, 100);
+		final List<ReminderJournal.Entry> entries = journal.open();
+		journal.close();
+
+		assertEquals(1, entries.size());
+		assertEquals(text, entries.get(0).getText());
+	}
+
+	@Test
+	public void testCompaction() throws IOException
+	{
+		ReminderJournal journal = new ReminderJournal(dir, 0, 10);
+		journal.open();
+
+		for (int i = 1; i <= 25; ++i)
+		{
+			journal.add(new ReminderJournal.Entry(i, i, -1, "bob", "note " + i));
+			if (i % 2 == 0)
+			{
+				journal.remove(i);
+			}
+		}
+		journal.close();
+
+		final File journalFile = new File(dir, "reminders.journal");
+		assertTrue(new File(dir, "reminders.snapshot").exists());
+		assertTrue(Files.readAllLines(journalFile.toPath(), StandardCharsets.UTF_8).size() < 10);
+
+		journal = new ReminderJournal(dir, 0, 10);
+		final List<ReminderJournal.Entry> entries = journal.open();
+		journal.close();
+
+		assertEquals(13, entries.size());
+		for (int i = 0; i < entries.size(); ++i)
+		{
+			assertEquals(2 * i + 1, entries.get(i).getId());
+			assertEquals("note " + (2 * i + 1), entries.get(i).getText());
+		}
+	}
+
+	@Test
+	public void testTornLine() throws IOException
+	{
+		ReminderJournal journal = new ReminderJournal(dir, 0, 100);
+		journal.open();
+		journal.add(new ReminderJournal.Entry(1, 100, -1, "bob", "kept"));
+		journal.close();
+
+		// A crash part way through writing a line
+		try (FileOutputStream out = new FileOutputStream(new File(dir, "reminders.journal"), true))
+		{
+			out.write("N\t2\t200\tbob\tlo".getBytes(StandardCharsets.UTF_8));
+		}
+
+		journal = new ReminderJournal(dir, 0, 100);
+		List<ReminderJournal.Entry> entries = journal.open();
+
+		assertEquals(1, entries.size());
+		assertEquals("kept", entries.get(0).getText());
+
+		// Written after the torn line, so must not be joined on to it
+		journal.add(new ReminderJournal.Entry(3, 300, -1, "bob", "after"));
+		journal.close();
+
+		journal = new ReminderJournal(dir, 0, 100);
+		entries = journal.open();
+		journal.close();
+
+		assertEquals(2, entries.size());
+		assertEquals("kept", entries.get(0).getText());
+		assertEquals("after", entries.get(1).getText());
+	}
+
+	@Test
+	public void testBatchedSync() throws IOException, InterruptedException
+	{
+		final ReminderJournal journal = new ReminderJournal(dir, 50, 100);
+		journal.open();
+
+		journal.add(new ReminderJournal.Entry(1, 100, -1, "bob", "note"));
+
+		final File journalFile = new File(dir, "reminders.journal");
+		for (int i = 0; i < 50 && journalFile.length() == 0; ++i)
+		{
+			Thread.sleep(20);
+		}
+
+		assertTrue("Journal was not written", journalFile.length() > 0);
+		journal.close();
+	}
+}
@@ -1,7 +1,10 @@
 package uk.co.harcourtprogramming.docitten;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.util.Calendar;
 import org.junit.Test;
 import uk.co.harcourtprogramming.internetrelaycats.Message;
 import uk.co.harcourtprogramming.internetrelaycats.TestingRelayCat;
@@ -138,4 +141,192 @@ public class ReminderServiceTest
 		m = cat.getOutput();
 		assertNotNull("Help was not also sent", m.getMessage());
 	}
+
+	@Test
+	public void testParseTime()
+	{
+		final Calendar c = Calendar.getInstance();
+		c.set(2015, Calendar.MARCH, 14, 15, 9, 26);
+		final long now = c.getTimeInMillis();
+
+		assertEquals(now + 90 * 60000, ReminderService.parseTime("1h30m", now));
+		assertEquals(now + 45000, ReminderService.parseTime("45s", now));
+		assertEquals(now + 2 * 86400000, ReminderService.parseTime("2d", now));
+
+		c.set(Calendar.HOUR_OF_DAY, 17);
+		c.set(Calendar.MINUTE, 30);
+		c.set(Calendar.SECOND, 0);
+		c.set(Calendar.MILLISECOND, 0);
+		assertEquals(c.getTimeInMillis(), ReminderService.parseTime("17:30", now));
+
+		c.set(Calendar.HOUR_OF_DAY, 9);
+		c.set(Calendar.MINUTE, 0);
+		c.add(Calendar.DAY_OF_MONTH, 1);
+		assertEquals(c.getTimeInMillis(), ReminderService.parseTime("9:00", now));
+
+		assertEquals(-1, ReminderService.parseTime("", now));
+		assertEquals(-1, ReminderService.parseTime("soon", now));
+		assertEquals(-1, ReminderService.parseTime("0m", now));
+		assertEquals(-1, ReminderService.parseTime("25:00", now));
+	}
+
+	@Test
+	public void testAdd() throws InterruptedException
+	{
+		final TestingRelayCat cat = new TestingRelayCat();
+		final ReminderService srv = new ReminderService(cat);
+		cat.addService(srv);
+
+		cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ": reminder add 1s tea");
+
+		Message m = cat.getOutput();
+		assertNotNull(m);
+		assertEquals("bob", m.getChannel());
+		assertTrue(m.getMessage(), m.getMessage().startsWith("Reminder set: ["));
+		assertTrue(m.getMessage(), m.getMessage().endsWith("] tea"));
+
+		cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ": reminder list");
+
+		m = cat.getOutput();
+		assertNotNull(m);
+		assertEquals("Active Reminders for bob (1):", m.getMessage());
+		assertNotNull(cat.getOutput());
+
+		for (int i = 0; i < 50 && (m = cat.getOutput()) == null; ++i)
+		{
+			Thread.sleep(100);
+		}
+
+		assertNotNull("Reminder was not sent", m);
+		assertEquals("bob", m.getChannel());
+		assertEquals("tea", m.getMessage());
+
+		cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ": reminder list");
+
+		m = cat.getOutput();
+		assertNotNull(m);
+		assertEquals("You have no active reminders.", m.getMessage());
+
+		srv.shutdown();
+	}
+
+	@Test
+	public void testRemoveReminder() throws InterruptedException
+	{
+		final TestingRelayCat cat = new TestingRelayCat();
+		final ReminderService srv = new ReminderService(cat);
+		cat.addService(srv);
+
+		cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ": reminder add 1s tea");
+		assertNotNull(cat.getOutput());
+
+		cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ": reminder remove 1");
+
+		Message m = cat.getOutput();
+		assertNotNull(m);
+		assertEquals("Reminder removed.", m.getMessage());
+
+		Thread.sleep(1500);
+		assertNull("Removed reminder was sent", cat.getOutput());
+
+		srv.shutdown();
+	}
+
+	@Test
+	public void testAddBadTime()
+	{
+		final TestingRelayCat cat = new TestingRelayCat();
+		final ReminderService srv = new ReminderService(cat);
+		cat.addService(srv);
+
+		cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ": reminder add soon tea");
+
+		Message m = cat.getOutput();
+		assertNotNull(m);
+		assertTrue(m.getMessage(), m.getMessage().startsWith("The add function takes a time"));
+
+		srv.shutdown();
+	}
+
+	@Test
+	public void testRemoveNoteByIndex()
+	{
+		final TestingRelayCat cat = new TestingRelayCat();
+		final ReminderService srv = new ReminderService(cat);
+		cat.addService(srv);
+
+		for (int i = 1; i <= 5; ++i)
+		{
+			cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ": reminder note note " + i);
+			assertEquals("Note Created", cat.getOutput().getMessage());
+		}
+
+		cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ": reminder remove 3");
+		assertEquals("Reminder removed.", cat.getOutput().getMessage());
+
+		cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ": reminder remove 5");
+		assertEquals("Index 5 out of range - see 'reminder list'", cat.getOutput().getMessage());
+
+		cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ": reminder list");
+		assertEquals("Active Reminders for bob (4):", cat.getOutput().getMessage());
+		assertEquals("  1: note 1", cat.getOutput().getMessage());
+		assertEquals("  2: note 2", cat.getOutput().getMessage());
+		assertEquals("  3: note 4", cat.getOutput().getMessage());
+		assertEquals("  4: note 5", cat.getOutput().getMessage());
+		assertNull(cat.getOutput());
+
+		srv.shutdown();
+	}
+
+	@Test
+	public void testRestart() throws IOException
+	{
+		final File dir = Files.createTempDirectory("reminders").toFile();
+		System.setProperty("ReminderService.Directory", dir.getPath());
+		System.setProperty("ReminderService.Sync", "0");
+
+		try
+		{
+			TestingRelayCat cat = new TestingRelayCat();
+			ReminderService srv = new ReminderService(cat);
+			cat.addService(srv);
+
+			cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ": reminder note first");
+			cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ": reminder note second");
+			cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ": reminder add 1d tea");
+			cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ": reminder remove 1");
+			srv.shutdown();
+
+			cat = new TestingRelayCat();
+			srv = new ReminderService(cat);
+			cat.addService(srv);
+
+			cat.inputMessage("bob", "#doc", TestingRelayCat.NAME + ": reminder list");
+
+			Message m = cat.getOutput();
+			assertNotNull(m);
+			assertEquals("Active Reminders for bob (2):", m.getMessage());
+
+			m = cat.getOutput();
+			assertNotNull(m);
+			assertEquals("  1: second", m.getMessage());
+
+			m = cat.getOutput();
+			assertNotNull(m);
+			assertTrue(m.getMessage(), m.getMessage().endsWith("] tea"));
+
+			srv.shutdown();
+		}
+		finally
+		{
+			System.clearProperty("ReminderService.Directory");
+			System.clearProperty("ReminderService.Sync");
+
+			for (File f : dir.listFiles())
+			{
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
 }
@@ -0,0 +1,114 @@
+package uk.co.harcourtprogramming.docitten;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests that jobs on the shared scheduler run when they should</p>
+ */
+public class SchedulerTest
+{
+	@Test
+	public void testOnce() throws InterruptedException
+	{
+		final CountDownLatch ran = new CountDownLatch(1);
+		final long start = System.currentTimeMillis();
+
+		Scheduler.schedule(200, TimeUnit.MILLISECONDS, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ran.countDown();
+			}
+		});
+
+		assertTrue("Job did not run", ran.await(5, TimeUnit.SECONDS));
+		assertTrue("Job ran early", System.currentTimeMillis() - start >= 200);
+	}
+
+	@Test
+	public void testCancel() throws InterruptedException
+	{
+		final AtomicInteger runs = new AtomicInteger();
+
+		final Scheduler.Job job = Scheduler.schedule(200, TimeUnit.MILLISECONDS, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				runs.incrementAndGet();
+			}
+		});
+
+		job.cancel();
+		assertTrue(job.isCancelled());
+
+		Thread.sleep(500);
+		assertEquals(0, runs.get());
+	}
+
+	@Test
+	public void testRepeat() throws InterruptedException
+	{
+		final CountDownLatch ran = new CountDownLatch(3);
+
+		final Scheduler.Job job = Scheduler.repeat(50, 20, TimeUnit.MILLISECONDS, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ran.countDown();
+
+				if (ran.getCount() == 1)
+				{
+					throw new IllegalStateException("Repeating jobs carry on after a failure");
+				}
+			}
+		});
+
+		assertTrue("Job did not repeat", ran.await(5, TimeUnit.SECONDS));
+		job.cancel();
+	}
+
+	@Test
+	public void testRunNow() throws InterruptedException
+	{
+		final CountDownLatch ran = new CountDownLatch(1);
+
+		final Scheduler.Job job = Scheduler.schedule(1, TimeUnit.HOURS, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ran.countDown();
+			}
+		});
+
+		job.runNow();
+		assertTrue("Job did not run", ran.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testNextDaily()
+	{
+		final TimeZone tz = TimeZone.getTimeZone("Europe/London");
+		final Calendar c = Calendar.getInstance(tz);
+		c.clear();
+		c.set(2015, Calendar.MARCH, 14, 23, 40);
+		final long now = c.getTimeInMillis();
+
+		c.set(Calendar.MINUTE, 50);
+		assertEquals(c.getTimeInMillis(), Scheduler.nextDaily(23, 50, tz, now));
+
+		c.set(Calendar.MINUTE, 30);
+		c.add(Calendar.DAY_OF_MONTH, 1);
+		assertEquals(c.getTimeInMillis(), Scheduler.nextDaily(23, 30, tz, now));
+	}
+}
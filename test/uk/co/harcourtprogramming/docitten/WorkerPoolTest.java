@@ -0,0 +1,92 @@
+package uk.co.harcourtprogramming.docitten;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests that the virtual thread executor hands back its permits</p>
+ */
+public class WorkerPoolTest
+{
+	private final static Runnable NOTHING = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			// Nothing to do
+		}
+	};
+
+	@Test
+	public void testPermitReturnedWhenThreadNotCreated()
+	{
+		final WorkerPool.VirtualExecutor executor = new WorkerPool.VirtualExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				throw new IllegalStateException("No threads");
+			}
+		}, 1);
+
+		for (int i = 0; i < 3; ++i)
+		{
+			try
+			{
+				executor.execute(NOTHING);
+				fail("Task was accepted");
+			}
+			catch (RejectedExecutionException ex)
+			{
+				assertTrue(ex.getCause() instanceof IllegalStateException);
+			}
+
+			assertEquals(0, executor.getActive());
+		}
+	}
+
+	@Test
+	public void testPermitReturnedWhenNoThread()
+	{
+		final WorkerPool.VirtualExecutor executor = new WorkerPool.VirtualExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				return null;
+			}
+		}, 1);
+
+		try
+		{
+			executor.execute(NOTHING);
+			fail("Task was accepted");
+		}
+		catch (RejectedExecutionException ex)
+		{
+			assertEquals(0, executor.getActive());
+		}
+	}
+
+	@Test
+	public void testPermitReturnedWhenTaskEnds() throws InterruptedException
+	{
+		final Thread[] made = new Thread[1];
+		final WorkerPool.VirtualExecutor executor = new WorkerPool.VirtualExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				return made[0] = new Thread(r);
+			}
+		}, 1);
+
+		executor.execute(NOTHING);
+		made[0].join();
+
+		assertEquals(0, executor.getActive());
+	}
+}
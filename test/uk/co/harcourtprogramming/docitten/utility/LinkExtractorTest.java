@@ -0,0 +1,103 @@
+package uk.co.harcourtprogramming.docitten.utility;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests the spans, domains, and thread handling of the link extractor</p>
+ */
+public class LinkExtractorTest
+{
+	private final LinkExtractor extractor = new LinkExtractor("com", "net", "org", "uk", "edu", "io");
+
+	@Test
+	public void testNoLinks()
+	{
+		final LinkExtractor.Spans spans = extractor.extract("nothing to see here. move along: citizen");
+
+		assertTrue(spans.isEmpty());
+		assertEquals(0, spans.size());
+	}
+
+	@Test
+	public void testSpansPointIntoMessage()
+	{
+		final String message = "see (http://example.com/a) and gif:\"happy cat\" or spotify:track:1";
+		final LinkExtractor.Spans spans = extractor.extract(message);
+
+		assertSame(message, spans.getSource());
+		assertEquals(3, spans.size());
+
+		assertEquals(LinkExtractor.Kind.WEB, spans.kind(0));
+		assertEquals(message.indexOf("http"), spans.start(0));
+		assertEquals(message.indexOf(')'), spans.end(0));
+		assertEquals("http://example.com/a", spans.get(0));
+
+		assertEquals(LinkExtractor.Kind.GIPHY, spans.kind(1));
+		assertEquals("happy cat", spans.get(1));
+
+		assertEquals(LinkExtractor.Kind.SPOTIFY, spans.kind(2));
+		assertEquals("spotify:track:1", spans.get(2));
+	}
+
+	@Test
+	public void testProtocolLinkNotRepeated()
+	{
+		// Found both at the start of a word and as a protocol link
+		final LinkExtractor.Spans spans = extractor.extract("https://github.com");
+
+		assertEquals(1, spans.size());
+		assertEquals("https://github.com", spans.get(0));
+	}
+
+	@Test
+	public void testDomains()
+	{
+		assertEquals("en.wikipedia.org/wiki/Cat", extractor.extract("en.wikipedia.org/wiki/Cat").get(0));
+		assertEquals("bbc.co.uk", extractor.extract("bbc.co.uk, again").get(0));
+		assertEquals("example.com", extractor.extract("go to example.com.").get(0));
+
+		final LinkExtractor limited = new LinkExtractor("COM");
+
+		assertTrue(limited.extract("en.wikipedia.org").isEmpty());
+		assertEquals("example.com", limited.extract("example.com").get(0));
+	}
+
+	@Test
+	public void testWholeLabels()
+	{
+		assertTrue(extractor.extract("google.community").isEmpty());
+		assertTrue(extractor.extract("isagd").isEmpty());
+		assertEquals("is.gd/abc", extractor.extract("is.gd/abc").get(0));
+	}
+
+	@Test
+	public void testSpansReusedByThread() throws InterruptedException
+	{
+		final LinkExtractor.Spans first = extractor.extract("example.com");
+		final LinkExtractor.Spans[] other = new LinkExtractor.Spans[1];
+
+		final Thread t = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				other[0] = extractor.extract("example.org");
+			}
+		});
+		t.start();
+		t.join();
+
+		assertSame(first, extractor.extract("example.net"));
+		assertNotSame(first, other[0]);
+		assertEquals("example.net", first.get(0));
+		assertEquals("example.org", other[0].get(0));
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testOutOfRange()
+	{
+		extractor.extract("example.com").get(1);
+	}
+}
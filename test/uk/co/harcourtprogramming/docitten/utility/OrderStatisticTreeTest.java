@@ -0,0 +1,125 @@
+package uk.co.harcourtprogramming.docitten.utility;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests that the order statistic tree behaves as a sorted set, and can be
+ * indexed by position</p>
+ */
+public class OrderStatisticTreeTest
+{
+	private final static Comparator<Integer> NATURAL = new Comparator<Integer>()
+	{
+		@Override
+		public int compare(Integer o1, Integer o2)
+		{
+			return o1.compareTo(o2);
+		}
+	};
+
+	@Test
+	public void testEmpty()
+	{
+		final OrderStatisticTree<Integer> tree = new OrderStatisticTree<>(NATURAL);
+
+		assertTrue(tree.isEmpty());
+		assertEquals(0, tree.size());
+		assertEquals(-1, tree.indexOf(1));
+		assertFalse(tree.remove(1));
+		assertTrue(tree.toList().isEmpty());
+	}
+
+	@Test
+	public void testOrder()
+	{
+		final OrderStatisticTree<Integer> tree = new OrderStatisticTree<>(NATURAL);
+
+		assertTrue(tree.add(5));
+		assertTrue(tree.add(1));
+		assertTrue(tree.add(3));
+		assertFalse(tree.add(3));
+
+		assertEquals(3, tree.size());
+		assertEquals(Arrays.asList(1, 3, 5), tree.toList());
+		assertEquals(Integer.valueOf(1), tree.get(0));
+		assertEquals(Integer.valueOf(3), tree.get(1));
+		assertEquals(Integer.valueOf(5), tree.get(2));
+		assertEquals(2, tree.indexOf(5));
+		assertEquals(-1, tree.indexOf(4));
+	}
+
+	@Test
+	public void testRemoveAt()
+	{
+		final OrderStatisticTree<Integer> tree = new OrderStatisticTree<>(NATURAL);
+
+		for (int i = 0; i < 10; ++i)
+		{
+			tree.add(i * 10);
+		}
+
+		assertEquals(Integer.valueOf(40), tree.removeAt(4));
+		assertEquals(Integer.valueOf(0), tree.removeAt(0));
+		assertEquals(Integer.valueOf(90), tree.removeAt(7));
+		assertEquals(Arrays.asList(10, 20, 30, 50, 60, 70, 80), tree.toList());
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testOutOfRange()
+	{
+		final OrderStatisticTree<Integer> tree = new OrderStatisticTree<>(NATURAL);
+
+		tree.add(1);
+		tree.get(1);
+	}
+
+	@Test
+	public void testAgainstTreeSet()
+	{
+		final Random r = new Random(42);
+		final OrderStatisticTree<Integer> tree = new OrderStatisticTree<>(NATURAL);
+		final TreeSet<Integer> expected = new TreeSet<>();
+
+		for (int i = 0; i < 20000; ++i)
+		{
+			final int value = r.nextInt(500);
+
+			switch (r.nextInt(3))
+			{
+				case 0:
+					assertEquals(expected.add(value), tree.add(value));
+					break;
+				case 1:
+					assertEquals(expected.remove(value), tree.remove(value));
+					break;
+				default:
+					if (!expected.isEmpty())
+					{
+						final int index = r.nextInt(expected.size());
+						final Integer removed = tree.removeAt(index);
+						assertEquals(index, expected.headSet(removed).size());
+						assertTrue(expected.remove(removed));
+					}
+			}
+
+			assertEquals(expected.size(), tree.size());
+		}
+
+		final List<Integer> list = new ArrayList<>(expected);
+
+		assertEquals(list, tree.toList());
+		for (int i = 0; i < list.size(); ++i)
+		{
+			assertEquals(list.get(i), tree.get(i));
+			assertEquals(i, tree.indexOf(list.get(i)));
+		}
+	}
+}
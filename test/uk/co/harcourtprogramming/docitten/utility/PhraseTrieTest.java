@@ -0,0 +1,85 @@
+package uk.co.harcourtprogramming.docitten.utility;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests the matching and listing of phrases in the trie</p>
+ */
+public class PhraseTrieTest
+{
+	private PhraseTrie<String> create()
+	{
+		final PhraseTrie<String> trie = new PhraseTrie<>();
+
+		trie.put("distro", "distro");
+		trie.put("distro list", "list");
+		trie.put("distro latest", "latest");
+		trie.put("what is", "what");
+
+		return trie;
+	}
+
+	@Test
+	public void testLongestMatch()
+	{
+		final PhraseTrie<String> trie = create();
+		final String line = "distro latest ubuntu";
+		final PhraseTrie.Match<String> match = trie.match(line, 0);
+
+		assertNotNull(match);
+		assertEquals("distro latest", match.getPhrase());
+		assertEquals("latest", match.getValue());
+		assertEquals("distro latest".length(), match.getEnd());
+
+		assertEquals("distro", trie.match("distro stop ubuntu", 0).getPhrase());
+		assertEquals("distro", trie.match("distro", 0).getPhrase());
+	}
+
+	@Test
+	public void testWholeWords()
+	{
+		final PhraseTrie<String> trie = create();
+
+		assertNull(trie.match("what isn't a cat", 0));
+		assertNull(trie.match("distros", 0));
+		assertEquals("distro", trie.match("distro listing", 0).getPhrase());
+		assertEquals("what is", trie.match("what is a cat?", 0).getPhrase());
+		assertEquals("what is", trie.match("what is?", 0).getPhrase());
+	}
+
+	@Test
+	public void testWhiteSpace()
+	{
+		final PhraseTrie<String> trie = create();
+		final String line = "distro \t list";
+
+		assertEquals("distro list", trie.match(line, 0).getPhrase());
+		assertEquals(line.length(), trie.match(line, 0).getEnd());
+
+		assertEquals("list", trie.get("  distro   list "));
+		assertEquals("x: distro list".length(), trie.match("x: distro list", 3).getEnd());
+	}
+
+	@Test
+	public void testPutAndList()
+	{
+		final PhraseTrie<String> trie = create();
+
+		assertEquals(4, trie.size());
+		assertEquals("list", trie.put("distro list", "other"));
+		assertEquals(4, trie.size());
+		assertEquals("other", trie.get("distro list"));
+		assertNull(trie.get("distro l"));
+
+		assertEquals(Arrays.asList("distro", "distro latest", "distro list", "what is"), trie.getPhrases());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEmptyPhrase()
+	{
+		new PhraseTrie<String>().put("   ", "value");
+	}
+}
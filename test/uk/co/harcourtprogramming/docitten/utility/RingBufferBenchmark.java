@@ -0,0 +1,168 @@
+package uk.co.harcourtprogramming.docitten.utility;
+
+/**
+ * <p>Compares the {@link RingBuffer} with the {@link ArrayBuffer} that it
+ * replaces</p>
+ * <p>This is not a unit test; run it by hand with</p>
+ * <pre>java uk.co.harcourtprogramming.docitten.utility.RingBufferBenchmark [length] [rounds]</pre>
+ * <p>Each round adds a line to the buffer and, one time in twenty, reads
+ * the whole buffer back, as {@link
+ * uk.co.harcourtprogramming.docitten.ContextService ContextService} does:
+ * element by element for the {@link ArrayBuffer}, and with one snapshot for
+ * the {@link RingBuffer}. It is run with one thread, and then with a writer
+ * and a reader thread.</p>
+ */
+@SuppressWarnings("deprecation")
+public class RingBufferBenchmark
+{
+	private final static int READ_EVERY = 20;
+
+	private static long arrayBuffer(ArrayBuffer<String> buffer, String[] lines, int rounds, boolean read)
+	{
+		long sink = 0;
+
+		for (int i = 0; i < rounds; ++i)
+		{
+			buffer.add(lines[i % lines.length]);
+
+			if (read && i % READ_EVERY == 0)
+			{
+				for (int j = 0; j < buffer.getLength(); ++j)
+				{
+					sink += buffer.get(j).length();
+				}
+			}
+		}
+
+		return sink;
+	}
+
+	private static long ringBuffer(RingBuffer<String> buffer, String[] lines, int rounds, boolean read)
+	{
+		final long[] stamps = new long[buffer.getLength()];
+		final String[] into = new String[buffer.getLength()];
+		long sink = 0;
+
+		for (int i = 0; i < rounds; ++i)
+		{
+			buffer.add(i, lines[i % lines.length]);
+
+			if (read && i % READ_EVERY == 0)
+			{
+				final int count = buffer.snapshot(stamps, into);
+
+				for (int j = 0; j < count; ++j)
+				{
+					sink += into[j].length();
+				}
+			}
+		}
+
+		return sink;
+	}
+
+	private static long arrayBufferReader(final ArrayBuffer<String> buffer, String[] lines, int rounds)
+		throws InterruptedException
+	{
+		final long[] sink = {0};
+		final Thread reader = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				while (!isInterrupted())
+				{
+					for (int j = 0; j < buffer.getLength(); ++j)
+					{
+						sink[0] += buffer.get(j).length();
+					}
+				}
+			}
+		};
+
+		reader.start();
+		final long written = arrayBuffer(buffer, lines, rounds, false);
+		reader.interrupt();
+		reader.join();
+
+		return written + sink[0];
+	}
+
+	private static long ringBufferReader(final RingBuffer<String> buffer, String[] lines, int rounds)
+		throws InterruptedException
+	{
+		final long[] sink = {0};
+		final Thread reader = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				final String[] into = new String[buffer.getLength()];
+
+				while (!isInterrupted())
+				{
+					final int count = buffer.snapshot(into);
+
+					for (int j = 0; j < count; ++j)
+					{
+						sink[0] += into[j].length();
+					}
+				}
+			}
+		};
+
+		reader.start();
+		final long written = ringBuffer(buffer, lines, rounds, false);
+		reader.interrupt();
+		reader.join();
+
+		return written + sink[0];
+	}
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		final int length = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5000000;
+		final String[] lines = new String[64];
+
+		for (int i = 0; i < lines.length; ++i)
+		{
+			lines[i] = "[12:34 bob] line " + i;
+		}
+
+		for (int pass = 0; pass < 3; ++pass)
+		{
+			final ArrayBuffer<String> array = new ArrayBuffer<>(length, "");
+			final RingBuffer<String> ring = new RingBuffer<>(length);
+			ring.snapshot(new String[0]);
+
+			for (int i = 0; i < ring.getLength(); ++i)
+			{
+				ring.add("");
+			}
+
+			long sink = 0;
+			long start = System.nanoTime();
+			sink += arrayBuffer(array, lines, rounds, true);
+			final long arrayTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			sink += ringBuffer(ring, lines, rounds, true);
+			final long ringTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			sink += arrayBufferReader(array, lines, rounds);
+			final long arrayShared = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			sink += ringBufferReader(ring, lines, rounds);
+			final long ringShared = System.nanoTime() - start;
+
+			System.out.printf("one thread: array %6.1f ns/add   ring %6.1f ns/add (%.1fx)   "
+				+ "with a reader: array %6.1f ns/add   ring %6.1f ns/add (%.1fx)  [%d]%n",
+				(double)arrayTime / rounds, (double)ringTime / rounds, (double)arrayTime / ringTime,
+				(double)arrayShared / rounds, (double)ringShared / rounds, (double)arrayShared / ringShared,
+				sink);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package uk.co.harcourtprogramming.docitten.utility;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests adding to, and taking snapshots of, the ring buffer</p>
+ */
+public class RingBufferTest
+{
+	@Test
+	public void testLengthIsPowerOfTwo()
+	{
+		assertEquals(1, new RingBuffer<String>(1).getLength());
+		assertEquals(2, new RingBuffer<String>(2).getLength());
+		assertEquals(16, new RingBuffer<String>(10).getLength());
+		assertEquals(16, new RingBuffer<String>(16).getLength());
+		assertEquals(32, new RingBuffer<String>(17).getLength());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testZeroLength()
+	{
+		new RingBuffer<String>(0);
+	}
+
+	@Test
+	public void testPartlyFilled()
+	{
+		final RingBuffer<String> buffer = new RingBuffer<>(4);
+		final String[] into = {"x", "x", "x", "x"};
+
+		assertEquals(0, buffer.snapshot(into));
+		assertArrayEquals(new String[4], into);
+
+		buffer.add("a");
+		buffer.add("b");
+
+		assertEquals(2, buffer.snapshot(into));
+		assertArrayEquals(new String[]{"a", "b", null, null}, into);
+		assertEquals(2, buffer.getCount());
+	}
+
+	@Test
+	public void testOverflow()
+	{
+		final RingBuffer<String> buffer = new RingBuffer<>(4);
+		final long[] stamps = new long[4];
+		final String[] into = new String[4];
+
+		for (int i = 0; i < 10; ++i)
+		{
+			buffer.add(100 + i, Integer.toString(i));
+		}
+
+		assertEquals(4, buffer.snapshot(stamps, into));
+		assertArrayEquals(new String[]{"6", "7", "8", "9"}, into);
+		assertArrayEquals(new long[]{106, 107, 108, 109}, stamps);
+	}
+
+	@Test
+	public void testSmallerSnapshot()
+	{
+		final RingBuffer<String> buffer = new RingBuffer<>(10);
+		final String[] into = new String[3];
+
+		for (int i = 0; i < 12; ++i)
+		{
+			buffer.add(Integer.toString(i));
+		}
+
+		assertEquals(3, buffer.snapshot(into));
+		assertArrayEquals(new String[]{"9", "10", "11"}, into);
+	}
+
+	/**
+	 * <p>Snapshots taken whilst two writers are adding must be in order, and
+	 * each value must have its own stamp</p>
+	 */
+	@Test
+	public void testConcurrentWriters() throws InterruptedException
+	{
+		final RingBuffer<Long> buffer = new RingBuffer<>(8);
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final Thread[] writers = new Thread[2];
+
+		for (int w = 0; w < writers.length; ++w)
+		{
+			final long offset = w << 40;
+
+			writers[w] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					for (long i = 0; running.get(); ++i)
+					{
+						buffer.add(offset + i, offset + i);
+					}
+				}
+			};
+			writers[w].start();
+		}
+
+		final long[] stamps = new long[8];
+		final Long[] into = new Long[8];
+
+		try
+		{
+			for (int i = 0; i < 20000; ++i)
+			{
+				final int count = buffer.snapshot(stamps, into);
+				final long[] last = {-1, -1};
+
+				for (int j = 0; j < count; ++j)
+				{
+					assertEquals(stamps[j], (long)into[j]);
+
+					final int writer = (int)(into[j] >> 40);
+					assertTrue("Out of order", into[j] > last[writer]);
+					last[writer] = into[j];
+				}
+			}
+		}
+		finally
+		{
+			running.set(false);
+
+			for (Thread writer : writers)
+			{
+				writer.join();
+			}
+		}
+	}
+}
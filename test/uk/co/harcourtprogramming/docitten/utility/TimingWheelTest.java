@@ -0,0 +1,158 @@
+package uk.co.harcourtprogramming.docitten.utility;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests that values come out of the timing wheel when they are due, and
+ * not before</p>
+ */
+public class TimingWheelTest
+{
+	@Test
+	public void testEmpty()
+	{
+		final TimingWheel<String> wheel = new TimingWheel<>(1000);
+		final List<String> due = new ArrayList<>();
+
+		assertEquals(Long.MAX_VALUE, wheel.getNextEvent());
+		assertEquals(0, wheel.advance(5000, due));
+		assertEquals(5000, wheel.getTime());
+		assertTrue(due.isEmpty());
+	}
+
+	@Test
+	public void testNearDeadline()
+	{
+		final TimingWheel<String> wheel = new TimingWheel<>(1000);
+		final List<String> due = new ArrayList<>();
+
+		wheel.schedule(1010, "a");
+		assertEquals(1010, wheel.getNextEvent());
+
+		assertEquals(0, wheel.advance(1009, due));
+		assertEquals(1, wheel.advance(1010, due));
+		assertEquals(Collections.singletonList("a"), due);
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testPastDeadline()
+	{
+		final TimingWheel<String> wheel = new TimingWheel<>(1000);
+		final List<String> due = new ArrayList<>();
+
+		wheel.schedule(900, "late");
+		assertEquals(1000, wheel.getNextEvent());
+		assertEquals(1, wheel.advance(1000, due));
+		assertEquals(Collections.singletonList("late"), due);
+	}
+
+	@Test
+	public void testFarDeadline()
+	{
+		final TimingWheel<String> wheel = new TimingWheel<>(0);
+		final List<String> due = new ArrayList<>();
+		final long far = 5L << 40;
+
+		wheel.schedule(far, "far");
+		wheel.schedule(3600000, "hour");
+
+		assertEquals(1, wheel.advance(far - 1, due));
+		assertEquals(Collections.singletonList("hour"), due);
+		assertTrue(wheel.getNextEvent() <= far);
+
+		due.clear();
+		assertEquals(1, wheel.advance(far, due));
+		assertEquals(Collections.singletonList("far"), due);
+	}
+
+	@Test
+	public void testCancel()
+	{
+		final TimingWheel<String> wheel = new TimingWheel<>(0);
+		final List<String> due = new ArrayList<>();
+
+		final TimingWheel.Timeout<String> a = wheel.schedule(100000, "a");
+		final TimingWheel.Timeout<String> b = wheel.schedule(100000, "b");
+		final TimingWheel.Timeout<String> c = wheel.schedule(100000, "c");
+
+		assertTrue(wheel.cancel(b));
+		assertFalse(wheel.cancel(b));
+		assertFalse(b.isPending());
+		assertEquals(2, wheel.size());
+
+		assertEquals(2, wheel.advance(100000, due));
+		assertEquals(java.util.Arrays.asList("a", "c"), due);
+		assertFalse(wheel.cancel(a));
+		assertFalse(c.isPending());
+
+		final TimingWheel.Timeout<String> d = wheel.schedule(200000, "d");
+		assertTrue(wheel.cancel(d));
+		assertEquals(Long.MAX_VALUE, wheel.getNextEvent());
+	}
+
+	/**
+	 * <p>Compares the wheel with a sorted list, advancing to each event that
+	 * the wheel asks for, with values added and cancelled along the way</p>
+	 */
+	@Test
+	public void testRandom()
+	{
+		final Random r = new Random(7);
+		final long start = 1400000000000L;
+		final TimingWheel<Long> wheel = new TimingWheel<>(start);
+		final List<TimingWheel.Timeout<Long>> pending = new ArrayList<>();
+		final List<Long> due = new ArrayList<>();
+		long now = start;
+		long last = start;
+
+		for (int i = 0; i < 20000; ++i)
+		{
+			final long deadline = now + (long)Math.pow(10, r.nextDouble() * 10);
+			pending.add(wheel.schedule(deadline, deadline));
+
+			if (r.nextInt(4) == 0)
+			{
+				assertTrue(wheel.cancel(pending.remove(r.nextInt(pending.size()))));
+			}
+
+			if (r.nextInt(3) == 0)
+			{
+				final long next = wheel.getNextEvent();
+				assertTrue(next > now);
+
+				now = r.nextBoolean() ? next : now + r.nextInt(100000);
+				due.clear();
+				wheel.advance(now, due);
+
+				for (long d : due)
+				{
+					assertTrue("Returned early", d <= now);
+					assertTrue("Out of order", d >= last);
+					last = d;
+				}
+
+				for (TimingWheel.Timeout<Long> t : pending)
+				{
+					assertEquals("Missed a deadline", t.getDeadline() > now, t.isPending());
+				}
+
+				for (int j = pending.size() - 1; j >= 0; --j)
+				{
+					if (!pending.get(j).isPending())
+					{
+						pending.remove(j);
+					}
+				}
+
+				assertEquals(pending.size(), wheel.size());
+			}
+		}
+	}
+}
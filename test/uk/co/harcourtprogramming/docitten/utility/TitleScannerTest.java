@@ -0,0 +1,187 @@
+package uk.co.harcourtprogramming.docitten.utility;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests the title scanner against awkward (but real-world) page heads</p>
+ */
+public class TitleScannerTest
+{
+	private final static Charset LATIN1 = StandardCharsets.ISO_8859_1;
+
+	private final TitleScanner scanner = new TitleScanner(4096);
+
+	private String scan(String page) throws IOException
+	{
+		return scanner.scan(new ByteArrayInputStream(page.getBytes(StandardCharsets.UTF_8)), null);
+	}
+
+	/**
+	 * <p>Stream which only ever returns one byte per read, to check that
+	 * nothing depends on where the buffer boundaries fall</p>
+	 */
+	private static class Trickle extends FilterInputStream
+	{
+		Trickle(byte[] data)
+		{
+			super(new ByteArrayInputStream(data));
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			return super.read(b, off, Math.min(1, len));
+		}
+	}
+
+	@Test
+	public void testSimpleTitle() throws IOException
+	{
+		assertEquals("Hello", scan("<html><head><title>Hello</title></head><body></body></html>"));
+	}
+
+	@Test
+	public void testTagCase() throws IOException
+	{
+		assertEquals("Upper", scan("<HTML><HEAD><TITLE>Upper</TITLE></HEAD>"));
+		assertEquals("Mixed", scan("<Html><Head><tItLe>Mixed</TiTlE></Head>"));
+	}
+
+	@Test
+	public void testQuotedAttributes() throws IOException
+	{
+		assertEquals("Quoted", scan("<title data-x='a>b' lang=\"en>gb\">Quoted</title>"));
+	}
+
+	@Test
+	public void testWhitespaceCollapsed() throws IOException
+	{
+		assertEquals("Split Over Lines", scan("<title>\n\t Split\n  Over\r\nLines\n</title>"));
+	}
+
+	@Test
+	public void testEntitiesDecoded() throws IOException
+	{
+		assertEquals("Fish & Chips", scan("<title>Fish &amp; Chips</title>"));
+	}
+
+	@Test
+	public void testLessThanInTitle() throws IOException
+	{
+		assertEquals("a < b </tit", scan("<title>a < b </tit</title>"));
+	}
+
+	@Test
+	public void testNoTitle() throws IOException
+	{
+		assertNull(scan("<html><head></head><body><title>Not this</title></body>"));
+		assertNull(scan("<html><body><p>Nothing here</p></body></html>"));
+		assertNull(scan(""));
+	}
+
+	@Test
+	public void testEmptyTitle() throws IOException
+	{
+		assertEquals("", scan("<title></title>"));
+	}
+
+	@Test
+	public void testCommentsAndScriptsSkipped() throws IOException
+	{
+		assertEquals("Real", scan(
+			"<head><!-- <title>Comment</title> -->"
+			+ "<script>var s = '<title>Script</title>'; if (a<b) {}</script>"
+			+ "<style>p:after { content: '<title>'; }</style>"
+			+ "<title>Real</title></head>"
+		));
+	}
+
+	@Test
+	public void testMetaCharset() throws IOException
+	{
+		final byte[] page = "<meta charset=\"iso-8859-1\"><title>Caf\u00e9</title>".getBytes(LATIN1);
+
+		assertEquals("Caf\u00e9", scanner.scan(new ByteArrayInputStream(page), null));
+	}
+
+	@Test
+	public void testMetaHttpEquivCharset() throws IOException
+	{
+		final byte[] page = ("<meta http-equiv='Content-Type' content='text/html; charset=ISO-8859-1'>"
+			+ "<title>Na\u00efve</title>").getBytes(LATIN1);
+
+		assertEquals("Na\u00efve", scanner.scan(new ByteArrayInputStream(page), null));
+	}
+
+	@Test
+	public void testHeaderCharsetWins() throws IOException
+	{
+		final byte[] page = "<meta charset=utf-8><title>Caf\u00e9</title>".getBytes(LATIN1);
+
+		assertEquals("Caf\u00e9", scanner.scan(new ByteArrayInputStream(page),
+			TitleScanner.charsetOf("text/html; charset=ISO-8859-1")));
+	}
+
+	@Test
+	public void testCharsetOf()
+	{
+		assertEquals(StandardCharsets.UTF_8, TitleScanner.charsetOf("text/html; Charset=\"UTF-8\""));
+		assertNull(TitleScanner.charsetOf("text/html"));
+		assertNull(TitleScanner.charsetOf("text/html; charset=no-such-charset"));
+		assertNull(TitleScanner.charsetOf(null));
+	}
+
+	@Test
+	public void testBufferBoundaries() throws IOException
+	{
+		final byte[] page = "<head><!-- x --><TITLE lang='en'>\n Split\n Title </TITLE></head>"
+			.getBytes(StandardCharsets.UTF_8);
+
+		assertEquals("Split Title", scanner.scan(new Trickle(page), null));
+	}
+
+	@Test
+	public void testBudget() throws IOException
+	{
+		final StringBuilder page = new StringBuilder("<head>");
+
+		while (page.length() < 8192)
+		{
+			page.append("<meta name=\"filler\" content=\"filler\">");
+		}
+
+		page.append("<title>Too Late</title>");
+
+		assertNull(scan(page.toString()));
+		assertEquals("Too Late", new TitleScanner(16384).scan(
+			new ByteArrayInputStream(page.toString().getBytes(StandardCharsets.UTF_8)), null));
+	}
+
+	@Test
+	public void testScannerReused() throws IOException
+	{
+		assertEquals("First", scan("<meta charset=iso-8859-1><title>First</title>"));
+		assertNull(scan("<body>"));
+
+		final byte[] page = "<title>Caf\u00e9</title>".getBytes(StandardCharsets.UTF_8);
+		assertEquals("Caf\u00e9", scanner.scan(new ByteArrayInputStream(page), null));
+	}
+
+	@Test
+	public void testStopsReading() throws IOException
+	{
+		final byte[] page = "<title>Early</title></head><body>never read</body>".getBytes(StandardCharsets.UTF_8);
+		final InputStream in = new Trickle(page);
+
+		assertEquals("Early", scanner.scan(in, null));
+		assertTrue(in.available() > 0);
+	}
+}
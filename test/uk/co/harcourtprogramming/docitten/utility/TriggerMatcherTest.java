@@ -0,0 +1,75 @@
+package uk.co.harcourtprogramming.docitten.utility;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests the words found by the trigger matcher</p>
+ */
+public class TriggerMatcherTest
+{
+	@Test
+	public void testNoHits()
+	{
+		final TriggerMatcher matcher = new TriggerMatcher(Arrays.asList("kitt", "cat"));
+		final TriggerMatcher.Hits hits = matcher.scan("nothing to see here. move along, citizen");
+
+		assertTrue(hits.isEmpty());
+		assertEquals(0, hits.count("cat"));
+	}
+
+	@Test
+	public void testOverlappingWords()
+	{
+		final TriggerMatcher matcher = new TriggerMatcher(Arrays.asList("he", "she", "his", "hers"));
+		final TriggerMatcher.Hits hits = matcher.scan("ushers");
+
+		assertFalse(hits.isEmpty());
+		assertEquals(1, hits.count("she"));
+		assertEquals(1, hits.count("he"));
+		assertEquals(1, hits.count("hers"));
+		assertEquals(0, hits.count("his"));
+		assertTrue(hits.contains("his", "hers"));
+		assertFalse(hits.contains("his"));
+	}
+
+	@Test
+	public void testCaseAndCounts()
+	{
+		final TriggerMatcher matcher = new TriggerMatcher(Arrays.asList("Kitt", "kitt", " "));
+		final TriggerMatcher.Hits hits = matcher.scan("KITTY kitten kittt");
+
+		assertEquals(2, matcher.getWords().size());
+		assertEquals(3, hits.count("kitt"));
+		assertEquals(3, hits.count("KITT"));
+		assertEquals(2, hits.count(" "));
+	}
+
+	@Test
+	public void testNonAscii()
+	{
+		final TriggerMatcher matcher = new TriggerMatcher(Arrays.asList("cat"));
+
+		assertTrue(matcher.scan("ca\u00eft").isEmpty());
+		assertEquals(1, matcher.scan("\u00e9cat").count("cat"));
+	}
+
+	@Test
+	public void testIndices()
+	{
+		final TriggerMatcher matcher = new TriggerMatcher(Arrays.asList("mew", "nyan"));
+
+		assertEquals(1, matcher.indexOf("NYAN"));
+		assertEquals(-1, matcher.indexOf("purr"));
+		assertTrue(matcher.scan("nyan").containsAny(new int[] {1}));
+		assertFalse(matcher.scan("nyan").containsAny(new int[] {0}));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEmptyWord()
+	{
+		new TriggerMatcher(Arrays.asList("cat", ""));
+	}
+}